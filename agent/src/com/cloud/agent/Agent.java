@@ -26,8 +26,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -45,7 +43,9 @@ import com.cloud.agent.api.Command;
 import com.cloud.agent.api.CronCommand;
 import com.cloud.agent.api.MaintainAnswer;
 import com.cloud.agent.api.MaintainCommand;
+import com.cloud.agent.api.PingAnswer;
 import com.cloud.agent.api.PingCommand;
+import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.ReadyCommand;
 import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartupAnswer;
@@ -74,6 +74,7 @@ import com.cloud.utils.script.Script;
  *         || Param Name | Description | Values | Default ||
  *         || type | Type of server | Storage / Computing / Routing | No Default ||
  *         || workers | # of workers to process the requests | int | 1 ||
+ *         || workers.control, workers.vm, workers.storage, workers.network | # of workers of a request lane | int | workers ||
  *         || host | host to connect to | ip address | localhost ||
  *         || port | port to connect to | port number | 8250 ||
  *         || instance | Used to allow multiple agents running on the same host | String | none || * }
@@ -115,15 +116,18 @@ public class Agent implements HandlerFactory, IAgentControl {
     long _sequence = 0;
     long _lastPingResponseTime = 0;
     long _pingInterval = 0;
+    volatile Request.Version _wireVersion = Request.Version.v1;
     AtomicInteger _inProgress = new AtomicInteger();
+    final HostVmStateReportEncoder _vmStateReportEncoder = new HostVmStateReportEncoder();
 
     StartupTask _startup = null;
     long _startupWaitDefault = 180000;
+    static final long LaneStatsInterval = 60000;
     long _startupWait = _startupWaitDefault;
     boolean _reconnectAllowed = true;
     //For time sentitive task, e.g. PingTask
     private final ThreadPoolExecutor _ugentTaskPool;
-    ExecutorService _executor;
+    AgentRequestLanes _requestLanes;
 
     // for simulator use only
     public Agent(final IAgentShell shell) {
@@ -138,9 +142,8 @@ public class Agent implements HandlerFactory, IAgentControl {
                 new ThreadPoolExecutor(shell.getPingRetries(), 2 * shell.getPingRetries(), 10, TimeUnit.MINUTES, new SynchronousQueue<Runnable>(), new NamedThreadFactory(
                         "UgentTask"));
 
-        _executor =
-                new ThreadPoolExecutor(_shell.getWorkers(), 5 * _shell.getWorkers(), 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(
-                        "agentRequest-Handler"));
+        _requestLanes = new AgentRequestLanes(_shell.getWorkers(), _shell.getProperties());
+        _timer.schedule(new LaneStatsTask(), LaneStatsInterval, LaneStatsInterval);
     }
 
     public Agent(final IAgentShell shell, final int localAgentId, final ServerResource resource) throws ConfigurationException {
@@ -176,9 +179,8 @@ public class Agent implements HandlerFactory, IAgentControl {
                 new ThreadPoolExecutor(shell.getPingRetries(), 2 * shell.getPingRetries(), 10, TimeUnit.MINUTES, new SynchronousQueue<Runnable>(), new NamedThreadFactory(
                         "UgentTask"));
 
-        _executor =
-                new ThreadPoolExecutor(_shell.getWorkers(), 5 * _shell.getWorkers(), 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(
-                        "agentRequest-Handler"));
+        _requestLanes = new AgentRequestLanes(_shell.getWorkers(), _shell.getProperties());
+        _timer.schedule(new LaneStatsTask(), LaneStatsInterval, LaneStatsInterval);
 
         s_logger.info("Agent [id = " + (_id != null ? _id : "new") + " : type = " + getResourceName() + " : zone = " + _shell.getZone() + " : pod = " + _shell.getPod() +
                 " : workers = " + _shell.getWorkers() + " : host = " + _shell.getHost() + " : port = " + _shell.getPort());
@@ -269,6 +271,7 @@ public class Agent implements HandlerFactory, IAgentControl {
         }
 
         _ugentTaskPool.shutdownNow();
+        _requestLanes.shutdownNow();
     }
 
     public Long getId() {
@@ -312,6 +315,8 @@ public class Agent implements HandlerFactory, IAgentControl {
     public void sendStartup(final Link link) {
         final StartupCommand[] startup = _resource.initialize();
         if (startup != null) {
+            // JSON until the management server tells otherwise in the startup answer
+            _wireVersion = Request.Version.v1;
             final Command[] commands = new Command[startup.length];
             for (int i = 0; i < startup.length; i++) {
                 setupStartupCommand(startup[i]);
@@ -355,6 +360,7 @@ public class Agent implements HandlerFactory, IAgentControl {
         startup.setGuid(getResourceGuid());
         startup.setResourceName(getResourceName());
         startup.setVersion(getVersion());
+        startup.setWireVersion(Request.Version.v4.ordinal());
     }
 
     @Override
@@ -440,7 +446,10 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         setId(startup.getHostId());
         _pingInterval = (long)startup.getPingInterval() * 1000; // change to ms.
+        _wireVersion = startup.getWireVersion() == Request.Version.v4.ordinal() ? Request.Version.v4 : Request.Version.v1;
 
+        // the server we just registered with has no VM state report to apply deltas to
+        _vmStateReportEncoder.reset();
         setLastPingResponseTime();
         scheduleWatch(link, response, _pingInterval, _pingInterval);
 
@@ -571,6 +580,9 @@ public class Agent implements HandlerFactory, IAgentControl {
                 }
             }
         } else {
+            if (answer instanceof PingAnswer) {
+                _vmStateReportEncoder.acknowledge((PingAnswer)answer);
+            }
             setLastPingResponseTime();
         }
     }
@@ -596,7 +608,11 @@ public class Agent implements HandlerFactory, IAgentControl {
             }
 
             final PingCommand ping = _resource.getCurrentStatus(getId());
+            if (ping instanceof PingRoutingCommand) {
+                _vmStateReportEncoder.encode((PingRoutingCommand)ping);
+            }
             final Request request = new Request(_id, -1, ping, false);
+            request.setVersion(_wireVersion);
             request.setSequence(getNextSequence());
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
@@ -693,6 +709,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     private void postRequest(final Request request) throws AgentControlChannelException {
         if (_link != null) {
             try {
+                request.setVersion(_wireVersion);
                 _link.send(request.toBytes());
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to post agent control reques: " + request.toString());
@@ -809,6 +826,15 @@ public class Agent implements HandlerFactory, IAgentControl {
         }
     }
 
+    public class LaneStatsTask extends ManagedContextTimerTask {
+        @Override
+        protected void runInContext() {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug(_requestLanes.toString());
+            }
+        }
+    }
+
     public class AgentRequestHandler extends Task {
         public AgentRequestHandler(final Task.Type type, final Link link, final Request req) {
             super(type, link, req);
@@ -848,7 +874,7 @@ public class Agent implements HandlerFactory, IAgentControl {
                     } else {
                         //put the requests from mgt server into another thread pool, as the request may take a longer time to finish. Don't block the NIO main thread pool
                         //processRequest(request, task.getLink());
-                        _executor.submit(new AgentRequestHandler(getType(), getLink(), request));
+                        _requestLanes.submit(request, new AgentRequestHandler(getType(), getLink(), request));
                     }
                 } catch (final ClassNotFoundException e) {
                     s_logger.error("Unable to find this request ");
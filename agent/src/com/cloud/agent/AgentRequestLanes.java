@@ -0,0 +1,136 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.storage.command.StorageSubSystemCommand;
+
+import com.cloud.agent.api.CleanupNetworkRulesCmd;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.DeleteStoragePoolCommand;
+import com.cloud.agent.api.ManageSnapshotCommand;
+import com.cloud.agent.api.MigrateCommand;
+import com.cloud.agent.api.ModifyStoragePoolCommand;
+import com.cloud.agent.api.NetworkRulesSystemVmCommand;
+import com.cloud.agent.api.NetworkRulesVmSecondaryIpCommand;
+import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.agent.api.PlugNicCommand;
+import com.cloud.agent.api.PrepareForMigrationCommand;
+import com.cloud.agent.api.RebootCommand;
+import com.cloud.agent.api.ScaleVmCommand;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
+import com.cloud.agent.api.SnapshotCommand;
+import com.cloud.agent.api.StartCommand;
+import com.cloud.agent.api.UnPlugNicCommand;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.storage.SsCommand;
+import com.cloud.agent.api.storage.StorageCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Executes the requests from the management server in separate lanes, each with its own
+ * workers and queue, so slow storage or network operations can't starve VM lifecycle and
+ * control commands. A request is executed as a whole in the lane of its first command.
+ *
+ * The number of workers of a lane is read from the agent property workers.&lt;lane&gt;
+ * (e.g. workers.storage) and defaults to the workers property.
+ */
+public class AgentRequestLanes {
+    public enum Lane {
+        Control, Vm, Storage, Network
+    }
+
+    private final Map<Lane, ThreadPoolExecutor> _executors = new EnumMap<Lane, ThreadPoolExecutor>(Lane.class);
+
+    public AgentRequestLanes(final int defaultWorkers, final Properties properties) {
+        for (final Lane lane : Lane.values()) {
+            final String value = properties != null ? properties.getProperty("workers." + lane.name().toLowerCase()) : null;
+            final int workers = Math.max(1, NumbersUtil.parseInt(value, defaultWorkers));
+            final ThreadPoolExecutor executor =
+                    new ThreadPoolExecutor(workers, workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("agentRequest-" + lane + "-Handler"));
+            _executors.put(lane, executor);
+        }
+    }
+
+    public static Lane getLane(final Request request) {
+        final Command[] cmds = request.getCommands();
+        if (cmds == null || cmds.length == 0) {
+            return Lane.Control;
+        }
+        return getLane(cmds[0]);
+    }
+
+    public static Lane getLane(final Command cmd) {
+        if (cmd instanceof StartCommand || cmd instanceof RebootCommand || cmd instanceof MigrateCommand || cmd instanceof PrepareForMigrationCommand ||
+                cmd instanceof ScaleVmCommand || cmd instanceof PlugNicCommand || cmd instanceof UnPlugNicCommand) {
+            return Lane.Vm;
+        }
+        if (cmd instanceof NetworkElementCommand || cmd instanceof SecurityGroupRulesCmd || cmd instanceof SecurityGroupRulesDeltaCmd ||
+                cmd instanceof NetworkRulesSystemVmCommand || cmd instanceof NetworkRulesVmSecondaryIpCommand || cmd instanceof CleanupNetworkRulesCmd ||
+                cmd instanceof NetworkUsageCommand) {
+            return Lane.Network;
+        }
+        if (cmd instanceof StorageSubSystemCommand || cmd instanceof StorageCommand || cmd instanceof SsCommand || cmd instanceof SnapshotCommand ||
+                cmd instanceof ManageSnapshotCommand || cmd instanceof ModifyStoragePoolCommand || cmd instanceof DeleteStoragePoolCommand) {
+            return Lane.Storage;
+        }
+        return Lane.Control;
+    }
+
+    public Future<?> submit(final Request request, final Runnable task) {
+        return _executors.get(getLane(request)).submit(task);
+    }
+
+    public int getQueueSize(final Lane lane) {
+        return _executors.get(lane).getQueue().size();
+    }
+
+    public int getActiveCount(final Lane lane) {
+        return _executors.get(lane).getActiveCount();
+    }
+
+    public long getCompletedTaskCount(final Lane lane) {
+        return _executors.get(lane).getCompletedTaskCount();
+    }
+
+    public void shutdownNow() {
+        for (final ThreadPoolExecutor executor : _executors.values()) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("Request lanes:");
+        for (final Map.Entry<Lane, ThreadPoolExecutor> entry : _executors.entrySet()) {
+            final ThreadPoolExecutor executor = entry.getValue();
+            sb.append(' ').append(entry.getKey()).append("[workers=").append(executor.getMaximumPoolSize()).append(", active=").append(executor.getActiveCount())
+                    .append(", queued=").append(executor.getQueue().size()).append(", completed=").append(executor.getCompletedTaskCount()).append(']');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,116 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingRoutingCommand;
+
+/**
+ * Turns the VM state report of each ping into the changes since the last report the
+ * management server acknowledged.  A complete report is sent when nothing has been
+ * acknowledged yet, when the server asks for it and every FullReportInterval pings.
+ */
+public class HostVmStateReportEncoder {
+    protected static final int FullReportInterval = Integer.getInteger("ping.full.report.interval", 10);
+    // reports kept while their acknowledgement is outstanding
+    protected static final int MaxUnacknowledged = 4;
+
+    private long _sequence = 0;
+    private long _ackedSequence = 0;
+    private Map<String, HostVmStateReportEntry> _ackedReport;
+    private final LinkedHashMap<Long, Map<String, HostVmStateReportEntry>> _unacknowledged = new LinkedHashMap<Long, Map<String, HostVmStateReportEntry>>();
+    private int _deltasSinceFullReport = 0;
+
+    public synchronized void encode(final PingRoutingCommand ping) {
+        final Map<String, HostVmStateReportEntry> report = ping.getHostVmStateReport();
+        if (report == null) {
+            return;
+        }
+
+        final long sequence = ++_sequence;
+        _unacknowledged.put(sequence, new HashMap<String, HostVmStateReportEntry>(report));
+        if (_unacknowledged.size() > MaxUnacknowledged) {
+            final Iterator<Long> it = _unacknowledged.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+
+        if (_ackedReport == null || ++_deltasSinceFullReport >= FullReportInterval) {
+            _deltasSinceFullReport = 0;
+            ping.setReportSequence(sequence);
+            return;
+        }
+
+        final Map<String, HostVmStateReportEntry> changed = new HashMap<String, HostVmStateReportEntry>();
+        for (final Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+            if (!isSame(entry.getValue(), _ackedReport.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final List<String> removed = new ArrayList<String>();
+        for (final String vmName : _ackedReport.keySet()) {
+            if (!report.containsKey(vmName)) {
+                removed.add(vmName);
+            }
+        }
+        ping.setDelta(sequence, _ackedSequence, changed, removed);
+    }
+
+    public synchronized void acknowledge(final PingAnswer answer) {
+        if (answer.isSendFullReport()) {
+            reset();
+            return;
+        }
+
+        final long sequence = answer.getReportSequence();
+        final Map<String, HostVmStateReportEntry> report = _unacknowledged.get(sequence);
+        if (report == null || sequence <= _ackedSequence) {
+            return;
+        }
+        _ackedSequence = sequence;
+        _ackedReport = report;
+        final Iterator<Long> it = _unacknowledged.keySet().iterator();
+        while (it.hasNext() && it.next() <= sequence) {
+            it.remove();
+        }
+    }
+
+    /**
+     * Called on reconnect, the new management server has nothing to apply deltas to.
+     */
+    public synchronized void reset() {
+        _ackedSequence = 0;
+        _ackedReport = null;
+        _unacknowledged.clear();
+        _deltasSinceFullReport = 0;
+    }
+
+    private static boolean isSame(final HostVmStateReportEntry entry, final HostVmStateReportEntry acked) {
+        if (acked == null || entry.getState() != acked.getState()) {
+            return false;
+        }
+        return entry.getHost() == null ? acked.getHost() == null : entry.getHost().equals(acked.getHost());
+    }
+}
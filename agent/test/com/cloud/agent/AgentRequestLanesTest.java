@@ -0,0 +1,98 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.storage.command.CopyCommand;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.agent.AgentRequestLanes.Lane;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.MaintainCommand;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.StartCommand;
+import com.cloud.agent.api.StopCommand;
+import com.cloud.agent.api.routing.SetPortForwardingRulesCommand;
+import com.cloud.agent.transport.Request;
+
+public class AgentRequestLanesTest {
+
+    @Test
+    public void testGetLane() {
+        Assert.assertEquals(Lane.Vm, AgentRequestLanes.getLane(Mockito.mock(StartCommand.class)));
+        Assert.assertEquals(Lane.Vm, AgentRequestLanes.getLane(Mockito.mock(StopCommand.class)));
+        Assert.assertEquals(Lane.Network, AgentRequestLanes.getLane(Mockito.mock(SetPortForwardingRulesCommand.class)));
+        Assert.assertEquals(Lane.Network, AgentRequestLanes.getLane(Mockito.mock(SecurityGroupRulesCmd.class)));
+        Assert.assertEquals(Lane.Storage, AgentRequestLanes.getLane(new CopyCommand(null, null, 0, false)));
+        Assert.assertEquals(Lane.Control, AgentRequestLanes.getLane(new MaintainCommand()));
+    }
+
+    @Test
+    public void testRequestLaneFollowsFirstCommand() {
+        final Request request = Mockito.mock(Request.class);
+        Mockito.when(request.getCommands()).thenReturn(new Command[] {new CopyCommand(null, null, 0, false), new MaintainCommand()});
+        Assert.assertEquals(Lane.Storage, AgentRequestLanes.getLane(request));
+
+        Mockito.when(request.getCommands()).thenReturn(new Command[0]);
+        Assert.assertEquals(Lane.Control, AgentRequestLanes.getLane(request));
+    }
+
+    @Test
+    public void testBusyLaneDoesNotBlockOtherLanes() throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.setProperty("workers.storage", "1");
+        final AgentRequestLanes lanes = new AgentRequestLanes(2, properties);
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final Request storageRequest = Mockito.mock(Request.class);
+            Mockito.when(storageRequest.getCommands()).thenReturn(new Command[] {new CopyCommand(null, null, 0, false)});
+            final Runnable blocking = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            lanes.submit(storageRequest, blocking);
+            lanes.submit(storageRequest, blocking);
+
+            final CountDownLatch started = new CountDownLatch(1);
+            final Request vmRequest = Mockito.mock(Request.class);
+            Mockito.when(vmRequest.getCommands()).thenReturn(new Command[] {Mockito.mock(StartCommand.class)});
+            lanes.submit(vmRequest, new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                }
+            });
+
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, lanes.getQueueSize(Lane.Storage));
+            release.countDown();
+        } finally {
+            lanes.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.host.Host;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class HostVmStateReportEncoderTest {
+
+    private PingRoutingCommand ping(final Map<String, HostVmStateReportEntry> report) {
+        return new PingRoutingCommand(Host.Type.Routing, 1, new HashMap<String, HostVmStateReportEntry>(report));
+    }
+
+    @Test
+    public void testFullReportUntilAcknowledged() {
+        final HostVmStateReportEncoder encoder = new HostVmStateReportEncoder();
+        final Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+
+        final PingRoutingCommand first = ping(report);
+        encoder.encode(first);
+        assertFalse(first.isDelta());
+        assertEquals(1, first.getReportSequence());
+
+        final PingRoutingCommand second = ping(report);
+        encoder.encode(second);
+        assertFalse(second.isDelta());
+        assertEquals(1, second.getHostVmStateReport().size());
+    }
+
+    @Test
+    public void testDeltaAfterAcknowledgement() {
+        final HostVmStateReportEncoder encoder = new HostVmStateReportEncoder();
+        final Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+        report.put("i-2-4-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+
+        final PingRoutingCommand first = ping(report);
+        encoder.encode(first);
+        encoder.acknowledge(new PingAnswer(first, first.getReportSequence(), false));
+
+        report.put("i-2-4-VM", new HostVmStateReportEntry(PowerState.PowerOff, "host1"));
+        report.remove("i-2-3-VM");
+        final PingRoutingCommand second = ping(report);
+        encoder.encode(second);
+        assertTrue(second.isDelta());
+        assertEquals(first.getReportSequence(), second.getBaseReportSequence());
+        assertEquals(1, second.getHostVmStateReport().size());
+        assertEquals(PowerState.PowerOff, second.getHostVmStateReport().get("i-2-4-VM").getState());
+        assertEquals(1, second.getRemovedVms().size());
+        assertEquals("i-2-3-VM", second.getRemovedVms().get(0));
+    }
+
+    @Test
+    public void testFullReportWhenRequested() {
+        final HostVmStateReportEncoder encoder = new HostVmStateReportEncoder();
+        final Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host1"));
+
+        final PingRoutingCommand first = ping(report);
+        encoder.encode(first);
+        encoder.acknowledge(new PingAnswer(first, first.getReportSequence(), false));
+        encoder.acknowledge(new PingAnswer(first, 0, true));
+
+        final PingRoutingCommand second = ping(report);
+        encoder.encode(second);
+        assertFalse(second.isDelta());
+        assertEquals(1, second.getHostVmStateReport().size());
+    }
+}
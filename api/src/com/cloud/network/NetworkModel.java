@@ -35,6 +35,7 @@ import com.cloud.network.element.UserDataServiceProvider;
 import com.cloud.offering.NetworkOffering;
 import com.cloud.offering.NetworkOffering.Detail;
 import com.cloud.user.Account;
+import com.cloud.utils.net.Ip4AddressBitmap;
 import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
 import com.cloud.vm.VirtualMachine;
@@ -242,6 +243,12 @@ public interface NetworkModel {
 
     Set<Long> getAvailableIps(Network network, String requestedIp);
 
+    /**
+     * @return usage of the guest cidr of the network with the used and gateway addresses marked
+     * as in use, or null if the requested ip is already in use
+     */
+    Ip4AddressBitmap getGuestIpBitmap(Network network, String requestedIp);
+
     String getDomainNetworkDomain(long domainId, long zoneId);
 
     PublicIpAddress getSourceNatIpAddressForGuestNetwork(Account owner, Network guestNetwork);
@@ -18,6 +18,7 @@ package org.apache.cloudstack.api;
 
 import com.cloud.exception.CloudAuthenticationException;
 import javax.servlet.http.HttpSession;
+import java.io.Writer;
 import java.util.Map;
 import java.net.InetAddress;
 
@@ -39,5 +40,10 @@ public interface ApiServerService {
 
     public String handleRequest(Map params, String responseType, StringBuilder auditTrailSb) throws ServerApiException;
 
+    /**
+     * Same as handleRequest() but the response is serialized straight into out instead of being returned.
+     */
+    public void handleRequest(Map params, String responseType, StringBuilder auditTrailSb, Writer out) throws ServerApiException;
+
     public Class<?> getCmdClass(String cmdName);
 }
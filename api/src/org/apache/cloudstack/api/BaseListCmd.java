@@ -117,6 +117,14 @@ public abstract class BaseListCmd extends BaseCmd implements IBaseListCmd {
         return startIndex;
     }
 
+    /**
+     * List commands supporting keyset pagination declare the startid parameter and return it here.
+     */
+    @Override
+    public String getStartId() {
+        return null;
+    }
+
     @Override
     public ApiCommandJobType getInstanceType() {
         return ApiCommandJobType.None;
@@ -132,7 +140,14 @@ public abstract class BaseListCmd extends BaseCmd implements IBaseListCmd {
             pageSize = Long.valueOf((String)pageSizeObj);
         }
 
-        if (params.get(ApiConstants.PAGE) == null &&
+        if (params.get(ApiConstants.START_ID) != null) {
+            if (getStartId() == null) {
+                throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"startid\" parameter is not supported by this API");
+            }
+            if (params.get(ApiConstants.PAGE) != null) {
+                throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" and \"startid\" parameters are mutually exclusive");
+            }
+        } else if (params.get(ApiConstants.PAGE) == null &&
                 pageSize != null &&
                 !pageSize.equals(BaseListCmd.s_pageSizeUnlimited)) {
             final ServerApiException ex = new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter is required when \"pagesize\" is specified");
@@ -28,5 +28,7 @@ public interface IBaseListCmd {
 
     Long getStartIndex();
 
+    String getStartId();
+
     ApiCommandJobType getInstanceType();
 }
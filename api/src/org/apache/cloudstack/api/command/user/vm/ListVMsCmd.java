@@ -133,6 +133,10 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
     @Parameter(name = ApiConstants.USER_ID, type = CommandType.UUID, entityType = UserResponse.class, required = false, description = "the user ID that created the VM and is under the account that owns the VM")
     private Long userId;
 
+    @Parameter(name = ApiConstants.START_ID, type = CommandType.STRING, description = "list the page following the virtual machine with this ID, "
+        + "the last one of the previous page; the total count is not computed, mutually exclusive with page", since = "4.6")
+    private String startId;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -224,6 +228,12 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
         }
         return super.getDisplay();
     }
+
+    @Override
+    public String getStartId() {
+        return startId;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
@@ -86,6 +86,10 @@ public class ListVolumesCmd extends BaseListTaggedResourcesCmd {
     @Parameter(name = ApiConstants.DISPLAY_VOLUME, type = CommandType.BOOLEAN, description = "list resources by display flag; only ROOT admin is eligible to pass this parameter", since = "4.4", authorized = {RoleType.Admin})
     private Boolean display;
 
+    @Parameter(name = ApiConstants.START_ID, type = CommandType.STRING, description = "list the page following the volume with this ID, "
+        + "the last one of the previous page; the total count is not computed, mutually exclusive with page", since = "4.6")
+    private String startId;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -133,6 +137,12 @@ public class ListVolumesCmd extends BaseListTaggedResourcesCmd {
         }
         return super.getDisplay();
     }
+
+    @Override
+    public String getStartId() {
+        return startId;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
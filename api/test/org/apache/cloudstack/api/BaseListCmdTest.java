@@ -0,0 +1,73 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import org.apache.cloudstack.api.command.user.event.ListEventsCmd;
+
+public class BaseListCmdTest {
+
+    private static Map<String, String> params(String... keyValues) {
+        Map<String, String> params = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            params.put(keyValues[i], keyValues[i + 1]);
+        }
+        return params;
+    }
+
+    private static ListEventsCmd listEvents(String startId) throws Exception {
+        ListEventsCmd cmd = new ListEventsCmd();
+        Field field = ListEventsCmd.class.getDeclaredField("startId");
+        field.setAccessible(true);
+        field.set(cmd, startId);
+        return cmd;
+    }
+
+    @Test
+    public void testStartIdWithPageSize() throws Exception {
+        listEvents("event-uuid").validateSpecificParameters(params(ApiConstants.START_ID, "event-uuid", ApiConstants.PAGE_SIZE, "20"));
+    }
+
+    @Test(expected = ServerApiException.class)
+    public void testStartIdWithPage() throws Exception {
+        listEvents("event-uuid").validateSpecificParameters(params(ApiConstants.START_ID, "event-uuid", ApiConstants.PAGE, "2", ApiConstants.PAGE_SIZE, "20"));
+    }
+
+    @Test(expected = ServerApiException.class)
+    public void testStartIdRejectedWhereNotDeclared() {
+        // the parameter processing leaves startid unset on commands that don't declare it
+        ListCmd cmd = new ListCmd();
+        cmd.validateSpecificParameters(params(ApiConstants.START_ID, "host-uuid", ApiConstants.PAGE_SIZE, "20"));
+    }
+}
+
+@APICommand(name = "listTest", responseObject = BaseResponse.class)
+class ListCmd extends BaseListCmd {
+    @Override
+    public void execute() {
+    }
+
+    @Override
+    public String getCommandName() {
+        return "listtestresponse";
+    }
+}
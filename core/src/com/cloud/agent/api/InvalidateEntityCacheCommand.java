@@ -0,0 +1,61 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sent between management servers to drop entities that were changed on the
+ * sender from the entity caches of the DAOs on the receiver.
+ */
+public class InvalidateEntityCacheCommand extends Command {
+    Map<String, List<Long>> entities;
+    List<String> clearedCaches;
+
+    protected InvalidateEntityCacheCommand() {
+
+    }
+
+    public InvalidateEntityCacheCommand(Map<String, List<Long>> entities, List<String> clearedCaches) {
+        this.entities = entities;
+        this.clearedCaches = clearedCaches;
+    }
+
+    /**
+     * @return ids of the changed entities by cache name
+     */
+    public Map<String, List<Long>> getEntities() {
+        return entities;
+    }
+
+    /**
+     * @return caches that have to be cleared completely
+     */
+    public List<String> getClearedCaches() {
+        return clearedCaches;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+
+}
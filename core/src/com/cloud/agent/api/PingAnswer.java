@@ -20,7 +20,11 @@
 package com.cloud.agent.api;
 
 public class PingAnswer extends Answer {
-    private PingCommand _command = null;
+    // not sent back, the agent has no use for its own report
+    private transient PingCommand _command = null;
+
+    private long _reportSequence;
+    private boolean _sendFullReport;
 
     protected PingAnswer() {
     }
@@ -30,6 +34,26 @@ public class PingAnswer extends Answer {
         _command = cmd;
     }
 
+    public PingAnswer(PingCommand cmd, long reportSequence, boolean sendFullReport) {
+        this(cmd);
+        _reportSequence = reportSequence;
+        _sendFullReport = sendFullReport;
+    }
+
+    /**
+     * @return sequence of the VM state report the server has applied, 0 if none
+     */
+    public long getReportSequence() {
+        return _reportSequence;
+    }
+
+    /**
+     * @return true if the server couldn't apply a delta and needs the complete report
+     */
+    public boolean isSendFullReport() {
+        return _sendFullReport;
+    }
+
     public PingCommand getCommand() {
         return _command;
     }
@@ -19,6 +19,7 @@
 
 package com.cloud.agent.api;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.host.Host;
@@ -27,6 +28,13 @@ public class PingRoutingCommand extends PingCommand {
 
     Map<String, HostVmStateReportEntry> _hostVmStateReport;
 
+    // 0 from agents that always send the complete report
+    long _reportSequence;
+    // sequence of the acknowledged report a delta is relative to, 0 for a complete report
+    long _baseReportSequence;
+    // VMs that are gone since the base report
+    List<String> _removedVms;
+
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
 
@@ -42,6 +50,42 @@ public class PingRoutingCommand extends PingCommand {
         return this._hostVmStateReport;
     }
 
+    public void setHostVmStateReport(Map<String, HostVmStateReportEntry> hostVmStateReport) {
+        this._hostVmStateReport = hostVmStateReport;
+    }
+
+    public long getReportSequence() {
+        return _reportSequence;
+    }
+
+    public void setReportSequence(long reportSequence) {
+        _reportSequence = reportSequence;
+        _baseReportSequence = 0;
+        _removedVms = null;
+    }
+
+    /**
+     * Replaces the report with the VMs that changed since the report with the base sequence.
+     */
+    public void setDelta(long reportSequence, long baseReportSequence, Map<String, HostVmStateReportEntry> changedVms, List<String> removedVms) {
+        _reportSequence = reportSequence;
+        _baseReportSequence = baseReportSequence;
+        _hostVmStateReport = changedVms;
+        _removedVms = removedVms;
+    }
+
+    public boolean isDelta() {
+        return _baseReportSequence != 0;
+    }
+
+    public long getBaseReportSequence() {
+        return _baseReportSequence;
+    }
+
+    public List<String> getRemovedVms() {
+        return _removedVms;
+    }
+
     public boolean isGatewayAccessible() {
         return _gatewayAccessible;
     }
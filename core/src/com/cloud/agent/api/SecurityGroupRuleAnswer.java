@@ -21,7 +21,7 @@ package com.cloud.agent.api;
 
 public class SecurityGroupRuleAnswer extends Answer {
     public static enum FailureReason {
-        NONE, UNKNOWN, PROGRAMMING_FAILED, CANNOT_BRIDGE_FIREWALL
+        NONE, UNKNOWN, PROGRAMMING_FAILED, CANNOT_BRIDGE_FIREWALL, SEQUENCE_MISMATCH
     }
 
     Long logSequenceNumber = null;
@@ -51,6 +51,19 @@ public class SecurityGroupRuleAnswer extends Answer {
         reason = r;
     }
 
+    public SecurityGroupRuleAnswer(SecurityGroupRulesDeltaCmd cmd) {
+        super(cmd);
+        this.logSequenceNumber = cmd.getSeqNum();
+        this.vmId = cmd.getVmId();
+    }
+
+    public SecurityGroupRuleAnswer(SecurityGroupRulesDeltaCmd cmd, boolean result, String detail, FailureReason r) {
+        super(cmd, result, detail);
+        this.logSequenceNumber = cmd.getSeqNum();
+        this.vmId = cmd.getVmId();
+        reason = r;
+    }
+
     public Long getLogSequenceNumber() {
         return logSequenceNumber;
     }
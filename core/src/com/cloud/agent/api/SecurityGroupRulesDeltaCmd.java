@@ -0,0 +1,284 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cloud.agent.api.LogLevel.Log4jLevel;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+
+/**
+ * Carries only the rules added to and revoked from the ruleset of a vm since the ruleset with sequence
+ * number baseSeqNum was programmed. An agent applies it only if the last ruleset it programmed for the vm
+ * has that sequence number, and answers with FailureReason.SEQUENCE_MISMATCH otherwise so the full ruleset
+ * is sent instead. Hosts that can apply it report HOST_CAPABILITY in their details.
+ */
+public class SecurityGroupRulesDeltaCmd extends Command {
+    public static final String HOST_CAPABILITY = "security_group_rules_delta";
+
+    String guestIp;
+    String vmName;
+    String guestMac;
+    String signature;
+    Long seqNum;
+    Long baseSeqNum;
+    Long vmId;
+    Long msId;
+    @LogLevel(Log4jLevel.Trace)
+    IpPortAndProto[] addedIngressRuleSet;
+    @LogLevel(Log4jLevel.Trace)
+    IpPortAndProto[] revokedIngressRuleSet;
+    @LogLevel(Log4jLevel.Trace)
+    IpPortAndProto[] addedEgressRuleSet;
+    @LogLevel(Log4jLevel.Trace)
+    IpPortAndProto[] revokedEgressRuleSet;
+    private List<String> secIps;
+
+    public SecurityGroupRulesDeltaCmd() {
+        super();
+    }
+
+    /**
+     * @param applied the last ruleset programmed for the vm
+     * @param target the ruleset the vm should have
+     */
+    public SecurityGroupRulesDeltaCmd(SecurityGroupRulesCmd applied, SecurityGroupRulesCmd target) {
+        super();
+        guestIp = target.getGuestIp();
+        vmName = target.getVmName();
+        guestMac = target.getGuestMac();
+        signature = target.getSignature();
+        seqNum = target.getSeqNum();
+        baseSeqNum = applied.getSeqNum();
+        vmId = target.getVmId();
+        msId = target.getMsId();
+        secIps = target.getSecIps();
+
+        Map<String, Set<String>> appliedIngress = toCidrsByRule(applied.getIngressRuleSet());
+        Map<String, Set<String>> targetIngress = toCidrsByRule(target.getIngressRuleSet());
+        addedIngressRuleSet = subtract(targetIngress, appliedIngress);
+        revokedIngressRuleSet = subtract(appliedIngress, targetIngress);
+
+        Map<String, Set<String>> appliedEgress = toCidrsByRule(applied.getEgressRuleSet());
+        Map<String, Set<String>> targetEgress = toCidrsByRule(target.getEgressRuleSet());
+        addedEgressRuleSet = subtract(targetEgress, appliedEgress);
+        revokedEgressRuleSet = subtract(appliedEgress, targetEgress);
+    }
+
+    /**
+     * @return the full ruleset that results from applying this delta to the current one, or null if the
+     *         current ruleset is not the one this delta is based on
+     */
+    public SecurityGroupRulesCmd applyTo(SecurityGroupRulesCmd current) {
+        if (current == null || current.getSeqNum() == null || !current.getSeqNum().equals(baseSeqNum)) {
+            return null;
+        }
+
+        Map<String, Set<String>> ingress = toCidrsByRule(current.getIngressRuleSet());
+        merge(ingress, addedIngressRuleSet, revokedIngressRuleSet);
+        Map<String, Set<String>> egress = toCidrsByRule(current.getEgressRuleSet());
+        merge(egress, addedEgressRuleSet, revokedEgressRuleSet);
+
+        SecurityGroupRulesCmd cmd =
+            new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqNum, toRuleSet(ingress), toRuleSet(egress), secIps);
+        if (msId != null) {
+            cmd.setMsId(msId);
+        }
+        return cmd;
+    }
+
+    private static String ruleKey(String proto, int startPort, int endPort) {
+        return proto + ":" + startPort + ":" + endPort;
+    }
+
+    private static Map<String, Set<String>> toCidrsByRule(IpPortAndProto[] ruleSet) {
+        Map<String, Set<String>> cidrsByRule = new LinkedHashMap<String, Set<String>>();
+        for (IpPortAndProto rule : ruleSet) {
+            String key = ruleKey(rule.getProto(), rule.getStartPort(), rule.getEndPort());
+            Set<String> cidrs = cidrsByRule.get(key);
+            if (cidrs == null) {
+                cidrs = new LinkedHashSet<String>();
+                cidrsByRule.put(key, cidrs);
+            }
+            cidrs.addAll(Arrays.asList(rule.getAllowedCidrs()));
+        }
+        return cidrsByRule;
+    }
+
+    private static IpPortAndProto toRule(String key, Set<String> cidrs) {
+        String[] parts = key.split(":");
+        return new IpPortAndProto(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), cidrs.toArray(new String[cidrs.size()]));
+    }
+
+    private static IpPortAndProto[] toRuleSet(Map<String, Set<String>> cidrsByRule) {
+        List<IpPortAndProto> ruleSet = new ArrayList<IpPortAndProto>(cidrsByRule.size());
+        for (Map.Entry<String, Set<String>> rule : cidrsByRule.entrySet()) {
+            ruleSet.add(toRule(rule.getKey(), rule.getValue()));
+        }
+        return ruleSet.toArray(new IpPortAndProto[ruleSet.size()]);
+    }
+
+    /**
+     * @return the rules of from, each with the cidrs that the same rule of other does not allow
+     */
+    private static IpPortAndProto[] subtract(Map<String, Set<String>> from, Map<String, Set<String>> other) {
+        List<IpPortAndProto> result = new ArrayList<IpPortAndProto>();
+        for (Map.Entry<String, Set<String>> rule : from.entrySet()) {
+            Set<String> cidrs = new LinkedHashSet<String>(rule.getValue());
+            Set<String> otherCidrs = other.get(rule.getKey());
+            if (otherCidrs != null) {
+                cidrs.removeAll(otherCidrs);
+            }
+            if (!cidrs.isEmpty()) {
+                result.add(toRule(rule.getKey(), cidrs));
+            }
+        }
+        return result.toArray(new IpPortAndProto[result.size()]);
+    }
+
+    private static void merge(Map<String, Set<String>> cidrsByRule, IpPortAndProto[] added, IpPortAndProto[] revoked) {
+        for (IpPortAndProto rule : revoked) {
+            Set<String> cidrs = cidrsByRule.get(ruleKey(rule.getProto(), rule.getStartPort(), rule.getEndPort()));
+            if (cidrs != null) {
+                cidrs.removeAll(Arrays.asList(rule.getAllowedCidrs()));
+            }
+        }
+        for (Iterator<Set<String>> it = cidrsByRule.values().iterator(); it.hasNext();) {
+            if (it.next().isEmpty()) {
+                it.remove();
+            }
+        }
+        for (IpPortAndProto rule : added) {
+            String key = ruleKey(rule.getProto(), rule.getStartPort(), rule.getEndPort());
+            Set<String> cidrs = cidrsByRule.get(key);
+            if (cidrs == null) {
+                cidrs = new LinkedHashSet<String>();
+                cidrsByRule.put(key, cidrs);
+            }
+            cidrs.addAll(Arrays.asList(rule.getAllowedCidrs()));
+        }
+    }
+
+    private static String stringifyRules(IpPortAndProto[] ingressRuleSet, IpPortAndProto[] egressRuleSet) {
+        StringBuilder ruleBuilder = new StringBuilder();
+        stringifyRules(ruleBuilder, "I:", ingressRuleSet);
+        stringifyRules(ruleBuilder, "E:", egressRuleSet);
+        return ruleBuilder.toString();
+    }
+
+    private static void stringifyRules(StringBuilder ruleBuilder, String type, IpPortAndProto[] ruleSet) {
+        for (IpPortAndProto rule : ruleSet) {
+            ruleBuilder.append(type).append(rule.getProto()).append(":").append(rule.getStartPort()).append(":").append(rule.getEndPort()).append(":");
+            for (String cidr : rule.getAllowedCidrs()) {
+                ruleBuilder.append(cidr).append(",");
+            }
+            ruleBuilder.append("NEXT");
+            ruleBuilder.append(" ");
+        }
+    }
+
+    /**
+     * @return the added rules in the format of SecurityGroupRulesCmd.stringifyRules()
+     */
+    public String stringifyAddedRules() {
+        return stringifyRules(addedIngressRuleSet, addedEgressRuleSet);
+    }
+
+    /**
+     * @return the revoked rules in the format of SecurityGroupRulesCmd.stringifyRules()
+     */
+    public String stringifyRevokedRules() {
+        return stringifyRules(revokedIngressRuleSet, revokedEgressRuleSet);
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return addedIngressRuleSet.length == 0 && revokedIngressRuleSet.length == 0 && addedEgressRuleSet.length == 0 && revokedEgressRuleSet.length == 0;
+    }
+
+    public int getNumChangedRules() {
+        //useful for logging
+        return addedIngressRuleSet.length + revokedIngressRuleSet.length + addedEgressRuleSet.length + revokedEgressRuleSet.length;
+    }
+
+    public IpPortAndProto[] getAddedIngressRuleSet() {
+        return addedIngressRuleSet;
+    }
+
+    public IpPortAndProto[] getRevokedIngressRuleSet() {
+        return revokedIngressRuleSet;
+    }
+
+    public IpPortAndProto[] getAddedEgressRuleSet() {
+        return addedEgressRuleSet;
+    }
+
+    public IpPortAndProto[] getRevokedEgressRuleSet() {
+        return revokedEgressRuleSet;
+    }
+
+    public String getGuestIp() {
+        return guestIp;
+    }
+
+    public String getVmName() {
+        return vmName;
+    }
+
+    public String getGuestMac() {
+        return guestMac;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public Long getSeqNum() {
+        return seqNum;
+    }
+
+    public Long getBaseSeqNum() {
+        return baseSeqNum;
+    }
+
+    public Long getVmId() {
+        return vmId;
+    }
+
+    public List<String> getSecIps() {
+        return secIps;
+    }
+
+    public Long getMsId() {
+        return msId;
+    }
+
+}
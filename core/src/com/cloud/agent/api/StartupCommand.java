@@ -46,6 +46,7 @@ public class StartupCommand extends Command {
     String agentTag;
     String resourceName;
     String gatewayIpAddress;
+    int wireVersion; // highest Request.Version the agent can parse, 0 (v1) for agents that predate it
 
     public StartupCommand(Host.Type type) {
         this.type = type;
@@ -281,6 +282,14 @@ public class StartupCommand extends Command {
         this.gatewayIpAddress = gatewayIpAddress;
     }
 
+    public int getWireVersion() {
+        return wireVersion;
+    }
+
+    public void setWireVersion(int wireVersion) {
+        this.wireVersion = wireVersion;
+    }
+
     @Override
     public boolean executeInSequence() {
         return false;
@@ -0,0 +1,46 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+/**
+ * Sent between management servers to tell the server that owns a sync queue
+ * that a new item has been queued on it.
+ */
+public class SyncQueueSignalCommand extends Command {
+    long queueId;
+
+    protected SyncQueueSignalCommand() {
+
+    }
+
+    public SyncQueueSignalCommand(long queueId) {
+        this.queueId = queueId;
+    }
+
+    public long getQueueId() {
+        return queueId;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+
+}
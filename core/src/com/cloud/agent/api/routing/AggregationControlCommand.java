@@ -27,6 +27,7 @@ public class AggregationControlCommand extends NetworkElementCommand{
     }
 
     private Action action;
+    private boolean differential;
 
     protected AggregationControlCommand() {
         super();
@@ -43,4 +44,16 @@ public class AggregationControlCommand extends NetworkElementCommand{
     public Action getAction() {
         return action;
     }
+
+    public boolean isDifferential() {
+        return differential;
+    }
+
+    /**
+     * When set on a Finish, rule sets whose configuration digest matches the one
+     * recorded on the router are not reapplied.
+     */
+    public void setDifferential(boolean differential) {
+        this.differential = differential;
+    }
 }
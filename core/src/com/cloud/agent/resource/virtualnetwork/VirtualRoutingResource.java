@@ -23,17 +23,26 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.naming.ConfigurationException;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.api.Answer;
@@ -65,15 +74,25 @@ import com.cloud.utils.exception.CloudRuntimeException;
 public class VirtualRoutingResource {
 
     private static final Logger s_logger = Logger.getLogger(VirtualRoutingResource.class);
+    // Rule sets that can be skipped on a differential reprogram when the router already has them
+    private static final Set<String> s_digestConfigs = new HashSet<String>(Arrays.asList(VRScripts.FIREWALL_RULES_CONFIG, VRScripts.FORWARDING_RULES_CONFIG,
+            VRScripts.STATICNAT_RULES_CONFIG, VRScripts.LOAD_BALANCER_CONFIG, VRScripts.VPN_USER_LIST_CONFIG, VRScripts.VM_DHCP_CONFIG, VRScripts.VM_METADATA_CONFIG,
+            VRScripts.NETWORK_ACL_CONFIG));
+    // Error vr_cfg.sh reports with the position of the bundle item it stopped at
+    private static final Pattern s_failedBundleItem = Pattern.compile("VR config: execution failed at item (\\d+)");
     private VirtualRouterDeployer _vrDeployer;
     private Map<String, Queue<NetworkElementCommand>> _vrAggregateCommandsSet;
-    protected Map<String, Lock> _vrLockMap = new HashMap<String, Lock>();
+    // One lock per router: the thread holding it executes every command queued for the router
+    // in arrival order, while commands for different routers on this host run in parallel
+    protected ConcurrentMap<String, Lock> _vrLockMap = new ConcurrentHashMap<String, Lock>();
+    final ConcurrentMap<String, Queue<QueuedCommand>> _vrCommandQueues = new ConcurrentHashMap<String, Queue<QueuedCommand>>();
 
     private String _name;
     private int _sleep;
     private int _retry;
     private int _port;
     private int _eachTimeout;
+    private int _bundleThreshold;
 
     private String _cfgVersion = "1.0";
 
@@ -82,59 +101,108 @@ public class VirtualRoutingResource {
     }
 
     public Answer executeRequest(final NetworkElementCommand cmd) {
-        boolean aggregated = false;
         String routerName = cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
-        Lock lock;
-        if (_vrLockMap.containsKey(routerName)) {
-            lock = _vrLockMap.get(routerName);
-        } else {
-            lock = new ReentrantLock();
-            _vrLockMap.put(routerName, lock);
+        Lock lock = _vrLockMap.get(routerName);
+        if (lock == null) {
+            Lock newLock = new ReentrantLock(true);
+            lock = _vrLockMap.putIfAbsent(routerName, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        Queue<QueuedCommand> queue = _vrCommandQueues.get(routerName);
+        if (queue == null) {
+            Queue<QueuedCommand> newQueue = new ConcurrentLinkedQueue<QueuedCommand>();
+            queue = _vrCommandQueues.putIfAbsent(routerName, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
         }
-        lock.lock();
 
+        QueuedCommand queued = new QueuedCommand(cmd);
+        queue.add(queued);
+        lock.lock();
         try {
-            ExecutionResult rc = _vrDeployer.prepareCommand(cmd);
-            if (!rc.isSuccess()) {
-                s_logger.error("Failed to prepare VR command due to " + rc.getDetails());
-                return new Answer(cmd, false, rc.getDetails());
+            // The previous holder of the lock may have executed this command already
+            if (queued._answer == null) {
+                executeQueuedCommands(routerName, queue);
             }
+        } finally {
+            lock.unlock();
+            if (!queued._aggregated) {
+                ExecutionResult rc = _vrDeployer.cleanupCommand(cmd);
+                if (!rc.isSuccess()) {
+                    s_logger.error("Failed to cleanup VR command due to " + rc.getDetails());
+                }
+            }
+        }
+        return queued._answer;
+    }
 
-            assert cmd.getRouterAccessIp() != null : "Why there is no access IP for VR?";
+    /**
+     * Executes the commands queued for a router in arrival order. The config items of
+     * consecutive config commands are collected and applied together by applyConfigs,
+     * queries and aggregation control commands only run once the commands before them
+     * have been applied.
+     */
+    private void executeQueuedCommands(String routerName, Queue<QueuedCommand> queue) {
+        List<QueuedCommand> pending = new ArrayList<QueuedCommand>();
+        QueuedCommand queued;
+        while ((queued = queue.poll()) != null) {
+            NetworkElementCommand cmd = queued._cmd;
+            try {
+                if (cmd.isQuery() || cmd instanceof AggregationControlCommand) {
+                    applyConfigs(pending);
+                }
 
-            if (cmd.isQuery()) {
-                return executeQueryCommand(cmd);
-            }
+                ExecutionResult rc = _vrDeployer.prepareCommand(cmd);
+                if (!rc.isSuccess()) {
+                    s_logger.error("Failed to prepare VR command due to " + rc.getDetails());
+                    queued._answer = new Answer(cmd, false, rc.getDetails());
+                    continue;
+                }
 
-            if (cmd instanceof AggregationControlCommand) {
-                return execute((AggregationControlCommand)cmd);
-            }
+                assert cmd.getRouterAccessIp() != null : "Why there is no access IP for VR?";
 
-            if (_vrAggregateCommandsSet.containsKey(routerName)) {
-                _vrAggregateCommandsSet.get(routerName).add(cmd);
-                aggregated = true;
-                // Clean up would be done after command has been executed
-                //TODO: Deal with group answer as well
-                return new Answer(cmd);
-            }
+                if (cmd.isQuery()) {
+                    queued._answer = executeQueryCommand(cmd);
+                    continue;
+                }
 
-            List<ConfigItem> cfg = generateCommandCfg(cmd);
-            if (cfg == null) {
-                return Answer.createUnsupportedCommandAnswer(cmd);
-            }
+                if (cmd instanceof AggregationControlCommand) {
+                    queued._answer = execute((AggregationControlCommand)cmd);
+                    continue;
+                }
 
-            return applyConfig(cmd, cfg);
-        } catch (final IllegalArgumentException e) {
-            return new Answer(cmd, false, e.getMessage());
-        } finally {
-            lock.unlock();
-            if (!aggregated) {
-                ExecutionResult rc = _vrDeployer.cleanupCommand(cmd);
-                if (!rc.isSuccess()) {
-                    s_logger.error("Failed to cleanup VR command due to " + rc.getDetails());
+                if (_vrAggregateCommandsSet.containsKey(routerName)) {
+                    _vrAggregateCommandsSet.get(routerName).add(cmd);
+                    queued._aggregated = true;
+                    // Clean up would be done after command has been executed
+                    //TODO: Deal with group answer as well
+                    queued._answer = new Answer(cmd);
+                    continue;
                 }
+
+                List<ConfigItem> cfg = generateCommandCfg(cmd);
+                if (cfg == null) {
+                    queued._answer = Answer.createUnsupportedCommandAnswer(cmd);
+                    continue;
+                }
+
+                if (!pending.isEmpty() && !pending.get(0)._cmd.getRouterAccessIp().equals(cmd.getRouterAccessIp())) {
+                    applyConfigs(pending);
+                }
+                queued._cfg = cfg;
+                pending.add(queued);
+            } catch (final IllegalArgumentException e) {
+                queued._answer = new Answer(cmd, false, e.getMessage());
+            } catch (final RuntimeException e) {
+                // the command may belong to another thread, it needs an answer either way
+                s_logger.warn("Failed to execute " + cmd.getClass().getSimpleName() + " on " + routerName, e);
+                queued._answer = new Answer(cmd, false, e.getMessage());
             }
         }
+        applyConfigs(pending);
     }
 
     private Answer executeQueryCommand(NetworkElementCommand cmd) {
@@ -168,13 +236,17 @@ public class VirtualRoutingResource {
     }
 
 
-    private Answer applyConfig(NetworkElementCommand cmd, List<ConfigItem> cfg) {
+    Answer applyConfig(NetworkElementCommand cmd, List<ConfigItem> cfg) {
 
 
         if (cfg.isEmpty()) {
             return new Answer(cmd, true, "Nothing to do");
         }
 
+        if (_bundleThreshold > 0 && cfg.size() >= _bundleThreshold) {
+            return applyConfigBundle(cmd, cfg);
+        }
+
         List<ExecutionResult> results = new ArrayList<ExecutionResult>();
         List<String> details = new ArrayList<String>();
         boolean finalResult = false;
@@ -206,6 +278,174 @@ public class VirtualRoutingResource {
         }
     }
 
+    /**
+     * Ships all config items of a command to the router as a single config file and
+     * applies them with one vr_cfg.sh run. Unlike the item by item path, vr_cfg.sh stops
+     * at the first failing item: the items before it are reported applied, the ones after
+     * it as not executed. A router with an older vr_cfg.sh does not tell which item failed,
+     * all items are reported failed then.
+     */
+    private Answer applyConfigBundle(NetworkElementCommand cmd, List<ConfigItem> cfg) {
+        StringBuilder sb = createConfigBundle();
+        for (ConfigItem configItem : cfg) {
+            sb.append(configItem.getAggregateCommand());
+        }
+
+        long startTimestamp = System.currentTimeMillis();
+        ExecutionResult result = applyConfigBundleToVR(cmd.getRouterAccessIp(), sb.toString(), cfg.size());
+        if (s_logger.isDebugEnabled()) {
+            long elapsed = System.currentTimeMillis() - startTimestamp;
+            s_logger.debug("Processing bundle of " + cfg.size() + " config items for " + cmd.getClass().getSimpleName() + " took " + elapsed + "ms");
+        }
+
+        int failedItem = result.isSuccess() ? 0 : getFailedBundleItem(result.getDetails());
+        return getBundleAnswer(cmd, cfg, result, 1, failedItem);
+    }
+
+    /**
+     * Applies the config items of commands queued for the same router, and empties the list.
+     * A single command generates few items, two for most of them, so the items of all queued
+     * commands count towards the bundle threshold and are shipped to the router together
+     * once they reach it. vr_cfg.sh does not undo the items applied before a failing one:
+     * the commands whose items were all applied succeed, the command of the failing item
+     * fails and the commands after it are applied again without it.
+     */
+    void applyConfigs(List<QueuedCommand> pending) {
+        try {
+            applyQueuedConfigs(pending);
+        } catch (final RuntimeException e) {
+            s_logger.warn("Failed to apply the config of " + pending.size() + " queued commands", e);
+            for (QueuedCommand queued : pending) {
+                if (queued._answer == null) {
+                    queued._answer = new Answer(queued._cmd, false, e.getMessage());
+                }
+            }
+        } finally {
+            pending.clear();
+        }
+    }
+
+    private void applyQueuedConfigs(List<QueuedCommand> queuedCommands) {
+        List<QueuedCommand> bundled = new ArrayList<QueuedCommand>();
+        int itemCount = 0;
+        for (QueuedCommand queued : queuedCommands) {
+            if (queued._cfg.isEmpty()) {
+                queued._answer = new Answer(queued._cmd, true, "Nothing to do");
+            } else {
+                bundled.add(queued);
+                itemCount += queued._cfg.size();
+            }
+        }
+
+        if (bundled.size() <= 1 || _bundleThreshold <= 0 || itemCount < _bundleThreshold) {
+            for (QueuedCommand queued : bundled) {
+                queued._answer = applyConfig(queued._cmd, queued._cfg);
+            }
+            return;
+        }
+
+        StringBuilder sb = createConfigBundle();
+        for (QueuedCommand queued : bundled) {
+            for (ConfigItem configItem : queued._cfg) {
+                sb.append(configItem.getAggregateCommand());
+            }
+        }
+
+        long startTimestamp = System.currentTimeMillis();
+        ExecutionResult result = applyConfigBundleToVR(bundled.get(0)._cmd.getRouterAccessIp(), sb.toString(), itemCount);
+        if (s_logger.isDebugEnabled()) {
+            long elapsed = System.currentTimeMillis() - startTimestamp;
+            s_logger.debug("Processing bundle of " + itemCount + " config items for " + bundled.size() + " commands took " + elapsed + "ms");
+        }
+
+        int failedItem = result.isSuccess() ? 0 : getFailedBundleItem(result.getDetails());
+        if (!result.isSuccess() && (failedItem == 0 || failedItem > itemCount)) {
+            // Without the failed item the commands cannot be told apart, apply each of them on its own
+            for (QueuedCommand queued : bundled) {
+                queued._answer = applyConfig(queued._cmd, queued._cfg);
+            }
+            return;
+        }
+
+        int firstItem = 1;
+        for (int i = 0; i < bundled.size(); i++) {
+            QueuedCommand queued = bundled.get(i);
+            if (!result.isSuccess() && firstItem > failedItem) {
+                applyQueuedConfigs(bundled.subList(i, bundled.size()));
+                return;
+            }
+            queued._answer = getBundleAnswer(queued._cmd, queued._cfg, result, firstItem, failedItem);
+            firstItem += queued._cfg.size();
+        }
+    }
+
+    /**
+     * @return the answer of a command whose config items were applied in a bundle, the first
+     * of them at position firstItem of the bundle
+     */
+    private Answer getBundleAnswer(NetworkElementCommand cmd, List<ConfigItem> cfg, ExecutionResult result, int firstItem, int failedItem) {
+        boolean success = result.isSuccess() || firstItem + cfg.size() <= failedItem;
+        if (cfg.size() == 1) {
+            return new Answer(cmd, success, success && !result.isSuccess() ? "applied before item " + failedItem + " failed" : result.getDetails());
+        }
+
+        String[] details = new String[cfg.size()];
+        for (int i = 0; i < details.length; i++) {
+            int item = firstItem + i;
+            if (result.isSuccess() || item < failedItem) {
+                details[i] = cfg.get(i).getInfo() + " - success: " + (result.isSuccess() ? result.getDetails() : "applied before item " + failedItem + " failed");
+            } else if (failedItem == 0 || item == failedItem) {
+                details[i] = cfg.get(i).getInfo() + " - failed: " + result.getDetails();
+            } else {
+                details[i] = cfg.get(i).getInfo() + " - not executed: item " + failedItem + " of the bundle failed";
+            }
+        }
+        return new GroupAnswer(cmd, success, details.length, details);
+    }
+
+    /**
+     * @return the position, starting at 1, of the bundle item vr_cfg.sh failed on, or 0 if it is not reported
+     */
+    private static int getFailedBundleItem(String details) {
+        if (details == null) {
+            return 0;
+        }
+        Matcher matcher = s_failedBundleItem.matcher(details);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+    }
+
+    private StringBuilder createConfigBundle() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#Apache CloudStack Virtual Router Config File\n");
+        sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+        return sb;
+    }
+
+    private ExecutionResult applyConfigBundleToVR(String routerAccessIp, String bundle, int itemCount) {
+        String cfgFileName = "VR-"+ UUID.randomUUID().toString() + ".cfg";
+        FileConfigItem fileConfigItem = new FileConfigItem(VRScripts.CONFIG_CACHE_LOCATION, cfgFileName, bundle);
+        ScriptConfigItem scriptConfigItem = new ScriptConfigItem(VRScripts.VR_CFG, "-c " + VRScripts.CONFIG_CACHE_LOCATION + cfgFileName);
+        // 120s is the minimal timeout
+        int timeout = itemCount * _eachTimeout;
+        if (timeout < VRScripts.DEFAULT_EXECUTEINVR_TIMEOUT) {
+            timeout = VRScripts.DEFAULT_EXECUTEINVR_TIMEOUT;
+        }
+
+        ExecutionResult result = applyConfigToVR(routerAccessIp, fileConfigItem);
+        if (result == null) {
+            return new ExecutionResult(false, "null execution result");
+        }
+        if (!result.isSuccess()) {
+            return result;
+        }
+
+        result = applyConfigToVR(routerAccessIp, scriptConfigItem, timeout);
+        if (result == null) {
+            return new ExecutionResult(false, "null execution result");
+        }
+        return result;
+    }
+
     private CheckS2SVpnConnectionsAnswer execute(CheckS2SVpnConnectionsCommand cmd) {
 
         StringBuffer buff = new StringBuffer();
@@ -273,11 +513,16 @@ public class VirtualRoutingResource {
         value = (String)params.get("router.aggregation.command.each.timeout");
         _eachTimeout = NumbersUtil.parseInt(value, 3);
 
+        // Config items of the commands queued for a router are applied as a single bundle once they
+        // add up to this many, 0 disables bundling
+        value = (String)params.get("router.config.bundle.threshold");
+        _bundleThreshold = NumbersUtil.parseInt(value, 3);
+
         if (_vrDeployer == null) {
             throw new ConfigurationException("Unable to find the resource for VirtualRouterDeployer!");
         }
 
-        _vrAggregateCommandsSet = new HashMap<>();
+        _vrAggregateCommandsSet = new ConcurrentHashMap<>();
         return true;
     }
 
@@ -337,6 +582,41 @@ public class VirtualRoutingResource {
         return configItemFacade.generateConfig(cmd);
     }
 
+    private String getDigestKey(String guestIp, List<ConfigItem> cfg) {
+        for (ConfigItem c : cfg) {
+            if (c instanceof ScriptConfigItem) {
+                ScriptConfigItem configItem = (ScriptConfigItem)c;
+                if (VRScripts.UPDATE_CONFIG.equals(configItem.getScript()) && s_digestConfigs.contains(configItem.getArgs())) {
+                    return guestIp + "_" + configItem.getArgs();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the configuration digests recorded on the router, or null if the router
+     * is not able to report them and everything has to be reapplied
+     */
+    private Map<String, String> getConfigDigests(String routerAccessIp) {
+        ExecutionResult result = _vrDeployer.executeInVR(routerAccessIp, VRScripts.ROUTER_DIGEST, "-g");
+        if (result == null || !result.isSuccess()) {
+            s_logger.debug("Router " + routerAccessIp + " does not report configuration digests, reapplying the full configuration");
+            return null;
+        }
+
+        Map<String, String> digests = new HashMap<String, String>();
+        if (result.getDetails() != null) {
+            for (String line : result.getDetails().split("\n")) {
+                String[] entry = line.trim().split("\\s+");
+                if (entry.length == 2) {
+                    digests.put(entry[0], entry[1]);
+                }
+            }
+        }
+        return digests;
+    }
+
     private Answer execute(AggregationControlCommand cmd) {
         Action action = cmd.getAction();
         String routerName = cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
@@ -351,11 +631,12 @@ public class VirtualRoutingResource {
             return new Answer(cmd, true, "Command aggregation started");
         } else if (action == Action.Finish) {
             Queue<NetworkElementCommand> queue = _vrAggregateCommandsSet.get(routerName);
+            if (queue == null) {
+                return new Answer(cmd, false, "Command aggregation was not started for " + routerName);
+            }
             int answerCounts = 0;
             try {
-                StringBuilder sb = new StringBuilder();
-                sb.append("#Apache CloudStack Virtual Router Config File\n");
-                sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+                List<List<ConfigItem>> cfgs = new ArrayList<List<ConfigItem>>();
                 for (NetworkElementCommand command : queue) {
                     answerCounts += command.getAnswersCount();
                     List<ConfigItem> cfg = generateCommandCfg(command);
@@ -363,28 +644,71 @@ public class VirtualRoutingResource {
                         s_logger.warn("Unknown commands for VirtualRoutingResource, but continue: " + cmd.toString());
                         continue;
                     }
+                    cfgs.add(cfg);
+                }
 
-                    for (ConfigItem c : cfg) {
-                        sb.append(c.getAggregateCommand());
+                // For a differential reprogram, group the config items per rule set and compare their
+                // digest against the one the router recorded the last time that rule set was applied
+                Map<String, String> routerDigests = null;
+                List<String> keys = new ArrayList<String>();
+                Map<String, String> digests = new HashMap<String, String>();
+                Map<String, Integer> lastIndexes = new HashMap<String, Integer>();
+                if (cmd.isDifferential()) {
+                    routerDigests = getConfigDigests(cmd.getRouterAccessIp());
+                }
+                if (routerDigests != null) {
+                    String guestIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP);
+                    Map<String, StringBuilder> contents = new HashMap<String, StringBuilder>();
+                    for (int i = 0; i < cfgs.size(); i++) {
+                        String key = getDigestKey(guestIp, cfgs.get(i));
+                        keys.add(key);
+                        if (key == null) {
+                            continue;
+                        }
+                        StringBuilder content = contents.get(key);
+                        if (content == null) {
+                            content = new StringBuilder(_cfgVersion).append('\n');
+                            contents.put(key, content);
+                        }
+                        for (ConfigItem c : cfgs.get(i)) {
+                            content.append(c.getAggregateCommand());
+                        }
+                        lastIndexes.put(key, i);
+                    }
+                    for (Map.Entry<String, StringBuilder> entry : contents.entrySet()) {
+                        digests.put(entry.getKey(), DigestUtils.md5Hex(entry.getValue().toString()));
                     }
                 }
 
-                // TODO replace with applyConfig with a stop on fail
-                String cfgFileName = "VR-"+ UUID.randomUUID().toString() + ".cfg";
-                FileConfigItem fileConfigItem = new FileConfigItem(VRScripts.CONFIG_CACHE_LOCATION, cfgFileName, sb.toString());
-                ScriptConfigItem scriptConfigItem = new ScriptConfigItem(VRScripts.VR_CFG, "-c " + VRScripts.CONFIG_CACHE_LOCATION + cfgFileName);
-                // 120s is the minimal timeout
-                int timeout = answerCounts * _eachTimeout;
-                if (timeout < 120) {
-                    timeout = 120;
+                StringBuilder sb = createConfigBundle();
+                int applied = 0;
+                int skipped = 0;
+                for (int i = 0; i < cfgs.size(); i++) {
+                    String key = routerDigests != null ? keys.get(i) : null;
+                    if (key != null && digests.get(key).equals(routerDigests.get(key))) {
+                        skipped++;
+                        continue;
+                    }
+
+                    for (ConfigItem c : cfgs.get(i)) {
+                        sb.append(c.getAggregateCommand());
+                    }
+                    applied++;
+
+                    // Record the digest once the whole rule set has been applied
+                    if (key != null && lastIndexes.get(key) == i) {
+                        sb.append(new ScriptConfigItem(VRScripts.ROUTER_DIGEST, "-k " + key + " -v " + digests.get(key)).getAggregateCommand());
+                    }
                 }
 
-                ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), fileConfigItem);
-                if (!result.isSuccess()) {
-                    return new Answer(cmd, false, result.getDetails());
+                if (skipped > 0) {
+                    s_logger.debug("Skipped " + skipped + " commands for " + routerName + " as the router already has their configuration");
+                }
+                if (applied == 0) {
+                    return new Answer(cmd, true, "Command aggregation finished, router configuration is up to date");
                 }
 
-                result = applyConfigToVR(cmd.getRouterAccessIp(), scriptConfigItem, timeout);
+                ExecutionResult result = applyConfigBundleToVR(cmd.getRouterAccessIp(), sb.toString(), answerCounts);
                 if (!result.isSuccess()) {
                     return new Answer(cmd, false, result.getDetails());
                 }
@@ -397,4 +721,18 @@ public class VirtualRoutingResource {
         }
         return new Answer(cmd, false, "Fail to recongize aggregation action " + action.toString());
     }
+
+    /**
+     * A command waiting for its router, executed by whichever thread holds the router lock
+     */
+    static class QueuedCommand {
+        final NetworkElementCommand _cmd;
+        List<ConfigItem> _cfg;
+        Answer _answer;
+        boolean _aggregated;
+
+        QueuedCommand(NetworkElementCommand cmd) {
+            _cmd = cmd;
+        }
+    }
 }
@@ -0,0 +1,873 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.transport;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SecStorageFirewallCfgCommand.PortConfig;
+import com.cloud.agent.api.to.DataStoreTO;
+import com.cloud.agent.api.to.DataTO;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Compact binary encoding of Command and Answer arrays, used by Request.Version.v4
+ * in place of the Gson JSON encoding.
+ *
+ * Objects are encoded field by field, following the same rules Gson uses: static,
+ * transient and synthetic fields are skipped, null fields are left at whatever the
+ * receiving class initializes them to, and classes are instantiated through their
+ * no-arg constructor when they have one. The first time a class appears in a payload,
+ * its name and field names are written to a class table; afterwards it is referred
+ * to by index. Every value is tagged with its type, so the receiving side matches
+ * fields by name and skips the ones it does not know about, which keeps management
+ * servers and agents of different versions compatible in the same way JSON does.
+ * JDK value types the codec has no encoding for are embedded as JSON.
+ *
+ * Commands with a field whose declared type has a custom adapter in GsonHelper
+ * (DataStoreTO, DataTO, List of PortConfig, Pair of Longs) are not encoded, so
+ * Request falls back to v1 for them and the adapters keep deciding their format.
+ * When decoding, only classes of the CloudStack packages, JDK collections, maps,
+ * enums and the JDK value types above are looked up, and an object is only created
+ * if its class fits the declared type of the field (or Command/Answer for the
+ * top level) it is read into.
+ *
+ * Values are written straight into a ByteBuffer and read straight out of one, there
+ * is no intermediate String for the whole payload.
+ */
+public final class BinaryCommandCodec {
+    private static final Logger s_logger = Logger.getLogger(BinaryCommandCodec.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_DEPTH = 64;
+    // most elements an array, collection, map or class table entry of a payload can have
+    private static final int MAX_ELEMENTS = 1 << 20;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte BYTE = 3;
+    private static final byte SHORT = 4;
+    private static final byte CHAR = 5;
+    private static final byte INT = 6;
+    private static final byte LONG = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte STRING = 10;
+    private static final byte BYTES = 11;
+    private static final byte ENUM = 12;
+    private static final byte DATE = 13;
+    private static final byte ARRAY = 14;
+    private static final byte COLLECTION = 15;
+    private static final byte MAP = 16;
+    private static final byte OBJECT = 17;
+    private static final byte JSON = 18;
+
+    private static final Map<String, Class<?>> s_primitives = new HashMap<String, Class<?>>();
+    static {
+        for (Class<?> type : new Class<?>[] {boolean.class, byte.class, short.class, char.class, int.class, long.class, float.class, double.class}) {
+            s_primitives.put(type.getName(), type);
+        }
+    }
+
+    private static final String[] ALLOWED_PACKAGES = {"com.cloud.", "org.apache.cloudstack."};
+
+    // JDK types embedded as JSON, anything else from the JDK is refused by both sides
+    private static final Class<?>[] JSON_TYPES = {Number.class, CharSequence.class, Date.class, Calendar.class, URI.class, URL.class, UUID.class, Locale.class,
+        InetAddress.class};
+
+    // declared types GsonHelper registers a custom adapter for, keep in line with GsonHelper.setDefaultGsonConfig()
+    private static final Type[] GSON_ADAPTED_TYPES = {DataStoreTO.class, DataTO.class, new TypeToken<List<PortConfig>>() {
+    }.getType(), new TypeToken<Pair<Long, Long>>() {
+    }.getType()};
+
+    private static final ConcurrentHashMap<Class<?>, ClassSchema> s_schemas = new ConcurrentHashMap<Class<?>, ClassSchema>();
+    private static final ConcurrentHashMap<String, Class<?>> s_classes = new ConcurrentHashMap<String, Class<?>>();
+
+    private static Object s_unsafe;
+    private static Method s_allocateInstance;
+
+    private BinaryCommandCodec() {
+    }
+
+    /**
+     * Encodes the commands (or answers) into a buffer that is ready to be read.
+     */
+    public static ByteBuffer encode(Command[] cmds) {
+        Encoder encoder = new Encoder();
+        encoder.writeVarint(cmds.length);
+        for (Command cmd : cmds) {
+            encoder.writeValue(cmd, 0);
+        }
+        encoder._buf.flip();
+        return encoder._buf;
+    }
+
+    /**
+     * Decodes the commands (or answers) from the remaining bytes of the buffer.
+     *
+     * @param type Command.class or Answer.class, the component type of the array returned
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Command> T[] decode(ByteBuffer buffer, Class<T> type) {
+        Decoder decoder = new Decoder(buffer);
+        int count = decoder.readCount();
+        T[] cmds = (T[])Array.newInstance(type, count);
+        for (int i = 0; i < count; i++) {
+            Object value = decoder.readValue(0, type);
+            if (!type.isInstance(value)) {
+                throw new CloudRuntimeException("Unable to decode " + type.getSimpleName() + " " + i + " of " + count + ", got " +
+                    (value == null ? "null" : value.getClass().getName()));
+            }
+            cmds[i] = (T)value;
+        }
+        return cmds;
+    }
+
+    /**
+     * Fields of a class the way they are written to the wire, and how to create instances of it.
+     */
+    private static class ClassSchema {
+        final Field[] _fields;
+        final Map<String, Field> _fieldsByName;
+        final Constructor<?> _constructor;
+        final Field _gsonAdapted; // first field Gson handles with a custom adapter, null if none
+
+        ClassSchema(Class<?> type) {
+            List<Field> fields = new ArrayList<Field>();
+            Map<String, Field> fieldsByName = new HashMap<String, Field>();
+            Field gsonAdapted = null;
+            if (hasFields(type)) {
+                for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        int modifiers = field.getModifiers();
+                        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                            continue;
+                        }
+                        // like Gson, a field shadowed by a subclass field of the same name is not encoded
+                        if (fieldsByName.containsKey(field.getName())) {
+                            continue;
+                        }
+                        field.setAccessible(true);
+                        fields.add(field);
+                        fieldsByName.put(field.getName(), field);
+                        if (gsonAdapted == null && isGsonAdapted(field.getGenericType())) {
+                            gsonAdapted = field;
+                        }
+                    }
+                }
+            }
+            _fields = fields.toArray(new Field[fields.size()]);
+            _fieldsByName = fieldsByName;
+            _gsonAdapted = gsonAdapted;
+
+            Constructor<?> constructor = null;
+            if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers()) && !type.isArray() && !type.isPrimitive()) {
+                try {
+                    constructor = type.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    constructor = null;
+                } catch (SecurityException e) {
+                    constructor = null;
+                }
+            }
+            _constructor = constructor;
+        }
+
+        private static boolean hasFields(Class<?> type) {
+            return !type.isPrimitive() && !type.isArray() && !type.isInterface() && !type.isEnum() && !isJdkType(type);
+        }
+    }
+
+    private static ClassSchema getSchema(Class<?> type) {
+        ClassSchema schema = s_schemas.get(type);
+        if (schema == null) {
+            schema = new ClassSchema(type);
+            ClassSchema existing = s_schemas.putIfAbsent(type, schema);
+            if (existing != null) {
+                schema = existing;
+            }
+        }
+        return schema;
+    }
+
+    private static boolean isJdkType(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.");
+    }
+
+    private static boolean isJsonType(Class<?> type) {
+        for (Class<?> jsonType : JSON_TYPES) {
+            if (jsonType.isAssignableFrom(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isGsonAdapted(Type type) {
+        for (Type adapted : GSON_ADAPTED_TYPES) {
+            if (type.equals(adapted)) {
+                return true;
+            }
+        }
+        if (type instanceof Class && ((Class<?>)type).isArray()) {
+            return isGsonAdapted(((Class<?>)type).getComponentType());
+        } else if (type instanceof GenericArrayType) {
+            return isGsonAdapted(((GenericArrayType)type).getGenericComponentType());
+        } else if (type instanceof ParameterizedType) {
+            for (Type argument : ((ParameterizedType)type).getActualTypeArguments()) {
+                if (isGsonAdapted(argument)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAllowedPackage(String name) {
+        for (String prefix : ALLOWED_PACKAGES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether values of the class may be read from (or embedded in) a payload
+     */
+    private static boolean isAllowed(Class<?> type) {
+        if (type.isPrimitive()) {
+            return true;
+        }
+        if (type.isArray()) {
+            return isAllowed(type.getComponentType());
+        }
+        if (isAllowedPackage(type.getName())) {
+            return true;
+        }
+        return isJdkType(type) &&
+            (type == Object.class || type.isEnum() || Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type) || isJsonType(type));
+    }
+
+    private static Class<?> findClass(String name) {
+        Class<?> type = s_primitives.get(name);
+        if (type != null) {
+            return type;
+        }
+        type = s_classes.get(name);
+        if (type == null) {
+            if (!isAllowedPackage(name) && !name.startsWith("java.") && !name.startsWith("[")) {
+                throw new CloudRuntimeException("Class " + name + " is not allowed in a binary payload");
+            }
+            try {
+                // not initialized, nothing of a class runs before it is known to be allowed
+                type = Class.forName(name, false, BinaryCommandCodec.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                s_logger.debug("Unable to find class " + name + ", its values will be skipped");
+                return null;
+            }
+            if (!isAllowed(type)) {
+                throw new CloudRuntimeException("Class " + name + " is not allowed in a binary payload");
+            }
+            s_classes.put(name, type);
+        }
+        return type;
+    }
+
+    private static Class<?> boxed(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        return Array.get(Array.newInstance(type, 1), 0).getClass();
+    }
+
+    private static synchronized Object allocate(Class<?> type) throws Exception {
+        // same fallback as Gson for classes without a no-arg constructor
+        if (s_allocateInstance == null) {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            s_unsafe = f.get(null);
+            s_allocateInstance = unsafeClass.getMethod("allocateInstance", Class.class);
+        }
+        return s_allocateInstance.invoke(s_unsafe, type);
+    }
+
+    private static Object newInstance(Class<?> type) {
+        ClassSchema schema = getSchema(type);
+        try {
+            if (schema._constructor != null) {
+                return schema._constructor.newInstance();
+            }
+            return allocate(type);
+        } catch (Exception e) {
+            throw new CloudRuntimeException("Unable to create an instance of " + type.getName(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<Object> newCollection(Class<?> type) {
+        if (type != null && Modifier.isPublic(type.getModifiers()) && Collection.class.isAssignableFrom(type)) {
+            ClassSchema schema = getSchema(type);
+            if (schema._constructor != null && Modifier.isPublic(schema._constructor.getModifiers())) {
+                try {
+                    return (Collection<Object>)schema._constructor.newInstance();
+                } catch (Exception e) {
+                    s_logger.trace("Unable to create " + type.getName() + ", using a default collection", e);
+                }
+            }
+        }
+        if (type != null && SortedSet.class.isAssignableFrom(type)) {
+            return new TreeSet<Object>();
+        } else if (type != null && Set.class.isAssignableFrom(type)) {
+            return new LinkedHashSet<Object>();
+        } else if (type != null && Queue.class.isAssignableFrom(type)) {
+            return new LinkedList<Object>();
+        }
+        return new ArrayList<Object>();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> newMap(Class<?> type) {
+        if (type != null && Modifier.isPublic(type.getModifiers()) && Map.class.isAssignableFrom(type)) {
+            ClassSchema schema = getSchema(type);
+            if (schema._constructor != null && Modifier.isPublic(schema._constructor.getModifiers())) {
+                try {
+                    return (Map<Object, Object>)schema._constructor.newInstance();
+                } catch (Exception e) {
+                    s_logger.trace("Unable to create " + type.getName() + ", using a default map", e);
+                }
+            }
+        }
+        if (type != null && SortedMap.class.isAssignableFrom(type)) {
+            return new TreeMap<Object, Object>();
+        }
+        return new LinkedHashMap<Object, Object>();
+    }
+
+    private static Gson getGson() {
+        return GsonHelper.getGson();
+    }
+
+    private static final class Encoder {
+        private ByteBuffer _buf = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private final Map<Class<?>, Integer> _classes = new IdentityHashMap<Class<?>, Integer>();
+
+        private void ensure(int size) {
+            if (_buf.remaining() < size) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(_buf.capacity() * 2, _buf.position() + size));
+                _buf.flip();
+                bigger.put(_buf);
+                _buf = bigger;
+            }
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            _buf.put(b);
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                _buf.put((byte)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            _buf.put((byte)value);
+        }
+
+        void writeSigned(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String s) {
+            int length = s.length();
+            int utf8Length = 0;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    utf8Length++;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    utf8Length += 4;
+                    i++;
+                } else {
+                    utf8Length += 3;
+                }
+            }
+            writeVarint(utf8Length);
+            ensure(utf8Length);
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    _buf.put((byte)c);
+                } else if (c < 0x800) {
+                    _buf.put((byte)(0xC0 | (c >> 6)));
+                    _buf.put((byte)(0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    _buf.put((byte)(0xF0 | (cp >> 18)));
+                    _buf.put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+                    _buf.put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+                    _buf.put((byte)(0x80 | (cp & 0x3F)));
+                } else {
+                    // unpaired surrogates end up as 3 bytes, String decoding turns them into '?' like getBytes() does
+                    _buf.put((byte)(0xE0 | (c >> 12)));
+                    _buf.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                    _buf.put((byte)(0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        void writeClass(Class<?> type) {
+            Integer index = _classes.get(type);
+            if (index != null) {
+                writeVarint(index);
+                return;
+            }
+            index = _classes.size();
+            _classes.put(type, index);
+            writeVarint(index);
+            writeString(type.getName());
+            Field[] fields = getSchema(type)._fields;
+            writeVarint(fields.length);
+            for (Field field : fields) {
+                writeString(field.getName());
+            }
+        }
+
+        void writeValue(Object value, int depth) {
+            if (value == null) {
+                writeByte(NULL);
+                return;
+            }
+            if (depth > MAX_DEPTH) {
+                throw new CloudRuntimeException("Object graph is too deep to encode, is there a cycle through " + value.getClass().getName() + "?");
+            }
+
+            Class<?> type = value.getClass();
+            if (type == String.class) {
+                writeByte(STRING);
+                writeString((String)value);
+            } else if (type == Long.class) {
+                writeByte(LONG);
+                writeSigned((Long)value);
+            } else if (type == Integer.class) {
+                writeByte(INT);
+                writeSigned((Integer)value);
+            } else if (type == Boolean.class) {
+                writeByte((Boolean)value ? TRUE : FALSE);
+            } else if (type == Short.class) {
+                writeByte(SHORT);
+                writeSigned((Short)value);
+            } else if (type == Byte.class) {
+                writeByte(BYTE);
+                writeByte((Byte)value);
+            } else if (type == Character.class) {
+                writeByte(CHAR);
+                writeVarint((Character)value);
+            } else if (type == Float.class) {
+                writeByte(FLOAT);
+                ensure(4);
+                _buf.putFloat((Float)value);
+            } else if (type == Double.class) {
+                writeByte(DOUBLE);
+                ensure(8);
+                _buf.putDouble((Double)value);
+            } else if (type == byte[].class) {
+                byte[] bytes = (byte[])value;
+                writeByte(BYTES);
+                writeVarint(bytes.length);
+                ensure(bytes.length);
+                _buf.put(bytes);
+            } else if (value instanceof Enum) {
+                writeByte(ENUM);
+                writeClass(((Enum<?>)value).getDeclaringClass());
+                writeString(((Enum<?>)value).name());
+            } else if (type == Date.class) {
+                writeByte(DATE);
+                writeSigned(((Date)value).getTime());
+            } else if (type.isArray()) {
+                int length = Array.getLength(value);
+                writeByte(ARRAY);
+                writeClass(type.getComponentType());
+                writeVarint(length);
+                for (int i = 0; i < length; i++) {
+                    writeValue(Array.get(value, i), depth + 1);
+                }
+            } else if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>)value;
+                writeByte(COLLECTION);
+                writeClass(type);
+                writeVarint(collection.size());
+                for (Object item : collection) {
+                    writeValue(item, depth + 1);
+                }
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>)value;
+                writeByte(MAP);
+                writeClass(type);
+                writeVarint(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey(), depth + 1);
+                    writeValue(entry.getValue(), depth + 1);
+                }
+            } else if (isJdkType(type)) {
+                if (!isJsonType(type)) {
+                    throw new CloudRuntimeException("No binary encoding for " + type.getName());
+                }
+                writeByte(JSON);
+                writeClass(type);
+                writeString(getGson().toJson(value, type));
+            } else {
+                ClassSchema schema = getSchema(type);
+                if (schema._gsonAdapted != null) {
+                    throw new CloudRuntimeException(type.getName() + "." + schema._gsonAdapted.getName() + " is encoded by a custom Gson adapter");
+                }
+                writeByte(OBJECT);
+                writeClass(type);
+                for (Field field : schema._fields) {
+                    try {
+                        writeValue(field.get(value), depth + 1);
+                    } catch (IllegalAccessException e) {
+                        throw new CloudRuntimeException("Unable to read " + type.getName() + "." + field.getName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A class as described by the class table of the payload being decoded.
+     */
+    private static final class WireClass {
+        final Class<?> _type;
+        final Field[] _fields; // local field for every field of the payload, null if unknown
+
+        WireClass(Class<?> type, String[] fieldNames) {
+            _type = type;
+            _fields = new Field[fieldNames.length];
+            if (type != null) {
+                Map<String, Field> local = getSchema(type)._fieldsByName;
+                for (int i = 0; i < fieldNames.length; i++) {
+                    _fields[i] = local.get(fieldNames[i]);
+                }
+            }
+        }
+    }
+
+    private static final class Decoder {
+        private final ByteBuffer _buf;
+        private final List<WireClass> _classes = new ArrayList<WireClass>();
+
+        Decoder(ByteBuffer buf) {
+            _buf = buf;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = _buf.get();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+                if (shift > 63) {
+                    throw new CloudRuntimeException("Malformed varint in binary payload");
+                }
+            }
+        }
+
+        /**
+         * Reads the byte length of a value, which the rest of the payload must hold.
+         */
+        int readLength() {
+            long length = readVarint();
+            if (length < 0 || length > _buf.remaining()) {
+                throw new CloudRuntimeException("Malformed length " + length + " in binary payload at " + _buf.position() + ", " + _buf.remaining() + " bytes left");
+            }
+            return (int)length;
+        }
+
+        /**
+         * Reads the number of elements that follow. Every element takes at least one byte,
+         * so there cannot be more of them than bytes left, nor more than MAX_ELEMENTS.
+         */
+        int readCount() {
+            long count = readVarint();
+            if (count < 0 || count > _buf.remaining() || count > MAX_ELEMENTS) {
+                throw new CloudRuntimeException("Malformed element count " + count + " in binary payload at " + _buf.position() + ", " + _buf.remaining() +
+                    " bytes left");
+            }
+            return (int)count;
+        }
+
+        long readSigned() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() {
+            int length = readLength();
+            String s;
+            if (_buf.hasArray()) {
+                s = new String(_buf.array(), _buf.arrayOffset() + _buf.position(), length, UTF8);
+                _buf.position(_buf.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                _buf.get(bytes);
+                s = new String(bytes, UTF8);
+            }
+            return s;
+        }
+
+        WireClass readClass() {
+            long index = readVarint();
+            if (index >= 0 && index < _classes.size()) {
+                return _classes.get((int)index);
+            }
+            if (index != _classes.size()) {
+                throw new CloudRuntimeException("Malformed class table in binary payload, got class " + index + " while expecting " + _classes.size());
+            }
+            String name = readString();
+            String[] fieldNames = new String[readCount()];
+            for (int i = 0; i < fieldNames.length; i++) {
+                fieldNames[i] = readString();
+            }
+            WireClass wireClass = new WireClass(findClass(name), fieldNames);
+            _classes.add(wireClass);
+            return wireClass;
+        }
+
+        /**
+         * @param expected the declared type the value is read into, objects of other classes are skipped
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Object readValue(int depth, Class<?> expected) {
+            if (depth > MAX_DEPTH) {
+                throw new CloudRuntimeException("Object graph in binary payload is too deep");
+            }
+
+            byte tag = _buf.get();
+            switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return _buf.get();
+            case SHORT:
+                return (short)readSigned();
+            case CHAR:
+                return (char)readVarint();
+            case INT:
+                return (int)readSigned();
+            case LONG:
+                return readSigned();
+            case FLOAT:
+                return _buf.getFloat();
+            case DOUBLE:
+                return _buf.getDouble();
+            case STRING:
+                return readString();
+            case BYTES: {
+                byte[] bytes = new byte[readLength()];
+                _buf.get(bytes);
+                return bytes;
+            }
+            case ENUM: {
+                WireClass wireClass = readClass();
+                String name = readString();
+                if (wireClass._type == null || !wireClass._type.isEnum()) {
+                    return null;
+                }
+                try {
+                    return Enum.valueOf((Class<? extends Enum>)wireClass._type, name);
+                } catch (IllegalArgumentException e) {
+                    // an enum constant this side does not know about, Gson yields null as well
+                    return null;
+                }
+            }
+            case DATE:
+                return new Date(readSigned());
+            case ARRAY: {
+                WireClass component = readClass();
+                int length = readCount();
+                Object array = component._type != null ? Array.newInstance(component._type, length) : null;
+                for (int i = 0; i < length; i++) {
+                    Object item = readValue(depth + 1, component._type != null ? boxed(component._type) : Object.class);
+                    if (array != null && item != null) {
+                        item = coerce(item, component._type);
+                        if (item != null && (component._type.isPrimitive() || component._type.isInstance(item))) {
+                            Array.set(array, i, item);
+                        }
+                    }
+                }
+                return array;
+            }
+            case COLLECTION: {
+                WireClass wireClass = readClass();
+                int size = readCount();
+                Collection<Object> collection = newCollection(wireClass._type);
+                for (int i = 0; i < size; i++) {
+                    collection.add(readValue(depth + 1, Object.class));
+                }
+                return collection;
+            }
+            case MAP: {
+                WireClass wireClass = readClass();
+                int size = readCount();
+                Map<Object, Object> map = newMap(wireClass._type);
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue(depth + 1, Object.class);
+                    map.put(key, readValue(depth + 1, Object.class));
+                }
+                return map;
+            }
+            case JSON: {
+                WireClass wireClass = readClass();
+                String json = readString();
+                return isExpected(wireClass, expected) ? getGson().fromJson(json, wireClass._type) : null;
+            }
+            case OBJECT: {
+                WireClass wireClass = readClass();
+                Object object = isExpected(wireClass, expected) ? newInstance(wireClass._type) : null;
+                for (Field field : wireClass._fields) {
+                    Object value = readValue(depth + 1, field != null ? boxed(field.getType()) : Object.class);
+                    // null values are not set, so they keep the default of the receiving class, as with Gson
+                    if (object != null && field != null && value != null) {
+                        setField(object, field, value);
+                    }
+                }
+                return object;
+            }
+            default:
+                throw new CloudRuntimeException("Unknown value tag " + tag + " in binary payload at " + (_buf.position() - 1));
+            }
+        }
+
+        private boolean isExpected(WireClass wireClass, Class<?> expected) {
+            if (wireClass._type == null) {
+                return false;
+            }
+            if (!expected.isAssignableFrom(wireClass._type)) {
+                s_logger.debug("Skipping a " + wireClass._type.getName() + " where a " + expected.getName() + " is expected");
+                return false;
+            }
+            return true;
+        }
+
+        private void setField(Object object, Field field, Object value) {
+            value = coerce(value, field.getType());
+            if (value == null) {
+                return;
+            }
+            try {
+                field.set(object, value);
+            } catch (IllegalArgumentException e) {
+                s_logger.debug("Skipping " + field.getDeclaringClass().getName() + "." + field.getName() + ", it can not hold a " + value.getClass().getName());
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to set " + field.getDeclaringClass().getName() + "." + field.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Converts numbers between their boxed types, so a field whose type changed between
+     * versions (e.g. int to long) still receives its value. Returns null if it can't.
+     */
+    private static Object coerce(Object value, Class<?> type) {
+        if (type.isInstance(value)) {
+            return value;
+        }
+        if (value instanceof Number) {
+            Number n = (Number)value;
+            if (type == long.class || type == Long.class) {
+                return n.longValue();
+            } else if (type == int.class || type == Integer.class) {
+                return n.intValue();
+            } else if (type == short.class || type == Short.class) {
+                return n.shortValue();
+            } else if (type == byte.class || type == Byte.class) {
+                return n.byteValue();
+            } else if (type == double.class || type == Double.class) {
+                return n.doubleValue();
+            } else if (type == float.class || type == Float.class) {
+                return n.floatValue();
+            }
+        } else if (value instanceof Boolean && type == boolean.class) {
+            return value;
+        } else if (value instanceof Character && type == char.class) {
+            return value;
+        }
+        if (type.isPrimitive()) {
+            return null;
+        }
+        return value;
+    }
+}
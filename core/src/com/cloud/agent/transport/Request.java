@@ -70,7 +70,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
  * 4. Length - 4 bytes;
  * 5. ManagementServerId - 8 bytes;
  * 6. AgentId - 8 bytes;
- * 7. Data Package.
+ * 7. Data Package, JSON for v1 and the BinaryCommandCodec encoding for v4.
  *
  */
 public class Request {
@@ -83,7 +83,8 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // same header as v1, commands encoded with BinaryCommandCodec instead of gson.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -112,6 +113,7 @@ public class Request {
     protected long _agentId;
     protected Command[] _cmds;
     protected String _content;
+    protected ByteBuffer _payload; // v4 encoded commands, as received
     protected String _agentName;
 
     protected Request() {
@@ -137,6 +139,11 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final ByteBuffer payload) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _payload = payload;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] {command}, true, fromServer);
     }
@@ -216,6 +223,14 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Sets the wire format used by toBytes(). Only v1 and v4 can be sent, and v4 only to
+     * a peer that negotiated it, see StartupCommand.getWireVersion().
+     */
+    public void setVersion(Version ver) {
+        _ver = ver;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -242,7 +257,9 @@ public class Request {
     }
 
     public Command[] getCommands() {
-        if (_cmds == null) {
+        if (_cmds == null && _payload != null) {
+            _cmds = decodePayload();
+        } else if (_cmds == null) {
             try {
                 StringReader reader = new StringReader(_content);
                 JsonReader jsonReader = new JsonReader(reader);
@@ -260,6 +277,11 @@ public class Request {
         return "Cmd ";
     }
 
+    protected Command[] decodePayload() {
+        final Class<? extends Command> type = this instanceof Response ? Answer.class : Command.class;
+        return BinaryCommandCodec.decode(_payload.duplicate(), type);
+    }
+
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
@@ -304,15 +326,20 @@ public class Request {
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
         ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
         byte[] array;
+        int offset = 0;
+        int size;
         if (buffer.hasArray()) {
             array = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+            size = buffer.remaining();
         } else {
-            array = new byte[buffer.capacity()];
-            buffer.get(array);
+            array = new byte[buffer.remaining()];
+            buffer.duplicate().get(array);
+            size = array.length;
         }
         try {
             GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
+            out.write(array, offset, size);
             out.finish();
             out.close();
         } catch (IOException e) {
@@ -323,13 +350,22 @@ public class Request {
 
     public ByteBuffer[] toBytes() {
         final ByteBuffer[] buffers = new ByteBuffer[2];
-        ByteBuffer tmp;
+        ByteBuffer tmp = null;
 
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        if (_ver == Version.v4) {
+            tmp = encodePayload();
+        }
+        if (tmp == null) {
+            if (_ver != Version.v1 && _ver != Version.v3) {
+                _ver = Version.v1;
+            }
+            if (_content == null) {
+                final Command[] cmds = _cmds != null ? _cmds : getCommands();
+                _content = s_gson.toJson(cmds, cmds.getClass());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
-        int capacity = tmp.capacity();
+        int capacity = tmp.remaining();
         /* Check if we need to compress the data */
         if (capacity >= 8192) {
             tmp = doCompress(tmp, capacity);
@@ -341,6 +377,24 @@ public class Request {
         return buffers;
     }
 
+    /**
+     * @return the v4 encoding of the commands, or null if they can't be encoded that way,
+     *         in which case the request falls back to v1.
+     */
+    protected ByteBuffer encodePayload() {
+        if (_payload != null) {
+            return _payload.duplicate();
+        }
+        try {
+            _payload = BinaryCommandCodec.encode(_cmds != null ? _cmds : getCommands());
+            return _payload.duplicate();
+        } catch (RuntimeException e) {
+            s_logger.warn("Unable to encode " + getType() + " with " + Version.v4 + ", falling back to " + Version.v1 + ": " + e.getMessage());
+            s_logger.debug("Encoding failure", e);
+            return null;
+        }
+    }
+
     public byte[] getBytes() {
         final ByteBuffer[] buffers = toBytes();
         final int len1 = buffers[0].remaining();
@@ -394,7 +448,9 @@ public class Request {
     protected String log(String msg, boolean logContent, Level level) {
         StringBuilder content = new StringBuilder();
         if (logContent) {
-            if (_cmds == null) {
+            if (_cmds == null && _payload != null) {
+                _cmds = decodePayload();
+            } else if (_cmds == null) {
                 try {
                     _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
                 } catch (RuntimeException e) {
@@ -417,7 +473,9 @@ public class Request {
                 return null;
             }
         } else {
-            if (_cmds == null) {
+            if (_cmds == null && _payload != null) {
+                _cmds = decodePayload();
+            } else if (_cmds == null) {
                 _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
             }
             content.append("{ ");
@@ -485,7 +543,7 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
         buff.get();
@@ -499,7 +557,7 @@ public class Request {
         final long agentId = buff.getLong();
 
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
@@ -509,6 +567,15 @@ public class Request {
             buff = doDecompress(buff, size);
         }
 
+        if (version == Version.v4) {
+            final ByteBuffer payload = buff.slice();
+            if (isRequest) {
+                return new Request(version, seq, agentId, mgmtId, via, flags, payload);
+            } else {
+                return new Response(version, seq, agentId, mgmtId, via, flags, payload);
+            }
+        }
+
         byte[] command = null;
         int offset = 0;
         if (buff.hasArray()) {
@@ -19,6 +19,8 @@
 
 package com.cloud.agent.transport;
 
+import java.nio.ByteBuffer;
+
 import com.cloud.agent.api.Answer;
 import com.cloud.exception.UnsupportedVersionException;
 
@@ -51,13 +53,19 @@ public class Response extends Request {
         super(ver, seq, agentId, mgmtId, via, flags, ans);
     }
 
+    protected Response(Version ver, long seq, long agentId, long mgmtId, long via, short flags, ByteBuffer payload) {
+        super(ver, seq, agentId, mgmtId, via, flags, payload);
+    }
+
     public Answer getAnswer() {
         Answer[] answers = getAnswers();
         return answers[0];
     }
 
     public Answer[] getAnswers() {
-        if (_cmds == null) {
+        if (_cmds == null && _payload != null) {
+            _cmds = decodePayload();
+        } else if (_cmds == null) {
             _cmds = s_gson.fromJson(_content, Answer[].class);
         }
         return (Answer[])_cmds;
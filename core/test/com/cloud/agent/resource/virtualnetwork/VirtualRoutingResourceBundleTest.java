@@ -0,0 +1,434 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.ConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.BumpUpPriorityCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand.Action;
+import com.cloud.agent.api.routing.GroupAnswer;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SavePasswordCommand;
+import com.cloud.agent.api.routing.SetPortForwardingRulesCommand;
+import com.cloud.agent.api.routing.VmDataCommand;
+import com.cloud.agent.api.to.PortForwardingRuleTO;
+import com.cloud.utils.ExecutionResult;
+
+/**
+ * Applies config items through a router that only records what it is sent, unlike
+ * VirtualRoutingResourceTest which checks the arguments generated for each command.
+ */
+public class VirtualRoutingResourceBundleTest implements VirtualRouterDeployer {
+    VirtualRoutingResource _resource;
+    List<String> _scripts = new ArrayList<String>();
+    List<String> _files = new ArrayList<String>();
+    ExecutionResult _bundleResult;
+    ExecutionResult _digestResult;
+
+    String ROUTERIP = "169.254.3.4";
+    String ROUTERGUESTIP = "10.200.1.1";
+    String ROUTERNAME = "r-4-VM";
+
+    @Override
+    public ExecutionResult executeInVR(final String routerIp, final String script, final String args) {
+        return executeInVR(routerIp, script, args, 60);
+    }
+
+    @Override
+    public ExecutionResult executeInVR(final String routerIp, final String script, final String args, final int timeout) {
+        assertEquals(ROUTERIP, routerIp);
+        _scripts.add(script + " " + args);
+        if (VRScripts.VR_CFG.equals(script)) {
+            return _bundleResult;
+        } else if (VRScripts.ROUTER_DIGEST.equals(script)) {
+            return _digestResult;
+        }
+        return new ExecutionResult(true, null);
+    }
+
+    @Override
+    public ExecutionResult createFileInVR(final String routerIp, final String path, final String filename, final String content) {
+        assertEquals(ROUTERIP, routerIp);
+        _files.add(content);
+        return new ExecutionResult(true, null);
+    }
+
+    @Override
+    public ExecutionResult prepareCommand(final NetworkElementCommand cmd) {
+        cmd.setRouterAccessIp(ROUTERIP);
+        return new ExecutionResult(true, null);
+    }
+
+    @Override
+    public ExecutionResult cleanupCommand(final NetworkElementCommand cmd) {
+        return new ExecutionResult(true, null);
+    }
+
+    @Before
+    public void setup() throws ConfigurationException {
+        _resource = new VirtualRoutingResource(this);
+        _resource.configure("VRResource", new HashMap<String, Object>());
+        _bundleResult = new ExecutionResult(true, null);
+        _digestResult = new ExecutionResult(true, "");
+    }
+
+    private NetworkElementCommand generateCommand() {
+        final NetworkElementCommand cmd = new BumpUpPriorityCommand();
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, ROUTERNAME);
+        cmd.setRouterAccessIp(ROUTERIP);
+        return cmd;
+    }
+
+    private List<ConfigItem> generateConfigItems(final int count) {
+        return generateConfigItems(1, count);
+    }
+
+    private List<ConfigItem> generateConfigItems(final int first, final int count) {
+        final List<ConfigItem> cfg = new ArrayList<ConfigItem>();
+        for (int i = first; i < first + count; i++) {
+            final ConfigItem configItem = new ScriptConfigItem("item" + i + ".sh", "-n " + i);
+            configItem.setInfo("item " + i);
+            cfg.add(configItem);
+        }
+        return cfg;
+    }
+
+    @Test
+    public void testBundleAppliedInOneRun() {
+        final Answer answer = _resource.applyConfig(generateCommand(), generateConfigItems(4));
+
+        assertTrue(answer.getResult());
+        assertEquals(1, _files.size());
+        assertEquals(1, _scripts.size());
+        assertTrue(_scripts.get(0).startsWith(VRScripts.VR_CFG + " -c " + VRScripts.CONFIG_CACHE_LOCATION + "VR-"));
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(_files.get(0).contains("<script>\n/opt/cloud/bin/item" + i + ".sh -n " + i + "\n</script>\n"));
+        }
+
+        final String[] results = ((GroupAnswer)answer).getResults();
+        assertEquals(4, results.length);
+        for (int i = 0; i < results.length; i++) {
+            assertTrue(results[i].startsWith("item " + (i + 1) + " - success"));
+        }
+    }
+
+    @Test
+    public void testBundleStopsAtFailedItem() {
+        _bundleResult = new ExecutionResult(false, "VR config: execution failed at item 2: \"/opt/cloud/bin/item2.sh -n 2\", check /var/log/cloud.log in VR for details");
+
+        final Answer answer = _resource.applyConfig(generateCommand(), generateConfigItems(4));
+
+        assertFalse(answer.getResult());
+        final String[] results = ((GroupAnswer)answer).getResults();
+        assertEquals(4, results.length);
+        assertTrue(results[0].startsWith("item 1 - success"));
+        assertTrue(results[1].startsWith("item 2 - failed: VR config: execution failed at item 2"));
+        assertTrue(results[2].startsWith("item 3 - not executed"));
+        assertTrue(results[3].startsWith("item 4 - not executed"));
+    }
+
+    @Test
+    public void testBundleFailedWithoutItem() {
+        // a router with an older vr_cfg.sh does not report which item failed
+        _bundleResult = new ExecutionResult(false, "VR config: execution failed: \"/opt/cloud/bin/item2.sh -n 2\", check /var/log/cloud.log in VR for details");
+
+        final Answer answer = _resource.applyConfig(generateCommand(), generateConfigItems(3));
+
+        assertFalse(answer.getResult());
+        final String[] results = ((GroupAnswer)answer).getResults();
+        assertEquals(3, results.length);
+        for (int i = 0; i < results.length; i++) {
+            assertTrue(results[i].startsWith("item " + (i + 1) + " - failed"));
+        }
+    }
+
+    @Test
+    public void testItemsBelowThresholdAppliedOneByOne() {
+        final Answer answer = _resource.applyConfig(generateCommand(), generateConfigItems(2));
+
+        assertTrue(answer.getResult());
+        assertEquals(0, _files.size());
+        assertEquals(2, _scripts.size());
+        assertEquals("item1.sh -n 1", _scripts.get(0));
+        assertEquals("item2.sh -n 2", _scripts.get(1));
+    }
+
+    private VirtualRoutingResource.QueuedCommand queue(final List<VirtualRoutingResource.QueuedCommand> pending, final List<ConfigItem> cfg) {
+        final VirtualRoutingResource.QueuedCommand queued = new VirtualRoutingResource.QueuedCommand(generateCommand());
+        queued._cfg = cfg;
+        pending.add(queued);
+        return queued;
+    }
+
+    @Test
+    public void testQueuedCommandsAppliedInOneBundle() {
+        // neither command reaches the threshold on its own
+        final List<VirtualRoutingResource.QueuedCommand> pending = new ArrayList<VirtualRoutingResource.QueuedCommand>();
+        final VirtualRoutingResource.QueuedCommand first = queue(pending, generateConfigItems(1, 2));
+        final VirtualRoutingResource.QueuedCommand second = queue(pending, generateConfigItems(3, 2));
+
+        _resource.applyConfigs(pending);
+
+        assertTrue(pending.isEmpty());
+        assertEquals(1, _files.size());
+        assertEquals(1, _scripts.size());
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(_files.get(0).contains("<script>\n/opt/cloud/bin/item" + i + ".sh -n " + i + "\n</script>\n"));
+        }
+        assertTrue(first._answer.getResult());
+        assertTrue(second._answer.getResult());
+        assertTrue(((GroupAnswer)second._answer).getResults()[0].startsWith("item 3 - success"));
+    }
+
+    @Test
+    public void testQueuedCommandsAfterFailedItemAppliedAgain() {
+        _bundleResult = new ExecutionResult(false, "VR config: execution failed at item 3: \"/opt/cloud/bin/item3.sh -n 3\", check /var/log/cloud.log in VR for details");
+        final List<VirtualRoutingResource.QueuedCommand> pending = new ArrayList<VirtualRoutingResource.QueuedCommand>();
+        final VirtualRoutingResource.QueuedCommand first = queue(pending, generateConfigItems(1, 2));
+        final VirtualRoutingResource.QueuedCommand failed = queue(pending, generateConfigItems(3, 2));
+        final VirtualRoutingResource.QueuedCommand last = queue(pending, generateConfigItems(5, 2));
+
+        _resource.applyConfigs(pending);
+
+        assertTrue(first._answer.getResult());
+        assertFalse(failed._answer.getResult());
+        final String[] results = ((GroupAnswer)failed._answer).getResults();
+        assertTrue(results[0].startsWith("item 3 - failed"));
+        assertTrue(results[1].startsWith("item 4 - not executed"));
+        // the last command is not held back by the failed one, it is applied again on its own
+        assertTrue(last._answer.getResult());
+        assertEquals(3, _scripts.size());
+        assertEquals("item5.sh -n 5", _scripts.get(1));
+        assertEquals("item6.sh -n 6", _scripts.get(2));
+    }
+
+    @Test
+    public void testCommandsWaitingForRouterAppliedTogether() throws InterruptedException {
+        final Lock lock = new ReentrantLock(true);
+        _resource._vrLockMap.put(ROUTERNAME, lock);
+        final Answer[] answers = new Answer[2];
+        final Thread[] threads = new Thread[2];
+
+        // hold the router while two password commands queue up for it
+        lock.lock();
+        try {
+            for (int i = 0; i < threads.length; i++) {
+                final int index = i;
+                final SavePasswordCommand cmd = new SavePasswordCommand("pass" + i, "10.1.10." + (4 + i), "i-" + (4 + i) + "-VM", true);
+                cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, ROUTERNAME);
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        answers[index] = _resource.executeRequest(cmd);
+                    }
+                };
+                threads[i].start();
+            }
+            final long deadline = System.currentTimeMillis() + 10000;
+            while ((_resource._vrCommandQueues.get(ROUTERNAME) == null || _resource._vrCommandQueues.get(ROUTERNAME).size() < 2) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (final Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        assertTrue(answers[0].getResult());
+        assertTrue(answers[1].getResult());
+        // one bundle for the two commands
+        assertEquals(1, _files.size());
+        assertEquals(1, _scripts.size());
+        assertEquals(4, bundleItems().size());
+    }
+
+    private List<NetworkElementCommand> generateRuleSetCommands() {
+        final List<NetworkElementCommand> cmds = new ArrayList<NetworkElementCommand>();
+
+        final VmDataCommand vmData1 = new VmDataCommand("10.1.10.4", "i-4-VM", true);
+        vmData1.addVmData("metadata", "local-hostname", "vm1");
+        cmds.add(vmData1);
+
+        final List<PortForwardingRuleTO> pfRules = new ArrayList<PortForwardingRuleTO>();
+        pfRules.add(new PortForwardingRuleTO(1, "64.1.1.10", 22, 80, "10.10.1.10", 22, 80, "TCP", false, false));
+        cmds.add(new SetPortForwardingRulesCommand(pfRules));
+
+        final VmDataCommand vmData2 = new VmDataCommand("10.1.10.5", "i-5-VM", true);
+        vmData2.addVmData("metadata", "local-hostname", "vm2");
+        cmds.add(vmData2);
+
+        // not part of any rule set, always applied
+        cmds.add(new SavePasswordCommand("123pass", "10.1.10.4", "i-4-VM", true));
+
+        for (final NetworkElementCommand cmd : cmds) {
+            cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, ROUTERNAME);
+        }
+        return cmds;
+    }
+
+    private Answer aggregate(final boolean differential, final List<NetworkElementCommand> cmds) {
+        _files.clear();
+        _scripts.clear();
+        assertTrue(_resource.executeRequest(new AggregationControlCommand(Action.Start, ROUTERNAME, ROUTERIP, ROUTERGUESTIP)).getResult());
+        for (final NetworkElementCommand cmd : cmds) {
+            assertTrue(_resource.executeRequest(cmd).getResult());
+        }
+        final AggregationControlCommand finishCmd = new AggregationControlCommand(Action.Finish, ROUTERNAME, ROUTERIP, ROUTERGUESTIP);
+        finishCmd.setDifferential(differential);
+        return _resource.executeRequest(finishCmd);
+    }
+
+    /**
+     * @return the items of the last bundle, a script as its command line and a file as "file " and its path
+     */
+    private List<String> bundleItems() {
+        final List<String> items = new ArrayList<String>();
+        if (_files.isEmpty()) {
+            return items;
+        }
+        final String[] lines = _files.get(_files.size() - 1).split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].equals("<script>")) {
+                items.add(lines[++i]);
+            } else if (lines[i].equals("<file>")) {
+                items.add("file " + lines[++i]);
+                while (!lines[i].equals("</file>")) {
+                    i++;
+                }
+            }
+        }
+        return items;
+    }
+
+    private static String updateConfig(final String config) {
+        return "/opt/cloud/bin/" + VRScripts.UPDATE_CONFIG + " " + config;
+    }
+
+    private String digestKey(final String config) {
+        return ROUTERGUESTIP + "_" + config;
+    }
+
+    /**
+     * @return the digests the bundle records on the router, as router_digest.sh -g reports them
+     */
+    private static String recordedDigests(final List<String> items) {
+        final Pattern record = Pattern.compile("/opt/cloud/bin/" + VRScripts.ROUTER_DIGEST + " -k (\\S+) -v (\\S+)");
+        final StringBuilder sb = new StringBuilder();
+        for (final String item : items) {
+            final Matcher matcher = record.matcher(item);
+            if (matcher.matches()) {
+                sb.append(matcher.group(1)).append(' ').append(matcher.group(2)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isDigestRecord(final String item, final String key) {
+        return item.startsWith("/opt/cloud/bin/" + VRScripts.ROUTER_DIGEST + " -k " + key + " -v ");
+    }
+
+    @Test
+    public void testDifferentialFinishRecordsDigests() {
+        final Answer answer = aggregate(true, generateRuleSetCommands());
+
+        assertTrue(answer.getResult());
+        assertTrue(_scripts.contains(VRScripts.ROUTER_DIGEST + " -g"));
+        final List<String> items = bundleItems();
+        // the router knows no digest yet: every rule set is applied, its digest recorded after its last item
+        final int forwarding = items.indexOf(updateConfig(VRScripts.FORWARDING_RULES_CONFIG));
+        final int metadata = items.lastIndexOf(updateConfig(VRScripts.VM_METADATA_CONFIG));
+        assertTrue(forwarding >= 0);
+        assertTrue(isDigestRecord(items.get(forwarding + 1), digestKey(VRScripts.FORWARDING_RULES_CONFIG)));
+        assertTrue(metadata > items.indexOf(updateConfig(VRScripts.VM_METADATA_CONFIG)));
+        assertTrue(isDigestRecord(items.get(metadata + 1), digestKey(VRScripts.VM_METADATA_CONFIG)));
+        assertTrue(items.contains(updateConfig(VRScripts.VM_PASSWORD_CONFIG)));
+        assertEquals(2, recordedDigests(items).split("\n").length);
+    }
+
+    @Test
+    public void testDifferentialFinishSkipsMatchingRuleSets() {
+        aggregate(true, generateRuleSetCommands());
+        _digestResult = new ExecutionResult(true, recordedDigests(bundleItems()));
+
+        final Answer answer = aggregate(true, generateRuleSetCommands());
+
+        assertTrue(answer.getResult());
+        final List<String> items = bundleItems();
+        assertEquals(2, items.size());
+        assertEquals("file " + VRScripts.CONFIG_PERSIST_LOCATION + VRScripts.VM_PASSWORD_CONFIG, items.get(0));
+        assertEquals(updateConfig(VRScripts.VM_PASSWORD_CONFIG), items.get(1));
+    }
+
+    @Test
+    public void testDifferentialFinishReappliesChangedRuleSet() {
+        aggregate(true, generateRuleSetCommands());
+        _digestResult = new ExecutionResult(true, recordedDigests(bundleItems()));
+
+        final List<NetworkElementCommand> cmds = generateRuleSetCommands();
+        final List<PortForwardingRuleTO> pfRules = new ArrayList<PortForwardingRuleTO>();
+        pfRules.add(new PortForwardingRuleTO(1, "64.1.1.10", 22, 80, "10.10.1.10", 22, 80, "TCP", false, false));
+        pfRules.add(new PortForwardingRuleTO(2, "64.1.1.11", 8080, 8080, "10.10.1.11", 8080, 8080, "UDP", false, false));
+        final SetPortForwardingRulesCommand pfCmd = new SetPortForwardingRulesCommand(pfRules);
+        pfCmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, ROUTERNAME);
+        cmds.set(1, pfCmd);
+        final Answer answer = aggregate(true, cmds);
+
+        assertTrue(answer.getResult());
+        final List<String> items = bundleItems();
+        assertFalse(items.contains(updateConfig(VRScripts.VM_METADATA_CONFIG)));
+        final int forwarding = items.indexOf(updateConfig(VRScripts.FORWARDING_RULES_CONFIG));
+        assertTrue(forwarding >= 0);
+        assertTrue(isDigestRecord(items.get(forwarding + 1), digestKey(VRScripts.FORWARDING_RULES_CONFIG)));
+        assertEquals(1, recordedDigests(items).split("\n").length);
+    }
+
+    @Test
+    public void testFullFinishIgnoresDigests() {
+        aggregate(true, generateRuleSetCommands());
+        _digestResult = new ExecutionResult(true, recordedDigests(bundleItems()));
+
+        final Answer answer = aggregate(false, generateRuleSetCommands());
+
+        assertTrue(answer.getResult());
+        assertFalse(_scripts.contains(VRScripts.ROUTER_DIGEST + " -g"));
+        final List<String> items = bundleItems();
+        assertTrue(items.indexOf(updateConfig(VRScripts.VM_METADATA_CONFIG)) < items.lastIndexOf(updateConfig(VRScripts.VM_METADATA_CONFIG)));
+        assertTrue(items.contains(updateConfig(VRScripts.FORWARDING_RULES_CONFIG)));
+        assertEquals(0, recordedDigests(items).length());
+    }
+}
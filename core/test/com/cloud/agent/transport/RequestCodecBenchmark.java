@@ -0,0 +1,141 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.transport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.exception.UnsupportedVersionException;
+import com.cloud.host.Host;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+/**
+ * Compares the Gson (v1) and binary (v4) wire formats on the high volume agent traffic:
+ * routing pings carrying the VM power state report and VM stats answers.
+ *
+ * It is not picked up by the unit tests, run its main() with the core test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestCodecBenchmark {
+
+    @Param({"50", "500"})
+    int vms;
+
+    @Param({"v1", "v4"})
+    String version;
+
+    Request _ping;
+    Response _stats;
+    byte[] _pingBytes;
+    byte[] _statsBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        Request.Version ver = Request.Version.valueOf(version);
+
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        List<String> vmNames = new ArrayList<String>();
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < vms; i++) {
+            String name = "i-2-" + (1000 + i) + "-VM";
+            vmNames.add(name);
+            report.put(name, new HostVmStateReportEntry(i % 10 == 0 ? PowerState.PowerOff : PowerState.PowerOn, "kvm-host-01"));
+            stats.put(name, new VmStatsEntry(i * 0.5, i * 10.0, i * 20.0, i * 30.0, i * 40.0, 2, "UserVm"));
+        }
+
+        _ping = new Request(42, 1, new PingRoutingCommand(Host.Type.Routing, 42, report), false);
+        _ping.setVersion(ver);
+        _pingBytes = _ping.getBytes();
+
+        GetVmStatsCommand cmd = new GetVmStatsCommand(vmNames, "kvm-host-01-guid", "kvm-host-01");
+        Request req = new Request(42, 1, cmd, true);
+        req.setVersion(ver);
+        _stats = new Response(req, new GetVmStatsAnswer(cmd, stats));
+        _statsBytes = _stats.getBytes();
+    }
+
+    private static byte[] encode(Request request) {
+        Request copy = new Request(request.getAgentId(), request.getManagementServerId(), request.getCommands(), request.stopOnError(), request.isFromServer());
+        copy.setVersion(request.getVersion());
+        return copy.getBytes();
+    }
+
+    private static Command[] decode(byte[] bytes) throws ClassNotFoundException, UnsupportedVersionException {
+        Request request = Request.parse(bytes);
+        return request instanceof Response ? ((Response)request).getAnswers() : request.getCommands();
+    }
+
+    @Benchmark
+    public byte[] encodePing() {
+        return encode(_ping);
+    }
+
+    @Benchmark
+    public Command[] decodePing() throws Exception {
+        return decode(_pingBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeVmStats() {
+        Response copy = new Response(_ping, _stats.getAnswers());
+        copy.setVersion(_stats.getVersion());
+        return copy.getBytes();
+    }
+
+    @Benchmark
+    public Command[] decodeVmStats() throws Exception {
+        return decode(_statsBytes);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder().include(RequestCodecBenchmark.class.getSimpleName()).build();
+        new Runner(opt).run();
+    }
+}
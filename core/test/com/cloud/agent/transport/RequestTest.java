@@ -20,6 +20,10 @@
 package com.cloud.agent.transport;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -34,12 +38,18 @@ import org.apache.cloudstack.storage.to.TemplateObjectTO;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
+import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.storage.DownloadAnswer;
 import com.cloud.agent.api.storage.ListTemplateCommand;
 import com.cloud.agent.api.to.NfsTO;
 import com.cloud.exception.UnsupportedVersionException;
+import com.cloud.host.Host;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.storage.DataStoreRole;
@@ -47,6 +57,8 @@ import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
 import com.cloud.template.VirtualMachineTemplate;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.vm.VirtualMachine.PowerState;
 
 /**
  *
@@ -233,6 +245,167 @@ public class RequestTest extends TestCase {
         logger.setLevel(level);
     }
 
+    public void testBinaryFallsBackForGsonAdaptedTypes() throws Exception {
+        s_logger.info("Testing commands with custom Gson adapters are sent as json");
+
+        NfsTO nfs = new NfsTO("nfs://192.168.56.10/opt/storage/secondary", DataStoreRole.Image);
+        ListTemplateCommand cmd = new ListTemplateCommand(nfs);
+        Request sreq = new Request(2, 3, cmd, true);
+        sreq.setSequence(892403719);
+        sreq.setVersion(Request.Version.v4);
+
+        byte[] bytes = sreq.getBytes();
+        assertEquals(Request.Version.v1, Request.getVersion(bytes));
+        assertEquals(892403719, Request.getSequence(bytes));
+        assertEquals(2, Request.getViaAgentId(bytes));
+
+        Request creq = Request.parse(bytes);
+        compareRequest(creq, sreq);
+        assertEquals("nfs://192.168.56.10/opt/storage/secondary", ((NfsTO)((ListTemplateCommand)creq.getCommand()).getDataStore()).getUrl());
+        assertEquals(DataStoreRole.Image, ((ListTemplateCommand)creq.getCommand()).getDataStore().getRole());
+
+        SecStorageFirewallCfgCommand fwCmd = new SecStorageFirewallCfgCommand(true);
+        fwCmd.addPortConfig("10.1.1.1", "80", true, "eth1");
+        Request fwReq = new Request(2, 3, fwCmd, true);
+        fwReq.setVersion(Request.Version.v4);
+        Request cfwReq = Request.parse(fwReq.getBytes());
+        assertEquals(Request.Version.v1, cfwReq.getVersion());
+        assertEquals("10.1.1.1", ((SecStorageFirewallCfgCommand)cfwReq.getCommand()).getPortConfigs().get(0).getSourceIp());
+    }
+
+    private static ByteBuffer payloadOfClass(String className) {
+        byte[] name = className.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(name.length + 5);
+        buffer.put((byte)1); // one command
+        buffer.put((byte)17); // an object
+        buffer.put((byte)0); // of the first class in the table
+        buffer.put((byte)name.length);
+        buffer.put(name);
+        buffer.put((byte)0); // without fields
+        buffer.flip();
+        return buffer;
+    }
+
+    public void testBinaryRejectsClassesOutsideCommands() throws Exception {
+        s_logger.info("Testing the binary decoder only creates commands and what they refer to");
+
+        try {
+            BinaryCommandCodec.decode(payloadOfClass("java.lang.ProcessBuilder"), Command.class);
+            fail("a JDK class that is not a value type should be refused");
+        } catch (CloudRuntimeException e) {
+            assertTrue(e.getMessage().contains("not allowed"));
+        }
+        try {
+            BinaryCommandCodec.decode(payloadOfClass("org.apache.commons.collections.functors.InvokerTransformer"), Command.class);
+            fail("a class outside the CloudStack packages should be refused");
+        } catch (CloudRuntimeException e) {
+            assertTrue(e.getMessage().contains("not allowed"));
+        }
+        try {
+            BinaryCommandCodec.decode(payloadOfClass(NfsTO.class.getName()), Command.class);
+            fail("a CloudStack class that is not a command should not be created at the top level");
+        } catch (CloudRuntimeException e) {
+            assertTrue(e.getMessage().contains("got null"));
+        }
+
+        Command[] cmds = BinaryCommandCodec.decode(payloadOfClass(GetHostStatsCommand.class.getName()), Command.class);
+        assertTrue(cmds[0] instanceof GetHostStatsCommand);
+    }
+
+    private static void assertMalformed(ByteBuffer payload, String message) {
+        try {
+            BinaryCommandCodec.decode(payload, Command.class);
+            fail("a malformed payload should be refused");
+        } catch (CloudRuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    public void testBinaryRejectsMalformedLengths() throws Exception {
+        s_logger.info("Testing the binary decoder checks the lengths and counts it reads before allocating");
+
+        // 2^31 - 1 commands in a 5 byte payload
+        assertMalformed(ByteBuffer.wrap(new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07}), "Malformed element count");
+        // a count that reads as negative
+        assertMalformed(ByteBuffer.wrap(new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+            0x01}), "Malformed element count");
+        // a class name longer than the payload
+        assertMalformed(ByteBuffer.wrap(new byte[] {1, 17, 0, (byte)0xFF, (byte)0xFF, 0x03, 'a'}), "Malformed length");
+        // bytes longer than the payload
+        assertMalformed(ByteBuffer.wrap(new byte[] {1, 11, (byte)0x80, (byte)0x80, 0x04}), "Malformed length");
+
+        // an array of more elements than allowed, even though the payload is big enough to hold them
+        ByteBuffer array = ByteBuffer.allocate((1 << 20) + 16);
+        array.put((byte)1); // one command
+        array.put((byte)14); // an array
+        array.put((byte)0); // of the first class in the table
+        array.put((byte)3);
+        array.put("int".getBytes());
+        array.put((byte)0); // without fields
+        array.put(new byte[] {(byte)0x81, (byte)0x80, 0x40}); // 2^20 + 1 elements
+        array.position(0);
+        assertMalformed(array, "Malformed element count");
+    }
+
+    public void testBinaryResponse() throws Exception {
+        s_logger.info("Testing a response mirrors the binary wire format of its request");
+
+        List<String> vmNames = new ArrayList<String>();
+        vmNames.add("i-2-3-VM");
+        GetVmStatsCommand cmd = new GetVmStatsCommand(vmNames, "hostguid", "hostname");
+        Request req = new Request(1, 1, cmd, true);
+        req.setVersion(Request.Version.v4);
+        Request creq = Request.parse(req.getBytes());
+        assertEquals(Request.Version.v4, creq.getVersion());
+
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        stats.put("i-2-3-VM", new VmStatsEntry(12.5, 100, 200, 300, 400, 2, "vm"));
+        Response resp = new Response(creq, new GetVmStatsAnswer((GetVmStatsCommand)creq.getCommand(), stats));
+
+        Response cresp = Response.parse(resp.getBytes());
+        assertEquals(Request.Version.v4, cresp.getVersion());
+        VmStatsEntry entry = ((GetVmStatsAnswer)cresp.getAnswer()).getVmStatsMap().get("i-2-3-VM");
+        assertEquals(12.5, entry.getCPUUtilization());
+        assertEquals(2, entry.getNumCPUs());
+        assertEquals("vm", entry.getEntityType());
+        assertTrue(cresp.log("Debug", false, Level.DEBUG).contains(GetVmStatsAnswer.class.getSimpleName()));
+    }
+
+    public void testBinaryCompressed() throws Exception {
+        s_logger.info("Testing large binary requests are compressed");
+
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        for (int i = 0; i < 1000; i++) {
+            report.put("i-2-" + i + "-VM", new HostVmStateReportEntry(i % 2 == 0 ? PowerState.PowerOn : PowerState.PowerOff, "host-" + i));
+        }
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 5, report);
+        ping.setGatewayAccessible(false);
+        Request sreq = new Request(5, 3, ping, false);
+        sreq.setVersion(Request.Version.v4);
+
+        Request creq = Request.parse(sreq.getBytes());
+        PingRoutingCommand cping = (PingRoutingCommand)creq.getCommand();
+        assertEquals(1000, cping.getHostVmStateReport().size());
+        assertEquals(PowerState.PowerOff, cping.getHostVmStateReport().get("i-2-7-VM").getState());
+        assertEquals("host-7", cping.getHostVmStateReport().get("i-2-7-VM").getHost());
+        assertFalse(cping.isGatewayAccessible());
+        assertTrue(cping.isVnetAccessible());
+    }
+
+    public void testV1RequestFromBinary() throws Exception {
+        s_logger.info("Testing a binary request can be re-sent as json");
+
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request sreq = new Request(2, 3, cmd, true);
+        sreq.setVersion(Request.Version.v4);
+        Request creq = Request.parse(sreq.getBytes());
+
+        creq.setVersion(Request.Version.v1);
+        Request jreq = Request.parse(creq.getBytes());
+        assertEquals(Request.Version.v1, jreq.getVersion());
+        assertEquals(101, ((GetHostStatsCommand)jreq.getCommand()).getHostId());
+    }
+
     protected void compareRequest(Request req1, Request req2) {
         assert req1.getSequence() == req2.getSequence();
         assert req1.getAgentId() == req2.getAgentId();
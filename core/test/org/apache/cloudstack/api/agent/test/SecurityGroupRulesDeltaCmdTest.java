@@ -0,0 +1,112 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package org.apache.cloudstack.api.agent.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
+
+public class SecurityGroupRulesDeltaCmdTest {
+
+    private static SecurityGroupRulesCmd rulesCmd(long seqNum, IpPortAndProto[] ingress, IpPortAndProto[] egress) {
+        return new SecurityGroupRulesCmd("10.1.1.2", "02:00:00:00:00:01", "i-2-3-VM", 3L, null, seqNum, ingress, egress);
+    }
+
+    private static IpPortAndProto rule(String proto, int port, String... cidrs) {
+        return new IpPortAndProto(proto, port, port, cidrs);
+    }
+
+    @Test
+    public void testDeltaCarriesOnlyChangedCidrs() {
+        SecurityGroupRulesCmd applied = rulesCmd(1, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.3/32", "10.1.1.4/32"), rule("tcp", 80, "0.0.0.0/0")},
+                new IpPortAndProto[0]);
+        SecurityGroupRulesCmd target = rulesCmd(2, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.3/32", "10.1.1.5/32")},
+                new IpPortAndProto[] {rule("udp", 53, "0.0.0.0/0")});
+
+        SecurityGroupRulesDeltaCmd delta = new SecurityGroupRulesDeltaCmd(applied, target);
+
+        assertEquals(Long.valueOf(1), delta.getBaseSeqNum());
+        assertEquals(Long.valueOf(2), delta.getSeqNum());
+        assertEquals(target.getSignature(), delta.getSignature());
+        assertEquals(1, delta.getAddedIngressRuleSet().length);
+        assertArrayEquals(new String[] {"10.1.1.5/32"}, delta.getAddedIngressRuleSet()[0].getAllowedCidrs());
+        assertEquals(2, delta.getRevokedIngressRuleSet().length);
+        assertArrayEquals(new String[] {"10.1.1.4/32"}, delta.getRevokedIngressRuleSet()[0].getAllowedCidrs());
+        assertEquals(80, delta.getRevokedIngressRuleSet()[1].getStartPort());
+        assertEquals(1, delta.getAddedEgressRuleSet().length);
+        assertEquals(0, delta.getRevokedEgressRuleSet().length);
+        assertFalse(delta.isEmpty());
+    }
+
+    @Test
+    public void testApplyToBaseRulesetGivesTargetRuleset() {
+        SecurityGroupRulesCmd applied = rulesCmd(1, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.3/32", "10.1.1.4/32"), rule("tcp", 80, "0.0.0.0/0")},
+                new IpPortAndProto[0]);
+        SecurityGroupRulesCmd target = rulesCmd(2, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.3/32", "10.1.1.5/32")},
+                new IpPortAndProto[] {rule("udp", 53, "0.0.0.0/0")});
+
+        SecurityGroupRulesCmd merged = new SecurityGroupRulesDeltaCmd(applied, target).applyTo(applied);
+
+        assertEquals(Long.valueOf(2), merged.getSeqNum());
+        assertEquals(target.getSignature(), merged.getSignature());
+        assertEquals(target.stringifyRules(), merged.stringifyRules());
+    }
+
+    @Test
+    public void testStringifiedDeltaRules() {
+        SecurityGroupRulesCmd applied = rulesCmd(1, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.3/32", "10.1.1.4/32")}, new IpPortAndProto[0]);
+        SecurityGroupRulesCmd target = rulesCmd(2, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.3/32", "10.1.1.5/32")},
+                new IpPortAndProto[] {rule("udp", 53, "0.0.0.0/0")});
+
+        SecurityGroupRulesDeltaCmd delta = new SecurityGroupRulesDeltaCmd(applied, target);
+
+        assertEquals("I:tcp:22:22:10.1.1.5/32,NEXT E:udp:53:53:0.0.0.0/0,NEXT ", delta.stringifyAddedRules());
+        assertEquals("I:tcp:22:22:10.1.1.4/32,NEXT ", delta.stringifyRevokedRules());
+    }
+
+    @Test
+    public void testApplyToOtherRulesetIsRefused() {
+        SecurityGroupRulesCmd applied = rulesCmd(1, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.3/32")}, new IpPortAndProto[0]);
+        SecurityGroupRulesCmd target = rulesCmd(2, new IpPortAndProto[0], new IpPortAndProto[0]);
+        SecurityGroupRulesDeltaCmd delta = new SecurityGroupRulesDeltaCmd(applied, target);
+
+        assertNull(delta.applyTo(rulesCmd(3, new IpPortAndProto[0], new IpPortAndProto[0])));
+        assertNull(delta.applyTo(null));
+    }
+
+    @Test
+    public void testUnchangedRulesetGivesEmptyDelta() {
+        SecurityGroupRulesCmd applied = rulesCmd(1, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.3/32")}, new IpPortAndProto[0]);
+        SecurityGroupRulesCmd target = rulesCmd(2, new IpPortAndProto[] {rule("tcp", 22, "10.1.1.3/32")}, new IpPortAndProto[0]);
+
+        SecurityGroupRulesDeltaCmd delta = new SecurityGroupRulesDeltaCmd(applied, target);
+
+        assertTrue(delta.isEmpty());
+        assertEquals(0, delta.getNumChangedRules());
+    }
+}
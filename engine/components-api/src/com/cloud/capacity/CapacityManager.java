@@ -106,4 +106,10 @@ public interface CapacityManager {
     long getUsedBytes(StoragePoolVO pool);
 
     long getUsedIops(StoragePoolVO pool);
+
+    /**
+     * @return the in-memory host capacity snapshot kept up to date by this manager; allocators may use it
+     * to screen candidate hosts, but must confirm the chosen host with checkIfHostHasCapacity()
+     */
+    HostCapacitySnapshot getHostCapacitySnapshot();
 }
@@ -0,0 +1,303 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory, versioned view of host compute capacity and of the cluster
+ * overcommit ratios used to evaluate it.
+ *
+ * The snapshot is fed by the capacity manager whenever it reads the
+ * op_host_capacity rows, and adjusted by the changes it commits to them, so
+ * allocators can screen a large list of candidate hosts without going to the
+ * database for every one of them. It may miss changes committed by another
+ * management server: the hosts an allocator returns must still be checked
+ * against the database.
+ */
+public class HostCapacitySnapshot {
+
+    /**
+     * Cluster overcommit ratios older than this are considered stale and
+     * re-read from cluster_details by the caller.
+     */
+    public static final long DEFAULT_CLUSTER_RATIO_TTL_MS = 60 * 1000L;
+
+    private final ConcurrentHashMap<Long, HostCapacity> _hosts = new ConcurrentHashMap<Long, HostCapacity>();
+    private final ConcurrentHashMap<Long, ClusterOvercommit> _clusters = new ConcurrentHashMap<Long, ClusterOvercommit>();
+    private final AtomicLong _version = new AtomicLong();
+    private final long _clusterRatioTtl;
+
+    public HostCapacitySnapshot() {
+        this(DEFAULT_CLUSTER_RATIO_TTL_MS);
+    }
+
+    public HostCapacitySnapshot(long clusterRatioTtl) {
+        _clusterRatioTtl = clusterRatioTtl;
+    }
+
+    /**
+     * Immutable CPU/RAM capacity of a single host, as last seen in op_host_capacity.
+     */
+    public static class HostCapacity {
+        private final long _hostId;
+        private final Long _clusterId;
+        private final long _totalCpu;
+        private final long _usedCpu;
+        private final long _reservedCpu;
+        private final long _totalMemory;
+        private final long _usedMemory;
+        private final long _reservedMemory;
+        private final Boolean _gpuEnabled;
+        private final long _version;
+
+        HostCapacity(long hostId, Long clusterId, long totalCpu, long usedCpu, long reservedCpu, long totalMemory, long usedMemory, long reservedMemory,
+            Boolean gpuEnabled, long version) {
+            _hostId = hostId;
+            _clusterId = clusterId;
+            _totalCpu = totalCpu;
+            _usedCpu = usedCpu;
+            _reservedCpu = reservedCpu;
+            _totalMemory = totalMemory;
+            _usedMemory = usedMemory;
+            _reservedMemory = reservedMemory;
+            _gpuEnabled = gpuEnabled;
+            _version = version;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public Long getClusterId() {
+            return _clusterId;
+        }
+
+        public long getTotalCpu() {
+            return _totalCpu;
+        }
+
+        public long getUsedCpu() {
+            return _usedCpu;
+        }
+
+        public long getReservedCpu() {
+            return _reservedCpu;
+        }
+
+        public long getTotalMemory() {
+            return _totalMemory;
+        }
+
+        public long getUsedMemory() {
+            return _usedMemory;
+        }
+
+        public long getReservedMemory() {
+            return _reservedMemory;
+        }
+
+        /**
+         * @return whether the host has GPU devices, or null if the snapshot has not learnt it yet
+         */
+        public Boolean isGpuEnabled() {
+            return _gpuEnabled;
+        }
+
+        public long getVersion() {
+            return _version;
+        }
+
+        /**
+         * Same arithmetic as CapacityManager.checkIfHostHasCapacity(), applied to the cached values.
+         */
+        public boolean hasCapacity(long cpu, long ram, float cpuOvercommitRatio, float memoryOvercommitRatio, boolean considerReservedCapacity) {
+            long totalCpu = (long)(_totalCpu * cpuOvercommitRatio);
+            long totalMem = (long)(_totalMemory * memoryOvercommitRatio);
+            long reservedCpu = considerReservedCapacity ? _reservedCpu : 0;
+            long reservedMem = considerReservedCapacity ? _reservedMemory : 0;
+            return (reservedCpu + _usedCpu + cpu <= totalCpu) && (reservedMem + _usedMemory + ram <= totalMem);
+        }
+
+        @Override
+        public String toString() {
+            return "HostCapacity[host=" + _hostId + ", cpu=" + _usedCpu + "/" + _reservedCpu + "/" + _totalCpu + ", mem=" + _usedMemory + "/" + _reservedMemory + "/" +
+                _totalMemory + ", v=" + _version + "]";
+        }
+    }
+
+    /**
+     * Overcommit ratios of a cluster, time-stamped so callers can refresh them.
+     */
+    public static class ClusterOvercommit {
+        private final float _cpuOvercommitRatio;
+        private final float _memoryOvercommitRatio;
+        private final long _loadedAt;
+
+        public ClusterOvercommit(float cpuOvercommitRatio, float memoryOvercommitRatio, long loadedAt) {
+            _cpuOvercommitRatio = cpuOvercommitRatio;
+            _memoryOvercommitRatio = memoryOvercommitRatio;
+            _loadedAt = loadedAt;
+        }
+
+        public float getCpuOvercommitRatio() {
+            return _cpuOvercommitRatio;
+        }
+
+        public float getMemoryOvercommitRatio() {
+            return _memoryOvercommitRatio;
+        }
+
+        public long getLoadedAt() {
+            return _loadedAt;
+        }
+    }
+
+    /**
+     * @return monotonically increasing version, bumped on every change to the snapshot
+     */
+    public long getVersion() {
+        return _version.get();
+    }
+
+    public boolean isEmpty() {
+        return _hosts.isEmpty();
+    }
+
+    public HostCapacity getHost(long hostId) {
+        return _hosts.get(hostId);
+    }
+
+    public void updateHost(long hostId, Long clusterId, long totalCpu, long usedCpu, long reservedCpu, long totalMemory, long usedMemory, long reservedMemory) {
+        HostCapacity current = _hosts.get(hostId);
+        Boolean gpuEnabled = current != null ? current.isGpuEnabled() : null;
+        putHost(hostId, clusterId, totalCpu, usedCpu, reservedCpu, totalMemory, usedMemory, reservedMemory, gpuEnabled);
+    }
+
+    public void updateHost(long hostId, Long clusterId, long totalCpu, long usedCpu, long reservedCpu, long totalMemory, long usedMemory, long reservedMemory,
+        Boolean gpuEnabled) {
+        putHost(hostId, clusterId, totalCpu, usedCpu, reservedCpu, totalMemory, usedMemory, reservedMemory, gpuEnabled);
+    }
+
+    /**
+     * Records whether the host has GPU devices, for hosts already in the snapshot.
+     */
+    public void updateGpuEnabled(long hostId, boolean gpuEnabled) {
+        HostCapacity current = _hosts.get(hostId);
+        if (current != null) {
+            putHost(hostId, current.getClusterId(), current.getTotalCpu(), current.getUsedCpu(), current.getReservedCpu(), current.getTotalMemory(),
+                current.getUsedMemory(), current.getReservedMemory(), gpuEnabled);
+        }
+    }
+
+    /**
+     * Updates a host from its CPU and memory capacity rows, as they are written to
+     * or read from op_host_capacity. Rows that do not belong to the same host are ignored.
+     */
+    public void updateHost(CapacityVO cpuCapacity, CapacityVO memoryCapacity) {
+        if (cpuCapacity == null || memoryCapacity == null || cpuCapacity.getHostOrPoolId() == null ||
+            !cpuCapacity.getHostOrPoolId().equals(memoryCapacity.getHostOrPoolId())) {
+            return;
+        }
+        updateHost(cpuCapacity.getHostOrPoolId(), cpuCapacity.getClusterId(), cpuCapacity.getTotalCapacity(), cpuCapacity.getUsedCapacity(),
+            cpuCapacity.getReservedCapacity(), memoryCapacity.getTotalCapacity(), memoryCapacity.getUsedCapacity(), memoryCapacity.getReservedCapacity());
+    }
+
+    /**
+     * Applies a committed change of the used and reserved capacity of a host. Changes are
+     * added to what the snapshot holds, so they can be applied in any order. Hosts not in
+     * the snapshot are left for the next read of op_host_capacity.
+     */
+    public void adjustHost(long hostId, long usedCpuDelta, long reservedCpuDelta, long usedMemoryDelta, long reservedMemoryDelta) {
+        while (true) {
+            HostCapacity current = _hosts.get(hostId);
+            if (current == null) {
+                return;
+            }
+            HostCapacity adjusted = new HostCapacity(hostId, current.getClusterId(), current.getTotalCpu(), Math.max(0, current.getUsedCpu() + usedCpuDelta),
+                Math.max(0, current.getReservedCpu() + reservedCpuDelta), current.getTotalMemory(), Math.max(0, current.getUsedMemory() + usedMemoryDelta),
+                Math.max(0, current.getReservedMemory() + reservedMemoryDelta), current.isGpuEnabled(), _version.incrementAndGet());
+            if (_hosts.replace(hostId, current, adjusted)) {
+                return;
+            }
+        }
+    }
+
+    private void putHost(long hostId, Long clusterId, long totalCpu, long usedCpu, long reservedCpu, long totalMemory, long usedMemory, long reservedMemory,
+        Boolean gpuEnabled) {
+        long version = _version.incrementAndGet();
+        _hosts.put(hostId, new HostCapacity(hostId, clusterId, totalCpu, usedCpu, reservedCpu, totalMemory, usedMemory, reservedMemory, gpuEnabled, version));
+    }
+
+    public void removeHost(long hostId) {
+        if (_hosts.remove(hostId) != null) {
+            _version.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the cached overcommit ratios of the cluster, or null if unknown or stale
+     */
+    public ClusterOvercommit getClusterOvercommit(long clusterId) {
+        ClusterOvercommit ratios = _clusters.get(clusterId);
+        if (ratios == null || System.currentTimeMillis() - ratios.getLoadedAt() > _clusterRatioTtl) {
+            return null;
+        }
+        return ratios;
+    }
+
+    public void updateClusterOvercommit(long clusterId, float cpuOvercommitRatio, float memoryOvercommitRatio) {
+        _clusters.put(clusterId, new ClusterOvercommit(cpuOvercommitRatio, memoryOvercommitRatio, System.currentTimeMillis()));
+        _version.incrementAndGet();
+    }
+
+    public void invalidateCluster(long clusterId) {
+        if (_clusters.remove(clusterId) != null) {
+            _version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Lists the hosts of a cluster that, according to the snapshot, can fit the requested
+     * CPU and RAM without touching reserved capacity, like CapacityDao.listHostsWithEnoughCapacity().
+     * Returns null when the cluster's ratios are not known, so the caller can fall back to the
+     * database. Hosts that the capacity manager has not seen yet are not listed.
+     */
+    public List<Long> listHostsWithEnoughCapacity(long clusterId, long cpu, long ram) {
+        ClusterOvercommit ratios = getClusterOvercommit(clusterId);
+        if (ratios == null) {
+            return null;
+        }
+        List<Long> hostIds = new ArrayList<Long>();
+        for (HostCapacity host : _hosts.values()) {
+            if (host.getClusterId() != null && host.getClusterId() == clusterId &&
+                host.hasCapacity(cpu, ram, ratios.getCpuOvercommitRatio(), ratios.getMemoryOvercommitRatio(), false)) {
+                hostIds.add(host.getHostId());
+            }
+        }
+        return hostIds;
+    }
+
+    public void clear() {
+        _hosts.clear();
+        _clusters.clear();
+        _version.incrementAndGet();
+    }
+}
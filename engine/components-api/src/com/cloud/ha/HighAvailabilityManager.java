@@ -18,6 +18,8 @@ package com.cloud.ha;
 
 import java.util.List;
 
+import org.apache.cloudstack.framework.config.ConfigKey;
+
 import com.cloud.deploy.DeploymentPlanner;
 import com.cloud.host.HostVO;
 import com.cloud.host.Status;
@@ -28,6 +30,15 @@ import com.cloud.vm.VMInstanceVO;
  * HighAvailabilityManager checks to make sure the VMs are running fine.
  */
 public interface HighAvailabilityManager extends Manager {
+
+    static final ConfigKey<Integer> InvestigationTimeout = new ConfigKey<Integer>("Advanced", Integer.class, "ha.investigation.timeout", "0",
+        "Time in seconds the investigators get to determine the state of a host or VM. If greater than 0 the investigators are asked in parallel, "
+            + "if 0 they are asked one after the other without a time limit", true);
+
+    static final ConfigKey<Integer> MaxConcurrentStartsPerCluster = new ConfigKey<Integer>("Advanced", Integer.class, "ha.max.concurrent.starts.per.cluster", "0",
+        "Maximum number of VMs of failed hosts in the same cluster that are restarted at the same time by each management server, "
+            + "so up to this value times the number of management servers in total, 0 for no limit", true);
+
     public enum WorkType {
         Migration,  // Migrating VMs off of a host.
         Stop,       // Stops a VM for storage pool migration purposes.  This should be obsolete now.
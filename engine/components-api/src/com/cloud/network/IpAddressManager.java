@@ -43,6 +43,10 @@ public interface IpAddressManager {
         "If true, when account has dedicated public ip range(s), once the ips dedicated to the account have been consumed ips will be acquired from the system pool",
         true, ConfigKey.Scope.Account);
 
+    static final ConfigKey<Integer> PublicIpReservationBatchSize = new ConfigKey<Integer>("Advanced", Integer.class, "public.ip.reservation.batch.size", "32",
+        "Number of free public IPs a management server reserves at a time per set of VLAN ranges. Allocations take a reserved IP with a conditional update instead of locking the first free row, 0 disables the reservation",
+        true);
+
     /**
      * Assigns a new public ip address.
      *
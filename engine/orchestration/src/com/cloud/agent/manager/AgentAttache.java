@@ -18,18 +18,18 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.log4j.Logger;
@@ -42,8 +42,10 @@ import com.cloud.agent.api.CheckOnHostCommand;
 import com.cloud.agent.api.CheckVirtualMachineCommand;
 import com.cloud.agent.api.CleanupNetworkRulesCmd;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.HostVmStateReportEntry;
 import com.cloud.agent.api.MaintainCommand;
 import com.cloud.agent.api.MigrateCommand;
+import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.PingTestCommand;
 import com.cloud.agent.api.PvlanSetupCommand;
 import com.cloud.agent.api.ReadyCommand;
@@ -58,6 +60,7 @@ import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.OperationTimedoutException;
 import com.cloud.host.Status;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.concurrency.TimerWheel;
 
 /**
  *  AgentAttache provides basic commands to be implemented.
@@ -65,49 +68,30 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
 public abstract class AgentAttache {
     private static final Logger s_logger = Logger.getLogger(AgentAttache.class);
 
-    private static final ScheduledExecutorService s_listenerExecutor = Executors.newScheduledThreadPool(10, new NamedThreadFactory("ListenerTimer"));
+    // most listeners get their answer long before the timeout, the wheel makes adding and cancelling the alarm cheap
+    private static final TimerWheel s_listenerTimer = new TimerWheel("ListenerTimer", 100, TimeUnit.MILLISECONDS, 1024, Executors.newFixedThreadPool(4,
+            new NamedThreadFactory("ListenerTimeout")));
     private static final Random s_rand = new Random(System.currentTimeMillis());
 
-    protected static final Comparator<Request> s_reqComparator = new Comparator<Request>() {
-        @Override
-        public int compare(final Request o1, final Request o2) {
-            long seq1 = o1.getSequence();
-            long seq2 = o2.getSequence();
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
-    protected static final Comparator<Object> s_seqComparator = new Comparator<Object>() {
-        @Override
-        public int compare(final Object o1, final Object o2) {
-            long seq1 = ((Request)o1).getSequence();
-            long seq2 = (Long)o2;
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
     protected final long _id;
     protected String _name = null;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
-    protected final LinkedList<Request> _requests;
-    protected Long _currentSequence;
+    protected final ConcurrentHashMap<Long, TimerWheel.Timeout> _timeouts;
+    // requests waiting for the current sequence to finish, ordered by sequence
+    protected final ConcurrentSkipListMap<Long, Request> _requests;
+    // size of _requests, which the skip list can only count by walking it
+    private final AtomicInteger _requestCount = new AtomicInteger();
+    protected volatile Long _currentSequence;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
-    protected long _nextSequence;
+    protected final AtomicLong _nextSequence;
+    protected volatile Request.Version _wireVersion = Request.Version.v1;
+    // last complete VM state report of the host, the base of the deltas the agent sends
+    protected Map<String, HostVmStateReportEntry> _vmStateReport;
+    protected long _vmStateReportSequence;
 
     protected AgentManagerImpl _agentMgr;
+    private final Object _vmStateReportLock = new Object();
 
     public final static String[] s_commandsAllowedInMaintenanceMode = new String[] {MaintainCommand.class.toString(), MigrateCommand.class.toString(),
         StopCommand.class.toString(), CheckVirtualMachineCommand.class.toString(), PingTestCommand.class.toString(), CheckHealthCommand.class.toString(),
@@ -123,15 +107,16 @@ public abstract class AgentAttache {
         _id = id;
         _name = name;
         _waitForList = new ConcurrentHashMap<Long, Listener>();
+        _timeouts = new ConcurrentHashMap<Long, TimerWheel.Timeout>();
         _currentSequence = null;
         _maintenance = maintenance;
-        _requests = new LinkedList<Request>();
+        _requests = new ConcurrentSkipListMap<Long, Request>();
         _agentMgr = agentMgr;
-        _nextSequence = new Long(s_rand.nextInt(Short.MAX_VALUE)).longValue() << 48;
+        _nextSequence = new AtomicLong(new Long(s_rand.nextInt(Short.MAX_VALUE)).longValue() << 48);
     }
 
-    public synchronized long getNextSequence() {
-        return ++_nextSequence;
+    public long getNextSequence() {
+        return _nextSequence.incrementAndGet();
     }
 
     public synchronized void setMaintenanceMode(final boolean value) {
@@ -176,10 +161,32 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void addRequest(final Request req) {
-        int index = findRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _requests.add(-index - 1, req);
+    protected void addRequest(final Request req) {
+        final Request old = _requests.putIfAbsent(req.getSequence(), req);
+        assert (old == null) : "How can we get the same sequence again? " + req.toString();
+        if (old == null) {
+            _requestCount.incrementAndGet();
+        }
+    }
+
+    protected void removeRequest(final long seq) {
+        if (_requests.remove(seq) != null) {
+            _requestCount.decrementAndGet();
+        }
+    }
+
+    protected Map.Entry<Long, Request> pollFirstRequest() {
+        final Map.Entry<Long, Request> first = _requests.pollFirstEntry();
+        if (first != null) {
+            _requestCount.decrementAndGet();
+        }
+        return first;
+    }
+
+    protected void clearRequests() {
+        while (pollFirstRequest() != null) {
+            // one by one, so _requestCount stays in step with the map
+        }
     }
 
     protected void cancel(final Request req) {
@@ -187,26 +194,19 @@ public abstract class AgentAttache {
         cancel(seq);
     }
 
-    protected synchronized void cancel(final long seq) {
+    protected void cancel(final long seq) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(seq, "Cancelling."));
         }
-        final Listener listener = _waitForList.remove(seq);
+        final Listener listener = unregisterListener(seq);
         if (listener != null) {
             listener.processDisconnect(_id, Status.Disconnected);
         }
-        int index = findRequest(seq);
-        if (index >= 0) {
-            _requests.remove(index);
-        }
+        removeRequest(seq);
     }
 
-    protected synchronized int findRequest(final Request req) {
-        return Collections.binarySearch(_requests, req, s_reqComparator);
-    }
-
-    protected synchronized int findRequest(final long seq) {
-        return Collections.binarySearch(_requests, seq, s_seqComparator);
+    protected Request findRequest(final long seq) {
+        return _requests.get(seq);
     }
 
     protected String log(final long seq, final String msg) {
@@ -217,16 +217,20 @@ public abstract class AgentAttache {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace(log(seq, "Registering listener"));
         }
+        _waitForList.put(seq, listener);
         if (listener.getTimeout() != -1) {
-            s_listenerExecutor.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS);
+            _timeouts.put(seq, s_listenerTimer.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS));
         }
-        _waitForList.put(seq, listener);
     }
 
     protected Listener unregisterListener(final long sequence) {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace(log(sequence, "Unregistering listener"));
         }
+        final TimerWheel.Timeout timeout = _timeouts.remove(sequence);
+        if (timeout != null) {
+            timeout.cancel();
+        }
         return _waitForList.remove(sequence);
     }
 
@@ -242,8 +246,59 @@ public abstract class AgentAttache {
         return _name;
     }
 
+    /**
+     * @return the wire format negotiated with the agent, used for the requests sent to it
+     */
+    public Request.Version getWireVersion() {
+        return _wireVersion;
+    }
+
+    public void setWireVersion(final Request.Version wireVersion) {
+        _wireVersion = wireVersion;
+    }
+
+    /**
+     * Expands a delta VM state report in the ping into the complete report of the host, so
+     * that listeners always see complete reports.
+     *
+     * @return false if the delta is not relative to the last report applied here, in which
+     *         case the report is dropped from the ping and the agent has to send a complete one
+     */
+    public boolean applyVmStateReport(final PingRoutingCommand ping) {
+        if (ping.getReportSequence() == 0) {
+            return true;
+        }
+
+        synchronized (_vmStateReportLock) {
+            if (!ping.isDelta()) {
+                _vmStateReport = ping.getHostVmStateReport() != null ? ping.getHostVmStateReport() : new HashMap<String, HostVmStateReportEntry>();
+                _vmStateReportSequence = ping.getReportSequence();
+                return true;
+            }
+
+            if (_vmStateReport == null || ping.getBaseReportSequence() != _vmStateReportSequence) {
+                ping.setHostVmStateReport(null);
+                return false;
+            }
+
+            final Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>(_vmStateReport);
+            if (ping.getHostVmStateReport() != null) {
+                report.putAll(ping.getHostVmStateReport());
+            }
+            if (ping.getRemovedVms() != null) {
+                for (final String vmName : ping.getRemovedVms()) {
+                    report.remove(vmName);
+                }
+            }
+            _vmStateReport = report;
+            _vmStateReportSequence = ping.getReportSequence();
+            ping.setHostVmStateReport(report);
+            return true;
+        }
+    }
+
     public int getQueueSize() {
-        return _requests.size();
+        return _requestCount.get();
     }
 
     public int getNonRecurringListenersSize() {
@@ -314,6 +369,10 @@ public abstract class AgentAttache {
             while (it.hasNext()) {
                 final Map.Entry<Long, Listener> entry = it.next();
                 it.remove();
+                final TimerWheel.Timeout timeout = _timeouts.remove(entry.getKey());
+                if (timeout != null) {
+                    timeout.cancel();
+                }
                 final Listener monitor = entry.getValue();
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug(log(entry.getKey(), "Sending disconnect to " + monitor.getClass()));
@@ -325,7 +384,7 @@ public abstract class AgentAttache {
 
     public void cleanup(final Status state) {
         cancelAllCommands(state, true);
-        _requests.clear();
+        clearRequests();
     }
 
     @Override
@@ -352,39 +411,47 @@ public abstract class AgentAttache {
             s_logger.debug(log(seq, "Routed from " + req.getManagementServerId()));
         }
 
-        synchronized (this) {
-            try {
+        try {
+            if (req.executeInSequence()) {
+                sendInSequence(req);
+            } else {
+                // nothing to order this request against, so don't wait on the attache monitor
                 if (isClosed()) {
                     throw new AgentUnavailableException("The link to the agent " + _name + " has been closed", _id);
                 }
+                req.logD("Sending ", true);
+                send(req);
+            }
+        } catch (AgentUnavailableException e) {
+            s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
+            cancel(seq);
+            throw e;
+        } catch (Exception e) {
+            s_logger.warn(log(seq, "Unable to send due to "), e);
+            cancel(seq);
+            throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
+        }
+    }
 
-                if (req.executeInSequence() && _currentSequence != null) {
-                    req.logD("Waiting for Seq " + _currentSequence + " Scheduling: ", true);
-                    addRequest(req);
-                    return;
-                }
+    protected synchronized void sendInSequence(final Request req) throws AgentUnavailableException {
+        if (isClosed()) {
+            throw new AgentUnavailableException("The link to the agent " + _name + " has been closed", _id);
+        }
+
+        if (_currentSequence != null) {
+            req.logD("Waiting for Seq " + _currentSequence + " Scheduling: ", true);
+            addRequest(req);
+            return;
+        }
 
-                // If we got to here either we're not suppose to set
-                // the _currentSequence or it is null already.
+        // If we got to here the _currentSequence is null already.
 
-                req.logD("Sending ", true);
-                send(req);
+        req.logD("Sending ", true);
+        send(req);
 
-                if (req.executeInSequence() && _currentSequence == null) {
-                    _currentSequence = seq;
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace(log(seq, " is current sequence"));
-                    }
-                }
-            } catch (AgentUnavailableException e) {
-                s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
-                cancel(seq);
-                throw e;
-            } catch (Exception e) {
-                s_logger.warn(log(seq, "Unable to send due to "), e);
-                cancel(seq);
-                throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
-            }
+        _currentSequence = req.getSequence();
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace(log(req.getSequence(), " is current sequence"));
         }
     }
 
@@ -457,14 +524,15 @@ public abstract class AgentAttache {
 
     protected synchronized void sendNext(final long seq) {
         _currentSequence = null;
-        if (_requests.isEmpty()) {
+        final Map.Entry<Long, Request> next = pollFirstRequest();
+        if (next == null) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(log(seq, "No more commands found"));
             }
             return;
         }
 
-        Request req = _requests.pop();
+        final Request req = next.getValue();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(req.getSequence(), "Sending now.  is current sequence."));
         }
@@ -171,7 +171,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     private int _directAgentThreadCap;
 
     protected StateMachine2<Status, Status.Event, Host> _statusStateMachine = Status.getStateMachine();
-    private final ConcurrentHashMap<Long, Long> _pingMap = new ConcurrentHashMap<Long, Long>(10007);
+    private final AgentPingMap _pingMap = new AgentPingMap();
 
     @Inject
     ResourceManager _resourceMgr;
@@ -198,6 +198,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             "false",
             "This parameter allows developers to enable a check to see if a transaction wraps commands that are sent to the resource.  This is not to be enabled on production systems.",
             true);
+    protected final ConfigKey<Boolean> BinaryWireFormat = new ConfigKey<Boolean>("Advanced", Boolean.class, "agent.binary.wire.format", "false",
+            "Exchange commands with agents that support it in a compact binary format instead of JSON, takes effect when an agent connects", true);
 
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
@@ -450,6 +452,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         final Request req = new Request(hostId, agent.getName(), _nodeId, cmds, commands.stopOnError(), true);
         req.setSequence(agent.getNextSequence());
+        // only requests made here take the version of the attache, forwarded ones keep the version of their sender
+        req.setVersion(agent.getWireVersion());
         final Answer[] answers = agent.send(req, timeout);
         notifyAnswersToMonitors(hostId, req.getSequence(), answers);
         commands.setAnswers(answers);
@@ -500,6 +504,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         final Request req = new Request(hostId, agent.getName(), _nodeId, cmds, commands.stopOnError(), true);
         req.setSequence(agent.getNextSequence());
+        // only requests made here take the version of the attache, forwarded ones keep the version of their sender
+        req.setVersion(agent.getWireVersion());
 
         agent.send(req, listener);
         return req.getSequence();
@@ -603,6 +609,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         }
 
         _monitorExecutor.scheduleWithFixedDelay(new MonitorTask(), PingInterval.value(), PingInterval.value(), TimeUnit.SECONDS);
+        _monitorExecutor.scheduleWithFixedDelay(new PingSaveTask(), PingInterval.value(), PingInterval.value(), TimeUnit.SECONDS);
 
         return true;
     }
@@ -1047,6 +1054,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             if (host != null) {
                 ready = new ReadyCommand(host.getDataCenterId(), host.getId());
                 attache = createAttacheForConnect(host, link);
+                attache.setWireVersion(negotiateWireVersion(startup[0]));
                 attache = notifyMonitorsOfConnection(attache, startup, false);
             }
         } catch (final Exception e) {
@@ -1072,6 +1080,17 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         return attache;
     }
 
+    /**
+     * Picks the wire format for a connecting agent: the binary one if it is enabled and the
+     * agent advertises it, JSON otherwise. Older agents don't advertise anything and keep JSON.
+     */
+    protected Request.Version negotiateWireVersion(final StartupCommand startup) {
+        if (BinaryWireFormat.value() && startup.getWireVersion() >= Request.Version.v4.ordinal()) {
+            return Request.Version.v4;
+        }
+        return Request.Version.v1;
+    }
+
     protected class SimulateStartTask extends ManagedContextRunnable {
         ServerResource resource;
         Map<String, String> details;
@@ -1147,6 +1166,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             if (cmd instanceof StartupRoutingCommand || cmd instanceof StartupProxyCommand || cmd instanceof StartupSecondaryStorageCommand ||
                     cmd instanceof StartupStorageCommand) {
                 answers[i] = new StartupAnswer((StartupCommand)cmds[i], 0, getPingInterval());
+                answers[i].setWireVersion(negotiateWireVersion((StartupCommand)cmds[i]).ordinal());
                 break;
             }
         }
@@ -1230,6 +1250,10 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                     } else if (cmd instanceof AgentControlCommand) {
                         answer = handleControlCommand(attache, (AgentControlCommand)cmd);
                     } else {
+                        boolean vmStateReportApplied = true;
+                        if (cmd instanceof PingRoutingCommand) {
+                            vmStateReportApplied = attache.applyVmStateReport((PingRoutingCommand)cmd);
+                        }
                         handleCommands(attache, request.getSequence(), new Command[] {cmd});
                         if (cmd instanceof PingCommand) {
                             final long cmdHostId = ((PingCommand)cmd).getHostId();
@@ -1260,7 +1284,12 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                                             "; can't find the host in the DB");
                                 }
                             }
-                            answer = new PingAnswer((PingCommand)cmd);
+                            if (cmd instanceof PingRoutingCommand) {
+                                final long reportSequence = vmStateReportApplied ? ((PingRoutingCommand)cmd).getReportSequence() : 0;
+                                answer = new PingAnswer((PingCommand)cmd, reportSequence, !vmStateReportApplied);
+                            } else {
+                                answer = new PingAnswer((PingCommand)cmd);
+                            }
                         } else if (cmd instanceof ReadyAnswer) {
                             final HostVO host = _hostDao.findById(attache.getId());
                             if (host == null) {
@@ -1510,7 +1539,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
     public void pingBy(final long agentId) {
         // Update PingMap with the latest time if agent entry exists in the PingMap
-        if (_pingMap.replace(agentId, InaccurateClock.getTimeInSeconds()) == null) {
+        if (!_pingMap.ping(agentId, InaccurateClock.getTimeInSeconds(), System.currentTimeMillis() >> 10)) {
             s_logger.info("PingMap for agent: " + agentId + " will not be updated because agent is no longer in the PingMap");
         }
     }
@@ -1522,31 +1551,27 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
             try {
                 final List<Long> behindAgents = findAgentsBehindOnPing();
-                for (final Long agentId : behindAgents) {
-                    final QueryBuilder<HostVO> sc = QueryBuilder.create(HostVO.class);
-                    sc.and(sc.entity().getId(), Op.EQ, agentId);
-                    final HostVO h = sc.find();
-                    if (h != null) {
-                        final ResourceState resourceState = h.getResourceState();
-                        if (resourceState == ResourceState.Disabled || resourceState == ResourceState.Maintenance || resourceState == ResourceState.ErrorInMaintenance) {
-                            /*
-                             * Host is in non-operation state, so no
-                             * investigation and direct put agent to
-                             * Disconnected
-                             */
-                            status_logger.debug("Ping timeout but host " + agentId + " is in resource state of " + resourceState + ", so no investigation");
+                final List<HostVO> behindHosts = _hostDao.listByIds(behindAgents);
+                for (final HostVO host : behindHosts) {
+                    final long agentId = host.getId();
+                    final ResourceState resourceState = host.getResourceState();
+                    if (resourceState == ResourceState.Disabled || resourceState == ResourceState.Maintenance || resourceState == ResourceState.ErrorInMaintenance) {
+                        /*
+                         * Host is in non-operation state, so no
+                         * investigation and direct put agent to
+                         * Disconnected
+                         */
+                        status_logger.debug("Ping timeout but host " + agentId + " is in resource state of " + resourceState + ", so no investigation");
+                        disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
+                    } else {
+                        if (host.getType() == Host.Type.ConsoleProxy || host.getType() == Host.Type.SecondaryStorageVM
+                                || host.getType() == Host.Type.SecondaryStorageCmdExecutor) {
+
+                            s_logger.warn("Disconnect agent for CPVM/SSVM due to physical connection close. host: " + agentId);
                             disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
                         } else {
-                            final HostVO host = _hostDao.findById(agentId);
-                            if (host != null && (host.getType() == Host.Type.ConsoleProxy || host.getType() == Host.Type.SecondaryStorageVM
-                                    || host.getType() == Host.Type.SecondaryStorageCmdExecutor)) {
-
-                                s_logger.warn("Disconnect agent for CPVM/SSVM due to physical connection close. host: " + host.getId());
-                                disconnectWithoutInvestigation(agentId, Event.ShutdownRequested);
-                            } else {
-                                status_logger.debug("Ping timeout for host " + agentId + ", do invstigation");
-                                disconnectWithInvestigation(agentId, Event.PingTimeout);
-                            }
+                            status_logger.debug("Ping timeout for host " + agentId + ", do invstigation");
+                            disconnectWithInvestigation(agentId, Event.PingTimeout);
                         }
                     }
                 }
@@ -1572,13 +1597,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         }
 
         protected List<Long> findAgentsBehindOnPing() {
-            final List<Long> agentsBehind = new ArrayList<Long>();
             final long cutoffTime = InaccurateClock.getTimeInSeconds() - getTimeout();
-            for (final Map.Entry<Long, Long> entry : _pingMap.entrySet()) {
-                if (entry.getValue() < cutoffTime) {
-                    agentsBehind.add(entry.getKey());
-                }
-            }
+            final List<Long> agentsBehind = _pingMap.findBehind(cutoffTime);
 
             if (agentsBehind.size() > 0) {
                 s_logger.info("Found the following agents behind on ping: " + agentsBehind);
@@ -1588,6 +1608,38 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         }
     }
 
+    /**
+     * Saves the pings received since the last run, one update per ping time.
+     */
+    protected class PingSaveTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                // take the pings in between status transitions, but keep the DB round trip out of the lock
+                // so transitions don't wait on it; a transition racing the update fails its last_ping check
+                // the same way it did against the per-ping updates before
+                final Map<Long, List<Long>> pings;
+                _agentStatusLock.lock();
+                try {
+                    pings = _pingMap.drainUnsaved();
+                } finally {
+                    _agentStatusLock.unlock();
+                }
+                if (pings.isEmpty()) {
+                    return;
+                }
+                for (final Map.Entry<Long, List<Long>> entry : pings.entrySet()) {
+                    _hostDao.updateLastPinged(entry.getValue(), _nodeId, entry.getKey());
+                }
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Saved the pings of agents " + pings.values());
+                }
+            } catch (final Throwable th) {
+                s_logger.error("Caught the following exception: ", th);
+            }
+        }
+    }
+
     protected class BehindOnPingListener implements Listener {
         @Override
         public boolean isRecurring() {
@@ -1622,7 +1674,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             }
 
             // NOTE: We don't use pingBy here because we're initiating.
-            _pingMap.put(host.getId(), InaccurateClock.getTimeInSeconds());
+            _pingMap.add(host.getId(), InaccurateClock.getTimeInSeconds());
         }
 
         @Override
@@ -1650,7 +1702,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {CheckTxnBeforeSending, Workers, Port, PingInterval, PingTimeout, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize, DirectAgentThreadCap};
+        return new ConfigKey<?>[] {CheckTxnBeforeSending, Workers, Port, PingInterval, PingTimeout, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize, DirectAgentThreadCap,
+                BinaryWireFormat};
     }
 
 }
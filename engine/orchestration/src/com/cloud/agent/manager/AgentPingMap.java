@@ -0,0 +1,152 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Last ping of every agent connected to this management server.
+ *
+ * The pings are also kept in a time ordered skip list, so the agent monitor only
+ * walks the agents that are behind on ping instead of every connected agent, and the
+ * pings not written to the host table yet are collected so they can be saved with one
+ * update per ping time instead of one per agent.
+ */
+public class AgentPingMap {
+    private final ConcurrentHashMap<Long, Long> _pings = new ConcurrentHashMap<Long, Long>(10007);
+    private final ConcurrentSkipListSet<PingEntry> _byTime = new ConcurrentSkipListSet<PingEntry>();
+    private final ConcurrentHashMap<Long, Long> _unsaved = new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * Starts tracking the agent, for instance when it connects.
+     */
+    public void add(final long agentId, final long time) {
+        _pings.put(agentId, time);
+        _byTime.add(new PingEntry(time, agentId));
+    }
+
+    /**
+     * Records a ping from an agent that is already tracked.
+     *
+     * @param time ping time used to find agents behind on ping
+     * @param lastPinged ping time to be saved in the host table
+     * @return false if the agent is not tracked
+     */
+    public boolean ping(final long agentId, final long time, final long lastPinged) {
+        Long previous;
+        do {
+            previous = _pings.get(agentId);
+            if (previous == null) {
+                return false;
+            }
+        } while (!_pings.replace(agentId, previous, time));
+
+        // concurrent pings of the same agent may leave an outdated entry behind, findBehind() drops those
+        _byTime.remove(new PingEntry(previous, agentId));
+        _byTime.add(new PingEntry(time, agentId));
+        _unsaved.put(agentId, lastPinged);
+        return true;
+    }
+
+    public Long get(final long agentId) {
+        return _pings.get(agentId);
+    }
+
+    public void remove(final long agentId) {
+        final Long time = _pings.remove(agentId);
+        if (time != null) {
+            _byTime.remove(new PingEntry(time, agentId));
+        }
+        _unsaved.remove(agentId);
+    }
+
+    /**
+     * @return agents whose last ping is older than the cutoff time
+     */
+    public List<Long> findBehind(final long cutoffTime) {
+        final List<Long> behind = new ArrayList<Long>();
+        for (final PingEntry entry : _byTime.headSet(new PingEntry(cutoffTime, Long.MIN_VALUE))) {
+            final Long time = _pings.get(entry._agentId);
+            if (time == null || time != entry._time) {
+                _byTime.remove(entry);
+            } else {
+                behind.add(entry._agentId);
+            }
+        }
+        return behind;
+    }
+
+    /**
+     * Hands over the pings that have not been saved yet, grouped by ping time.
+     */
+    public Map<Long, List<Long>> drainUnsaved() {
+        final Map<Long, List<Long>> byTime = new HashMap<Long, List<Long>>();
+        for (final Map.Entry<Long, Long> entry : _unsaved.entrySet()) {
+            if (!_unsaved.remove(entry.getKey(), entry.getValue())) {
+                continue;
+            }
+            List<Long> agentIds = byTime.get(entry.getValue());
+            if (agentIds == null) {
+                agentIds = new ArrayList<Long>();
+                byTime.put(entry.getValue(), agentIds);
+            }
+            agentIds.add(entry.getKey());
+        }
+        return byTime;
+    }
+
+    public int size() {
+        return _pings.size();
+    }
+
+    private static class PingEntry implements Comparable<PingEntry> {
+        private final long _time;
+        private final long _agentId;
+
+        PingEntry(final long time, final long agentId) {
+            _time = time;
+            _agentId = agentId;
+        }
+
+        @Override
+        public int compareTo(final PingEntry other) {
+            if (_time != other._time) {
+                return _time < other._time ? -1 : 1;
+            }
+            return _agentId < other._agentId ? -1 : (_agentId == other._agentId ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof PingEntry)) {
+                return false;
+            }
+            final PingEntry other = (PingEntry)obj;
+            return _time == other._time && _agentId == other._agentId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)(_time ^ (_time >>> 32)) * 31 + (int)(_agentId ^ (_agentId >>> 32));
+        }
+    }
+}
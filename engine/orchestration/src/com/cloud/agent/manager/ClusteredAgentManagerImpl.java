@@ -17,6 +17,7 @@
 package com.cloud.agent.manager;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
@@ -46,6 +47,10 @@ import javax.net.ssl.SSLEngine;
 import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.jobs.AsyncJob;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
@@ -58,8 +63,10 @@ import com.cloud.agent.api.CancelCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateEntityCacheCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
+import com.cloud.agent.api.SyncQueueSignalCommand;
 import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Request.Version;
@@ -85,7 +92,10 @@ import com.cloud.host.Status.Event;
 import com.cloud.resource.ServerResource;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.EntityCacheListener;
+import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.QueryBuilder;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
@@ -104,12 +114,16 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     public final static long STARTUP_DELAY = 5000;
     public final static long SCAN_INTERVAL = 90000; // 90 seconds, it takes 60 sec for xenserver to fail login
     public final static int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 5; // 5 seconds
+    public final static int CACHE_INVALIDATION_RETRIES = 3;
+    public final static long CACHE_INVALIDATION_RETRY_INTERVAL = 1000; // 1 second
     protected Set<Long> _agentToTransferIds = new HashSet<Long>();
     Gson _gson;
     protected HashMap<String, SocketChannel> _peers;
     protected HashMap<String, SSLEngine> _sslEngines;
     private final Timer _timer = new Timer("ClusteredAgentManager Timer");
     boolean _agentLbHappened = false;
+    protected final CacheInvalidationCollector _cacheInvalidations = new CacheInvalidationCollector();
+    private final ScheduledExecutorService _cacheInvalidationExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Cluster-CacheInvalidation"));
 
     @Inject
     protected ClusterManager _clusterMgr = null;
@@ -123,6 +137,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     ConfigurationDao _configDao;
     @Inject
     ConfigDepot _configDepot;
+    @Inject
+    MessageBus _messageBus;
 
     protected ClusteredAgentManagerImpl() {
         super();
@@ -152,6 +168,19 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
         _gson = GsonHelper.getGson();
 
+        GenericDaoBase.setEntityCacheListener(new EntityCacheListener() {
+            @Override
+            public void invalidated(final String cacheName, final Serializable id) {
+                if (_cacheInvalidations.add(cacheName, id)) {
+                    try {
+                        _cacheInvalidationExecutor.execute(new CacheInvalidationTask());
+                    } catch (final RejectedExecutionException e) {
+                        s_logger.debug("Not sending entity cache invalidations as the management server is stopping");
+                    }
+                }
+            }
+        });
+
         return super.configure(name, xmlParams);
     }
 
@@ -171,6 +200,16 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             s_transferExecutor.scheduleAtFixedRate(getTransferScanTask(), 60000, ClusteredAgentRebalanceService.DEFAULT_TRANSFER_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
         }
 
+        // relay sync queue signals to the peer that owns the queue
+        _messageBus.subscribe(AsyncJob.Topics.JOB_QUEUE_PEER_SIGNAL, new MessageSubscriber() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onPublishMessage(final String senderAddress, final String subject, final Object args) {
+                final Pair<Long, Long> signal = (Pair<Long, Long>)args;
+                notifyNodeOfSyncQueueSignal(signal.first(), signal.second());
+            }
+        });
+
         return true;
     }
 
@@ -390,6 +429,135 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         _clusterMgr.broadcast(0, _gson.toJson(cmds));
     }
 
+    /**
+     * Collects the entities dropped from the local DAO caches so that the ones dropped while
+     * a broadcast is on its way go to the peers together in the next one.
+     */
+    protected static class CacheInvalidationCollector implements EntityCacheListener {
+        private Map<String, List<Long>> _entities = new HashMap<String, List<Long>>();
+        private Set<String> _clearedCaches = new HashSet<String>();
+
+        @Override
+        public void invalidated(final String cacheName, final Serializable id) {
+            add(cacheName, id);
+        }
+
+        /**
+         * @return true if nothing was waiting to be sent, so that a broadcast has to be started
+         */
+        public synchronized boolean add(final String cacheName, final Serializable id) {
+            final boolean first = _entities.isEmpty() && _clearedCaches.isEmpty();
+            if (_clearedCaches.contains(cacheName)) {
+                return first;
+            }
+            if (id instanceof Long) {
+                List<Long> ids = _entities.get(cacheName);
+                if (ids == null) {
+                    ids = new ArrayList<Long>();
+                    _entities.put(cacheName, ids);
+                }
+                ids.add((Long)id);
+            } else {
+                _entities.remove(cacheName);
+                _clearedCaches.add(cacheName);
+            }
+            return first;
+        }
+
+        public synchronized InvalidateEntityCacheCommand drain() {
+            if (_entities.isEmpty() && _clearedCaches.isEmpty()) {
+                return null;
+            }
+            final InvalidateEntityCacheCommand cmd = new InvalidateEntityCacheCommand(_entities, new ArrayList<String>(_clearedCaches));
+            _entities = new HashMap<String, List<Long>>();
+            _clearedCaches = new HashSet<String>();
+            return cmd;
+        }
+    }
+
+    /**
+     * Sends the collected invalidations to the peers and waits for them to be applied, the
+     * peers that don't answer are tried again a few times.
+     */
+    private class CacheInvalidationTask extends ManagedContextRunnable {
+        private String _cmds;
+        private List<String> _peers;
+        private final int _attempt;
+
+        CacheInvalidationTask() {
+            _attempt = 0;
+        }
+
+        CacheInvalidationTask(final String cmds, final List<String> peers, final int attempt) {
+            _cmds = cmds;
+            _peers = peers;
+            _attempt = attempt;
+        }
+
+        @Override
+        protected void runInContext() {
+            try {
+                if (_cmds == null) {
+                    final InvalidateEntityCacheCommand cmd = _cacheInvalidations.drain();
+                    if (cmd == null) {
+                        return;
+                    }
+                    _cmds = _gson.toJson(new Command[] {cmd});
+                    _peers = getPeers();
+                }
+
+                final List<String> failedPeers = new ArrayList<String>();
+                for (final String peer : _peers) {
+                    String answer = null;
+                    try {
+                        answer = _clusterMgr.execute(peer, 0, _cmds, true);
+                    } catch (final Exception e) {
+                        s_logger.debug("Unable to send entity cache invalidations to management server " + peer, e);
+                    }
+                    if (answer == null) {
+                        failedPeers.add(peer);
+                    }
+                }
+                if (failedPeers.isEmpty()) {
+                    return;
+                }
+
+                if (_attempt < CACHE_INVALIDATION_RETRIES) {
+                    _cacheInvalidationExecutor.schedule(new CacheInvalidationTask(_cmds, failedPeers, _attempt + 1), CACHE_INVALIDATION_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                } else {
+                    s_logger.warn("Unable to send entity cache invalidations to management servers " + failedPeers +
+                            ", the entities they have cached expire after the time to live of their caches: " + _cmds);
+                }
+            } catch (final RejectedExecutionException e) {
+                s_logger.debug("Not sending entity cache invalidations as the management server is stopping");
+            } catch (final Throwable e) {
+                s_logger.error("Unexpected exception " + e.getMessage(), e);
+            }
+        }
+
+        private List<String> getPeers() {
+            final Date cutTime = DateUtil.currentGMTTime();
+            final List<String> peers = new ArrayList<String>();
+            for (final ManagementServerHostVO peer : _mshostDao.getActiveList(new Date(cutTime.getTime() - ClusterManager.HeartbeatThreshold.value()))) {
+                final String peerName = Long.toString(peer.getMsid());
+                if (!_clusterMgr.getSelfPeerName().equals(peerName)) {
+                    peers.add(peerName);
+                }
+            }
+            return peers;
+        }
+    }
+
+    public void notifyNodeOfSyncQueueSignal(final long msid, final long queueId) {
+        final Command[] cmds = new Command[] {new SyncQueueSignalCommand(queueId)};
+        try {
+            _clusterMgr.executeAsync(String.valueOf(msid), 0, _gson.toJson(cmds), false);
+        } catch (final Exception e) {
+            // the peer's periodic sync queue scan will pick the item up
+            s_logger.warn("Unable to signal sync queue-" + queueId + " to management server " + msid, e);
+        }
+    }
+
     protected static void logT(final byte[] bytes, final String msg) {
         s_logger.trace("Seq " + Request.getAgentId(bytes) + "-" + Request.getSequence(bytes) + ": MgmtId " + Request.getManagementServerId(bytes) + ": " +
                 (Request.isRequest(bytes) ? "Req: " : "Resp: ") + msg);
@@ -589,6 +757,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             }
         }
         _timer.cancel();
+        _cacheInvalidationExecutor.shutdownNow();
 
         // cancel all transfer tasks
         s_transferExecutor.shutdownNow();
@@ -620,7 +789,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
                 final byte[] data = task.getData();
                 final Version ver = Request.getVersion(data);
-                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal()) {
+                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal() && ver.ordinal() != Version.v4.ordinal()) {
                     s_logger.warn("Wrong version for clustered agent request");
                     super.doTask(task);
                     return;
@@ -1340,6 +1509,39 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 final Answer[] answers = new Answer[1];
                 answers[0] = new Answer(cmd, result, null);
                 return _gson.toJson(answers);
+            } else if (cmds.length == 1 && cmds[0] instanceof SyncQueueSignalCommand) {
+                final SyncQueueSignalCommand cmd = (SyncQueueSignalCommand)cmds[0];
+
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Intercepting command to signal sync queue-" + cmd.getQueueId());
+                }
+                _messageBus.publish(null, AsyncJob.Topics.JOB_QUEUE_SIGNAL, PublishScope.LOCAL, cmd.getQueueId());
+
+                final Answer[] answers = new Answer[1];
+                answers[0] = new Answer(cmd, true, null);
+                return _gson.toJson(answers);
+            } else if (cmds.length == 1 && cmds[0] instanceof InvalidateEntityCacheCommand) {
+                final InvalidateEntityCacheCommand cmd = (InvalidateEntityCacheCommand)cmds[0];
+
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Intercepting command to invalidate entity caches: " + pdu.getJsonPackage());
+                }
+                if (cmd.getClearedCaches() != null) {
+                    for (final String cacheName : cmd.getClearedCaches()) {
+                        GenericDaoBase.invalidateCache(cacheName, null);
+                    }
+                }
+                if (cmd.getEntities() != null) {
+                    for (final Map.Entry<String, List<Long>> entry : cmd.getEntities().entrySet()) {
+                        for (final Long id : entry.getValue()) {
+                            GenericDaoBase.invalidateCache(entry.getKey(), id);
+                        }
+                    }
+                }
+
+                final Answer[] answers = new Answer[1];
+                answers[0] = new Answer(cmd, true, null);
+                return _gson.toJson(answers);
             } else if (cmds.length == 1 && cmds[0] instanceof ScheduleHostScanTaskCommand) {
                 final ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand)cmds[0];
                 final String response = handleScheduleHostScanTaskCommand(cmd);
@@ -31,7 +31,7 @@ import com.cloud.utils.nio.Link;
 public class ConnectedAgentAttache extends AgentAttache {
     private static final Logger s_logger = Logger.getLogger(ConnectedAgentAttache.class);
 
-    protected Link _link;
+    protected volatile Link _link;
 
     public ConnectedAgentAttache(final AgentManagerImpl agentMgr, final long id, final String name, final Link link, final boolean maintenance) {
         super(agentMgr, id, name, maintenance);
@@ -39,9 +39,14 @@ public class ConnectedAgentAttache extends AgentAttache {
     }
 
     @Override
-    public synchronized void send(final Request req) throws AgentUnavailableException {
+    public void send(final Request req) throws AgentUnavailableException {
+        // Link.send only queues the bytes, so it needs no lock of ours; disconnect may clear _link at any time
+        final Link link = _link;
+        if (link == null) {
+            throw new AgentUnavailableException("Channel is closed", _id);
+        }
         try {
-            _link.send(req.toBytes());
+            link.send(req.toBytes());
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
         }
@@ -63,7 +68,7 @@ public class ConnectedAgentAttache extends AgentAttache {
             _link = null;
         }
         cancelAllCommands(state, true);
-        _requests.clear();
+        clearRequests();
     }
 
     @Override
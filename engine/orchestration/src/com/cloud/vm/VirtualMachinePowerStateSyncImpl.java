@@ -16,10 +16,12 @@
 // under the License.
 package com.cloud.vm;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -40,6 +42,11 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     @Inject VMInstanceDao _instanceDao;
     @Inject VirtualMachineManager _vmMgr;
 
+    // the instance name of a VM never changes, so the ids the names resolve to are kept instead of looked up on every
+    // report; a name can be taken again once its VM is expunged, processReport() corrects the id from the VMs on the host
+    protected static final int MaxCachedInstanceNames = 100000;
+    protected final Map<String, Long> _instanceNameToId = new ConcurrentHashMap<String, Long>();
+
     protected final ConfigKey<Integer> PingInterval = new ConfigKey<Integer>(Integer.class, "ping.interval", "Advanced", "60",
             "Interval to send application level pings to make sure the connection is still working", false);
 
@@ -58,7 +65,7 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             s_logger.debug("Process host VM state report from ping process. host: " + hostId);
 
         Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processReport(hostId, report, translatedInfo);
     }
 
     @Override
@@ -67,33 +74,40 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             s_logger.debug("Process host VM state report from ping process. host: " + hostId);
 
         Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processReport(hostId, report, translatedInfo);
     }
 
-    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
+    private void processReport(long hostId, Map<String, HostVmStateReportEntry> report, Map<Long, VirtualMachine.PowerState> translatedInfo) {
 
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
 
-        for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
+        // for all running/stopping VMs, we provide monitoring of missing report
+        List<VMInstanceVO> vmsThatAreMissingReport = _instanceDao.findByHostInStates(hostId, VirtualMachine.State.Running,
+                VirtualMachine.State.Stopping, VirtualMachine.State.Starting);
 
-            if (s_logger.isDebugEnabled())
-                s_logger.debug("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+        // a VM the DB has on the host that is reported by name but not by id has a name that was cached for an expunged VM
+        if (report != null) {
+            for (VMInstanceVO instance : vmsThatAreMissingReport) {
+                HostVmStateReportEntry entry = report.get(instance.getInstanceName());
+                if (entry != null && translatedInfo.get(instance.getId()) == null) {
+                    Long staleId = _instanceNameToId.put(instance.getInstanceName(), instance.getId());
+                    s_logger.info("Instance name " + instance.getInstanceName() + " now belongs to vm id: " + instance.getId() + " instead of " + staleId);
+                    if (staleId != null) {
+                        translatedInfo.remove(staleId);
+                    }
+                    translatedInfo.put(instance.getId(), entry.getState());
+                }
+            }
+        }
 
-            if (_instanceDao.updatePowerState(entry.getKey(), hostId, entry.getValue())) {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+        for (Long vmId : _instanceDao.updatePowerState(translatedInfo, hostId)) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + vmId + ", power state: " + translatedInfo.get(vmId));
 
-                _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, entry.getKey());
-            } else {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
-            }
+            _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, vmId);
         }
 
-        // for all running/stopping VMs, we provide monitoring of missing report
-        List<VMInstanceVO> vmsThatAreMissingReport = _instanceDao.findByHostInStates(hostId, VirtualMachine.State.Running,
-                VirtualMachine.State.Stopping, VirtualMachine.State.Starting);
         java.util.Iterator<VMInstanceVO> it = vmsThatAreMissingReport.iterator();
         while (it.hasNext()) {
             VMInstanceVO instance = it.next();
@@ -152,10 +166,25 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             return map;
         }
 
+        List<String> unknownNames = new ArrayList<String>();
+        for (String vmName : states.keySet()) {
+            if (!_instanceNameToId.containsKey(vmName)) {
+                unknownNames.add(vmName);
+            }
+        }
+        if (!unknownNames.isEmpty()) {
+            if (_instanceNameToId.size() + unknownNames.size() > MaxCachedInstanceNames) {
+                _instanceNameToId.clear();
+            }
+            for (VMInstanceVO vm : _instanceDao.listByInstanceNames(unknownNames)) {
+                _instanceNameToId.put(vm.getInstanceName(), vm.getId());
+            }
+        }
+
         for (Map.Entry<String, HostVmStateReportEntry> entry : states.entrySet()) {
-            VMInstanceVO vm = findVM(entry.getKey());
-            if (vm != null) {
-                map.put(vm.getId(), entry.getValue().getState());
+            Long vmId = _instanceNameToId.get(entry.getKey());
+            if (vmId != null) {
+                map.put(vmId, entry.getValue().getState());
             } else {
                 s_logger.info("Unable to find matched VM in CloudStack DB. name: " + entry.getKey());
             }
@@ -163,8 +192,4 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
 
         return map;
     }
-
-    private VMInstanceVO findVM(String vmName) {
-        return _instanceDao.findVMByInstanceName(vmName);
-    }
 }
@@ -0,0 +1,84 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AgentPingMapTest {
+
+    @Test
+    public void testFindBehind() {
+        AgentPingMap pingMap = new AgentPingMap();
+        pingMap.add(1, 100);
+        pingMap.add(2, 200);
+        pingMap.add(3, 300);
+
+        assertEquals(Arrays.asList(1L, 2L), pingMap.findBehind(250));
+
+        assertTrue(pingMap.ping(1, 400, 4000));
+        assertEquals(Arrays.asList(2L), pingMap.findBehind(250));
+        assertEquals(Long.valueOf(400), pingMap.get(1));
+    }
+
+    @Test
+    public void testPingUnknownAgent() {
+        AgentPingMap pingMap = new AgentPingMap();
+        assertFalse(pingMap.ping(1, 100, 1000));
+        assertNull(pingMap.get(1));
+        assertTrue(pingMap.drainUnsaved().isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        AgentPingMap pingMap = new AgentPingMap();
+        pingMap.add(1, 100);
+        pingMap.ping(1, 150, 1500);
+        pingMap.remove(1);
+
+        assertTrue(pingMap.findBehind(1000).isEmpty());
+        assertTrue(pingMap.drainUnsaved().isEmpty());
+        assertEquals(0, pingMap.size());
+    }
+
+    @Test
+    public void testDrainUnsavedGroupsByTime() {
+        AgentPingMap pingMap = new AgentPingMap();
+        pingMap.add(1, 100);
+        pingMap.add(2, 100);
+        pingMap.add(3, 100);
+        pingMap.ping(1, 110, 1000);
+        pingMap.ping(2, 110, 1000);
+        pingMap.ping(3, 120, 1200);
+        pingMap.ping(3, 130, 1300);
+
+        Map<Long, List<Long>> unsaved = pingMap.drainUnsaved();
+        assertEquals(2, unsaved.size());
+        assertEquals(2, unsaved.get(1000L).size());
+        assertEquals(Arrays.asList(3L), unsaved.get(1300L));
+
+        assertTrue(pingMap.drainUnsaved().isEmpty());
+    }
+}
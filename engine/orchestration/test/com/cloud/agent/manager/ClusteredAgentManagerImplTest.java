@@ -0,0 +1,98 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.cloud.agent.api.GetHostStatsAnswer;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Response;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.Task;
+
+public class ClusteredAgentManagerImplTest {
+    private static final long PEER_ID = 1L;
+    private static final long NODE_ID = 2L;
+    private static final long HOST_ID = 10L;
+
+    ClusteredAgentManagerImpl _agentMgr;
+    Link _agentLink;
+    Link _peerLink;
+
+    @Before
+    public void setup() {
+        _agentMgr = Mockito.spy(new ClusteredAgentManagerImpl());
+        _agentMgr._nodeId = NODE_ID;
+        _agentLink = Mockito.mock(Link.class);
+        _peerLink = Mockito.mock(Link.class);
+
+        ConnectedAgentAttache attache = new ConnectedAgentAttache(null, HOST_ID, "host-10", _agentLink, false);
+        attache.setWireVersion(Request.Version.v4);
+        Mockito.doReturn(attache).when(_agentMgr).findAttache(HOST_ID);
+        Mockito.doReturn(true).when(_agentMgr).routeToPeer(Mockito.anyString(), Mockito.any(byte[].class));
+    }
+
+    private void handle(Link link, byte[] data) throws Exception {
+        ClusteredAgentManagerImpl.ClusteredAgentHandler handler = _agentMgr.new ClusteredAgentHandler(Task.Type.DATA, link, data);
+        handler.doTask(handler);
+    }
+
+    private static byte[] toArray(ByteBuffer[] buffers) {
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers) {
+            bytes.put(buffer.duplicate());
+        }
+        return bytes.array();
+    }
+
+    @Test
+    public void testForwardedRequestRoundTrip() throws Exception {
+        // a peer forwards a v1 request for an agent that is connected here with v4
+        Request req = new Request(HOST_ID, PEER_ID, new GetHostStatsCommand("guid", "host-10", HOST_ID), true);
+        req.setSequence(42);
+        handle(_peerLink, req.getBytes());
+
+        ArgumentCaptor<ByteBuffer[]> sent = ArgumentCaptor.forClass(ByteBuffer[].class);
+        Mockito.verify(_agentLink).send(sent.capture());
+        byte[] toAgent = toArray(sent.getValue());
+        assertEquals("the forwarded request keeps the version of the peer", Request.Version.v1, Request.getVersion(toAgent));
+        assertEquals(PEER_ID, Request.getManagementServerId(toAgent));
+
+        // the agent answers in whatever version it likes, the answer goes back to the peer
+        Request agentReq = Request.parse(toAgent);
+        Response resp = new Response(agentReq, new GetHostStatsAnswer((GetHostStatsCommand)agentReq.getCommand(), (HostStatsEntry)null));
+        resp.setVersion(Request.Version.v4);
+        byte[] answer = resp.getBytes();
+        assertEquals(Request.Version.v4, Request.getVersion(answer));
+        handle(_agentLink, answer);
+
+        Mockito.verify(_agentMgr).routeToPeer(Long.toString(PEER_ID), answer);
+    }
+}
@@ -16,13 +16,27 @@
 // under the License.
 package com.cloud.agent.manager;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.junit.Test;
 
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.host.Host;
+import com.cloud.host.Status;
 import com.cloud.utils.nio.Link;
+import com.cloud.vm.VirtualMachine.PowerState;
 
 public class ConnectedAgentAttacheTest {
 
@@ -79,4 +93,107 @@ public class ConnectedAgentAttacheTest {
 
         assertFalse(agentAttache1.equals("abc"));
     }
-}
\ No newline at end of file
+
+    private static Request request(long seq) {
+        Request req = new Request(1, 2, new GetHostStatsCommand("guid", "host", 1), true);
+        req.setSequence(seq);
+        return req;
+    }
+
+    @Test
+    public void testQueueSizeFollowsRequests() throws Exception {
+
+        Link link = mock(Link.class);
+
+        ConnectedAgentAttache agentAttache = new ConnectedAgentAttache(null, 1, null, link, false);
+        agentAttache.addRequest(request(1));
+        agentAttache.addRequest(request(2));
+        agentAttache.addRequest(request(3));
+        assertEquals(3, agentAttache.getQueueSize());
+
+        agentAttache.cancel(2);
+        agentAttache.cancel(2);
+        assertEquals(2, agentAttache.getQueueSize());
+
+        agentAttache.sendNext(0);
+        assertEquals(1, agentAttache.getQueueSize());
+
+        agentAttache.disconnect(Status.Disconnected);
+        assertEquals(0, agentAttache.getQueueSize());
+    }
+
+    @Test(expected = AgentUnavailableException.class)
+    public void testSendAfterDisconnect() throws Exception {
+
+        Link link = mock(Link.class);
+
+        ConnectedAgentAttache agentAttache = new ConnectedAgentAttache(null, 1, null, link, false);
+        agentAttache.disconnect(Status.Disconnected);
+        agentAttache.send(request(1));
+    }
+
+    private static Map<String, HostVmStateReportEntry> report(String... namesAndStates) {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        for (int i = 0; i < namesAndStates.length; i += 2) {
+            report.put(namesAndStates[i], new HostVmStateReportEntry(PowerState.valueOf(namesAndStates[i + 1]), "host"));
+        }
+        return report;
+    }
+
+    @Test
+    public void testVmStateReportDeltas() throws Exception {
+
+        ConnectedAgentAttache agentAttache = new ConnectedAgentAttache(null, 1, null, mock(Link.class), false);
+
+        PingRoutingCommand full = new PingRoutingCommand(Host.Type.Routing, 1, report("i-2-3-VM", "PowerOn", "i-2-4-VM", "PowerOn"));
+        full.setReportSequence(10);
+        assertTrue(agentAttache.applyVmStateReport(full));
+
+        PingRoutingCommand delta = new PingRoutingCommand(Host.Type.Routing, 1, null);
+        delta.setDelta(11, 10, report("i-2-3-VM", "PowerOff", "i-2-5-VM", "PowerOn"), Arrays.asList("i-2-4-VM"));
+        assertTrue(agentAttache.applyVmStateReport(delta));
+        Map<String, HostVmStateReportEntry> applied = delta.getHostVmStateReport();
+        assertEquals(2, applied.size());
+        assertEquals(PowerState.PowerOff, applied.get("i-2-3-VM").getState());
+        assertEquals(PowerState.PowerOn, applied.get("i-2-5-VM").getState());
+
+        // the next delta builds on the applied one
+        PingRoutingCommand next = new PingRoutingCommand(Host.Type.Routing, 1, null);
+        next.setDelta(12, 11, report(), null);
+        assertTrue(agentAttache.applyVmStateReport(next));
+        assertEquals(2, next.getHostVmStateReport().size());
+    }
+
+    @Test
+    public void testVmStateReportDeltaOnUnknownBase() throws Exception {
+
+        ConnectedAgentAttache agentAttache = new ConnectedAgentAttache(null, 1, null, mock(Link.class), false);
+
+        // nothing to build on yet
+        PingRoutingCommand delta = new PingRoutingCommand(Host.Type.Routing, 1, null);
+        delta.setDelta(11, 10, report("i-2-3-VM", "PowerOff"), null);
+        assertFalse(agentAttache.applyVmStateReport(delta));
+        assertNull(delta.getHostVmStateReport());
+
+        PingRoutingCommand full = new PingRoutingCommand(Host.Type.Routing, 1, report("i-2-3-VM", "PowerOn"));
+        full.setReportSequence(20);
+        assertTrue(agentAttache.applyVmStateReport(full));
+
+        // a delta on a report the management server missed
+        delta = new PingRoutingCommand(Host.Type.Routing, 1, null);
+        delta.setDelta(22, 21, report("i-2-3-VM", "PowerOff"), null);
+        assertFalse(agentAttache.applyVmStateReport(delta));
+        assertNull(delta.getHostVmStateReport());
+    }
+
+    @Test
+    public void testVmStateReportFromOlderAgent() throws Exception {
+
+        ConnectedAgentAttache agentAttache = new ConnectedAgentAttache(null, 1, null, mock(Link.class), false);
+
+        // agents without report sequences always send the full report
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 1, report("i-2-3-VM", "PowerOn"));
+        assertTrue(agentAttache.applyVmStateReport(ping));
+        assertEquals(1, ping.getHostVmStateReport().size());
+    }
+}
@@ -0,0 +1,102 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class VirtualMachinePowerStateSyncImplTest {
+    private static final long HOST_ID = 5L;
+
+    VirtualMachinePowerStateSyncImpl _sync;
+    VMInstanceDao _instanceDao;
+
+    @Before
+    public void setup() {
+        _sync = new VirtualMachinePowerStateSyncImpl();
+        _instanceDao = mock(VMInstanceDao.class);
+        _sync._instanceDao = _instanceDao;
+        _sync._messageBus = mock(MessageBus.class);
+        when(_instanceDao.findByHostInStates(anyLong(), any(VirtualMachine.State.class), any(VirtualMachine.State.class), any(VirtualMachine.State.class)))
+            .thenReturn(new ArrayList<VMInstanceVO>());
+        when(_instanceDao.updatePowerState(anyMapOf(Long.class, PowerState.class), anyLong())).thenReturn(new ArrayList<Long>());
+    }
+
+    private static VMInstanceVO instance(long id, String name) {
+        VMInstanceVO instance = mock(VMInstanceVO.class);
+        when(instance.getId()).thenReturn(id);
+        when(instance.getInstanceName()).thenReturn(name);
+        return instance;
+    }
+
+    private static Map<String, HostVmStateReportEntry> report(String name, PowerState state) {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        report.put(name, new HostVmStateReportEntry(state, "host"));
+        return report;
+    }
+
+    @Test
+    public void testNamesAreLookedUpOnce() {
+        when(_instanceDao.listByInstanceNames(anyCollectionOf(String.class))).thenReturn(Arrays.asList(instance(3L, "i-2-3-VM")));
+
+        assertEquals(PowerState.PowerOn, _sync.convertVmStateReport(report("i-2-3-VM", PowerState.PowerOn)).get(3L));
+        assertEquals(PowerState.PowerOff, _sync.convertVmStateReport(report("i-2-3-VM", PowerState.PowerOff)).get(3L));
+
+        verify(_instanceDao, times(1)).listByInstanceNames(anyCollectionOf(String.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNameOfExpungedVmTakenByAnotherVm() {
+        // the name was cached for VM 3, which was expunged, VM 7 on the host has it now
+        _sync._instanceNameToId.put("web-1", 3L);
+        when(_instanceDao.findByHostInStates(anyLong(), any(VirtualMachine.State.class), any(VirtualMachine.State.class), any(VirtualMachine.State.class)))
+            .thenReturn(new ArrayList<VMInstanceVO>(Arrays.asList(instance(7L, "web-1"))));
+
+        _sync.processHostVmStatePingReport(HOST_ID, report("web-1", PowerState.PowerOn));
+
+        ArgumentCaptor<Map> updated = ArgumentCaptor.forClass(Map.class);
+        verify(_instanceDao).updatePowerState(updated.capture(), anyLong());
+        assertEquals(1, updated.getValue().size());
+        assertEquals(PowerState.PowerOn, updated.getValue().get(7L));
+        assertEquals(Long.valueOf(7L), _sync._instanceNameToId.get("web-1"));
+        // the VM was reported, so it is not treated as missing
+        verify(_instanceDao, times(0)).updatePowerState(anyLong(), anyLong(), any(PowerState.class));
+    }
+}
@@ -164,13 +164,14 @@ public class ResourceCountDaoImpl extends GenericDaoBase<ResourceCountVO, Long>
         txn.start();
 
         ResourceType[] resourceTypes = Resource.ResourceType.values();
+        List<ResourceCountVO> resourceCounts = new ArrayList<ResourceCountVO>(resourceTypes.length);
         for (ResourceType resourceType : resourceTypes) {
             if (!resourceType.supportsOwner(ownerType)) {
                 continue;
             }
-            ResourceCountVO resourceCountVO = new ResourceCountVO(resourceType, 0, ownerId, ownerType);
-            persist(resourceCountVO);
+            resourceCounts.add(new ResourceCountVO(resourceType, 0, ownerId, ownerType));
         }
+        persistAll(resourceCounts);
 
         txn.commit();
     }
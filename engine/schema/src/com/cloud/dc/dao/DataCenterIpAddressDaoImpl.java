@@ -17,6 +17,7 @@
 package com.cloud.dc.dao;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
@@ -113,9 +114,9 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
     @DB
     public void addIpRange(long dcId, long podId, String start, String end) {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
-        String insertSql = "INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address) " +
-            "VALUES (?, ?, ?, (select mac_address from `cloud`.`data_center` where id=?))";
-        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+1 where id=?";
+        String selectSql = "SELECT mac_address FROM `cloud`.`data_center` WHERE id=? FOR UPDATE";
+        String insertSql = "INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address) VALUES (?, ?, ?, ?)";
+        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+? where id=?";
 
         long startIP = NetUtils.ip2Long(start);
         long endIP = NetUtils.ip2Long(end);
@@ -123,18 +124,33 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         try {
             txn.start();
 
-            while (startIP <= endIP) {
-                try(PreparedStatement insertPstmt = txn.prepareStatement(insertSql);) {
+            // every address takes the next mac address of the zone, so reserve them all up front and insert in one batch
+            long macAddress;
+            try (PreparedStatement selectPstmt = txn.prepareStatement(selectSql);) {
+                selectPstmt.setLong(1, dcId);
+                try (ResultSet rs = selectPstmt.executeQuery();) {
+                    if (!rs.next()) {
+                        throw new CloudRuntimeException("Unable to find data center " + dcId);
+                    }
+                    macAddress = rs.getLong(1);
+                }
+            }
+
+            long count = 0;
+            try (PreparedStatement insertPstmt = txn.prepareStatement(insertSql);) {
+                while (startIP <= endIP) {
                     insertPstmt.setString(1, NetUtils.long2Ip(startIP++));
                     insertPstmt.setLong(2, dcId);
                     insertPstmt.setLong(3, podId);
-                    insertPstmt.setLong(4, dcId);
-                    insertPstmt.executeUpdate();
-                }
-                try(PreparedStatement updatePstmt = txn.prepareStatement(updateSql);) {
-                    updatePstmt.setLong(1, dcId);
-                    updatePstmt.executeUpdate();
+                    insertPstmt.setLong(4, macAddress + count++);
+                    insertPstmt.addBatch();
                 }
+                insertPstmt.executeBatch();
+            }
+            try (PreparedStatement updatePstmt = txn.prepareStatement(updateSql);) {
+                updatePstmt.setLong(1, count);
+                updatePstmt.setLong(2, dcId);
+                updatePstmt.executeUpdate();
             }
             txn.commit();
         } catch (SQLException ex) {
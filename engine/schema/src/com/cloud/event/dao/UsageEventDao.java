@@ -31,6 +31,12 @@ public interface UsageEventDao extends GenericDao<UsageEventVO, Long> {
 
     List<UsageEventVO> getRecentEvents(Date endDate);
 
+    /**
+     * Copies at most batchSize new events raised up to endDate to the usage database, and returns up to
+     * batchSize of its unprocessed events created after startDate and up to endDate, oldest first.
+     */
+    List<UsageEventVO> getRecentEvents(Date startDate, Date endDate, int batchSize);
+
     List<UsageEventVO> listDirectIpEvents(Date startDate, Date endDate, long zoneId);
 
     void saveDetails(long eventId, Map<String, String> details);
@@ -47,6 +47,7 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
     public static final Logger s_logger = Logger.getLogger(UsageEventDaoImpl.class.getName());
 
     private final SearchBuilder<UsageEventVO> latestEventsSearch;
+    private final SearchBuilder<UsageEventVO> eventBatchSearch;
     private final SearchBuilder<UsageEventVO> IpeventsSearch;
     private static final String COPY_EVENTS =
         "INSERT INTO cloud_usage.usage_event (id, type, account_id, created, zone_id, resource_id, resource_name, offering_id, template_id, size, resource_type, virtual_size) "
@@ -59,6 +60,8 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
     private static final String COPY_ALL_EVENT_DETAILS = "INSERT INTO cloud_usage.usage_event_details (id, usage_event_id, name, value) "
             + "SELECT id, usage_event_id, name, value FROM cloud.usage_event_details vmevtDetails WHERE vmevtDetails.usage_event_id <= ?";
     private static final String MAX_EVENT = "select max(id) from cloud.usage_event where created <= ?";
+    private static final String MAX_EVENT_IN_BATCH =
+        "select max(id) from (select id from cloud.usage_event where id > ? and created <= ? order by id limit ?) batch";
     @Inject
     protected UsageEventDetailsDao usageEventDetailsDao;
 
@@ -68,6 +71,12 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         latestEventsSearch.and("enddate", latestEventsSearch.entity().getCreateDate(), SearchCriteria.Op.LTEQ);
         latestEventsSearch.done();
 
+        eventBatchSearch = createSearchBuilder();
+        eventBatchSearch.and("processed", eventBatchSearch.entity().isProcessed(), SearchCriteria.Op.EQ);
+        eventBatchSearch.and("startdate", eventBatchSearch.entity().getCreateDate(), SearchCriteria.Op.GT);
+        eventBatchSearch.and("enddate", eventBatchSearch.entity().getCreateDate(), SearchCriteria.Op.LTEQ);
+        eventBatchSearch.done();
+
         IpeventsSearch = createSearchBuilder();
         IpeventsSearch.and("startdate", IpeventsSearch.entity().getCreateDate(), SearchCriteria.Op.GTEQ);
         IpeventsSearch.and("enddate", IpeventsSearch.entity().getCreateDate(), SearchCriteria.Op.LTEQ);
@@ -99,6 +108,41 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
     public synchronized List<UsageEventVO> getRecentEvents(Date endDate) {
         long recentEventId = getMostRecentEventId();
         long maxEventId = getMaxEventId(endDate);
+        copyEvents(recentEventId, maxEventId);
+
+        return findRecentEvents(endDate);
+    }
+
+    @Override
+    @DB
+    public synchronized List<UsageEventVO> getRecentEvents(Date startDate, Date endDate, int batchSize) {
+        long recentEventId = getMostRecentEventId();
+        long maxEventId = getMaxEventId(recentEventId, endDate, batchSize);
+        if (maxEventId > recentEventId) {
+            copyEvents(recentEventId, maxEventId);
+        }
+
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        try {
+            Filter filter = new Filter(UsageEventVO.class, "createDate", Boolean.TRUE, Long.valueOf(0), Long.valueOf(batchSize));
+            SearchCriteria<UsageEventVO> sc = eventBatchSearch.create();
+            sc.setParameters("processed", false);
+            sc.setParameters("startdate", startDate);
+            sc.setParameters("enddate", endDate);
+            return listBy(sc, filter);
+        } catch (Exception ex) {
+            s_logger.error("error getting batch of recent events", ex);
+            throw new CloudRuntimeException(ex.getMessage());
+        } finally {
+            txn.close();
+        }
+    }
+
+    /**
+     * Copies the events with an id in (recentEventId, maxEventId], and their details, from cloud db to usage db.
+     * The highest event id in usage db is what the next copy resumes from.
+     */
+    private void copyEvents(long recentEventId, long maxEventId) {
         TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
         // Copy events from cloud db to usage db
         String sql = COPY_EVENTS;
@@ -155,8 +199,6 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         } finally {
             txn.close();
         }
-
-        return findRecentEvents(endDate);
     }
 
     @DB
@@ -212,6 +254,27 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         }
     }
 
+    private long getMaxEventId(long recentEventId, Date endDate, int batchSize) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(MAX_EVENT_IN_BATCH);
+            pstmt.setLong(1, recentEventId);
+            pstmt.setString(2, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setInt(3, batchSize);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getLong(1);
+            }
+            return 0;
+        } catch (Exception ex) {
+            s_logger.error("error getting max event id of batch", ex);
+            throw new CloudRuntimeException(ex.getMessage());
+        } finally {
+            txn.close();
+        }
+    }
+
     @Override
     public List<UsageEventVO> listDirectIpEvents(Date startDate, Date endDate, long zoneId) {
         Filter filter = new Filter(UsageEventVO.class, "createDate", Boolean.TRUE, null, null);
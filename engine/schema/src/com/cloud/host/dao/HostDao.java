@@ -43,6 +43,18 @@ public interface HostDao extends GenericDao<HostVO, Long>, StateDao<Status, Stat
      */
     void markHostsAsDisconnected(long msId, long lastPing);
 
+    /**
+     * Sets the last ping time of the given hosts in one statement, skipping the
+     * ones that are no longer managed by the management server.
+     *
+     * @param hostIds hosts that pinged
+     * @param msId management server id.
+     * @param lastPing ping time, in the same unit as HostVO.getLastPinged().
+     */
+    void updateLastPinged(List<Long> hostIds, long msId, long lastPing);
+
+    List<HostVO> listByIds(List<Long> hostIds);
+
     List<HostVO> findLostHosts(long timeout);
 
     List<HostVO> findAndUpdateDirectAgentToLoad(long lastPingSecondsAfter, Long limit, long managementServerId);
@@ -121,6 +121,8 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
     protected GenericSearchBuilder<HostVO, Long> ClustersForHostsNotOwnedByAnyMSSearch;
     protected GenericSearchBuilder<ClusterVO, Long> AllClustersSearch;
     protected SearchBuilder<HostVO> HostsInClusterSearch;
+    protected SearchBuilder<HostVO> IdsSearch;
+    protected SearchBuilder<HostVO> PingUpdateSearch;
 
     protected Attribute _statusAttr;
     protected Attribute _resourceStateAttr;
@@ -168,6 +170,15 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
         MsStatusSearch.and("resourceState", MsStatusSearch.entity().getResourceState(), SearchCriteria.Op.NIN);
         MsStatusSearch.done();
 
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
+
+        PingUpdateSearch = createSearchBuilder();
+        PingUpdateSearch.and("ids", PingUpdateSearch.entity().getId(), SearchCriteria.Op.IN);
+        PingUpdateSearch.and("ms", PingUpdateSearch.entity().getManagementServerId(), SearchCriteria.Op.EQ);
+        PingUpdateSearch.done();
+
         TypeDcSearch = createSearchBuilder();
         TypeDcSearch.and("type", TypeDcSearch.entity().getType(), SearchCriteria.Op.EQ);
         TypeDcSearch.and("dc", TypeDcSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
@@ -644,6 +655,31 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
         update(ub, sc, null);
     }
 
+    @Override
+    public void updateLastPinged(List<Long> hostIds, long msId, long lastPing) {
+        if (hostIds.isEmpty()) {
+            return;
+        }
+        SearchCriteria<HostVO> sc = PingUpdateSearch.create();
+        sc.setParameters("ids", hostIds.toArray());
+        sc.setParameters("ms", msId);
+
+        HostVO host = createForUpdate();
+        host.setLastPinged(lastPing);
+        UpdateBuilder ub = getUpdateBuilder(host);
+        update(ub, sc, null);
+    }
+
+    @Override
+    public List<HostVO> listByIds(List<Long> hostIds) {
+        if (hostIds.isEmpty()) {
+            return new ArrayList<HostVO>();
+        }
+        SearchCriteria<HostVO> sc = IdsSearch.create();
+        sc.setParameters("ids", hostIds.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public List<HostVO> listByHostTag(Host.Type type, Long clusterId, Long podId, long dcId, String hostTag) {
 
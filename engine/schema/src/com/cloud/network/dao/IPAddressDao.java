@@ -26,6 +26,14 @@ public interface IPAddressDao extends GenericDao<IPAddressVO, Long> {
 
     IPAddressVO markAsUnavailable(long ipAddressId);
 
+    /**
+     * Takes a free address by setting its allocated time, with a conditional update that only
+     * matches while the address is still unallocated.
+     *
+     * @return true if the address was taken by this call
+     */
+    boolean takeIfFree(long ipAddressId);
+
     void unassignIpAddress(long ipAddressId);
 
     List<IPAddressVO> listByAccount(long accountId);
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.Date;
+
 /**
  * Work related to security groups for a vm
  *
@@ -30,6 +32,11 @@ public interface SecurityGroupWork {
 
     Long getLogsequenceNumber();
 
+    /**
+     * @return when the work was scheduled, rules compiled after that reflect every change it was scheduled for
+     */
+    Date getCreated();
+
     Step getStep();
 
     void setStep(Step step);
@@ -83,6 +83,7 @@ public class SecurityGroupWorkVO implements SecurityGroupWork, InternalIdentity
         this.serverId = serverId;
     }
 
+    @Override
     public Date getCreated() {
         return created;
     }
@@ -25,6 +25,7 @@ import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.SearchCriteria;
 
+import java.util.Date;
 import java.util.List;
 
 public interface UsageDao extends GenericDao<UsageVO, Long> {
@@ -55,4 +56,10 @@ public interface UsageDao extends GenericDao<UsageVO, Long> {
     void saveUsageRecords(List<UsageVO> usageRecords);
 
     void removeOldUsageRecords(int days);
+
+    /**
+     * Removes the usage records starting in [startDate, endDate), left behind by a job that failed
+     * before it completed its period.
+     */
+    void removeUsageRecords(Date startDate, Date endDate);
 }
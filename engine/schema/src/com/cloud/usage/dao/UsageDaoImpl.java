@@ -46,6 +46,7 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
     private static final String DELETE_ALL = "DELETE FROM cloud_usage";
     private static final String DELETE_ALL_BY_ACCOUNTID = "DELETE FROM cloud_usage WHERE account_id = ?";
     private static final String DELETE_ALL_BY_INTERVAL = "DELETE FROM cloud_usage WHERE end_date < DATE_SUB(CURRENT_DATE(), INTERVAL ? DAY)";
+    private static final String DELETE_ALL_BY_START_DATE = "DELETE FROM cloud_usage WHERE start_date >= ? AND start_date < ?";
     private static final String INSERT_ACCOUNT = "INSERT INTO cloud_usage.account (id, account_name, type, domain_id, removed, cleanup_needed) VALUES (?,?,?,?,?,?)";
     private static final String INSERT_USER_STATS =
             "INSERT INTO cloud_usage.user_statistics (id, data_center_id, account_id, public_ip_address, device_id, device_type, network_id, net_bytes_received,"
@@ -469,4 +470,25 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
             txn.close();
         }
     }
+
+    @Override
+    public void removeUsageRecords(Date startDate, Date endDate) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            pstmt = txn.prepareAutoCloseStatement(DELETE_ALL_BY_START_DATE);
+            pstmt.setString(1, DateUtil.getDateDisplayString(s_gmtTimeZone, startDate));
+            pstmt.setString(2, DateUtil.getDateDisplayString(s_gmtTimeZone, endDate));
+            int removed = pstmt.executeUpdate();
+            txn.commit();
+            if (removed > 0) {
+                s_logger.info("removed " + removed + " usage records of a failed job between " + startDate + " and " + endDate);
+            }
+        } catch (Exception ex) {
+            txn.rollback();
+            s_logger.error("error removing cloud_usage records between " + startDate + " and " + endDate, ex);
+            throw new CloudRuntimeException(ex.getMessage());
+        }
+    }
 }
@@ -28,6 +28,11 @@ public interface UsageJobDao extends GenericDao<UsageJobVO, Long> {
 
     UsageJobVO getLastJob();
 
+    /**
+     * @return the most recent job that has finished, successfully or not
+     */
+    UsageJobVO getLastFinishedJob();
+
     UsageJobVO getNextImmediateJob();
 
     long getLastJobSuccessDateMillis();
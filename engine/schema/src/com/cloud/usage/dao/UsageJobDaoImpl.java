@@ -159,6 +159,19 @@ public class UsageJobDaoImpl extends GenericDaoBase<UsageJobVO, Long> implements
         return jobs.get(0);
     }
 
+    @Override
+    public UsageJobVO getLastFinishedJob() {
+        Filter filter = new Filter(UsageJobVO.class, "id", false, Long.valueOf(0), Long.valueOf(1));
+        SearchCriteria<UsageJobVO> sc = createSearchCriteria();
+        sc.addAnd("endMillis", SearchCriteria.Op.GT, Long.valueOf(0));
+        List<UsageJobVO> jobs = search(sc, filter);
+
+        if ((jobs == null) || jobs.isEmpty()) {
+            return null;
+        }
+        return jobs.get(0);
+    }
+
     private UsageJobVO getNextRecurringJob() {
         Filter filter = new Filter(UsageJobVO.class, "id", false, Long.valueOf(0), Long.valueOf(1));
         SearchCriteria<UsageJobVO> sc = createSearchCriteria();
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.vm.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -131,6 +132,15 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     boolean updatePowerState(long instanceId, long powerHostId, VirtualMachine.PowerState powerState);
 
+    /**
+     * Same as updatePowerState() for many VMs on one host, with a single read and one
+     * update per distinct change.
+     * @return ids of the VMs whose power state record was updated.
+     */
+    List<Long> updatePowerState(Map<Long, VirtualMachine.PowerState> instancePowerStates, long powerHostId);
+
+    List<VMInstanceVO> listByInstanceNames(Collection<String> instanceNames);
+
     void resetVmPowerStateTracking(long instanceId);
 
     void resetHostPowerStateTracking(long hostId);
@@ -20,6 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -84,6 +85,8 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected SearchBuilder<VMInstanceVO> HostIdUpTypesSearch;
     protected SearchBuilder<VMInstanceVO> HostUpSearch;
     protected SearchBuilder<VMInstanceVO> InstanceNameSearch;
+    protected SearchBuilder<VMInstanceVO> InstanceNamesSearch;
+    protected SearchBuilder<VMInstanceVO> IdsSearch;
     protected SearchBuilder<VMInstanceVO> HostNameSearch;
     protected SearchBuilder<VMInstanceVO> HostNameAndZoneSearch;
     protected GenericSearchBuilder<VMInstanceVO, Long> FindIdsOfVirtualRoutersByAccount;
@@ -215,6 +218,14 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         InstanceNameSearch.and("instanceName", InstanceNameSearch.entity().getInstanceName(), Op.EQ);
         InstanceNameSearch.done();
 
+        InstanceNamesSearch = createSearchBuilder();
+        InstanceNamesSearch.and("instanceNames", InstanceNamesSearch.entity().getInstanceName(), Op.IN);
+        InstanceNamesSearch.done();
+
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), Op.IN);
+        IdsSearch.done();
+
         HostNameSearch = createSearchBuilder();
         HostNameSearch.and("hostName", HostNameSearch.entity().getHostName(), Op.EQ);
         HostNameSearch.done();
@@ -803,6 +814,80 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         });
     }
 
+    @Override
+    public List<Long> updatePowerState(final Map<Long, VirtualMachine.PowerState> instancePowerStates, final long powerHostId) {
+        if (instancePowerStates.isEmpty()) {
+            return new ArrayList<Long>();
+        }
+
+        return Transaction.execute(new TransactionCallback<List<Long>>() {
+            @Override
+            public List<Long> doInTransaction(TransactionStatus status) {
+                SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+                sc.setParameters("ids", instancePowerStates.keySet().toArray());
+
+                // group the VMs by the change they need so that each change is one update
+                Map<VirtualMachine.PowerState, List<Long>> changed = new HashMap<VirtualMachine.PowerState, List<Long>>();
+                Map<Integer, List<Long>> confirmed = new HashMap<Integer, List<Long>>();
+                for (VMInstanceVO instance : listBy(sc)) {
+                    VirtualMachine.PowerState powerState = instancePowerStates.get(instance.getId());
+                    Long savedPowerHostId = instance.getPowerHostId();
+                    if (instance.getPowerState() != powerState || savedPowerHostId == null || savedPowerHostId.longValue() != powerHostId) {
+                        addTo(changed, powerState, instance.getId());
+                    } else if (instance.getPowerStateUpdateCount() < MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT) {
+                        // to reduce DB updates, consecutive same state update for more than 3 times
+                        addTo(confirmed, instance.getPowerStateUpdateCount() + 1, instance.getId());
+                    }
+                }
+
+                List<Long> updated = new ArrayList<Long>();
+                Date now = DateUtil.currentGMTTime();
+                for (Map.Entry<VirtualMachine.PowerState, List<Long>> entry : changed.entrySet()) {
+                    VMInstanceVO instance = createForUpdate();
+                    instance.setPowerState(entry.getKey());
+                    instance.setPowerHostId(powerHostId);
+                    instance.setPowerStateUpdateCount(1);
+                    instance.setPowerStateUpdateTime(now);
+                    updateByIds(instance, entry.getValue());
+                    updated.addAll(entry.getValue());
+                }
+                for (Map.Entry<Integer, List<Long>> entry : confirmed.entrySet()) {
+                    VMInstanceVO instance = createForUpdate();
+                    instance.setPowerStateUpdateCount(entry.getKey());
+                    instance.setPowerStateUpdateTime(now);
+                    updateByIds(instance, entry.getValue());
+                    updated.addAll(entry.getValue());
+                }
+                return updated;
+            }
+        });
+    }
+
+    private <K> void addTo(Map<K, List<Long>> groups, K key, Long id) {
+        List<Long> ids = groups.get(key);
+        if (ids == null) {
+            ids = new ArrayList<Long>();
+            groups.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    private void updateByIds(VMInstanceVO instance, List<Long> ids) {
+        SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+        sc.setParameters("ids", ids.toArray());
+        update(instance, sc);
+    }
+
+    @Override
+    public List<VMInstanceVO> listByInstanceNames(Collection<String> instanceNames) {
+        if (instanceNames.isEmpty()) {
+            return new ArrayList<VMInstanceVO>();
+        }
+        SearchCriteria<VMInstanceVO> sc = InstanceNamesSearch.create();
+        sc.setParameters("instanceNames", instanceNames.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public void resetVmPowerStateTracking(final long instanceId) {
         Transaction.execute(new TransactionCallbackNoReturn() {
@@ -0,0 +1,117 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SearchCriteria.Op;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class VMInstanceDaoImplTest {
+    private static final long HOST_ID = 5L;
+
+    /**
+     * Serves the instances from a list and records the updates instead of going to the DB.
+     */
+    static class InstanceDao extends VMInstanceDaoImpl {
+        final List<VMInstanceVO> _instances = new ArrayList<VMInstanceVO>();
+        final List<VMInstanceVO> _updates = new ArrayList<VMInstanceVO>();
+
+        InstanceDao() {
+            IdsSearch = createSearchBuilder();
+            IdsSearch.and("ids", IdsSearch.entity().getId(), Op.IN);
+            IdsSearch.done();
+        }
+
+        @Override
+        protected List<VMInstanceVO> listBy(SearchCriteria<VMInstanceVO> sc) {
+            return _instances;
+        }
+
+        @Override
+        public int update(VMInstanceVO entity, SearchCriteria<VMInstanceVO> sc) {
+            _updates.add(entity);
+            return 1;
+        }
+    }
+
+    InstanceDao _dao;
+
+    @Before
+    public void setup() {
+        _dao = new InstanceDao();
+    }
+
+    private void addInstance(long id, PowerState powerState, Long powerHostId, int updateCount) {
+        VMInstanceVO instance = mock(VMInstanceVO.class);
+        when(instance.getId()).thenReturn(id);
+        when(instance.getPowerState()).thenReturn(powerState);
+        when(instance.getPowerHostId()).thenReturn(powerHostId);
+        when(instance.getPowerStateUpdateCount()).thenReturn(updateCount);
+        _dao._instances.add(instance);
+    }
+
+    @Test
+    public void testBulkUpdatePowerState() {
+        addInstance(1L, PowerState.PowerOff, HOST_ID, 3); // changed state
+        addInstance(2L, PowerState.PowerOn, 4L, 3); // moved to another host
+        addInstance(3L, PowerState.PowerOn, HOST_ID, 1); // same state, confirmed once more
+        addInstance(4L, PowerState.PowerOn, HOST_ID, 3); // same state, confirmed often enough
+
+        Map<Long, PowerState> report = new HashMap<Long, PowerState>();
+        report.put(1L, PowerState.PowerOn);
+        report.put(2L, PowerState.PowerOn);
+        report.put(3L, PowerState.PowerOn);
+        report.put(4L, PowerState.PowerOn);
+        report.put(5L, PowerState.PowerOn); // not in the DB any more
+
+        List<Long> updated = _dao.updatePowerState(report, HOST_ID);
+
+        assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L, 3L)), new HashSet<Long>(updated));
+        // one update for the VMs that changed, one for the VMs that were confirmed
+        assertEquals(2, _dao._updates.size());
+        VMInstanceVO changed = _dao._updates.get(0);
+        assertEquals(PowerState.PowerOn, changed.getPowerState());
+        assertEquals(Long.valueOf(HOST_ID), changed.getPowerHostId());
+        assertEquals(1, changed.getPowerStateUpdateCount());
+        VMInstanceVO confirmed = _dao._updates.get(1);
+        assertEquals(2, confirmed.getPowerStateUpdateCount());
+    }
+
+    @Test
+    public void testBulkUpdatePowerStateWithoutReport() {
+        addInstance(1L, PowerState.PowerOff, HOST_ID, 1);
+
+        assertTrue(_dao.updatePowerState(new HashMap<Long, PowerState>(), HOST_ID).isEmpty());
+        assertTrue(_dao._updates.isEmpty());
+    }
+}
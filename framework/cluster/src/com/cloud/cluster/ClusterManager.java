@@ -39,6 +39,15 @@ public interface ClusterManager extends Manager {
      */
     String execute(String strPeer, long agentId, String cmds, boolean stopOnError);
 
+    /**
+     * Sends the commands to the peer without waiting for an answer.
+     * @param strPeer
+     * @param agentId
+     * @param cmds
+     * @param stopOnError
+     */
+    void executeAsync(String strPeer, long agentId, String cmds, boolean stopOnError);
+
     /**
      * Broadcast the command to all of the  management server nodes.
      * @param agentId agent id this broadcast is regarding
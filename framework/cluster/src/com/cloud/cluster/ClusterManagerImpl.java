@@ -32,6 +32,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -73,7 +75,8 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     private static final Logger s_logger = Logger.getLogger(ClusterManagerImpl.class);
 
     private static final int EXECUTOR_SHUTDOWN_TIMEOUT = 1000; // 1 second
-    private static final int DEFAULT_OUTGOING_WORKERS = 5;
+    private static final int OUTGOING_PDU_BATCH_SIZE = 20;
+    private static final long PEER_SENDER_MAX_IDLE_MS = 60000;
 
     private final List<ClusterManagerListener> _listeners = new ArrayList<ClusterManagerListener>();
     private final Map<Long, ManagementServerHostVO> _activePeers = new HashMap<Long, ManagementServerHostVO>();
@@ -115,7 +118,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     private String _clusterNodeIP = "127.0.0.1";
 
-    private final List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
+    private final ConcurrentMap<String, ClusterPeerSender> _peerSenders = new ConcurrentHashMap<String, ClusterPeerSender>();
     private final List<ClusterServicePdu> _clusterPduIncomingQueue = new ArrayList<ClusterServicePdu>();
     private final Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new HashMap<Long, ClusterServiceRequestPdu>();
 
@@ -175,26 +178,37 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     }
 
     private void addOutgoingClusterPdu(final ClusterServicePdu pdu) {
-        synchronized (_clusterPduOutgoingQueue) {
-            _clusterPduOutgoingQueue.add(pdu);
-            _clusterPduOutgoingQueue.notifyAll();
+        while (true) {
+            ClusterPeerSender sender = _peerSenders.get(pdu.getDestPeer());
+            if (sender == null) {
+                final ClusterPeerSender created = new ClusterPeerSender(pdu.getDestPeer(), this, OUTGOING_PDU_BATCH_SIZE, PEER_SENDER_MAX_IDLE_MS);
+                sender = _peerSenders.putIfAbsent(pdu.getDestPeer(), created);
+                if (sender == null) {
+                    sender = created;
+                    _executor.execute(getClusterPduSendingTask(created));
+                }
+            }
+
+            if (sender.offer(pdu)) {
+                return;
+            }
+            // the sender stopped after being idle, replace it
+            _peerSenders.remove(pdu.getDestPeer(), sender);
         }
     }
 
-    private ClusterServicePdu popOutgoingClusterPdu(final long timeoutMs) {
-        synchronized (_clusterPduOutgoingQueue) {
-            try {
-                _clusterPduOutgoingQueue.wait(timeoutMs);
-            } catch (final InterruptedException e) {
-            }
+    public ClusterPeerSender getPeerSender(final String strPeer) {
+        return _peerSenders.get(strPeer);
+    }
 
-            if (_clusterPduOutgoingQueue.size() > 0) {
-                final ClusterServicePdu pdu = _clusterPduOutgoingQueue.get(0);
-                _clusterPduOutgoingQueue.remove(0);
-                return pdu;
+    private void cancelOutgoingClusterPdusToPeer(final String strPeer) {
+        final ClusterPeerSender sender = _peerSenders.get(strPeer);
+        if (sender != null) {
+            final int dropped = sender.cancel();
+            if (dropped > 0) {
+                s_logger.warn("Dropped " + dropped + " outgoing cluster PDUs to peer: " + strPeer);
             }
         }
-        return null;
     }
 
     private void addIncomingClusterPdu(final ClusterServicePdu pdu) {
@@ -220,11 +234,15 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         return null;
     }
 
-    private Runnable getClusterPduSendingTask() {
+    private Runnable getClusterPduSendingTask(final ClusterPeerSender sender) {
         return new ManagedContextRunnable() {
             @Override
             protected void runInContext() {
-                onSendingClusterPdu();
+                try {
+                    sender.run();
+                } finally {
+                    _peerSenders.remove(sender.getPeer(), sender);
+                }
             }
         };
     }
@@ -238,60 +256,6 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         };
     }
 
-    private void onSendingClusterPdu() {
-        while (true) {
-            try {
-                final ClusterServicePdu pdu = popOutgoingClusterPdu(1000);
-                if (pdu == null) {
-                    continue;
-                }
-
-                ClusterService peerService = null;
-                for (int i = 0; i < 2; i++) {
-                    try {
-                        peerService = getPeerService(pdu.getDestPeer());
-                    } catch (final RemoteException e) {
-                        s_logger.error("Unable to get cluster service on peer : " + pdu.getDestPeer());
-                    }
-
-                    if (peerService != null) {
-                        try {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + ". agent: " + pdu.getAgentId() + ", pdu seq: " +
-                                        pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
-
-                            final Profiler profiler = new Profiler();
-                            profiler.start();
-
-                            final String strResult = peerService.execute(pdu);
-                            profiler.stop();
-
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + " completed. time: " +
-                                        profiler.getDurationInMillis() + "ms. agent: " + pdu.getAgentId() + ", pdu seq: " + pdu.getSequenceId() +
-                                        ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
-
-                            if ("true".equals(strResult)) {
-                                break;
-                            }
-
-                        } catch (final RemoteException e) {
-                            invalidatePeerService(pdu.getDestPeer());
-                            if (s_logger.isInfoEnabled()) {
-                                s_logger.info("Exception on remote execution, peer: " + pdu.getDestPeer() + ", iteration: " + i + ", exception message :" +
-                                        e.getMessage());
-                            }
-                        }
-                    }
-                }
-            } catch (final Throwable e) {
-                s_logger.error("Unexcpeted exception: ", e);
-            }
-        }
-    }
-
     private void onNotifyingClusterPdu() {
         while (true) {
             try {
@@ -376,6 +340,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
     }
 
+    @Override
     public void executeAsync(final String strPeer, final long agentId, final String cmds, final boolean stopOnError) {
         final ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(getSelfPeerName());
@@ -481,6 +446,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
                 s_logger.debug("Leaving node, IP: " + mshost.getServiceIP() + ", msid: " + mshost.getMsid());
             }
             cancelClusterRequestToPeer(String.valueOf(mshost.getMsid()));
+            cancelOutgoingClusterPdusToPeer(String.valueOf(mshost.getMsid()));
         }
 
         synchronized (_listeners) {
@@ -1056,10 +1022,6 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
             throw new ConfigurationException("cluster node IP should be valid local address where the server is running, please check your configuration");
         }
 
-        for (int i = 0; i < DEFAULT_OUTGOING_WORKERS; i++) {
-            _executor.execute(getClusterPduSendingTask());
-        }
-
         // notification task itself in turn works as a task dispatcher
         _executor.execute(getClusterPduNotificationTask());
 
@@ -28,4 +28,14 @@ public interface ClusterManagerMBean {
     public int getHeartbeatInterval();
 
     public int getHeartbeatThreshold();
+
+    public int getOutgoingPduQueueSize();
+
+    public long getSentPduCount();
+
+    public long getFailedPduCount();
+
+    public long getLastPduLatencyMs();
+
+    public long getAveragePduLatencyMs();
 }
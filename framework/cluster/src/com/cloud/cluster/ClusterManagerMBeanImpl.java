@@ -64,4 +64,38 @@ public class ClusterManagerMBeanImpl extends StandardMBean implements ClusterMan
     public int getHeartbeatThreshold() {
         return ClusterManager.HeartbeatThreshold.value();
     }
+
+    @Override
+    public int getOutgoingPduQueueSize() {
+        ClusterPeerSender sender = getPeerSender();
+        return sender != null ? sender.getQueueSize() : 0;
+    }
+
+    @Override
+    public long getSentPduCount() {
+        ClusterPeerSender sender = getPeerSender();
+        return sender != null ? sender.getSentPduCount() : 0;
+    }
+
+    @Override
+    public long getFailedPduCount() {
+        ClusterPeerSender sender = getPeerSender();
+        return sender != null ? sender.getFailedPduCount() : 0;
+    }
+
+    @Override
+    public long getLastPduLatencyMs() {
+        ClusterPeerSender sender = getPeerSender();
+        return sender != null ? sender.getLastLatencyMs() : 0;
+    }
+
+    @Override
+    public long getAveragePduLatencyMs() {
+        ClusterPeerSender sender = getPeerSender();
+        return sender != null ? sender.getAverageLatencyMs() : 0;
+    }
+
+    private ClusterPeerSender getPeerSender() {
+        return _clusterMgr.getPeerSender(String.valueOf(_mshostVo.getMsid()));
+    }
 }
@@ -0,0 +1,221 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Profiler;
+
+/**
+ * Outgoing PDU queue of a single peer, drained by its own sender so a slow or dead peer only
+ * delays the PDUs addressed to it. Everything queued while a delivery is in flight, up to the
+ * batch size, goes to the peer in a single request over the kept-alive connection to it.
+ *
+ * The sender stops after being idle for a while, a stopped sender refuses new PDUs so the
+ * caller starts a new one.
+ */
+public class ClusterPeerSender implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(ClusterPeerSender.class);
+
+    private static final int SEND_ATTEMPTS = 2;
+    private static final long POLL_TIMEOUT_MS = 1000;
+
+    private final String _peer;
+    private final ClusterManagerImpl _clusterMgr;
+    private final int _batchSize;
+    private final long _maxIdleMs;
+    private final BlockingQueue<ClusterServicePdu> _queue = new LinkedBlockingQueue<ClusterServicePdu>();
+    private boolean _stopped = false;
+
+    private final AtomicLong _sentPdus = new AtomicLong();
+    private final AtomicLong _sentRequests = new AtomicLong();
+    private final AtomicLong _failedPdus = new AtomicLong();
+    private final AtomicLong _totalLatencyMs = new AtomicLong();
+    private volatile long _lastLatencyMs;
+
+    public ClusterPeerSender(final String peer, final ClusterManagerImpl clusterMgr, final int batchSize, final long maxIdleMs) {
+        _peer = peer;
+        _clusterMgr = clusterMgr;
+        _batchSize = batchSize;
+        _maxIdleMs = maxIdleMs;
+    }
+
+    public String getPeer() {
+        return _peer;
+    }
+
+    /**
+     * @return false if the sender has stopped and the PDU was not queued
+     */
+    public synchronized boolean offer(final ClusterServicePdu pdu) {
+        if (_stopped) {
+            return false;
+        }
+        _queue.add(pdu);
+        return true;
+    }
+
+    /**
+     * Drops the queued PDUs, e.g. when the peer has left the cluster.
+     *
+     * @return the number of PDUs dropped
+     */
+    public int cancel() {
+        final List<ClusterServicePdu> dropped = new ArrayList<ClusterServicePdu>();
+        _queue.drainTo(dropped);
+        _failedPdus.addAndGet(dropped.size());
+        return dropped.size();
+    }
+
+    @Override
+    public void run() {
+        long idleMs = 0;
+        final List<ClusterServicePdu> batch = new ArrayList<ClusterServicePdu>(_batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            final ClusterServicePdu pdu;
+            try {
+                pdu = _queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                break;
+            }
+
+            if (pdu == null) {
+                idleMs += POLL_TIMEOUT_MS;
+                if (idleMs >= _maxIdleMs && stopIfIdle()) {
+                    return;
+                }
+                continue;
+            }
+            idleMs = 0;
+
+            batch.add(pdu);
+            _queue.drainTo(batch, _batchSize - 1);
+            try {
+                send(batch);
+            } catch (final Throwable e) {
+                s_logger.error("Unexpected exception while sending cluster PDUs to peer " + _peer, e);
+            }
+            batch.clear();
+        }
+        synchronized (this) {
+            _stopped = true;
+        }
+    }
+
+    private synchronized boolean stopIfIdle() {
+        if (_queue.isEmpty()) {
+            _stopped = true;
+        }
+        return _stopped;
+    }
+
+    protected void send(final List<ClusterServicePdu> batch) {
+        for (int i = 0; i < SEND_ATTEMPTS; i++) {
+            ClusterService peerService = null;
+            try {
+                peerService = _clusterMgr.getPeerService(_peer);
+            } catch (final RemoteException e) {
+                s_logger.error("Unable to get cluster service on peer : " + _peer);
+            }
+            if (peerService == null) {
+                continue;
+            }
+
+            try {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cluster PDUs " + _clusterMgr.getSelfPeerName() + " -> " + _peer + ", count: " + batch.size() + ", pdu seqs: " + getSequenceIds(batch));
+                }
+
+                final Profiler profiler = new Profiler();
+                profiler.start();
+                final String strResult = batch.size() == 1 ? peerService.execute(batch.get(0)) : peerService.execute(batch);
+                profiler.stop();
+
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cluster PDUs " + _clusterMgr.getSelfPeerName() + " -> " + _peer + " completed. time: " + profiler.getDurationInMillis() + "ms. count: " +
+                            batch.size() + ", result: " + strResult);
+                }
+
+                if ("true".equals(strResult)) {
+                    _lastLatencyMs = profiler.getDurationInMillis();
+                    _totalLatencyMs.addAndGet(_lastLatencyMs);
+                    _sentRequests.incrementAndGet();
+                    _sentPdus.addAndGet(batch.size());
+                    return;
+                }
+            } catch (final RemoteException e) {
+                _clusterMgr.invalidatePeerService(_peer);
+                if (s_logger.isInfoEnabled()) {
+                    s_logger.info("Exception on remote execution, peer: " + _peer + ", iteration: " + i + ", exception message :" + e.getMessage());
+                }
+            }
+        }
+
+        _failedPdus.addAndGet(batch.size());
+        s_logger.warn("Unable to deliver " + batch.size() + " cluster PDUs to peer " + _peer + ", pdu seqs: " + getSequenceIds(batch));
+    }
+
+    private static String getSequenceIds(final List<ClusterServicePdu> batch) {
+        final StringBuilder sb = new StringBuilder();
+        for (final ClusterServicePdu pdu : batch) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(pdu.getSequenceId());
+        }
+        return sb.toString();
+    }
+
+    public int getQueueSize() {
+        return _queue.size();
+    }
+
+    public long getSentPduCount() {
+        return _sentPdus.get();
+    }
+
+    public long getSentRequestCount() {
+        return _sentRequests.get();
+    }
+
+    public long getFailedPduCount() {
+        return _failedPdus.get();
+    }
+
+    public long getLastLatencyMs() {
+        return _lastLatencyMs;
+    }
+
+    public long getAverageLatencyMs() {
+        final long requests = _sentRequests.get();
+        return requests > 0 ? _totalLatencyMs.get() / requests : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Cluster peer " + _peer + " [queued=" + getQueueSize() + ", sent=" + getSentPduCount() + " in " + getSentRequestCount() + " requests, failed=" +
+                getFailedPduCount() + ", last latency=" + getLastLatencyMs() + "ms, average latency=" + getAverageLatencyMs() + "ms]";
+    }
+}
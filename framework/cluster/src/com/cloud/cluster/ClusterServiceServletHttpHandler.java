@@ -18,7 +18,9 @@ package com.cloud.cluster;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.lang.reflect.Type;
 import java.net.URLDecoder;
+import java.util.List;
 
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -31,8 +33,14 @@ import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
 public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
     private static final Logger s_logger = Logger.getLogger(ClusterServiceServletHttpHandler.class);
+    private static final Gson s_gson = new Gson();
+    private static final Type s_pduListType = new TypeToken<List<ClusterServicePdu>>() {
+    }.getType();
 
     private final ClusterManager manager;
 
@@ -127,6 +135,10 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
                     responseContent = handleDeliverPduMethodCall(req);
                     break;
 
+                case RemoteMethodConstants.METHOD_DELIVER_PDUS:
+                    responseContent = handleDeliverPdusMethodCall(req);
+                    break;
+
                 case RemoteMethodConstants.METHOD_PING:
                     responseContent = handlePingMethodCall(req);
                     break;
@@ -179,6 +191,16 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         return "true";
     }
 
+    private String handleDeliverPdusMethodCall(HttpRequest req) {
+        String pdus = (String)req.getParams().getParameter("pdus");
+
+        List<ClusterServicePdu> pduList = s_gson.fromJson(pdus, s_pduListType);
+        for (ClusterServicePdu pdu : pduList) {
+            manager.OnReceiveClusterServicePdu(pdu);
+        }
+        return "true";
+    }
+
     private String handlePingMethodCall(HttpRequest req) {
         String callingPeer = (String)req.getParams().getParameter("callingPeer");
 
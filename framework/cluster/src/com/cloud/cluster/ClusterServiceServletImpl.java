@@ -18,6 +18,7 @@ package com.cloud.cluster;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.List;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
@@ -28,6 +29,7 @@ import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.Profiler;
+import com.google.gson.Gson;
 
 public class ClusterServiceServletImpl implements ClusterService {
     private static final long serialVersionUID = 4574025200012566153L;
@@ -36,6 +38,7 @@ public class ClusterServiceServletImpl implements ClusterService {
     private String _serviceUrl;
 
     protected static HttpClient s_client = null;
+    private static final Gson s_gson = new Gson();
 
     public ClusterServiceServletImpl() {
     }
@@ -66,6 +69,18 @@ public class ClusterServiceServletImpl implements ClusterService {
         return executePostMethod(client, method);
     }
 
+    @Override
+    public String execute(final List<ClusterServicePdu> pdus) throws RemoteException {
+
+        final HttpClient client = getHttpClient();
+        final PostMethod method = new PostMethod(_serviceUrl);
+
+        method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_DELIVER_PDUS));
+        method.addParameter("pdus", s_gson.toJson(pdus));
+
+        return executePostMethod(client, method);
+    }
+
     @Override
     public boolean ping(final String callingPeer) throws RemoteException {
         if (s_logger.isDebugEnabled()) {
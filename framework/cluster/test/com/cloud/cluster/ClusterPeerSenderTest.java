@@ -0,0 +1,114 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClusterPeerSenderTest {
+
+    ClusterManagerImpl clusterMgr;
+    ClusterService peerService;
+
+    @Before
+    public void setup() throws RemoteException {
+        clusterMgr = mock(ClusterManagerImpl.class);
+        peerService = mock(ClusterService.class);
+        when(clusterMgr.getPeerService("2")).thenReturn(peerService);
+        when(clusterMgr.getSelfPeerName()).thenReturn("1");
+    }
+
+    private static ClusterServicePdu createPdu() {
+        ClusterServicePdu pdu = new ClusterServicePdu();
+        pdu.setSourcePeer("1");
+        pdu.setDestPeer("2");
+        return pdu;
+    }
+
+    @Test
+    public void testQueuedPdusAreSentInOneRequest() throws Exception {
+        when(peerService.execute(anyListOf(ClusterServicePdu.class))).thenReturn("true");
+
+        ClusterPeerSender sender = new ClusterPeerSender("2", clusterMgr, 20, 1000);
+        assertTrue(sender.offer(createPdu()));
+        assertTrue(sender.offer(createPdu()));
+        assertTrue(sender.offer(createPdu()));
+        assertEquals(3, sender.getQueueSize());
+
+        // delivers the batch, then stops once idle
+        sender.run();
+
+        verify(peerService, times(1)).execute(anyListOf(ClusterServicePdu.class));
+        verify(peerService, never()).execute(any(ClusterServicePdu.class));
+        assertEquals(0, sender.getQueueSize());
+        assertEquals(3, sender.getSentPduCount());
+        assertEquals(1, sender.getSentRequestCount());
+        assertFalse(sender.offer(createPdu()));
+    }
+
+    @Test
+    public void testSinglePduUsesSingleDelivery() throws Exception {
+        when(peerService.execute(any(ClusterServicePdu.class))).thenReturn("true");
+
+        ClusterPeerSender sender = new ClusterPeerSender("2", clusterMgr, 20, 1000);
+        sender.send(Arrays.asList(createPdu()));
+
+        verify(peerService, times(1)).execute(any(ClusterServicePdu.class));
+        assertEquals(1, sender.getSentPduCount());
+        assertEquals(0, sender.getFailedPduCount());
+    }
+
+    @Test
+    public void testFailedDeliveryIsRetriedOnce() throws Exception {
+        when(peerService.execute(anyListOf(ClusterServicePdu.class))).thenThrow(new RemoteException("peer is down"));
+
+        ClusterPeerSender sender = new ClusterPeerSender("2", clusterMgr, 20, 1000);
+        List<ClusterServicePdu> batch = Arrays.asList(createPdu(), createPdu());
+        sender.send(batch);
+
+        verify(peerService, times(2)).execute(anyListOf(ClusterServicePdu.class));
+        verify(clusterMgr, times(2)).invalidatePeerService("2");
+        assertEquals(0, sender.getSentPduCount());
+        assertEquals(2, sender.getFailedPduCount());
+    }
+
+    @Test
+    public void testCancelDropsQueuedPdus() {
+        ClusterPeerSender sender = new ClusterPeerSender("2", clusterMgr, 20, 1000);
+        sender.offer(createPdu());
+        sender.offer(createPdu());
+
+        assertEquals(2, sender.cancel());
+        assertEquals(0, sender.getQueueSize());
+        assertEquals(2, sender.getFailedPduCount());
+    }
+}
@@ -0,0 +1,119 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+/**
+ * Entity caches backed by Ehcache, local to the management server.
+ */
+public class EhcacheEntityCacheProvider implements EntityCacheProvider {
+
+    @Override
+    public <ID, T> EntityCache<ID, T> createCache(final String name, final EntityCachePolicy policy) {
+        final CacheManager cm = CacheManager.create();
+        final Cache cache = new Cache(name, policy.getMaxElements(), false, policy.isEternal(), policy.isEternal() ? Integer.MAX_VALUE : policy.getTimeToLive(),
+                policy.getTimeToIdle());
+        cm.addCache(cache);
+        return new EhcacheEntityCache<ID, T>(cache);
+    }
+
+    protected static class EhcacheEntityCache<ID, T> implements EntityCache<ID, T> {
+        private final Cache _cache;
+        private final AtomicLong _hits = new AtomicLong();
+        private final AtomicLong _misses = new AtomicLong();
+        private final AtomicLong _evictions = new AtomicLong();
+
+        public EhcacheEntityCache(final Cache cache) {
+            _cache = cache;
+            _cache.getCacheEventNotificationService().registerListener(new CacheEventListenerAdapter() {
+                @Override
+                public void notifyElementEvicted(final Ehcache cache, final Element element) {
+                    _evictions.incrementAndGet();
+                }
+
+                @Override
+                public void notifyElementExpired(final Ehcache cache, final Element element) {
+                    _evictions.incrementAndGet();
+                }
+            });
+        }
+
+        @Override
+        public String getName() {
+            return _cache.getName();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(final ID id) {
+            final Element element = _cache.get(id);
+            if (element == null) {
+                _misses.incrementAndGet();
+                return null;
+            }
+            _hits.incrementAndGet();
+            return (T)element.getObjectValue();
+        }
+
+        @Override
+        public void put(final ID id, final T entity) {
+            _cache.put(new Element(id, entity));
+        }
+
+        @Override
+        public void remove(final ID id) {
+            _cache.remove(id);
+        }
+
+        @Override
+        public void clear() {
+            _cache.removeAll();
+        }
+
+        @Override
+        public int getSize() {
+            return _cache.getSize();
+        }
+
+        @Override
+        public long getHits() {
+            return _hits.get();
+        }
+
+        @Override
+        public long getMisses() {
+            return _misses.get();
+        }
+
+        @Override
+        public long getEvictions() {
+            return _evictions.get();
+        }
+
+        @Override
+        public String toString() {
+            return _cache.toString();
+        }
+    }
+}
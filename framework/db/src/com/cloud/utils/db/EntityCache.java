@@ -0,0 +1,46 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+/**
+ * Second level cache of the entities of one DAO, keyed by id.
+ */
+public interface EntityCache<ID, T> {
+    String getName();
+
+    /**
+     * @return the cached entity or null on a miss
+     */
+    T get(ID id);
+
+    void put(ID id, T entity);
+
+    void remove(ID id);
+
+    void clear();
+
+    int getSize();
+
+    long getHits();
+
+    long getMisses();
+
+    /**
+     * @return entities dropped because the cache was full or their time to live ran out
+     */
+    long getEvictions();
+}
@@ -0,0 +1,31 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.io.Serializable;
+
+/**
+ * Told about every entity GenericDaoBase drops from a cache because it was updated,
+ * removed or expunged, so that other management servers can drop it as well.
+ */
+public interface EntityCacheListener {
+    /**
+     * @param cacheName name of the cache, the same as the name of the DAO
+     * @param id id of the entity, null when the whole cache was cleared
+     */
+    void invalidated(String cacheName, Serializable id);
+}
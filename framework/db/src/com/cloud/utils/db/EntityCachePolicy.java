@@ -0,0 +1,73 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.Map;
+
+import com.cloud.utils.NumbersUtil;
+
+/**
+ * Size and expiry of an entity cache, read from the DAO configuration parameters
+ * cache.size, cache.time.to.live and cache.time.to.idle.  A time to live of -1
+ * keeps the entities until they are evicted or invalidated.
+ */
+public class EntityCachePolicy {
+    private final int _maxElements;
+    private final int _timeToLive;
+    private final int _timeToIdle;
+
+    public EntityCachePolicy(final int maxElements, final int timeToLive, final int timeToIdle) {
+        _maxElements = maxElements;
+        _timeToLive = timeToLive;
+        _timeToIdle = timeToIdle;
+    }
+
+    /**
+     * @return the policy, or null if the DAO is not configured with a cache
+     */
+    public static EntityCachePolicy fromParams(final Map<String, ? extends Object> params) {
+        final String value = (String)params.get("cache.size");
+        if (value == null) {
+            return null;
+        }
+        final int maxElements = NumbersUtil.parseInt(value, 0);
+        final int live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
+        final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
+        return new EntityCachePolicy(maxElements, live, idle);
+    }
+
+    public int getMaxElements() {
+        return _maxElements;
+    }
+
+    public int getTimeToLive() {
+        return _timeToLive;
+    }
+
+    public int getTimeToIdle() {
+        return _timeToIdle;
+    }
+
+    public boolean isEternal() {
+        return _timeToLive == -1;
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + _maxElements + ", ttl=" + _timeToLive + ", tti=" + _timeToIdle;
+    }
+}
@@ -17,11 +17,14 @@
 package com.cloud.utils.db;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.persistence.Column;
 
 import com.cloud.utils.Pair;
 import com.cloud.utils.ReflectUtil;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 /**
  *  Try to use static initialization to help you in finding incorrect
@@ -37,6 +40,10 @@ public class Filter {
     Long _offset;
     Long _limit;
     String _orderBy;
+    List<Field> _orderFields = new ArrayList<Field>();
+    List<String> _orderColumns = new ArrayList<String>();
+    List<Boolean> _orderAscending = new ArrayList<Boolean>();
+    Object[] _seekAfter;
 
     /**
      * @param clazz the VO object type
@@ -61,6 +68,9 @@ public class Filter {
      */
     public Filter(Filter that) {
         this._orderBy = that._orderBy;
+        this._orderFields.addAll(that._orderFields);
+        this._orderColumns.addAll(that._orderColumns);
+        this._orderAscending.addAll(that._orderAscending);
         this._limit = null;
         that._limit = null;
     }
@@ -84,12 +94,16 @@ public class Filter {
         } else {
             order.append(column.table());
         }
-        order.append(".").append(name).append(ascending ? " ASC " : " DESC ");
+        order.append(".").append(name);
+        _orderFields.add(f);
+        _orderColumns.add(order.toString());
+        _orderAscending.add(ascending);
+        order.append(ascending ? " ASC " : " DESC ");
 
         if (_orderBy == null) {
             _orderBy = order.insert(0, " ORDER BY ").toString();
         } else {
-            _orderBy = order.insert(0, _orderBy).toString();
+            _orderBy = order.insert(0, _orderBy + ", ").toString();
         }
     }
 
@@ -112,4 +126,88 @@ public class Filter {
     public void setLimit(Long limit) {
         _limit = limit;
     }
+
+    /**
+     * @return the fields of the order by columns, in order
+     */
+    public List<Field> getOrderFields() {
+        return _orderFields;
+    }
+
+    /**
+     * Switches the filter to keyset (seek) pagination.  Only rows that come after the given values
+     * in the order by columns are returned and the offset is ignored, so a deep page costs the same
+     * as the first one.  The values are the ones of the last row of the previous page, one for each
+     * leading order by column.  The last of those columns has to be unique, typically the id, and
+     * none of them may be null.
+     * @param values values of the leading order by columns of the last row seen, none to go back to offset paging.
+     */
+    public void setSeekAfter(Object... values) {
+        assert (values.length <= _orderColumns.size()) : "Keyset pagination needs an order by column for each value";
+        _seekAfter = values.length > 0 ? values : null;
+    }
+
+    /**
+     * Switches the filter to keyset pagination after row, the last row of the previous page, on all order by columns.
+     */
+    public void setSeekAfterRow(Object row) {
+        Object[] values = new Object[_orderFields.size()];
+        for (int i = 0; i < values.length; i++) {
+            Field field = _orderFields.get(i);
+            field.setAccessible(true);
+            try {
+                values[i] = field.get(row);
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to read " + field.getName() + " of " + row, e);
+            }
+        }
+        setSeekAfter(values);
+    }
+
+    public Object[] getSeekAfter() {
+        return _seekAfter;
+    }
+
+    /**
+     * Rows after the seek values are the ones greater (or smaller for a descending column) in the first
+     * column, or equal in the first column and after the values in the remaining ones.
+     * @return the condition selecting the rows after the seek values or null if this is not a keyset filter.
+     */
+    public String getSeekCondition() {
+        if (_seekAfter == null) {
+            return null;
+        }
+        StringBuilder condition = new StringBuilder();
+        for (int i = 0; i < _seekAfter.length; i++) {
+            if (i > 0) {
+                condition.append(" OR ");
+            }
+            if (_seekAfter.length > 1 && i > 0) {
+                condition.append("(");
+            }
+            for (int j = 0; j < i; j++) {
+                condition.append(_orderColumns.get(j)).append(" = ? AND ");
+            }
+            condition.append(_orderColumns.get(i)).append(_orderAscending.get(i) ? " > ?" : " < ?");
+            if (_seekAfter.length > 1 && i > 0) {
+                condition.append(")");
+            }
+        }
+        return _seekAfter.length > 1 ? "(" + condition + ")" : condition.toString();
+    }
+
+    /**
+     * @return the fields and values to set on the parameters of the seek condition, in order.
+     */
+    public List<Pair<Field, Object>> getSeekParameters() {
+        List<Pair<Field, Object>> parameters = new ArrayList<Pair<Field, Object>>();
+        if (_seekAfter != null) {
+            for (int i = 0; i < _seekAfter.length; i++) {
+                for (int j = 0; j <= i; j++) {
+                    parameters.add(new Pair<Field, Object>(_orderFields.get(j), _seekAfter[j]));
+                }
+            }
+        }
+        return parameters;
+    }
 }
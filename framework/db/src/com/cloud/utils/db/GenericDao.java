@@ -199,6 +199,14 @@ public interface GenericDao<T, ID extends Serializable> {
      **/
     T persist(T entity);
 
+    /**
+     * Persist the entity beans with batched inserts.  The id field of each
+     * entity is updated with its new id but, unlike persist(), the entities
+     * are not read back from the database.
+     * @param entities the beans to persist.
+     **/
+    void persistAll(List<T> entities);
+
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
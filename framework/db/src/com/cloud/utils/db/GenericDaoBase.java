@@ -20,6 +20,7 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.MalformedURLException;
@@ -39,11 +40,15 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.ConfigurationException;
 import javax.persistence.AttributeOverride;
@@ -61,9 +66,6 @@ import net.sf.cglib.proxy.Enhancer;
 import net.sf.cglib.proxy.Factory;
 import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.NoOp;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
 
 import org.apache.log4j.Logger;
 
@@ -160,6 +162,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
 
+    // rows sent in one JDBC batch by persistAll()
+    protected static final int s_batchSize = Integer.getInteger("cloud.dao.batch.size", 500);
+
     public static <J> GenericDao<? extends J, ? extends Serializable> getDao(Class<J> entityType) {
         @SuppressWarnings("unchecked")
         GenericDao<? extends J, ? extends Serializable> dao = (GenericDao<? extends J, ? extends Serializable>)s_daoMaps.get(entityType);
@@ -368,10 +373,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             clause = null;
         }
 
-        final StringBuilder str = createPartialSelectSql(sc, clause != null, enableQueryCache);
-        if (clause != null) {
-            str.append(clause);
-        }
+        final String seek = filter != null ? filter.getSeekCondition() : null;
+        final StringBuilder str = createPartialSelectSql(sc, clause != null || seek != null, enableQueryCache);
+        addWhereClause(str, clause, seek);
 
         Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
         if (sc != null) {
@@ -403,6 +407,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 }
             }
 
+            if (seek != null) {
+                i = addSeekParameters(i, pstmt, filter);
+            }
+
             if (joins != null) {
                 i = addJoinAttributes(i, pstmt, joins);
             }
@@ -416,9 +424,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             if (s_logger.isDebugEnabled() && lock != null) {
                 txn.registerLock(pstmt.toString());
             }
+            final long generation = _cacheGeneration.get();
             final ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
-                result.add(toEntityBean(rs, cache));
+                result.add(toEntityBean(rs, cache, generation));
             }
             return result;
         } catch (final SQLException e) {
@@ -442,10 +451,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             clause = null;
         }
 
-        final StringBuilder str = createPartialSelectSql(sc, clause != null);
-        if (clause != null) {
-            str.append(clause);
-        }
+        final String seek = filter != null ? filter.getSeekCondition() : null;
+        final StringBuilder str = createPartialSelectSql(sc, clause != null || seek != null);
+        addWhereClause(str, clause, seek);
 
         Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
         joins = sc.getJoins();
@@ -469,6 +477,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 }
             }
 
+            if (seek != null) {
+                i = addSeekParameters(i, pstmt, filter);
+            }
+
             if (joins != null) {
                 i = addJoinAttributes(i, pstmt, joins);
             }
@@ -785,13 +797,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
-        if (_cache != null) {
-            _cache.remove(id);
-        }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
+        invalidate(id);
 
         try {
             if (ub.getCollectionChanges() != null) {
@@ -801,7 +811,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Unable to persist element collection", e);
         }
 
-        int rowsUpdated = update(ub, sc, null);
+        int rowsUpdated = updateRows(ub, sc, null);
 
         txn.commit();
 
@@ -809,6 +819,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     public int update(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
+        int result = updateRows(ub, sc, rows);
+        if (result > 0) {
+            invalidateMatched(sc);
+        }
+        return result;
+    }
+
+    protected int updateRows(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
         StringBuilder sql = null;
         PreparedStatement pstmt = null;
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
@@ -938,11 +956,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @Override
     @DB()
-    @SuppressWarnings("unchecked")
     public T findById(final ID id) {
         if (_cache != null) {
-            final Element element = _cache.get(id);
-            return element == null ? lockRow(id, null) : (T)element.getObjectValue();
+            final T entity = _cache.get(id);
+            return entity == null ? lockRow(id, null) : copyOf(entity);
         } else {
             return lockRow(id, null);
         }
@@ -1006,8 +1023,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 prepareAttribute(1, pstmt, _idAttributes.get(_table)[0], id);
             }
 
+            long generation = _cacheGeneration.get();
             ResultSet rs = pstmt.executeQuery();
-            return rs.next() ? toEntityBean(rs, true) : null;
+            return rs.next() ? toEntityBean(rs, true, generation) : null;
         } catch (SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         }
@@ -1082,13 +1100,43 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
     }
 
+    /**
+     * Appends the where clause of the search criteria and the keyset condition of the filter, either may be null.
+     */
+    protected void addWhereClause(final StringBuilder sql, final String clause, final String seek) {
+        if (clause != null && seek != null) {
+            sql.append("(").append(clause).append(") AND ").append(seek);
+        } else if (clause != null) {
+            sql.append(clause);
+        } else if (seek != null) {
+            sql.append(seek);
+        }
+    }
+
+    protected int addSeekParameters(int i, final PreparedStatement pstmt, final Filter filter) throws SQLException {
+        for (final Pair<Field, Object> parameter : filter.getSeekParameters()) {
+            final Attribute attr = findAttributeByFieldName(parameter.first().getName());
+            if (attr != null) {
+                prepareAttribute(i++, pstmt, attr, parameter.second());
+            } else {
+                pstmt.setObject(i++, parameter.second());
+            }
+        }
+        return i;
+    }
+
     @DB()
     protected void addFilter(final StringBuilder sql, final Filter filter) {
         if (filter != null) {
             if (filter.getOrderBy() != null) {
                 sql.append(filter.getOrderBy());
             }
-            if (filter.getOffset() != null) {
+            if (filter.getSeekAfter() != null) {
+                // keyset pagination, the where clause already skips the rows of the previous pages
+                if (filter.getLimit() != null) {
+                    sql.append(" LIMIT ").append(filter.getLimit());
+                }
+            } else if (filter.getOffset() != null) {
                 sql.append(" LIMIT ");
                 sql.append(filter.getOffset());
                 if (filter.getLimit() != null) {
@@ -1118,9 +1166,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 pstmt.setObject(++i, param);
             }
 
+            final long generation = _cacheGeneration.get();
             final ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
-                result.add(toEntityBean(rs, true));
+                result.add(toEntityBean(rs, true, generation));
             }
             return result;
         } catch (final SQLException e) {
@@ -1169,10 +1218,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 pstmt.executeUpdate();
             }
 
+            invalidate(id);
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1204,7 +1251,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            final int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateMatched(sc);
+            }
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1408,6 +1459,79 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    @DB()
+    @SuppressWarnings("unchecked")
+    public void persistAll(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return;
+        }
+
+        final List<T> inserts = new ArrayList<T>(entities.size());
+        for (final T entity : entities) {
+            if (Enhancer.isEnhanced(entity.getClass())) {
+                persist(entity);
+            } else {
+                inserts.add(entity);
+            }
+        }
+
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            for (int from = 0; from < inserts.size(); from += s_batchSize) {
+                final List<T> batch = inserts.subList(from, Math.min(from + s_batchSize, inserts.size()));
+
+                // the first table generates the ids, the tables after it are keyed by them
+                boolean first = true;
+                for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                    final Attribute[] attrs = pair.second();
+                    pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+                    for (final T entity : batch) {
+                        prepareAttributes(pstmt, entity, attrs, 1);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+
+                    if (first && _idField != null) {
+                        final ResultSet rs = pstmt.getGeneratedKeys();
+                        for (final T entity : batch) {
+                            if (rs != null && rs.next()) {
+                                _idField.set(entity, rs.getObject(1));
+                            }
+                        }
+                    }
+                    first = false;
+                }
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (final T entity : inserts) {
+                    final HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (final Attribute attr : _ecAttributes) {
+                        final Object ec = attr.field.get(entity);
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], (ID)_idField.get(entity), ecAttributes);
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("Problem with setting the id ", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with setting the id ", e);
+        }
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
@@ -1586,24 +1710,30 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return j;
     }
 
-    @SuppressWarnings("unchecked")
     @DB()
     protected T toEntityBean(final ResultSet result, final boolean cache) throws SQLException {
+        return toEntityBean(result, cache, _cacheGeneration.get());
+    }
+
+    /**
+     * @param generation cache generation read before the query ran, the entity is not cached
+     * if anything was invalidated since then
+     */
+    @SuppressWarnings("unchecked")
+    @DB()
+    protected T toEntityBean(final ResultSet result, final boolean cache, final long generation) throws SQLException {
         final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
 
         toEntityBean(result, entity);
 
-        if (cache && _cache != null) {
-            try {
-                _cache.put(new Element(_idField.get(entity), entity));
-            } catch (final Exception e) {
-                s_logger.debug("Can't put it in the cache", e);
-            }
+        if (cache) {
+            cacheEntity(entity, generation);
         }
 
         return entity;
     }
 
+    @SuppressWarnings("unchecked")
     @DB()
     protected T toVO(ResultSet result, boolean cache) throws SQLException {
         T entity;
@@ -1615,17 +1745,38 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Illegal Access", e1);
         }
         toEntityBean(result, entity);
-        if (cache && _cache != null) {
-            try {
-                _cache.put(new Element(_idField.get(entity), entity));
-            } catch (final Exception e) {
-                s_logger.debug("Can't put it in the cache", e);
-            }
+        if (cache) {
+            cacheEntity(entity, _cacheGeneration.get());
         }
 
         return entity;
     }
 
+    /**
+     * Rows read inside a transaction may not be committed yet, and rows read before an
+     * invalidation may be stale, neither are cached.
+     */
+    @SuppressWarnings("unchecked")
+    protected void cacheEntity(final T entity, final long generation) {
+        if (_cache == null || _cacheGeneration.get() != generation) {
+            return;
+        }
+        final TransactionLegacy txn = TransactionLegacy.currentTxn(false);
+        if (txn != null && txn.dbTxnStarted()) {
+            return;
+        }
+        try {
+            final ID id = (ID)_idField.get(entity);
+            _cache.put(id, copyOf(entity));
+            // an invalidation that ran while the entity was put may have missed it
+            if (_cacheGeneration.get() != generation) {
+                _cache.remove(id);
+            }
+        } catch (final Exception e) {
+            s_logger.debug("Can't put it in the cache", e);
+        }
+    }
+
     @DB()
     protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
         ResultSetMetaData meta = result.getMetaData();
@@ -1722,7 +1873,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             txn.start();
             pstmt = txn.prepareAutoCloseStatement(sql.toString());
 
-            pstmt.executeUpdate();
+            if (pstmt.executeUpdate() > 0) {
+                invalidateAll();
+            }
             txn.commit();
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on " + pstmt, e);
@@ -1762,10 +1915,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             final int result = pstmt.executeUpdate();
+            invalidate(id);
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1785,20 +1936,209 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return update(ub, sc, null);
     }
 
-    protected Cache _cache;
+    protected EntityCache<ID, T> _cache;
+    // bumped before every invalidation, so that rows read before it are not cached afterwards
+    protected final AtomicLong _cacheGeneration = new AtomicLong();
+    protected List<Field> _cachedFields;
+
+    protected static final Map<String, GenericDaoBase<?, ? extends Serializable>> s_cachedDaos = new ConcurrentHashMap<String, GenericDaoBase<?, ? extends Serializable>>();
+    protected static volatile EntityCacheProvider s_cacheProvider;
+    protected static volatile EntityCacheListener s_cacheListener;
+
+    public static void setEntityCacheListener(final EntityCacheListener listener) {
+        s_cacheListener = listener;
+    }
+
+    protected static EntityCacheProvider getEntityCacheProvider() {
+        if (s_cacheProvider == null) {
+            final String clazz = System.getProperty("cloud.dao.cache.provider");
+            if (clazz == null) {
+                s_cacheProvider = new EhcacheEntityCacheProvider();
+            } else {
+                try {
+                    s_cacheProvider = (EntityCacheProvider)Class.forName(clazz).newInstance();
+                } catch (final Exception e) {
+                    throw new CloudRuntimeException("Unable to create entity cache provider " + clazz, e);
+                }
+            }
+        }
+        return s_cacheProvider;
+    }
+
+    /**
+     * @return the entity caches of all the DAOs that have one, to report their hit, miss and eviction counts
+     */
+    public static List<EntityCache<?, ?>> getEntityCaches() {
+        final List<EntityCache<?, ?>> caches = new ArrayList<EntityCache<?, ?>>(s_cachedDaos.size());
+        for (final GenericDaoBase<?, ? extends Serializable> dao : s_cachedDaos.values()) {
+            caches.add(dao._cache);
+        }
+        return caches;
+    }
+
+    /**
+     * Drops an entity that was changed by another management server from the local cache.
+     *
+     * @param id id of the entity, null to clear the whole cache
+     */
+    @SuppressWarnings("unchecked")
+    public static void invalidateCache(final String cacheName, final Serializable id) {
+        final GenericDaoBase<?, Serializable> dao = (GenericDaoBase<?, Serializable>)s_cachedDaos.get(cacheName);
+        if (dao == null) {
+            return;
+        }
+        dao._cacheGeneration.incrementAndGet();
+        if (id == null) {
+            dao._cache.clear();
+        } else {
+            dao._cache.remove(id);
+        }
+    }
+
+    /**
+     * Drops the entity from the cache right away and once more after the transaction of this
+     * thread commits, as other threads can read and cache the old row until then. The other
+     * management servers are told only after the commit.
+     */
+    protected void invalidate(final ID id) {
+        if (_cache == null) {
+            return;
+        }
+        _cacheGeneration.incrementAndGet();
+        _cache.remove(id);
+        TransactionLegacy.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _cacheGeneration.incrementAndGet();
+                _cache.remove(id);
+                final EntityCacheListener listener = s_cacheListener;
+                if (listener != null) {
+                    listener.invalidated(_cache.getName(), id);
+                }
+            }
+        });
+    }
+
+    protected void invalidateAll() {
+        if (_cache == null) {
+            return;
+        }
+        _cacheGeneration.incrementAndGet();
+        _cache.clear();
+        TransactionLegacy.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _cacheGeneration.incrementAndGet();
+                _cache.clear();
+                final EntityCacheListener listener = s_cacheListener;
+                if (listener != null) {
+                    listener.invalidated(_cache.getName(), null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the entities the criteria can match, only the ones with the ids it is limited to
+     * when there are such ids, all of them otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    protected void invalidateMatched(final SearchCriteria<?> sc) {
+        if (_cache == null) {
+            return;
+        }
+        final Object[] ids = sc.getRequiredValues(_idAttributes.get(_table)[0]);
+        if (ids == null) {
+            invalidateAll();
+            return;
+        }
+        for (final Object id : ids) {
+            invalidate((ID)id);
+        }
+    }
+
+    /**
+     * The cache keeps its own copies of the entities and hands out copies, so that
+     * callers changing the entity they got can't change what everyone else reads.
+     * Collections, maps and dates are copied too (nested ones included), other
+     * field values are shared.
+     */
+    @SuppressWarnings("unchecked")
+    protected T copyOf(final T entity) {
+        final T copy;
+        if (entity instanceof Factory) {
+            copy = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+        } else {
+            try {
+                copy = _entityBeanType.newInstance();
+            } catch (final InstantiationException e) {
+                throw new CloudRuntimeException("Unable to instantiate entity", e);
+            } catch (final IllegalAccessException e) {
+                throw new CloudRuntimeException("Illegal Access", e);
+            }
+        }
+        try {
+            for (final Field field : _cachedFields) {
+                field.set(copy, copyValue(field.get(entity)));
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to copy " + entity, e);
+        }
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Object copyValue(final Object value) {
+        if (value instanceof Date) {
+            return ((Date)value).clone();
+        } else if (value instanceof Map) {
+            final Map<Object, Object> copy = (Map<Object, Object>)newInstanceOf(value);
+            final Map<Object, Object> map = copy != null ? copy : new LinkedHashMap<Object, Object>();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                map.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return map;
+        } else if (value instanceof Collection) {
+            Collection<Object> copy = (Collection<Object>)newInstanceOf(value);
+            if (copy == null) {
+                copy = value instanceof Set ? new LinkedHashSet<Object>() : new ArrayList<Object>();
+            }
+            for (final Object item : (Collection<?>)value) {
+                copy.add(copyValue(item));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * @return a new empty instance of the class of the value, null if it has no public no-arg constructor
+     */
+    private static Object newInstanceOf(final Object value) {
+        try {
+            return value.getClass().getConstructor().newInstance();
+        } catch (final Exception e) {
+            return null;
+        }
+    }
 
     @DB()
     protected void createCache(final Map<String, ? extends Object> params) {
-        final String value = (String)params.get("cache.size");
-
-        if (value != null) {
-            final CacheManager cm = CacheManager.create();
-            final int maxElements = NumbersUtil.parseInt(value, 0);
-            final int live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
-            final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
-            _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
-            cm.addCache(_cache);
-            s_logger.info("Cache created: " + _cache.toString());
+        final EntityCachePolicy policy = EntityCachePolicy.fromParams(params);
+
+        if (policy != null && _idField != null) {
+            _cachedFields = new ArrayList<Field>();
+            for (Class<?> clazz = _entityBeanType; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+                for (final Field field : clazz.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        _cachedFields.add(field);
+                    }
+                }
+            }
+            _cache = getEntityCacheProvider().createCache(getName(), policy);
+            s_cachedDaos.put(getName(), this);
+            s_logger.info("Cache created: " + _cache.toString() + " with " + policy);
         } else {
             _cache = null;
         }
@@ -0,0 +1,63 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts lock wait or hold times in power of two millisecond buckets, the last bucket takes
+ * everything above the largest bound.
+ */
+public class LockTimeHistogram {
+    private static final int BUCKETS = 18; // last bound is 131072 ms
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS + 1);
+
+    public void record(long millis) {
+        int bucket = 0;
+        long bound = 1;
+        while (bucket < BUCKETS && millis >= bound) {
+            bucket++;
+            bound <<= 1;
+        }
+        _counts.incrementAndGet(bucket);
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < _counts.length(); i++) {
+            total += _counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return the count of each bucket, keyed by its upper bound, e.g. "<4ms"
+     */
+    public Map<String, Long> toMap() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        long bound = 1;
+        for (int i = 0; i < BUCKETS; i++) {
+            map.put("<" + bound + "ms", _counts.get(i));
+            bound <<= 1;
+        }
+        map.put(">=" + (bound >> 1) + "ms", _counts.get(BUCKETS));
+        return map;
+    }
+}
@@ -26,6 +26,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.management.StandardMBean;
 
@@ -36,12 +38,21 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
 
+/**
+ * Cluster wide named locks, backed by rows in op_lock.
+ *
+ * Threads of this management server first queue on an in-memory fair lock per key, so only the
+ * local owner goes to the database and re-entrant acquires never leave memory. A lock held by
+ * another management server is polled for with a growing back-off.
+ */
 public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
+    private static final long MIN_POLL_INTERVAL_MS = 50;
+    private static final long MAX_POLL_INTERVAL_MS = 5000;
+
     private static final String ACQUIRE_SQL =
             "INSERT INTO op_lock (op_lock.key, op_lock.mac, op_lock.ip, op_lock.thread, op_lock.acquired_on, waiters) VALUES (?, ?, ?, ?, ?, 1)";
-    private static final String INCREMENT_SQL = "UPDATE op_lock SET waiters=waiters+1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String SELECT_SQL = "SELECT op_lock.key, mac, ip, thread, acquired_on, waiters FROM op_lock";
     private static final String INQUIRE_SQL = SELECT_SQL + " WHERE op_lock.key=?";
     private static final String DECREMENT_SQL = "UPDATE op_lock SET waiters=waiters-1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
@@ -60,6 +71,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private final Map<String, LocalLock> _localLocks = new HashMap<String, LocalLock>();
+    private final LockTimeHistogram _waitTimes = new LockTimeHistogram();
+    private final LockTimeHistogram _holdTimes = new LockTimeHistogram();
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -99,14 +114,17 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
-    protected void incrCount() {
+    protected Count getCount() {
         Count count = s_tls.get();
         if (count == null) {
             count = new Count();
             s_tls.set(count);
         }
+        return count;
+    }
 
-        count.count++;
+    protected void incrCount() {
+        getCount().count++;
     }
 
     protected void decrCount() {
@@ -118,6 +136,26 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         count.count--;
     }
 
+    private LocalLock refLocalLock(String key) {
+        synchronized (_localLocks) {
+            LocalLock local = _localLocks.get(key);
+            if (local == null) {
+                local = new LocalLock();
+                _localLocks.put(key, local);
+            }
+            local.refs++;
+            return local;
+        }
+    }
+
+    private void unrefLocalLock(String key, LocalLock local) {
+        synchronized (_localLocks) {
+            if (--local.refs == 0) {
+                _localLocks.remove(key);
+            }
+        }
+    }
+
     public boolean acquire(String key, int timeInSeconds) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
@@ -126,55 +164,72 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
+
+        Count count = getCount();
+        LocalLock local = count.held.get(key);
+        if (local != null && local.isHeldByCurrentThread()) {
+            local.lock();
+            incrCount();
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("lck-" + key + " acquired again");
+            }
+            return true;
+        }
+
         long startTime = InaccurateClock.getTime();
+        long waitStart = System.currentTimeMillis();
+        local = refLocalLock(key);
+        boolean locked = false;
+        try {
+            locked = local.tryLock(timeInSeconds * 1000l, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            s_logger.debug("[ignored] interupted while aquiring " + key);
+        }
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000l)) {
-            int count = owns(key);
+        boolean acquired = false;
+        try {
+            if (locked) {
+                long pollInterval = MIN_POLL_INTERVAL_MS;
+                while (true) {
+                    if (doAcquire(key, threadName, threadId)) {
+                        acquired = true;
+                        local.acquiredOn = System.currentTimeMillis();
+                        count.held.put(key, local);
+                        _waitTimes.record(local.acquiredOn - waitStart);
+                        return true;
+                    }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+                    long remaining = (timeInSeconds * 1000l) - (InaccurateClock.getTime() - startTime);
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                        }
+                        Thread.sleep(Math.min(pollInterval, remaining));
+                    } catch (InterruptedException e) {
+                        s_logger.debug("[ignored] interupted while aquiring " + key);
+                    }
+                    pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL_MS);
                 }
             }
-            try {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+        } finally {
+            if (!acquired) {
+                if (locked) {
+                    local.unlock();
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-                s_logger.debug("[ignored] interupted while aquiring " + key);
+                unrefLocalLock(key, local);
+                _waitTimes.record(System.currentTimeMillis() - waitStart);
             }
         }
+
         String msg = "Timed out on acquiring lock " + key + " .  Waited for " + ((InaccurateClock.getTime() - startTime)/1000) +  "seconds";
         Exception e = new CloudRuntimeException(msg);
         s_logger.warn(msg, e);
         return false;
     }
 
-    protected boolean increment(String key, String threadName, int threadId) {
-      try (PreparedStatement pstmt = _concierge.conn().prepareStatement(INCREMENT_SQL);){
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setInt(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmm...non unique key? " + pstmt;
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + (rows == 1 ? " acquired again" : " failed to acquire again"));
-            }
-            if (rows == 1) {
-                incrCount();
-                return true;
-            }
-            return false;
-        } catch (Exception e) {
-            s_logger.error("increment:Exception:"+e.getMessage());
-            throw new CloudRuntimeException("increment:Exception:"+e.getMessage(), e);
-        }
-    }
-
     protected boolean doAcquire(String key, String threadName, int threadId) {
         long startTime = InaccurateClock.getTime();
         try(PreparedStatement pstmt = _concierge.conn().prepareStatement(ACQUIRE_SQL);) {
@@ -250,6 +305,32 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     public boolean release(String key) {
+        Count count = s_tls.get();
+        LocalLock local = count != null ? count.held.get(key) : null;
+        if (local == null || !local.isHeldByCurrentThread()) {
+            return releaseInDb(key);
+        }
+
+        if (local.getHoldCount() > 1) {
+            local.unlock();
+            decrCount();
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("lck-" + key + " released");
+            }
+            return true;
+        }
+
+        try {
+            return releaseInDb(key);
+        } finally {
+            _holdTimes.record(System.currentTimeMillis() - local.acquiredOn);
+            count.held.remove(key);
+            local.unlock();
+            unrefLocalLock(key, local);
+        }
+    }
+
+    protected boolean releaseInDb(String key) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
@@ -340,6 +421,12 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     public int owns(String key) {
+        Count count = s_tls.get();
+        LocalLock local = count != null ? count.held.get(key) : null;
+        if (local != null && local.isHeldByCurrentThread()) {
+            return local.getHoldCount();
+        }
+
         Thread th = Thread.currentThread();
         int threadId = System.identityHashCode(th);
         Map<String, String> owner = isLocked(key);
@@ -377,6 +464,14 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
         int c = count.count;
         count.count = 0;
+        for (Map.Entry<String, LocalLock> entry : count.held.entrySet()) {
+            LocalLock local = entry.getValue();
+            while (local.isHeldByCurrentThread()) {
+                local.unlock();
+            }
+            unrefLocalLock(entry.getKey(), local);
+        }
+        count.held.clear();
 
         Thread th = Thread.currentThread();
         String threadName = th.getName();
@@ -409,7 +504,29 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
     }
 
+    @Override
+    public Map<String, Long> getLockWaitTimes() {
+        return _waitTimes.toMap();
+    }
+
+    @Override
+    public Map<String, Long> getLockHoldTimes() {
+        return _holdTimes.toMap();
+    }
+
     protected static class Count {
         public int count = 0;
+        public final Map<String, LocalLock> held = new HashMap<String, LocalLock>();
+    }
+
+    protected static class LocalLock extends ReentrantLock {
+        private static final long serialVersionUID = -2365178546325183642L;
+
+        int refs = 0;
+        long acquiredOn;
+
+        LocalLock() {
+            super(true);
+        }
     }
 }
@@ -28,4 +28,14 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
 
     void cleanupForServer(long msId);
+
+    /**
+     * @return how long acquiring locks took, as counts per time bucket
+     */
+    Map<String, Long> getLockWaitTimes();
+
+    /**
+     * @return how long locks were held, as counts per time bucket
+     */
+    Map<String, Long> getLockHoldTimes();
 }
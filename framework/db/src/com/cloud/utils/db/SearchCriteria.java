@@ -307,6 +307,41 @@ public class SearchCriteria<K> {
         }
     }
 
+    /**
+     * @return the values an EQ or IN condition met by every row matching the criteria limits
+     * the attribute to, or null if the criteria can match rows with any value of it
+     */
+    protected Object[] getRequiredValues(Attribute attr) {
+        List<Condition> conditions = new ArrayList<Condition>(_conditions);
+        conditions.addAll(_additionals);
+        Object[] required = null;
+        int depth = 0;
+        int count = 0;
+        for (Condition condition : conditions) {
+            Object[] params = condition.isPreset() ? condition.presets : _params.get(condition.name);
+            if (condition.op != null && condition.op.params != 0 && params == null) {
+                // not part of the where clause
+                continue;
+            }
+            String cond = count++ > 0 && condition.cond != null ? condition.cond : "";
+            if (cond.contains("(")) {
+                depth++;
+            } else if (cond.contains(")")) {
+                depth--;
+            } else if (depth == 0 && cond.contains("OR")) {
+                return null;
+            }
+            if (depth < 0) {
+                return null;
+            }
+            if (depth == 0 && required == null && attr.equals(condition.attr) && params != null && params.length > 0 &&
+                (condition.op == Op.IN || (condition.op == Op.EQ && params.length == 1 && params[0] != null))) {
+                required = params;
+            }
+        }
+        return required;
+    }
+
     public Pair<String, ArrayList<Object>> toSql() {
         StringBuilder sql = new StringBuilder();
 
@@ -25,6 +25,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -95,6 +96,8 @@ public class TransactionLegacy implements Closeable {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    // tasks waiting for the outermost transaction of this thread to commit
+    private final List<Runnable> _afterCommitTasks = new ArrayList<Runnable>();
 
     private String _name;
     private Connection _conn;
@@ -108,6 +111,39 @@ public class TransactionLegacy implements Closeable {
         return currentTxn(true);
     }
 
+    /**
+     * Runs the task once the transaction of the calling thread commits, or right away
+     * when the thread is not in a transaction. The task is dropped if the transaction
+     * rolls back. Use it for in-memory state that must not see uncommitted changes.
+     */
+    public static void runAfterCommit(final Runnable task) {
+        final TransactionLegacy txn = currentTxn(false);
+        if (txn == null || !txn._txn) {
+            runTask(task);
+            return;
+        }
+        txn._afterCommitTasks.add(task);
+    }
+
+    private static void runTask(final Runnable task) {
+        try {
+            task.run();
+        } catch (final Exception e) {
+            s_logger.warn("Unable to run the task after commit", e);
+        }
+    }
+
+    protected void runAfterCommitTasks() {
+        if (_afterCommitTasks.isEmpty()) {
+            return;
+        }
+        final List<Runnable> tasks = new ArrayList<Runnable>(_afterCommitTasks);
+        _afterCommitTasks.clear();
+        for (final Runnable task : tasks) {
+            runTask(task);
+        }
+    }
+
     protected static TransactionLegacy currentTxn(boolean check) {
         TransactionLegacy txn = tls.get();
         if (check) {
@@ -724,11 +760,13 @@ public class TransactionLegacy implements Closeable {
                 clearLockTimes();
                 closeConnection();
             }
-            return true;
         } catch (final SQLException e) {
+            _afterCommitTasks.clear();
             rollbackTransaction();
             throw new CloudRuntimeException("Unable to commit or close the connection. ", e);
         }
+        runAfterCommitTasks();
+        return true;
     }
 
     protected void closeConnection() {
@@ -833,6 +871,7 @@ public class TransactionLegacy implements Closeable {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        _afterCommitTasks.clear();
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -858,6 +897,7 @@ public class TransactionLegacy implements Closeable {
 
         if (!hasTxnInStack()) {
             _txn = false;
+            _afterCommitTasks.clear();
             closeConnection();
         }
     }
@@ -994,6 +1034,9 @@ public class TransactionLegacy implements Closeable {
     private static DataSource s_simulatorDS;
     private static boolean s_dbHAEnabled;
 
+    private static final String[][] s_driverDefaults = new String[][] { {"cachePrepStmts", "true"}, {"prepStmtCacheSize", "517"}, {"prepStmtCacheSqlLimit", "4096"},
+            {"rewriteBatchedStatements", "true"}};
+
     static {
         // Initialize with assumed db.properties file
         initDataSource(DbProperties.getDbProperties());
@@ -1050,7 +1093,7 @@ public class TransactionLegacy implements Closeable {
             final long cloudTimeBtwEvictionRunsMillis = Long.parseLong(dbProps.getProperty("db.cloud.timeBetweenEvictionRunsMillis"));
             final long cloudMinEvcitableIdleTimeMillis = Long.parseLong(dbProps.getProperty("db.cloud.minEvictableIdleTimeMillis"));
             final boolean cloudPoolPreparedStatements = Boolean.parseBoolean(dbProps.getProperty("db.cloud.poolPreparedStatements"));
-            final String url = dbProps.getProperty("db.cloud.url.params");
+            final String url = withDriverDefaults(dbProps.getProperty("db.cloud.url.params"));
 
             String cloudDbHAParams = null;
             String cloudSlaves = null;
@@ -1095,7 +1138,7 @@ public class TransactionLegacy implements Closeable {
             final int usagePort = Integer.parseInt(dbProps.getProperty("db.usage.port"));
             final String usageDbName = dbProps.getProperty("db.usage.name");
             final boolean usageAutoReconnect = Boolean.parseBoolean(dbProps.getProperty("db.usage.autoReconnect"));
-            final String usageUrl = dbProps.getProperty("db.usage.url.params");
+            final String usageUrl = withDriverDefaults(dbProps.getProperty("db.usage.url.params"));
 
             final GenericObjectPool usageConnectionPool =
                     new GenericObjectPool(null, usageMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION, usageMaxWait, usageMaxIdle);
@@ -1167,6 +1210,25 @@ public class TransactionLegacy implements Closeable {
                 /* connectionPool */poolableConnectionFactory.getPool());
     }
 
+    /**
+     * Connector/J keeps a parsed statement cache per connection and turns JDBC batches into
+     * multi-row inserts, but only when asked to.  The DAO select statements list every column
+     * and are much longer than the driver's default cache limit of 256 characters, so the
+     * limit is raised as well.  Parameters already in db.properties win.
+     */
+    protected static String withDriverDefaults(final String params) {
+        final StringBuilder url = new StringBuilder(params == null ? "" : params);
+        for (final String[] param : s_driverDefaults) {
+            if (url.indexOf(param[0] + "=") < 0) {
+                if (url.length() > 0) {
+                    url.append("&");
+                }
+                url.append(param[0]).append("=").append(param[1]);
+            }
+        }
+        return url.toString();
+    }
+
     /**
      * Used for unit testing primarily
      *
@@ -0,0 +1,208 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class EntityCacheTest {
+
+    @Entity
+    @Table(name = "cached_test")
+    public static class CachedTestVO {
+        @Id
+        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        long id;
+
+        @Column(name = "created")
+        Date created = new Date();
+
+        @Transient
+        Map<String, String> details = new HashMap<String, String>();
+
+        @Transient
+        List<String> tags = new ArrayList<String>();
+
+        @Transient
+        HashMap<String, HashMap<String, String>> groups = new HashMap<String, HashMap<String, String>>();
+
+        public CachedTestVO() {
+        }
+    }
+
+    public static class CachedTestDao extends GenericDaoBase<CachedTestVO, Long> {
+    }
+
+    private static CachedTestDao createDao(final String name) throws Exception {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("cache.size", "10");
+        final CachedTestDao dao = new CachedTestDao();
+        dao.configure(name, params);
+        return dao;
+    }
+
+    @After
+    public void tearDown() {
+        GenericDaoBase.setEntityCacheListener(null);
+    }
+
+    @Test
+    public void testPolicyWithoutCacheSize() {
+        assertNull(EntityCachePolicy.fromParams(new HashMap<String, Object>()));
+    }
+
+    @Test
+    public void testPolicyFromParams() {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("cache.size", "100");
+        params.put("cache.time.to.live", "-1");
+        final EntityCachePolicy policy = EntityCachePolicy.fromParams(params);
+        assertEquals(100, policy.getMaxElements());
+        assertEquals(300, policy.getTimeToIdle());
+        assertTrue(policy.isEternal());
+    }
+
+    @Test
+    public void testHitsMissesAndEvictions() {
+        final EntityCache<Long, String> cache = new EhcacheEntityCacheProvider().createCache("EntityCacheTest", new EntityCachePolicy(2, 60, 60));
+
+        cache.put(1L, "one");
+        assertEquals("one", cache.get(1L));
+        assertNull(cache.get(2L));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.put(2L, "two");
+        cache.put(3L, "three");
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+
+        cache.remove(3L);
+        assertNull(cache.get(3L));
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testCopiesDoNotShareCollections() throws Exception {
+        final CachedTestDao dao = createDao("EntityCacheTestCopies");
+        final CachedTestVO entity = new CachedTestVO();
+        entity.details.put("key", "value");
+        entity.tags.add("tag");
+        entity.groups.put("group", new HashMap<String, String>());
+
+        final CachedTestVO copy = dao.copyOf(entity);
+        copy.details.put("key", "changed");
+        copy.tags.add("other");
+        copy.groups.get("group").put("key", "value");
+        copy.created.setTime(0);
+
+        assertEquals("value", entity.details.get("key"));
+        assertEquals(1, entity.tags.size());
+        assertTrue(entity.groups.get("group").isEmpty());
+        assertTrue(entity.created.getTime() != 0);
+        assertNotSame(entity.details, copy.details);
+        assertTrue(copy.groups instanceof HashMap);
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        final EntityCacheListener listener = Mockito.mock(EntityCacheListener.class);
+        GenericDaoBase.setEntityCacheListener(listener);
+        final CachedTestDao dao = createDao("EntityCacheTestInvalidation");
+
+        dao._cache.put(1L, new CachedTestVO());
+        dao._cache.put(2L, new CachedTestVO());
+        dao.invalidate(1L);
+        assertNull(dao._cache.get(1L));
+        Mockito.verify(listener).invalidated("EntityCacheTestInvalidation", 1L);
+
+        dao.invalidateAll();
+        assertNull(dao._cache.get(2L));
+        Mockito.verify(listener).invalidated("EntityCacheTestInvalidation", null);
+
+        // invalidations from a peer are not sent back out
+        dao._cache.put(3L, new CachedTestVO());
+        GenericDaoBase.invalidateCache("EntityCacheTestInvalidation", 3L);
+        assertNull(dao._cache.get(3L));
+        Mockito.verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void testInvalidateMatchedIds() throws Exception {
+        final EntityCacheListener listener = Mockito.mock(EntityCacheListener.class);
+        GenericDaoBase.setEntityCacheListener(listener);
+        final CachedTestDao dao = createDao("EntityCacheTestMatched");
+        dao._cache.put(1L, new CachedTestVO());
+        dao._cache.put(2L, new CachedTestVO());
+        dao._cache.put(3L, new CachedTestVO());
+
+        final SearchCriteria<CachedTestVO> sc = dao.createSearchCriteria();
+        sc.addAnd("id", SearchCriteria.Op.IN, 1L, 2L);
+        sc.addAnd("created", SearchCriteria.Op.NNULL);
+        dao.invalidateMatched(sc);
+        assertNull(dao._cache.get(1L));
+        assertNull(dao._cache.get(2L));
+        assertNotNull(dao._cache.get(3L));
+        Mockito.verify(listener).invalidated("EntityCacheTestMatched", 1L);
+        Mockito.verify(listener).invalidated("EntityCacheTestMatched", 2L);
+
+        // any row can match once the id condition is or'ed
+        final SearchCriteria<CachedTestVO> any = dao.createSearchCriteria();
+        any.addAnd("id", SearchCriteria.Op.EQ, 1L);
+        any.addOr("created", SearchCriteria.Op.NNULL);
+        dao.invalidateMatched(any);
+        assertNull(dao._cache.get(3L));
+        Mockito.verify(listener).invalidated("EntityCacheTestMatched", null);
+    }
+
+    @Test
+    public void testEntityReadBeforeInvalidationNotCached() throws Exception {
+        final CachedTestDao dao = createDao("EntityCacheTestGeneration");
+        final CachedTestVO entity = new CachedTestVO();
+        entity.id = 1L;
+
+        final long generation = dao._cacheGeneration.get();
+        dao.invalidate(1L);
+        dao.cacheEntity(entity, generation);
+        assertNull(dao._cache.get(1L));
+
+        dao.cacheEntity(entity, dao._cacheGeneration.get());
+        assertNotNull(dao._cache.get(1L));
+    }
+}
@@ -0,0 +1,83 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloud.utils.Pair;
+
+public class FilterTest {
+
+    @Test
+    public void testOffsetFilterHasNoSeekCondition() {
+        final Filter filter = new Filter(DbTestVO.class, "id", true, 20L, 10L);
+
+        assertNull(filter.getSeekAfter());
+        assertNull(filter.getSeekCondition());
+    }
+
+    @Test
+    public void testSeekConditionFollowsFirstOrderBy() {
+        final Filter ascending = new Filter(DbTestVO.class, "id", true, 0L, 10L);
+        ascending.addOrderBy(DbTestVO.class, "fieldInt", false);
+        ascending.setSeekAfter(5L);
+        assertEquals("test.id > ?", ascending.getSeekCondition());
+
+        final Filter descending = new Filter(DbTestVO.class, "fieldLong", false, 0L, 10L);
+        descending.setSeekAfter(5L);
+        assertEquals("test.fld_long < ?", descending.getSeekCondition());
+    }
+
+    @Test
+    public void testCopyKeepsSeekColumn() {
+        final Filter filter = new Filter(DbTestVO.class, "id", false, 0L, 10L);
+
+        final Filter copy = new Filter(filter);
+        assertNull(copy.getSeekCondition());
+        copy.setSeekAfter(7L);
+        assertEquals("test.id < ?", copy.getSeekCondition());
+    }
+
+    @Test
+    public void testSeekConditionCoversAllOrderColumns() {
+        final Filter filter = new Filter(DbTestVO.class, "fieldInt", false, 0L, 10L);
+        filter.addOrderBy(DbTestVO.class, "id", false);
+        assertEquals(" ORDER BY test.fld_int DESC , test.id DESC ", filter.getOrderBy());
+
+        final DbTestVO last = new DbTestVO();
+        last.id = 7L;
+        last.fieldInt = 5;
+        filter.setSeekAfterRow(last);
+        assertEquals("(test.fld_int < ? OR (test.fld_int = ? AND test.id < ?))", filter.getSeekCondition());
+
+        final List<Pair<Field, Object>> parameters = filter.getSeekParameters();
+        assertEquals(3, parameters.size());
+        assertEquals(5, parameters.get(0).second());
+        assertEquals("fieldInt", parameters.get(1).first().getName());
+        assertEquals(5, parameters.get(1).second());
+        assertEquals("id", parameters.get(2).first().getName());
+        assertEquals(7L, parameters.get(2).second());
+    }
+}
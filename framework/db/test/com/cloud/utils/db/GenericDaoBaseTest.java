@@ -16,20 +16,43 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.lang.reflect.Field;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.persistence.EntityExistsException;
+
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @RunWith(MockitoJUnitRunner.class)
 public class GenericDaoBaseTest {
     @Mock
     ResultSet resultSet;
+    @Mock
+    Connection connection;
+    @Mock
+    PreparedStatement insert;
+    @Mock
+    PreparedStatement select;
+
+    TransactionLegacy txn;
 
     @Test
     public void getObjectBoolean() throws SQLException {
@@ -148,4 +171,122 @@ public class GenericDaoBaseTest {
         Mockito.verify(resultSet).getByte(1);
     }
 
+    @After
+    public void tearDown() {
+        if (txn != null) {
+            txn.close();
+        }
+    }
+
+    private void openTransaction() throws Exception {
+        txn = TransactionLegacy.open("GenericDaoBaseTest");
+        Field conn = TransactionLegacy.class.getDeclaredField("_conn");
+        conn.setAccessible(true);
+        conn.set(txn, connection);
+        Mockito.when(connection.prepareStatement(Mockito.anyString(), Mockito.eq(Statement.RETURN_GENERATED_KEYS))).thenReturn(insert);
+    }
+
+    private static List<DbTestVO> entities(int count) {
+        List<DbTestVO> entities = new ArrayList<DbTestVO>(count);
+        for (int i = 0; i < count; i++) {
+            DbTestVO entity = new DbTestVO();
+            entity.fieldInt = i;
+            entity.fieldString = "entity-" + i;
+            entities.add(entity);
+        }
+        return entities;
+    }
+
+    @Test
+    public void persistAllBatchesAndAssignsIds() throws Exception {
+        openTransaction();
+        Mockito.when(insert.getGeneratedKeys()).thenReturn(resultSet);
+        Mockito.when(resultSet.next()).thenReturn(true);
+        Mockito.when(resultSet.getObject(1)).thenAnswer(new Answer<Long>() {
+            long _nextId = 100;
+
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return _nextId++;
+            }
+        });
+
+        List<DbTestVO> entities = entities(GenericDaoBase.s_batchSize * 2 + 1);
+        new DbTestDao().persistAll(entities);
+
+        Mockito.verify(insert, Mockito.times(entities.size())).addBatch();
+        Mockito.verify(insert, Mockito.times(3)).executeBatch();
+        Mockito.verify(insert, Mockito.never()).executeUpdate();
+        for (int i = 0; i < entities.size(); i++) {
+            Assert.assertEquals(100 + i, entities.get(i).id);
+        }
+        Mockito.verify(connection).commit();
+    }
+
+    @Test
+    public void persistAllEmpty() throws Exception {
+        openTransaction();
+        new DbTestDao().persistAll(new ArrayList<DbTestVO>());
+        Mockito.verifyZeroInteractions(insert);
+    }
+
+    @Test(expected = EntityExistsException.class)
+    public void persistAllDuplicate() throws Exception {
+        openTransaction();
+        Mockito.when(insert.executeBatch()).thenThrow(new BatchUpdateException("Duplicate entry", "23000", 1062, new int[0]));
+        try {
+            new DbTestDao().persistAll(entities(2));
+        } finally {
+            Mockito.verify(connection, Mockito.never()).commit();
+        }
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void persistAllFailure() throws Exception {
+        openTransaction();
+        Mockito.when(insert.executeBatch()).thenThrow(new SQLException("Lost connection", "08S01", 2013));
+        try {
+            new DbTestDao().persistAll(entities(2));
+        } finally {
+            Mockito.verify(connection, Mockito.never()).commit();
+        }
+    }
+
+    @Test
+    public void searchSeeksAfterLastRowOnAllOrderColumns() throws Exception {
+        openTransaction();
+        Mockito.when(connection.prepareStatement(Mockito.anyString())).thenReturn(select);
+        Mockito.when(select.executeQuery()).thenReturn(resultSet);
+
+        Filter filter = new Filter(DbTestVO.class, "fieldInt", false, 40L, 10L);
+        filter.addOrderBy(DbTestVO.class, "id", false);
+        DbTestVO last = new DbTestVO();
+        last.id = 7L;
+        last.fieldInt = 5;
+        filter.setSeekAfterRow(last);
+        new DbTestDao().search(null, filter);
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(connection).prepareStatement(sql.capture());
+        // rows with the same fld_int as the last one are only skipped up to its id
+        Assert.assertTrue(sql.getValue(), sql.getValue().endsWith(
+                " WHERE (test.fld_int < ? OR (test.fld_int = ? AND test.id < ?)) ORDER BY test.fld_int DESC , test.id DESC  LIMIT 10"));
+        Mockito.verify(select).setObject(1, 5);
+        Mockito.verify(select).setObject(2, 5);
+        Mockito.verify(select).setObject(3, 7L);
+    }
+
+    @Test
+    public void searchWithoutSeekKeepsOffset() throws Exception {
+        openTransaction();
+        Mockito.when(connection.prepareStatement(Mockito.anyString())).thenReturn(select);
+        Mockito.when(select.executeQuery()).thenReturn(resultSet);
+
+        new DbTestDao().search(null, new Filter(DbTestVO.class, "id", true, 40L, 10L));
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(connection).prepareStatement(sql.capture());
+        Assert.assertFalse(sql.getValue(), sql.getValue().contains("WHERE"));
+        Assert.assertTrue(sql.getValue(), sql.getValue().endsWith(" ORDER BY test.id ASC  LIMIT 40, 10"));
+    }
 }
@@ -0,0 +1,46 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LockTimeHistogramTest {
+
+    @Test
+    public void testRecordPutsTimesInPowerOfTwoBuckets() {
+        LockTimeHistogram histogram = new LockTimeHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(3);
+        histogram.record(4);
+        histogram.record(1000);
+        histogram.record(1000000);
+
+        Map<String, Long> buckets = histogram.toMap();
+        assertEquals(Long.valueOf(1), buckets.get("<1ms"));
+        assertEquals(Long.valueOf(1), buckets.get("<2ms"));
+        assertEquals(Long.valueOf(1), buckets.get("<4ms"));
+        assertEquals(Long.valueOf(1), buckets.get("<8ms"));
+        assertEquals(Long.valueOf(1), buckets.get("<1024ms"));
+        assertEquals(Long.valueOf(1), buckets.get(">=131072ms"));
+        assertEquals(6, histogram.getCount());
+    }
+}
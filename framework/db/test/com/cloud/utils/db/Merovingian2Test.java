@@ -76,4 +76,29 @@ public class Merovingian2Test extends TestCase {
         Assert.assertTrue(result);
     }
 
+    @Test
+    public void testWaiterGetsLockOnRelease() throws InterruptedException {
+        final String key = "waiter" + 1234;
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+
+        final boolean[] acquired = new boolean[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                acquired[0] = _lockMaster.acquire(key, 10);
+                if (acquired[0]) {
+                    _lockMaster.release(key);
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(500);
+        Assert.assertTrue(waiter.isAlive());
+
+        Assert.assertTrue(_lockMaster.release(key));
+        waiter.join(10000);
+        Assert.assertTrue(acquired[0]);
+        Assert.assertEquals(0, _lockMaster.owns(key));
+    }
+
 }
@@ -31,6 +31,10 @@ public interface AsyncJob extends JobInfo {
         public static final String JOB_HEARTBEAT = "job.heartbeat";
         public static final String JOB_STATE = "job.state";
         public static final String JOB_EVENT_PUBLISH = "job.eventpublish";
+        // a sync queue owned by this management server has new items, args: queue id
+        public static final String JOB_QUEUE_SIGNAL = "job.queue.signal";
+        // a sync queue owned by a peer management server has new items, args: Pair<peer msid, queue id>
+        public static final String JOB_QUEUE_PEER_SIGNAL = "job.queue.peersignal";
     }
 
     public static interface Constants {
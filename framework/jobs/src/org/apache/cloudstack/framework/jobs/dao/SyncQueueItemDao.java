@@ -26,6 +26,11 @@ public interface SyncQueueItemDao extends GenericDao<SyncQueueItemVO, Long> {
     public SyncQueueItemVO getNextQueueItem(long queueId);
     public int getActiveQueueItemCount(long queueId);
 
+    /**
+     * @return msid of the management server currently processing an item of the queue, or null if the queue is idle
+     */
+    public Long getActiveQueueItemMsid(long queueId);
+
     public List<SyncQueueItemVO> getNextQueueItems(int maxItems);
 
     public List<SyncQueueItemVO> getActiveQueueItems(Long msid, boolean exclusive);
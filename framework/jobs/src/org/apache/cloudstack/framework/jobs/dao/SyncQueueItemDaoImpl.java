@@ -45,6 +45,7 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
     private static final Logger s_logger = Logger.getLogger(SyncQueueItemDaoImpl.class);
     final GenericSearchBuilder<SyncQueueItemVO, Long> queueIdSearch;
     final GenericSearchBuilder<SyncQueueItemVO, Integer> queueActiveItemSearch;
+    final GenericSearchBuilder<SyncQueueItemVO, Long> queueActiveMsidSearch;
 
     public SyncQueueItemDaoImpl() {
         super();
@@ -59,6 +60,13 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
         queueActiveItemSearch.and("processNumber", queueActiveItemSearch.entity().getLastProcessNumber(), Op.NNULL);
         queueActiveItemSearch.select(null, Func.COUNT, queueActiveItemSearch.entity().getId());
         queueActiveItemSearch.done();
+
+        queueActiveMsidSearch = createSearchBuilder(Long.class);
+        queueActiveMsidSearch.and("queueId", queueActiveMsidSearch.entity().getQueueId(), Op.EQ);
+        queueActiveMsidSearch.and("processNumber", queueActiveMsidSearch.entity().getLastProcessNumber(), Op.NNULL);
+        queueActiveMsidSearch.and("processMsid", queueActiveMsidSearch.entity().getLastProcessMsid(), Op.NNULL);
+        queueActiveMsidSearch.selectFields(queueActiveMsidSearch.entity().getLastProcessMsid());
+        queueActiveMsidSearch.done();
     }
 
     @Override
@@ -89,6 +97,15 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
         return count.get(0);
     }
 
+    @Override
+    public Long getActiveQueueItemMsid(long queueId) {
+        SearchCriteria<Long> sc = queueActiveMsidSearch.create();
+        sc.setParameters("queueId", queueId);
+
+        List<Long> msids = customSearch(sc, new Filter(SyncQueueItemVO.class, "id", true, 0L, 1L));
+        return msids.size() == 0 ? null : msids.get(0);
+    }
+
     @Override
     public List<SyncQueueItemVO> getNextQueueItems(int maxItems) {
         List<SyncQueueItemVO> l = new ArrayList<SyncQueueItemVO>();
@@ -24,6 +24,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -50,6 +52,7 @@ import org.apache.cloudstack.framework.jobs.dao.AsyncJobJournalDao;
 import org.apache.cloudstack.framework.jobs.dao.SyncQueueItemDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.MessageDetector;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.jobs.JobInfo;
 import org.apache.cloudstack.jobs.JobInfo.Status;
@@ -92,6 +95,10 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private static final ConfigKey<Integer> VmJobLockTimeout = new ConfigKey<Integer>("Advanced",
             Integer.class, "vm.job.lock.timeout", "1800",
             "Time in seconds to wait in acquiring lock to submit a vm worker job", false);
+    private static final ConfigKey<Boolean> JobDispatchEventDriven = new ConfigKey<Boolean>("Advanced", Boolean.class, "job.dispatch.event.driven", "true",
+        "Dispatch sync queue items as soon as they are queued, instead of waiting for the periodic sync queue scan", false);
+    private static final ConfigKey<Integer> JobDispatchFallbackInterval = new ConfigKey<Integer>("Advanced", Integer.class, "job.dispatch.fallback.interval", "30",
+        "Time (in seconds) between sync queue scans for items that missed their dispatch signal, used when job.dispatch.event.driven is true", true);
 
     private static final Logger s_logger = Logger.getLogger(AsyncJobManagerImpl.class);
 
@@ -101,6 +108,10 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;                // 10 seconds
 
+    // a queue is signalled while the enqueuing transaction may still be open, or while the
+    // previous item is being released, so an empty dequeue is retried a few times
+    private static final long[] QUEUE_SIGNAL_RETRY_DELAYS = {100, 500, 2000};
+
     @Inject
     private SyncQueueItemDao _queueItemDao;
     @Inject
@@ -123,6 +134,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private volatile long _executionRunNumber = 1;
 
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
+    private final ScheduledExecutorService _queueDispatcher = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Dispatcher"));
+    private final Set<Long> _signalledQueues = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private volatile long _lastQueueScan = 0;
     private ExecutorService _apiJobExecutor;
     private ExecutorService _workerJobExecutor;
 
@@ -133,7 +147,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, VmJobLockTimeout};
+        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, VmJobLockTimeout, JobDispatchEventDriven, JobDispatchFallbackInterval};
     }
 
     @Override
@@ -415,6 +429,56 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         queue = _queueMgr.queue(syncObjType, syncObjId, SyncQueueItem.AsyncJobContentType, job.getId(), queueSizeLimit);
         if (queue == null)
             throw new CloudRuntimeException("Unable to insert queue item into database, DB is full?");
+
+        signalQueue(queue.getId());
+    }
+
+    /**
+     * Tells the management server that owns the queue to dequeue from it right away. The owner is the
+     * server that is processing the active item of the queue, if there is one, or this server otherwise.
+     */
+    private void signalQueue(long queueId) {
+        if (!JobDispatchEventDriven.value()) {
+            return;
+        }
+
+        try {
+            Long ownerMsid = _queueItemDao.getActiveQueueItemMsid(queueId);
+            if (ownerMsid == null || ownerMsid.longValue() == getMsid()) {
+                _messageBus.publish(null, AsyncJob.Topics.JOB_QUEUE_SIGNAL, PublishScope.LOCAL, queueId);
+            } else {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Sync queue-" + queueId + " is being processed by management server " + ownerMsid + ", signal it");
+                }
+                _messageBus.publish(null, AsyncJob.Topics.JOB_QUEUE_PEER_SIGNAL, PublishScope.LOCAL, new Pair<Long, Long>(ownerMsid, queueId));
+            }
+        } catch (Throwable e) {
+            // the periodic sync queue scan will pick the item up
+            s_logger.warn("Unable to signal sync queue-" + queueId + ", it will be dispatched by the next sync queue scan", e);
+        }
+    }
+
+    private void scheduleQueueDispatch(final long queueId, final int attempt) {
+        if (attempt == 0 && !_signalledQueues.add(queueId)) {
+            // a dispatch of this queue is already pending
+            return;
+        }
+
+        long delay = attempt == 0 ? 0 : QUEUE_SIGNAL_RETRY_DELAYS[attempt - 1];
+        try {
+            _queueDispatcher.schedule(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    _signalledQueues.remove(queueId);
+                    if (checkQueue(queueId) == 0 && attempt < QUEUE_SIGNAL_RETRY_DELAYS.length) {
+                        scheduleQueueDispatch(queueId, attempt + 1);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            _signalledQueues.remove(queueId);
+            s_logger.debug("Sync queue dispatcher is shutting down, sync queue-" + queueId + " is left to the sync queue scan");
+        }
     }
 
     @Override
@@ -553,7 +617,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     try {
                         if (job.getSyncSource() != null) {
                             // here check queue item one more time to double make sure that queue item is removed in case of any uncaught exception
-                            _queueMgr.purgeItem(job.getSyncSource().getId());
+                            releaseQueueItem(job.getSyncSource());
                         }
 
                         try {
@@ -655,8 +719,18 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     "-" + executionContext.getSyncSource().getContentId());
             }
 
-            _queueMgr.purgeItem(executionContext.getSyncSource().getId());
-            checkQueue(executionContext.getSyncSource().getQueueId());
+            releaseQueueItem(executionContext.getSyncSource());
+        }
+    }
+
+    /**
+     * Removes a finished item from its queue and signals the queue, so that its next item starts right away
+     * instead of waiting for the sync queue scan.
+     */
+    void releaseQueueItem(SyncQueueItem item) {
+        _queueMgr.purgeItem(item.getId());
+        if (item.getQueueId() != null) {
+            signalQueue(item.getQueueId());
         }
     }
 
@@ -703,7 +777,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         return null;
     }
 
-    private void checkQueue(long queueId) {
+    private int checkQueue(long queueId) {
+        int executed = 0;
         while (true) {
             try {
                 SyncQueueItemVO item = _queueMgr.dequeueFromOne(queueId, getMsid());
@@ -713,6 +788,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     }
 
                     executeQueueItem(item, false);
+                    executed++;
                 } else {
                     break;
                 }
@@ -721,6 +797,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 break;
             }
         }
+        return executed;
     }
 
     private Runnable getHeartbeatTask() {
@@ -744,13 +821,19 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
             protected void reallyRun() {
                 try {
-                    List<SyncQueueItemVO> l = _queueMgr.dequeueFromAny(getMsid(), MAX_ONETIME_SCHEDULE_SIZE);
-                    if (l != null && l.size() > 0) {
-                        for (SyncQueueItemVO item : l) {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Execute sync-queue item: " + item.toString());
+                    // with event driven dispatch, queued items are signalled to their owner and this scan
+                    // only recovers the ones whose signal got lost, so it can run much less often
+                    long now = System.currentTimeMillis();
+                    if (!JobDispatchEventDriven.value() || now - _lastQueueScan >= JobDispatchFallbackInterval.value() * 1000L) {
+                        _lastQueueScan = now;
+                        List<SyncQueueItemVO> l = _queueMgr.dequeueFromAny(getMsid(), MAX_ONETIME_SCHEDULE_SIZE);
+                        if (l != null && l.size() > 0) {
+                            for (SyncQueueItemVO item : l) {
+                                if (s_logger.isDebugEnabled()) {
+                                    s_logger.debug("Execute sync-queue item: " + item.toString());
+                                }
+                                executeQueueItem(item, false);
                             }
-                            executeQueueItem(item, false);
                         }
                     }
 
@@ -1021,6 +1104,15 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     public boolean start() {
         cleanupLeftOverJobs(getMsid());
 
+        _messageBus.subscribe(AsyncJob.Topics.JOB_QUEUE_SIGNAL, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                if (args instanceof Long) {
+                    scheduleQueueDispatch((Long)args, 0);
+                }
+            }
+        });
+
         _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
 
@@ -1030,6 +1122,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     @Override
     public boolean stop() {
         _heartbeatScheduler.shutdown();
+        _queueDispatcher.shutdown();
         _apiJobExecutor.shutdown();
         _workerJobExecutor.shutdown();
         return true;
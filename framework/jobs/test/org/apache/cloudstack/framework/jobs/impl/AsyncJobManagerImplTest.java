@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import org.apache.cloudstack.framework.jobs.AsyncJob;
+import org.apache.cloudstack.framework.jobs.dao.AsyncJobDao;
+import org.apache.cloudstack.framework.jobs.dao.SyncQueueItemDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncJobManagerImplTest {
+    @Mock
+    SyncQueueItemDao _queueItemDao;
+    @Mock
+    SyncQueueManager _queueMgr;
+    @Mock
+    AsyncJobDao _jobDao;
+    @Mock
+    MessageBus _messageBus;
+    @Mock
+    ExecutorService _apiJobExecutor;
+
+    AsyncJobManagerImpl _jobMgr;
+
+    private void inject(String name, Object value) throws Exception {
+        Field field = AsyncJobManagerImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(_jobMgr, value);
+    }
+
+    @Before
+    public void setup() throws Exception {
+        _jobMgr = new AsyncJobManagerImpl();
+        inject("_queueItemDao", _queueItemDao);
+        inject("_queueMgr", _queueMgr);
+        inject("_jobDao", _jobDao);
+        inject("_messageBus", _messageBus);
+        inject("_apiJobExecutor", _apiJobExecutor);
+
+        // deliver local publishes to the subscriber that start() registers
+        final ArgumentCaptor<MessageSubscriber> subscriber = ArgumentCaptor.forClass(MessageSubscriber.class);
+        _jobMgr.start();
+        Mockito.verify(_messageBus).subscribe(Mockito.eq(AsyncJob.Topics.JOB_QUEUE_SIGNAL), subscriber.capture());
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                subscriber.getValue().onPublishMessage((String)args[0], (String)args[1], args[3]);
+                return null;
+            }
+        }).when(_messageBus).publish(Mockito.anyString(), Mockito.eq(AsyncJob.Topics.JOB_QUEUE_SIGNAL), Mockito.eq(PublishScope.LOCAL), Mockito.anyObject());
+    }
+
+    @After
+    public void tearDown() {
+        _jobMgr.stop();
+    }
+
+    private SyncQueueItemVO queueItem(long id, long queueId, long jobId) {
+        SyncQueueItemVO item = new SyncQueueItemVO();
+        item.setId(id);
+        item.setQueueId(queueId);
+        item.setContentType(SyncQueueItem.AsyncJobContentType);
+        item.setContentId(jobId);
+        return item;
+    }
+
+    @Test
+    public void testNextQueuedJobStartsWhenFirstCompletes() {
+        SyncQueueItemVO first = queueItem(1L, 7L, 100L);
+        SyncQueueItemVO second = queueItem(2L, 7L, 101L);
+        AsyncJobVO secondJob = new AsyncJobVO();
+        secondJob.setId(101L);
+        Mockito.when(_jobDao.findById(101L)).thenReturn(secondJob);
+        Mockito.when(_queueMgr.dequeueFromOne(Mockito.eq(7L), Mockito.anyLong())).thenReturn(second, (SyncQueueItemVO)null);
+
+        _jobMgr.releaseQueueItem(first);
+
+        Mockito.verify(_queueMgr).purgeItem(1L);
+        // well before the 30s sync queue scan would have found it
+        Mockito.verify(_apiJobExecutor, Mockito.timeout(2000)).submit(Mockito.any(Runnable.class));
+        Mockito.verify(_jobDao, Mockito.timeout(2000)).update(101L, secondJob);
+    }
+
+    @Test
+    public void testQueueOwnedByPeerIsSignalledThere() {
+        Mockito.when(_queueItemDao.getActiveQueueItemMsid(7L)).thenReturn(Long.MAX_VALUE);
+
+        _jobMgr.releaseQueueItem(queueItem(1L, 7L, 100L));
+
+        Mockito.verify(_messageBus).publish(Mockito.anyString(), Mockito.eq(AsyncJob.Topics.JOB_QUEUE_PEER_SIGNAL), Mockito.eq(PublishScope.LOCAL),
+            Mockito.anyObject());
+        Mockito.verify(_queueMgr, Mockito.never()).dequeueFromOne(Mockito.anyLong(), Mockito.anyLong());
+    }
+}
@@ -32,6 +32,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -68,6 +69,8 @@ import com.cloud.agent.api.HostVmStateReportEntry;
 import com.cloud.agent.api.PingCommand;
 import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
 import com.cloud.agent.api.SetupGuestNetworkCommand;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
@@ -243,6 +246,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, VmStats> _vmStats = new ConcurrentHashMap<String, VmStats>();
+    // interfaces and disks of each domain by domain uuid, reused by stats collection
+    private final Map<String, DomainMetadata> _domainMetadata = new ConcurrentHashMap<String, DomainMetadata>();
+    // last ruleset programmed for each vm, the base security group rule deltas are applied to
+    private final Map<String, SecurityGroupRulesCmd> _programmedRules = new ConcurrentHashMap<String, SecurityGroupRulesCmd>();
 
     protected static final HashMap<DomainState, PowerState> s_powerStatesTable;
     static {
@@ -1262,6 +1269,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 }
             }
 
+            invalidateDomainMetadata(vmName);
             conn.domainCreateXML(domainXML, 0);
         } catch (final LibvirtException e) {
             throw e;
@@ -1476,6 +1484,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
         final Domain vm = getDomain(conn, vmName);
         vm.attachDevice(getVifDriver(nicTO.getType()).plug(nicTO, "Other PV", "").toString());
+        invalidateDomainMetadata(vmName);
     }
 
 
@@ -1487,6 +1496,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         for (final InterfaceDef pluggedNic : pluggedNics) {
             if (pluggedNic.getMacAddress().equalsIgnoreCase(macAddr)) {
                 vm.detachDevice(pluggedNic.toString());
+                invalidateDomainMetadata(vmName);
                 // We don't know which "traffic type" is associated with
                 // each interface at this point, so inform all vif drivers
                 for (final VifDriver vifDriver : getAllVifDrivers()) {
@@ -2304,6 +2314,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 s_logger.debug("Detaching device: " + xml);
                 dm.detachDevice(xml);
             }
+            invalidateDomainMetadata(vmName);
         } catch (final LibvirtException e) {
             if (attach) {
                 s_logger.warn("Failed to attach device to " + vmName + ": " + e.getMessage());
@@ -2363,6 +2374,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         fillNetworkInformation(cmd);
         _privateIp = cmd.getPrivateIpAddress();
         cmd.getHostDetails().putAll(getVersionStrings());
+        cmd.getHostDetails().put(SecurityGroupRulesDeltaCmd.HOST_CAPABILITY, Boolean.TRUE.toString());
         cmd.setPool(_pool);
         cmd.setCluster(_clusterId);
         cmd.setGatewayIpAddress(_localGateway);
@@ -2726,6 +2738,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     protected String stopVM(final Connect conn, final String vmName, final boolean force) {
         Domain dm = null;
+        invalidateDomainMetadata(vmName);
         try {
             dm = conn.domainLookupByName(vmName);
             final int persist = dm.isPersistent();
@@ -2938,13 +2951,20 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
             final List<VmDiskStatsEntry> stats = new ArrayList<VmDiskStatsEntry>();
 
-            final List<DiskDef> disks = getDisks(conn, vmName);
+            final List<DiskDef> disks = getDomainMetadata(conn, dm, vmName)._disks;
 
             for (final DiskDef disk : disks) {
                 if (disk.getDeviceType() != DeviceType.DISK) {
                     break;
                 }
-                final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
+                final DomainBlockStats blockStats;
+                try {
+                    blockStats = dm.blockStats(disk.getDiskLabel());
+                } catch (final LibvirtException e) {
+                    // the disk may have been changed outside of the agent, refresh on the next call
+                    invalidateDomainMetadata(vmName);
+                    throw e;
+                }
                 final String path = disk.getDiskPath(); // for example, path = /mnt/pool_uuid/disk_path/
                 String diskPath = null;
                 if (path != null) {
@@ -2976,7 +2996,82 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         Calendar _timestamp;
     }
 
+    /**
+     * Devices of a domain as parsed from its XML description. Stats collection reuses them until
+     * the domain is (re)started, stopped or migrated away, or a device is attached or detached.
+     */
+    private static class DomainMetadata {
+        final String _vmName;
+        final List<InterfaceDef> _interfaces;
+        final List<DiskDef> _disks;
+
+        DomainMetadata(final String vmName, final List<InterfaceDef> interfaces, final List<DiskDef> disks) {
+            _vmName = vmName;
+            _interfaces = interfaces;
+            _disks = disks;
+        }
+    }
+
+    private DomainMetadata getDomainMetadata(final Connect conn, final Domain dm, final String vmName) throws LibvirtException {
+        final String uuid = dm.getUUIDString();
+        DomainMetadata metadata = _domainMetadata.get(uuid);
+        if (metadata == null || !metadata._vmName.equals(vmName)) {
+            metadata = new DomainMetadata(vmName, getInterfaces(conn, vmName), getDisks(conn, vmName));
+            // an empty definition most likely means the lookup failed, don't hold on to it
+            if (!metadata._interfaces.isEmpty() || !metadata._disks.isEmpty()) {
+                _domainMetadata.put(uuid, metadata);
+            }
+        }
+        return metadata;
+    }
+
+    public void invalidateDomainMetadata(final String vmName) {
+        final Iterator<DomainMetadata> it = _domainMetadata.values().iterator();
+        while (it.hasNext()) {
+            if (it.next()._vmName.equals(vmName)) {
+                it.remove();
+            }
+        }
+    }
+
+    private VmStats getDomainCounters(final Domain dm, final DomainMetadata metadata) throws LibvirtException {
+        final VmStats counters = new VmStats();
+        for (final InterfaceDef vif : metadata._interfaces) {
+            final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
+            counters._rx += ifStats.rx_bytes;
+            counters._tx += ifStats.tx_bytes;
+        }
+
+        for (final DiskDef disk : metadata._disks) {
+            final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
+            counters._ioRead += blockStats.rd_req;
+            counters._ioWrote += blockStats.wr_req;
+            counters._bytesRead += blockStats.rd_bytes;
+            counters._bytesWrote += blockStats.wr_bytes;
+        }
+        return counters;
+    }
+
+    /**
+     * Collects the stats of all given domains, looking up the host cpu count only once.
+     */
+    public Map<String, VmStatsEntry> getVmStats(final Connect conn, final List<String> vmNames) throws LibvirtException {
+        final int hostCpus = conn.nodeInfo().cpus;
+        final Map<String, VmStatsEntry> vmStats = new HashMap<String, VmStatsEntry>();
+        for (final String vmName : vmNames) {
+            final VmStatsEntry statEntry = getVmStat(conn, vmName, hostCpus);
+            if (statEntry != null) {
+                vmStats.put(vmName, statEntry);
+            }
+        }
+        return vmStats;
+    }
+
     public VmStatsEntry getVmStat(final Connect conn, final String vmName) throws LibvirtException {
+        return getVmStat(conn, vmName, conn.nodeInfo().cpus);
+    }
+
+    protected VmStatsEntry getVmStat(final Connect conn, final String vmName, final int hostCpus) throws LibvirtException {
         Domain dm = null;
         try {
             dm = getDomain(conn, vmName);
@@ -2998,77 +3093,55 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
                 double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
 
-                final NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
+                utilization = utilization / hostCpus;
                 if (utilization > 0) {
                     stats.setCPUUtilization(utilization * 100);
                 }
             }
 
-            /* get network stats */
-
-            final List<InterfaceDef> vifs = getInterfaces(conn, vmName);
-            long rx = 0;
-            long tx = 0;
-            for (final InterfaceDef vif : vifs) {
-                final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
-                rx += ifStats.rx_bytes;
-                tx += ifStats.tx_bytes;
+            /* get network and disk counters */
+            VmStats newStat;
+            try {
+                newStat = getDomainCounters(dm, getDomainMetadata(conn, dm, vmName));
+            } catch (final LibvirtException e) {
+                // devices may have changed outside of the agent, retry once with a fresh definition
+                s_logger.debug("Refreshing devices of " + vmName + " after failing to get its stats: " + e.getMessage());
+                invalidateDomainMetadata(vmName);
+                newStat = getDomainCounters(dm, getDomainMetadata(conn, dm, vmName));
             }
 
             if (oldStats != null) {
-                final double deltarx = rx - oldStats._rx;
+                final double deltarx = newStat._rx - oldStats._rx;
                 if (deltarx > 0) {
                     stats.setNetworkReadKBs(deltarx / 1024);
                 }
-                final double deltatx = tx - oldStats._tx;
+                final double deltatx = newStat._tx - oldStats._tx;
                 if (deltatx > 0) {
                     stats.setNetworkWriteKBs(deltatx / 1024);
                 }
             }
 
-            /* get disk stats */
-            final List<DiskDef> disks = getDisks(conn, vmName);
-            long io_rd = 0;
-            long io_wr = 0;
-            long bytes_rd = 0;
-            long bytes_wr = 0;
-            for (final DiskDef disk : disks) {
-                final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                io_rd += blockStats.rd_req;
-                io_wr += blockStats.wr_req;
-                bytes_rd += blockStats.rd_bytes;
-                bytes_wr += blockStats.wr_bytes;
-            }
-
             if (oldStats != null) {
-                final long deltaiord = io_rd - oldStats._ioRead;
+                final long deltaiord = newStat._ioRead - oldStats._ioRead;
                 if (deltaiord > 0) {
                     stats.setDiskReadIOs(deltaiord);
                 }
-                final long deltaiowr = io_wr - oldStats._ioWrote;
+                final long deltaiowr = newStat._ioWrote - oldStats._ioWrote;
                 if (deltaiowr > 0) {
                     stats.setDiskWriteIOs(deltaiowr);
                 }
-                final double deltabytesrd = bytes_rd - oldStats._bytesRead;
+                final double deltabytesrd = newStat._bytesRead - oldStats._bytesRead;
                 if (deltabytesrd > 0) {
                     stats.setDiskReadKBs(deltabytesrd / 1024);
                 }
-                final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
+                final double deltabyteswr = newStat._bytesWrote - oldStats._bytesWrote;
                 if (deltabyteswr > 0) {
                     stats.setDiskWriteKBs(deltabyteswr / 1024);
                 }
             }
 
             /* save to Hashmap */
-            final VmStats newStat = new VmStats();
             newStat._usedTime = info.cpuTime;
-            newStat._rx = rx;
-            newStat._tx = tx;
-            newStat._ioRead = io_rd;
-            newStat._ioWrote = io_wr;
-            newStat._bytesRead = bytes_rd;
-            newStat._bytesWrote = bytes_wr;
             newStat._timestamp = now;
             _vmStats.put(vmName, newStat);
             return stats;
@@ -3094,6 +3167,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         if (!_canBridgeFirewall) {
             return false;
         }
+        _programmedRules.remove(vmName);
         String vif = null;
         final List<InterfaceDef> intfs = getInterfaces(conn, vmName);
         if (intfs.size() > 0) {
@@ -3196,6 +3270,14 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return true;
     }
 
+    public SecurityGroupRulesCmd getProgrammedRules(final String vmName) {
+        return _programmedRules.get(vmName);
+    }
+
+    public void setProgrammedRules(final SecurityGroupRulesCmd cmd) {
+        _programmedRules.put(cmd.getVmName(), cmd);
+    }
+
     public boolean addNetworkRules(final String vmName, final String vmId, final String guestIP, final String sig, final String seq, final String mac, final String rules, final String vif, final String brname,
             final String secIps) {
         if (!_canBridgeFirewall) {
@@ -3224,6 +3306,37 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return true;
     }
 
+    /**
+     * Adds and removes only the changed rules of a vm. Fails if the rules programmed for the vm are not at
+     * baseSeq, the full ruleset has to be programmed then.
+     */
+    public boolean addNetworkRulesDelta(final String vmName, final String vmId, final String guestIP, final String sig, final String seq, final String baseSeq,
+            final String addedRules, final String revokedRules) {
+        if (!_canBridgeFirewall) {
+            return false;
+        }
+
+        final Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
+        cmd.add("add_network_rules_delta");
+        cmd.add("--vmname", vmName);
+        cmd.add("--vmid", vmId);
+        cmd.add("--vmip", guestIP);
+        cmd.add("--sig", sig);
+        cmd.add("--seq", seq);
+        cmd.add("--baseseq", baseSeq);
+        if (addedRules != null && !addedRules.isEmpty()) {
+            cmd.add("--rules", addedRules.replace(" ", ";"));
+        }
+        if (revokedRules != null && !revokedRules.isEmpty()) {
+            cmd.add("--revokedrules", revokedRules.replace(" ", ";"));
+        }
+        final String result = cmd.execute();
+        if (result != null) {
+            return false;
+        }
+        return true;
+    }
+
     public boolean configureNetworkRulesVMSecondaryIP(final Connect conn, final String vmName, final String secIp, final String action) {
 
         if (!_canBridgeFirewall) {
@@ -19,8 +19,10 @@
 
 package com.cloud.hypervisor.kvm.resource.wrapper;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
@@ -44,17 +46,25 @@ public final class LibvirtGetVmStatsCommandWrapper extends CommandWrapper<GetVmS
         final List<String> vmNames = command.getVmNames();
         try {
             final HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
-            for (final String vmName : vmNames) {
-
-                final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
+            final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
 
+            // group the vms by hypervisor connection, so each connection is queried in one pass
+            final Map<Connect, List<String>> vmNamesByConnection = new HashMap<Connect, List<String>>();
+            for (final String vmName : vmNames) {
                 final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(vmName);
-                final VmStatsEntry statEntry = libvirtComputingResource.getVmStat(conn, vmName);
-                if (statEntry == null) {
-                    continue;
+                List<String> connVmNames = vmNamesByConnection.get(conn);
+                if (connVmNames == null) {
+                    connVmNames = new ArrayList<String>();
+                    vmNamesByConnection.put(conn, connVmNames);
                 }
+                connVmNames.add(vmName);
+            }
 
-                vmStatsNameMap.put(vmName, statEntry);
+            for (final Map.Entry<Connect, List<String>> entry : vmNamesByConnection.entrySet()) {
+                final Map<String, VmStatsEntry> vmStats = libvirtComputingResource.getVmStats(entry.getKey(), entry.getValue());
+                if (vmStats != null) {
+                    vmStatsNameMap.putAll(vmStats);
+                }
             }
             return new GetVmStatsAnswer(command, vmStatsNameMap);
         } catch (final LibvirtException e) {
@@ -163,6 +163,7 @@ public final class LibvirtMigrateCommandWrapper extends CommandWrapper<MigrateCo
                         dm.undefine();
                     }
                     dm.free();
+                    libvirtComputingResource.invalidateDomainMetadata(vmName);
                 }
                 if (dconn != null) {
                     dconn.close();
@@ -63,6 +63,7 @@ public final class LibvirtSecurityGroupRulesCommandWrapper extends CommandWrappe
         } else {
             s_logger.debug("Programmed network rules for vm " + command.getVmName() + " guestIp=" + command.getGuestIp() + ",ingress numrules="
                     + command.getIngressRuleSet().length + ",egress numrules=" + command.getEgressRuleSet().length);
+            libvirtComputingResource.setProgrammedRules(command);
             return new SecurityGroupRuleAnswer(command);
         }
     }
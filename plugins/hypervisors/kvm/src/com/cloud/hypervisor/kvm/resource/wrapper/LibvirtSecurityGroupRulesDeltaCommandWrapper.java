@@ -0,0 +1,90 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.hypervisor.kvm.resource.wrapper;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
+import com.cloud.agent.api.SecurityGroupRuleAnswer.FailureReason;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+import com.cloud.resource.CommandWrapper;
+import com.cloud.resource.ResourceWrapper;
+
+@ResourceWrapper(handles =  SecurityGroupRulesDeltaCmd.class)
+public final class LibvirtSecurityGroupRulesDeltaCommandWrapper extends CommandWrapper<SecurityGroupRulesDeltaCmd, Answer, LibvirtComputingResource> {
+
+    private static final Logger s_logger = Logger.getLogger(LibvirtSecurityGroupRulesDeltaCommandWrapper.class);
+
+    @Override
+    public Answer execute(final SecurityGroupRulesDeltaCmd command, final LibvirtComputingResource libvirtComputingResource) {
+        final SecurityGroupRulesCmd programmed = libvirtComputingResource.getProgrammedRules(command.getVmName());
+        final SecurityGroupRulesCmd rules = command.applyTo(programmed);
+        if (rules == null) {
+            s_logger.debug("Rules programmed for vm " + command.getVmName() + " are not at seqno " + command.getBaseSeqNum() + ", asking for the full ruleset");
+            return new SecurityGroupRuleAnswer(command, false, "programmed network rules are not at seqno " + command.getBaseSeqNum(), FailureReason.SEQUENCE_MISMATCH);
+        }
+
+        String vif = null;
+        String brname = null;
+        try {
+            final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
+
+            final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(command.getVmName());
+            final List<InterfaceDef> nics = libvirtComputingResource.getInterfaces(conn, command.getVmName());
+
+            vif = nics.get(0).getDevName();
+            brname = nics.get(0).getBrName();
+        } catch (final LibvirtException e) {
+            return new SecurityGroupRuleAnswer(command, false, e.toString(), FailureReason.PROGRAMMING_FAILED);
+        }
+
+        boolean result = false;
+        // the egress chain ends in a drop only while the vm has egress rules, changing that takes the full ruleset
+        if ((programmed.getEgressRuleSet().length == 0) == (rules.getEgressRuleSet().length == 0)) {
+            result = libvirtComputingResource.addNetworkRulesDelta(command.getVmName(), Long.toString(command.getVmId()), command.getGuestIp(), command.getSignature(),
+                    Long.toString(command.getSeqNum()), Long.toString(command.getBaseSeqNum()), command.stringifyAddedRules(), command.stringifyRevokedRules());
+            if (!result) {
+                s_logger.debug("Unable to program network rules delta for vm " + command.getVmName() + ", programming the full ruleset");
+            }
+        }
+        if (!result) {
+            result = libvirtComputingResource.addNetworkRules(rules.getVmName(), Long.toString(rules.getVmId()), rules.getGuestIp(), rules.getSignature(),
+                    Long.toString(rules.getSeqNum()), rules.getGuestMac(), rules.stringifyRules(), vif, brname, rules.getSecIpsString());
+        }
+
+        if (!result) {
+            s_logger.warn("Failed to program network rules delta for vm " + command.getVmName());
+            return new SecurityGroupRuleAnswer(command, false, "programming network rules failed", FailureReason.PROGRAMMING_FAILED);
+        } else {
+            s_logger.debug("Programmed network rules delta for vm " + command.getVmName() + " guestIp=" + command.getGuestIp() + ",changed numrules="
+                    + command.getNumChangedRules() + ",seqno=" + command.getBaseSeqNum() + "->" + command.getSeqNum());
+            libvirtComputingResource.setProgrammedRules(rules);
+            return new SecurityGroupRuleAnswer(command);
+        }
+    }
+}
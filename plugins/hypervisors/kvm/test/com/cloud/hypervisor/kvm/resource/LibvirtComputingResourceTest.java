@@ -37,6 +37,7 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 
@@ -410,6 +411,7 @@ public class LibvirtComputingResourceTest {
         final Domain domain = Mockito.mock(Domain.class);
         final DomainInfo domainInfo = new DomainInfo();
         Mockito.when(domain.getInfo()).thenReturn(domainInfo);
+        Mockito.when(domain.getUUIDString()).thenReturn("e8d6b4d0-bc6d-4613-b8bb-cb9e0600f3c6");
         Mockito.when(connect.domainLookupByName(VMNAME)).thenReturn(domain);
         final NodeInfo nodeInfo = new NodeInfo();
         nodeInfo.cpus = 8;
@@ -478,6 +480,36 @@ public class LibvirtComputingResourceTest {
         Assert.assertTrue(vmStat.getDiskWriteKBs() > 0);
     }
 
+    @Test
+    public void testGetVmStatCachesDomainDevices() throws LibvirtException {
+        final Connect connect = Mockito.mock(Connect.class);
+        final Domain domain = Mockito.mock(Domain.class);
+        Mockito.when(domain.getInfo()).thenReturn(new DomainInfo());
+        Mockito.when(domain.getUUIDString()).thenReturn("e8d6b4d0-bc6d-4613-b8bb-cb9e0600f3c6");
+        Mockito.when(domain.interfaceStats(Matchers.anyString())).thenReturn(new DomainInterfaceStats());
+        Mockito.when(domain.blockStats(Matchers.anyString())).thenReturn(new DomainBlockStats());
+        Mockito.when(connect.domainLookupByName(VMNAME)).thenReturn(domain);
+        final NodeInfo nodeInfo = new NodeInfo();
+        nodeInfo.cpus = 8;
+        Mockito.when(connect.nodeInfo()).thenReturn(nodeInfo);
+
+        final LibvirtComputingResource libvirtComputingResource = Mockito.spy(new LibvirtComputingResource());
+        Mockito.doReturn(Arrays.asList(new InterfaceDef())).when(libvirtComputingResource).getInterfaces(connect, VMNAME);
+        Mockito.doReturn(Arrays.asList(new DiskDef())).when(libvirtComputingResource).getDisks(connect, VMNAME);
+
+        final Map<String, VmStatsEntry> vmStats = libvirtComputingResource.getVmStats(connect, Arrays.asList(VMNAME));
+        Assert.assertTrue(vmStats.containsKey(VMNAME));
+        libvirtComputingResource.getVmStat(connect, VMNAME);
+        Mockito.verify(libvirtComputingResource, Mockito.times(1)).getInterfaces(connect, VMNAME);
+        Mockito.verify(libvirtComputingResource, Mockito.times(1)).getDisks(connect, VMNAME);
+        Mockito.verify(connect, Mockito.times(2)).nodeInfo();
+
+        libvirtComputingResource.invalidateDomainMetadata(VMNAME);
+        libvirtComputingResource.getVmStat(connect, VMNAME);
+        Mockito.verify(libvirtComputingResource, Mockito.times(2)).getInterfaces(connect, VMNAME);
+        Mockito.verify(libvirtComputingResource, Mockito.times(2)).getDisks(connect, VMNAME);
+    }
+
     @Test
     public void getCpuSpeed() {
         Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
@@ -790,6 +790,51 @@ def remove_rule_log_for_vm(vmName):
 def egress_chain_name(vm_name):
     return vm_name + "-eg"
 
+def rule_specs(vm_name, tokens):
+    # the chain and the iptables rule of every cidr of a ruleset line, type:protocol:start:end:cidr,cidr,
+    ruletype = tokens[0]
+    protocol = tokens[1]
+    start = tokens[2]
+    end = tokens[3]
+    ips = tokens[4].split(",")
+    ips.pop()
+    allow_any = False
+    if ruletype == 'E':
+        vmchain = egress_chain_name(vm_name)
+        direction = "-d"
+        action = "RETURN"
+    else:
+        vmchain = vm_name
+        action = "ACCEPT"
+        direction = "-s"
+    if '0.0.0.0/0' in ips:
+        i = ips.index('0.0.0.0/0')
+        del ips[i]
+        allow_any = True
+    range = start + ":" + end
+    if protocol == 'icmp':
+        range = start + "/" + end
+        if start == "-1":
+            range = "any"
+
+    specs = []
+    for ip in ips:
+        if protocol == 'all':
+            specs.append((vmchain, "-m state --state NEW " + direction + " " + ip + " -j " + action))
+        elif protocol != 'icmp':
+            specs.append((vmchain, "-p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW " + direction + " " + ip + " -j " + action))
+        else:
+            specs.append((vmchain, "-p icmp --icmp-type " + range + " " + direction + " " + ip + " -j " + action))
+
+    if allow_any:
+        if protocol == 'all':
+            specs.append((vmchain, "-m state --state NEW " + direction + " 0.0.0.0/0 -j " + action))
+        elif protocol != 'icmp':
+            specs.append((vmchain, "-p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW -j " + action))
+        else:
+            specs.append((vmchain, "-p icmp --icmp-type " + range + " -j " + action))
+    return specs
+
 def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif, brname, sec_ips):
   try:
     vmName = vm_name
@@ -824,52 +869,10 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
         tokens = line.split(':')
         if len(tokens) != 5:
           continue
-        ruletype = tokens[0]
-        protocol = tokens[1]
-        start = tokens[2]
-        end = tokens[3]
-        cidrs = tokens.pop();
-        ips = cidrs.split(",")
-        ips.pop()
-        allow_any = False
-        if ruletype == 'E':
-            vmchain = egress_chain_name(vm_name)
-            direction = "-d"
-            action = "RETURN"
+        if tokens[0] == 'E':
             egressrule = egressrule + 1
-        else:
-            vmchain = vm_name
-            action = "ACCEPT"
-            direction = "-s"
-        if '0.0.0.0/0' in ips:
-            i = ips.index('0.0.0.0/0')
-            del ips[i]
-            allow_any = True
-        range = start + ":" + end
-        if ips:
-            if protocol == 'all':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -m state --state NEW " + direction + " " + ip + " -j "+action)
-            elif protocol != 'icmp':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW " + direction + " " + ip + " -j "+ action)
-            else:
-                range = start + "/" + end
-                if start == "-1":
-                    range = "any"
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " " + direction + " " + ip + " -j "+ action)
-
-        if allow_any:
-            if protocol == 'all':
-                execute("iptables -I " + vmchain + " -m state --state NEW " + direction + " 0.0.0.0/0 -j "+action)
-            elif protocol != 'icmp':
-                execute("iptables -I " + vmchain + " -p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW -j "+ action)
-            else:
-                range = start + "/" + end
-                if start == "-1":
-                    range = "any"
-                execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " -j "+action)
+        for vmchain, rule in rule_specs(vm_name, tokens):
+            execute("iptables -I " + vmchain + " " + rule)
 
     egress_vmchain = egress_chain_name(vm_name)
     if egressrule == 0 :
@@ -890,6 +893,34 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
   except:
     logging.exception("Failed to network rule !")
 
+def add_network_rules_delta(vm_name, vm_id, vm_ip, signature, seqno, base_seqno, added_rules, revoked_rules):
+  # changes only the rules in the delta, the caller programs the full ruleset when this fails
+  try:
+    domId = getvmId(vm_name)
+    changes = check_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, base_seqno)
+    if changes[0] or changes[1] or changes[2] or changes[3] or changes[5]:
+        logging.debug("Rules programmed for vm " + vm_name + " are not at seqno " + base_seqno)
+        return False
+
+    logging.debug("    programming network rules delta for IP: " + vm_ip + " vmname=" + vm_name + " seqno=" + base_seqno + "->" + seqno)
+    for line in (revoked_rules or "").split(';')[:-1]:
+        tokens = line.split(':')
+        if len(tokens) != 5:
+          continue
+        for vmchain, rule in rule_specs(vm_name, tokens):
+            execute("iptables -D " + vmchain + " " + rule)
+    for line in (added_rules or "").split(';')[:-1]:
+        tokens = line.split(':')
+        if len(tokens) != 5:
+          continue
+        for vmchain, rule in rule_specs(vm_name, tokens):
+            execute("iptables -I " + vmchain + " " + rule)
+
+    return write_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, seqno)
+  except:
+    logging.exception("Failed to program network rules delta for vm " + vm_name)
+    return False
+
 def getVifs(vmName):
     vifs = []
     xmlfile = virshdumpxml(vmName)
@@ -1015,7 +1046,9 @@ if __name__ == '__main__':
     parser.add_option("--vif", dest="vif")
     parser.add_option("--sig", dest="sig")
     parser.add_option("--seq", dest="seq")
+    parser.add_option("--baseseq", dest="baseSeq")
     parser.add_option("--rules", dest="rules")
+    parser.add_option("--revokedrules", dest="revokedRules")
     parser.add_option("--brname", dest="brname")
     parser.add_option("--localbrname", dest="localbrname")
     parser.add_option("--dhcpSvr", dest="dhcpSvr")
@@ -1041,6 +1074,9 @@ if __name__ == '__main__':
         get_rule_logs_for_vms()
     elif cmd == "add_network_rules":
         add_network_rules(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname, option.nicSecIps)
+    elif cmd == "add_network_rules_delta":
+        if not add_network_rules_delta(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.baseSeq, option.rules, option.revokedRules):
+            sys.exit(1)
     elif cmd == "network_rules_vmSecondaryIp":
         network_rules_vmSecondaryIp(option.vmName, option.nicSecIps, option.action)
     elif cmd == "cleanup_rules":
@@ -33,6 +33,8 @@ import org.springframework.stereotype.Component;
 import com.cloud.agent.manager.allocator.HostAllocator;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.HostCapacitySnapshot;
+import com.cloud.capacity.HostCapacitySnapshot.ClusterOvercommit;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
@@ -48,7 +50,6 @@ import com.cloud.host.HostVO;
 import com.cloud.host.dao.HostDao;
 import com.cloud.host.dao.HostDetailsDao;
 import com.cloud.offering.ServiceOffering;
-import com.cloud.org.Cluster;
 import com.cloud.resource.ResourceManager;
 import com.cloud.service.ServiceOfferingDetailsVO;
 import com.cloud.service.dao.ServiceOfferingDetailsDao;
@@ -278,7 +279,16 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
         long serviceOfferingId = offering.getId();
         List<Host> suitableHosts = new ArrayList<Host>();
-        ServiceOfferingDetailsVO offeringDetails = null;
+        ServiceOfferingDetailsVO offeringDetails = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.vgpuType.toString());
+        ServiceOfferingDetailsVO groupName = null;
+        if (offeringDetails != null) {
+            groupName = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.pciDevice.toString());
+        }
+
+        int cpu_requested = offering.getCpu() * offering.getSpeed();
+        long ram_requested = offering.getRamSize() * 1024L * 1024L;
+        HostCapacitySnapshot capacitySnapshot = _capacityMgr.getHostCapacitySnapshot();
+        Map<Long, ClusterOvercommit> overcommitByCluster = new HashMap<Long, ClusterOvercommit>();
 
         for (Host host : hosts) {
             if (suitableHosts.size() == returnUpTo) {
@@ -291,6 +301,21 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
                 continue;
             }
 
+            ClusterOvercommit overcommit = getClusterOvercommit(capacitySnapshot, overcommitByCluster, host.getClusterId());
+            float cpuOvercommitRatio = overcommit.getCpuOvercommitRatio();
+            float memoryOvercommitRatio = overcommit.getMemoryOvercommitRatio();
+
+            // The snapshot filters the candidates without going to the DB. It may miss capacity released
+            // through another management server, so the host is skipped but not added to the avoid set
+            HostCapacitySnapshot.HostCapacity cachedCapacity = capacitySnapshot != null ? capacitySnapshot.getHost(host.getId()) : null;
+            if (cachedCapacity != null &&
+                !cachedCapacity.hasCapacity(cpu_requested, ram_requested, cpuOvercommitRatio, memoryOvercommitRatio, considerReservedCapacity)) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Not using host " + host.getId() + "; capacity snapshot shows not enough capacity");
+                }
+                continue;
+            }
+
             //find number of guest VMs occupying capacity on this host.
             if (_capacityMgr.checkIfHostReachMaxGuestLimit(host)) {
                 if (s_logger.isDebugEnabled()) {
@@ -301,22 +326,14 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
             }
 
             // Check if GPU device is required by offering and host has the availability
-            if ((offeringDetails   = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.vgpuType.toString())) != null) {
-                ServiceOfferingDetailsVO groupName = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.pciDevice.toString());
+            if (offeringDetails != null) {
                 if(!_resourceMgr.isGPUDeviceAvailable(host.getId(), groupName.getValue(), offeringDetails.getValue())){
                     s_logger.info("Host name: " + host.getName() + ", hostId: "+ host.getId() +" does not have required GPU devices available");
                     continue;
                 }
             }
 
-            int cpu_requested = offering.getCpu() * offering.getSpeed();
-            long ram_requested = offering.getRamSize() * 1024L * 1024L;
-            Cluster cluster = _clusterDao.findById(host.getClusterId());
-            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-            Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
-            Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
-
+            // Only a host about to be returned, or one the snapshot does not know yet, is checked against the DB
             boolean hostHasCpuCapability = _capacityMgr.checkIfHostHasCpuCapability(host.getId(), offering.getCpu(), offering.getSpeed());
             boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio,
                 considerReservedCapacity);
@@ -341,6 +358,31 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         return suitableHosts;
     }
 
+    private ClusterOvercommit getClusterOvercommit(HostCapacitySnapshot capacitySnapshot, Map<Long, ClusterOvercommit> overcommitByCluster, Long clusterId) {
+        ClusterOvercommit overcommit = overcommitByCluster.get(clusterId);
+        if (overcommit != null) {
+            return overcommit;
+        }
+        if (capacitySnapshot != null) {
+            overcommit = capacitySnapshot.getClusterOvercommit(clusterId);
+        }
+        if (overcommit == null) {
+            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio");
+            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio");
+            float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
+            float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
+            if (capacitySnapshot != null) {
+                capacitySnapshot.updateClusterOvercommit(clusterId, cpuOvercommitRatio, memoryOvercommitRatio);
+                overcommit = capacitySnapshot.getClusterOvercommit(clusterId);
+            }
+            if (overcommit == null) {
+                overcommit = new ClusterOvercommit(cpuOvercommitRatio, memoryOvercommitRatio, System.currentTimeMillis());
+            }
+        }
+        overcommitByCluster.put(clusterId, overcommit);
+        return overcommit;
+    }
+
     // Reorder hosts in the decreasing order of free capacity.
     private List<? extends Host> reorderHostsByCapacity(DeploymentPlan plan, List<? extends Host> hosts) {
         Long clusterId = plan.getClusterId();
@@ -476,9 +518,18 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         if (_serviceOfferingDetailsDao.findDetail(offering.getId(), GPU.Keys.vgpuType.toString()) == null) {
 
             List<Host> gpuEnabledHosts = new ArrayList<Host>();
+            HostCapacitySnapshot capacitySnapshot = _capacityMgr.getHostCapacitySnapshot();
             // Check for GPU enabled hosts.
             for (Host host : prioritizedHosts) {
-                if (_resourceMgr.isHostGpuEnabled(host.getId())) {
+                HostCapacitySnapshot.HostCapacity cachedCapacity = capacitySnapshot != null ? capacitySnapshot.getHost(host.getId()) : null;
+                Boolean gpuEnabled = cachedCapacity != null ? cachedCapacity.isGpuEnabled() : null;
+                if (gpuEnabled == null) {
+                    gpuEnabled = _resourceMgr.isHostGpuEnabled(host.getId());
+                    if (capacitySnapshot != null) {
+                        capacitySnapshot.updateGpuEnabled(host.getId(), gpuEnabled);
+                    }
+                }
+                if (gpuEnabled) {
                     gpuEnabledHosts.add(host);
                 }
             }
@@ -147,6 +147,8 @@ import javax.servlet.http.HttpSession;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -475,9 +477,16 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     @Override
     @SuppressWarnings("rawtypes")
     public String handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb) throws ServerApiException {
+        final StringWriter out = new StringWriter();
+        handleRequest(params, responseType, auditTrailSb, out);
+        return out.getBuffer().length() == 0 ? null : out.toString();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb, final Writer out) throws ServerApiException {
         checkCharacterInkParams(params);
 
-        String response = null;
         String[] command = null;
 
         try {
@@ -496,7 +505,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             } else {
                 // Don't allow Login/Logout APIs to go past this point
                 if (_authManager.getAPIAuthenticator(command[0]) != null) {
-                    return null;
+                    return;
                 }
                 final Map<String, String> paramMap = new HashMap<String, String>();
                 final Set keys = params.keySet();
@@ -526,14 +535,20 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
                     cmdObj.setHttpMethod(paramMap.get(ApiConstants.HTTPMETHOD).toString());
 
                     // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
                     if (annotation.responseHasSensitiveInfo())
                     {
+                        // the response has to be cleaned as a whole before it can be logged
+                        final StringWriter response = new StringWriter();
+                        queueCommand(cmdObj, paramMap, response);
                         buildAuditTrail(auditTrailSb, command[0],
-                                StringUtils.cleanString(response));
+                                StringUtils.cleanString(response.toString()));
+                        out.write(response.toString());
+                    }
+                    else {
+                        final AuditTrailWriter response = new AuditTrailWriter(out);
+                        queueCommand(cmdObj, paramMap, response);
+                        buildAuditTrail(auditTrailSb, command[0], response.getAuditTrail());
                     }
-                    else
-                        buildAuditTrail(auditTrailSb, command[0], response);
                 } else {
                     final String errorString = "Unknown API command: " + command[0];
                     s_logger.warn(errorString);
@@ -587,6 +602,10 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         } catch (final ServerApiException ex) {
             s_logger.info(ex.getDescription());
             throw ex;
+        } catch (final IOException ex) {
+            // the response is streamed to the client, it fails when the client goes away
+            s_logger.debug("Unable to write response of api command " + command[0] + ": " + ex.getMessage());
+            throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, BaseCmd.USER_ERROR_MESSAGE, ex);
         } catch (final Exception ex) {
             s_logger.error("unhandled exception executing api command: " + ((command == null) ? "null" : command), ex);
             String errorMsg = ex.getMessage();
@@ -596,8 +615,6 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
             throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, errorMsg, ex);
         }
-
-        return response;
     }
 
     private String getBaseAsyncResponse(final long jobId, final BaseAsyncCmd cmd) {
@@ -618,15 +635,15 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         return ApiResponseSerializer.toSerializedString(response, cmd.getResponseType());
     }
 
-    private String queueCommand(final BaseCmd cmdObj, final Map<String, String> params) throws Exception {
+    private void queueCommand(final BaseCmd cmdObj, final Map<String, String> params, final Writer out) throws Exception {
         final CallContext ctx = CallContext.current();
         final Long callerUserId = ctx.getCallingUserId();
         final Account caller = ctx.getCallingAccount();
 
         // Queue command based on Cmd super class:
-        // BaseCmd: cmd is dispatched to ApiDispatcher, executed, serialized and returned.
+        // BaseCmd: cmd is dispatched to ApiDispatcher, executed and serialized into out.
         // BaseAsyncCreateCmd: cmd params are processed and create() is called, then same workflow as BaseAsyncCmd.
-        // BaseAsyncCmd: cmd is processed and submitted as an AsyncJob, job related info is serialized and returned.
+        // BaseAsyncCmd: cmd is processed and submitted as an AsyncJob, job related info is serialized into out.
         if (cmdObj instanceof BaseAsyncCmd) {
             Long objectId = null;
             String objectUuid = null;
@@ -695,10 +712,10 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
 
             if (objectId != null) {
                 final String objUuid = (objectUuid == null) ? objectId.toString() : objectUuid;
-                return getBaseAsyncCreateResponse(jobId, (BaseAsyncCreateCmd)asyncCmd, objUuid);
+                out.write(getBaseAsyncCreateResponse(jobId, (BaseAsyncCreateCmd)asyncCmd, objUuid));
             } else {
                 SerializationContext.current().setUuidTranslation(true);
-                return getBaseAsyncResponse(jobId, asyncCmd);
+                out.write(getBaseAsyncResponse(jobId, asyncCmd));
             }
         } else {
             _dispatcher.dispatch(cmdObj, params, false);
@@ -718,7 +735,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
 
             SerializationContext.current().setUuidTranslation(true);
-            return ApiResponseSerializer.toSerializedString((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType());
+            ApiResponseSerializer.writeSerializedResponse((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType(), out);
         }
     }
 
@@ -758,6 +775,51 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         }
     }
 
+    /**
+     * Passes the response through to the client and keeps its beginning for the access log, so a
+     * streamed list response is logged without being held in memory.
+     */
+    private static class AuditTrailWriter extends Writer {
+        private static final int MaxLoggedChars = 65536;
+
+        private final Writer _out;
+        private final StringBuilder _auditTrail = new StringBuilder();
+        private boolean _truncated = false;
+
+        public AuditTrailWriter(final Writer out) {
+            _out = out;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            _out.write(cbuf, off, len);
+            final int logged = Math.min(len, MaxLoggedChars - _auditTrail.length());
+            if (logged > 0) {
+                _auditTrail.append(cbuf, off, logged);
+            }
+            if (logged < len) {
+                _truncated = true;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            _out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _out.close();
+        }
+
+        public String getAuditTrail() {
+            if (_auditTrail.length() == 0) {
+                return null;
+            }
+            return _truncated ? _auditTrail.append("...").toString() : _auditTrail.toString();
+        }
+    }
+
     private void buildAuditTrail(final StringBuilder auditTrailSb, final String command, final String result) {
         if (result == null) {
             return;
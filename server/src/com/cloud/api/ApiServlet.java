@@ -44,6 +44,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.URLDecoder;
@@ -293,8 +294,9 @@ public class ApiServlet extends HttpServlet {
 
                 // Add the HTTP method (GET/POST/PUT/DELETE) as well into the params map.
                 params.put("httpmethod", new String[] {req.getMethod()});
-                final String response = _apiServer.handleRequest(params, responseType, auditTrailSb);
-                HttpUtils.writeHttpResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType, ApiServer.getJSONContentType());
+                final HttpUtils.HttpResponseWriter responseWriter = new HttpUtils.HttpResponseWriter(resp, HttpServletResponse.SC_OK, responseType, ApiServer.getJSONContentType());
+                _apiServer.handleRequest(params, responseType, auditTrailSb, responseWriter);
+                responseWriter.flush();
             } else {
                 if (session != null) {
                     try {
@@ -311,10 +313,25 @@ public class ApiServlet extends HttpServlet {
 
             }
         } catch (final ServerApiException se) {
+            if (resp.isCommitted()) {
+                // part of the response is already on its way to the client, an error can't be sent anymore
+                if (se.getCause() instanceof IOException) {
+                    s_logger.debug("Client went away before the api response was complete: " + se.getCause().getMessage());
+                } else {
+                    s_logger.error("Unable to write complete api response: " + se.getDescription(), se);
+                }
+                auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
+                return;
+            }
+            // drop whatever part of the response is still buffered and send the error instead
+            resp.resetBuffer();
             final String serializedResponseText = _apiServer.getSerializedApiError(se, params, responseType);
             resp.setHeader("X-Description", se.getDescription());
             HttpUtils.writeHttpResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType, ApiServer.getJSONContentType());
             auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
+        } catch (final IOException ex) {
+            s_logger.debug("Client went away before the api response was complete: " + ex.getMessage());
+            auditTrailSb.append(" unable to write api response");
         } catch (final Exception ex) {
             s_logger.error("unknown exception writing api response", ex);
             auditTrailSb.append(" unknown exception writing api response");
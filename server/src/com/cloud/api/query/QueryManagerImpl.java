@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.api.query;
 
+import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
@@ -136,6 +137,7 @@ import com.cloud.api.query.dao.VolumeJoinDao;
 import com.cloud.api.query.vo.AccountJoinVO;
 import com.cloud.api.query.vo.AffinityGroupJoinVO;
 import com.cloud.api.query.vo.AsyncJobJoinVO;
+import com.cloud.api.query.vo.BaseViewVO;
 import com.cloud.api.query.vo.DataCenterJoinVO;
 import com.cloud.api.query.vo.DiskOfferingJoinVO;
 import com.cloud.api.query.vo.DomainJoinVO;
@@ -210,6 +212,7 @@ import com.cloud.utils.Pair;
 import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.JoinBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
@@ -620,7 +623,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
              * == null) { pendingEvents.add(event); } } return pendingEvents;
              */
         } else {
-            eventPair = _eventJoinDao.searchAndCount(sc, searchFilter);
+            eventPair = searchAndCount(_eventJoinDao, EventJoinVO.class, sc, searchFilter, false, cmd.getStartId());
         }
         return eventPair;
 
@@ -1021,9 +1024,9 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
             sc.setParameters("displayVm", 1);
         }
         // search vm details by ids
-        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = _userVmJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = searchAndCount(_userVmJoinDao, UserVmJoinVO.class, sc, searchFilter, true, cmd.getStartId());
         Integer count = uniqueVmPair.second();
-        if (count.intValue() == 0) {
+        if (uniqueVmPair.first().isEmpty()) {
             // handle empty result cases
             return uniqueVmPair;
         }
@@ -1037,6 +1040,29 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
         return new Pair<List<UserVmJoinVO>, Integer>(vms, count);
     }
 
+    /**
+     * Runs the search of a list command.  When the command passed a startid, the page is selected by
+     * keyset pagination in the order of the regular listing, with the id breaking ties, and the
+     * total count is not computed.
+     */
+    private <T extends BaseViewVO> Pair<List<T>, Integer> searchAndCount(GenericDao<T, Long> dao, Class<T> clazz, SearchCriteria<T> sc, Filter searchFilter,
+            boolean ascending, String startId) {
+        if (startId == null) {
+            return dao.searchAndCount(sc, searchFilter);
+        }
+
+        T start = dao.findByUuidIncludingRemoved(startId);
+        if (start == null) {
+            throw new InvalidParameterValueException("Unable to find the resource specified by startid " + startId);
+        }
+        List<Field> orderFields = searchFilter.getOrderFields();
+        if (orderFields.isEmpty() || !"id".equals(orderFields.get(orderFields.size() - 1).getName())) {
+            searchFilter.addOrderBy(clazz, "id", ascending);
+        }
+        searchFilter.setSeekAfterRow(start);
+        return new Pair<List<T>, Integer>(dao.search(sc, searchFilter), null);
+    }
+
     @Override
     public ListResponse<SecurityGroupResponse> searchForSecurityGroups(ListSecurityGroupsCmd cmd) {
         Pair<List<SecurityGroupJoinVO>, Integer> result = searchForSecurityGroupsInternal(cmd);
@@ -1841,9 +1867,9 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
         sc.setParameters("state", Volume.State.Destroy);
 
         // search Volume details by ids
-        Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = _volumeJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = searchAndCount(_volumeJoinDao, VolumeJoinVO.class, sc, searchFilter, false, cmd.getStartId());
         Integer count = uniqueVolPair.second();
-        if (count.intValue() == 0) {
+        if (uniqueVolPair.first().isEmpty()) {
             // empty result
             return uniqueVolPair;
         }
@@ -20,7 +20,6 @@ import com.cloud.api.ApiDBUtils;
 import com.cloud.api.ApiResponseGsonHelper;
 import com.cloud.api.ApiServer;
 import com.cloud.serializer.Param;
-import com.cloud.user.Account;
 import com.cloud.utils.HttpUtils;
 import com.cloud.utils.encoding.URLEncoder;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -40,6 +39,9 @@ import org.apache.cloudstack.api.response.SuccessResponse;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -47,18 +49,39 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ApiResponseSerializer {
     private static final Logger s_logger = Logger.getLogger(ApiResponseSerializer.class.getName());
 
+    // reflection and role metadata of each response class, computed once per class
+    private static final ConcurrentHashMap<Class<?>, ResponseField[]> s_responseFields = new ConcurrentHashMap<Class<?>, ResponseField[]>();
+
     public static String toSerializedString(ResponseObject result, String responseType) {
+        if (result == null && HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            return null;
+        }
+        StringWriter out = new StringWriter();
+        try {
+            writeSerializedResponse(result, responseType, out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize response " + result.getResponseName(), e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serializes the response straight into out, one response object at a time, so that large
+     * list responses are never held in memory as a whole.
+     */
+    public static void writeSerializedResponse(ResponseObject result, String responseType, Writer out) throws IOException {
         s_logger.trace("===Serializing Response===");
         if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-            return toJSONSerializedString(result);
+            writeJSON(result, out);
         } else {
-            return toXMLSerializedString(result);
+            writeXML(result, out);
         }
     }
 
@@ -74,102 +97,101 @@ public class ApiResponseSerializer {
     }
 
     public static String toJSONSerializedString(ResponseObject result) {
-        if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
-
-            StringBuilder sb = new StringBuilder();
-
-            sb.append("{\"").append(result.getResponseName()).append("\":");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
-                Integer count = ((ListResponse)result).getCount();
-                boolean nonZeroCount = (count != null && count.longValue() != 0);
-                if (nonZeroCount) {
-                    sb.append("{\"").append(ApiConstants.COUNT).append("\":").append(count);
-                }
-
-                if ((responses != null) && !responses.isEmpty()) {
-                    String jsonStr = gson.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
+        return toSerializedString(result, HttpUtils.RESPONSE_TYPE_JSON);
+    }
 
-                    if (nonZeroCount) {
-                        sb.append(",\"").append(responses.get(0).getObjectName()).append("\":[").append(jsonStr);
-                    }
+    private static void writeJSON(ResponseObject result, Writer out) throws IOException {
+        if (result == null) {
+            return;
+        }
+        Gson gson = ApiResponseGsonHelper.getResponseGson();
 
-                    for (int i = 1; i < ((ListResponse)result).getResponses().size(); i++) {
-                        jsonStr = gson.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        sb.append(",").append(jsonStr);
-                    }
-                    sb.append("]}");
-                } else  {
-                    if (!nonZeroCount) {
-                        sb.append("{");
-                    }
+        out.append("{\"").append(result.getResponseName()).append("\":");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
+            Integer count = ((ListResponse)result).getCount();
+            boolean nonZeroCount = (count != null && count.longValue() != 0);
+            out.append("{");
+            if (nonZeroCount) {
+                out.append("\"").append(ApiConstants.COUNT).append("\":").append(count.toString());
+            }
 
-                    sb.append("}");
+            if ((responses != null) && !responses.isEmpty()) {
+                if (nonZeroCount) {
+                    out.append(",");
                 }
-            } else if (result instanceof SuccessResponse) {
-                sb.append("{\"success\":\"").append(((SuccessResponse)result).getSuccess()).append("\"}");
-            } else if (result instanceof ExceptionResponse) {
-                String jsonErrorText = gson.toJson(result);
-                jsonErrorText = unescape(jsonErrorText);
-                sb.append(jsonErrorText);
-            } else {
-                String jsonStr = gson.toJson(result);
-                if ((jsonStr != null) && !"".equals(jsonStr)) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append("{\"").append(result.getObjectName()).append("\":").append(jsonStr).append("}");
+                out.append("\"").append(responses.get(0).getObjectName()).append("\":[");
+                for (int i = 0; i < responses.size(); i++) {
+                    if (i > 0) {
+                        out.append(",");
                     }
-                } else {
-                    sb.append("{}");
+                    writeGson(gson, responses.get(i), out);
                 }
+                out.append("]");
+            }
+            out.append("}");
+        } else if (result instanceof SuccessResponse) {
+            out.append("{\"success\":\"").append(String.valueOf(((SuccessResponse)result).getSuccess())).append("\"}");
+        } else if (result instanceof ExceptionResponse) {
+            writeGson(gson, result, out);
+        } else if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
+            writeGson(gson, result, out);
+        } else {
+            out.append("{\"").append(result.getObjectName()).append("\":");
+            writeGson(gson, result, out);
+            out.append("}");
+        }
+        out.append("}");
+    }
+
+    private static void writeGson(Gson gson, Object obj, Writer out) throws IOException {
+        try {
+            gson.toJson(obj, out);
+        } catch (RuntimeException e) {
+            // gson wraps the errors of the writer, the caller has to see them as write errors
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
             }
-            sb.append("}");
-            return sb.toString();
+            throw e;
         }
-        return null;
     }
 
-    private static String toXMLSerializedString(ResponseObject result) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        sb.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
+    private static void writeXML(ResponseObject result, Writer out) throws IOException {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
 
+        // the caller can't change while a response is written, look up its account type only once
+        short callerType = CallContext.current().getCallingAccount().getType();
         if (result instanceof ListResponse) {
             Integer count = ((ListResponse)result).getCount();
 
             if (count != null && count != 0) {
-                sb.append("<").append(ApiConstants.COUNT).append(">").append(((ListResponse)result).getCount()).append("</").append(ApiConstants.COUNT).append(">");
+                out.append("<").append(ApiConstants.COUNT).append(">").append(count.toString()).append("</").append(ApiConstants.COUNT).append(">");
             }
             List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
-                    serializeResponseObjXML(sb, obj);
+                    serializeResponseObjXML(out, obj, callerType);
                 }
             }
         } else {
             if (result instanceof CreateCmdResponse || result instanceof AsyncJobResponse || result instanceof AuthenticationCmdResponse) {
-                serializeResponseObjFieldsXML(sb, result);
+                serializeResponseObjFieldsXML(out, result, callerType);
             } else {
-                serializeResponseObjXML(sb, result);
+                serializeResponseObjXML(out, result, callerType);
             }
         }
 
-        sb.append("</").append(result.getResponseName()).append(">");
-        return sb.toString();
+        out.append("</").append(result.getResponseName()).append(">");
     }
 
-    private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
+    private static void serializeResponseObjXML(Writer out, ResponseObject obj, short callerType) throws IOException {
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("<").append(obj.getObjectName()).append(">");
+            out.append("<").append(obj.getObjectName()).append(">");
         }
-        serializeResponseObjFieldsXML(sb, obj);
+        serializeResponseObjFieldsXML(out, obj, callerType);
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("</").append(obj.getObjectName()).append(">");
+            out.append("</").append(obj.getObjectName()).append(">");
         }
     }
 
@@ -182,47 +204,50 @@ public class ApiResponseSerializer {
         return fields.toArray(new Field[] {});
     }
 
-    private static void serializeResponseObjFieldsXML(StringBuilder sb, ResponseObject obj) {
-        boolean isAsync = false;
-        if (obj instanceof AsyncJobResponse)
-            isAsync = true;
+    private static ResponseField[] getResponseFields(Class<?> clz) {
+        ResponseField[] responseFields = s_responseFields.get(clz);
+        if (responseFields != null) {
+            return responseFields;
+        }
 
-        //Field[] fields = obj.getClass().getDeclaredFields();
-        Field[] fields = getFlattenFields(obj.getClass());
-        for (Field field : fields) {
+        List<ResponseField> fields = new ArrayList<ResponseField>();
+        for (Field field : getFlattenFields(clz)) {
             if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
                 continue; // skip transient fields
             }
 
-
             SerializedName serializedName = field.getAnnotation(SerializedName.class);
             if (serializedName == null) {
                 continue; // skip fields w/o serialized name
             }
 
+            field.setAccessible(true);
             Param param = field.getAnnotation(Param.class);
-            if (param != null) {
-                RoleType[] allowedRoles = param.authorized();
-                if (allowedRoles.length > 0) {
-                    boolean permittedParameter = false;
-                    Account caller = CallContext.current().getCallingAccount();
-                    for (RoleType allowedRole : allowedRoles) {
-                        if (allowedRole.getValue() == caller.getType()) {
-                            permittedParameter = true;
-                            break;
-                        }
-                    }
-                    if (!permittedParameter) {
-                        s_logger.trace("Ignoring paremeter " + param.name() + " as the caller is not authorized to see it");
-                        continue;
-                    }
+            fields.add(new ResponseField(field, serializedName.value(), param));
+        }
+
+        responseFields = fields.toArray(new ResponseField[fields.size()]);
+        ResponseField[] existing = s_responseFields.putIfAbsent(clz, responseFields);
+        return existing != null ? existing : responseFields;
+    }
+
+    private static void serializeResponseObjFieldsXML(Writer out, ResponseObject obj, short callerType) throws IOException {
+        boolean isAsync = false;
+        if (obj instanceof AsyncJobResponse)
+            isAsync = true;
+
+        for (ResponseField responseField : getResponseFields(obj.getClass())) {
+            if (!responseField.isAuthorized(callerType)) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Ignoring paremeter " + responseField.paramName + " as the caller is not authorized to see it");
                 }
+                continue;
             }
 
-            field.setAccessible(true);
+            String serializedName = responseField.serializedName;
             Object fieldValue = null;
             try {
-                fieldValue = field.get(obj);
+                fieldValue = responseField.field.get(obj);
             } catch (IllegalArgumentException e) {
                 throw new CloudRuntimeException("how illegal is it?", e);
             } catch (IllegalAccessException e) {
@@ -232,11 +257,11 @@ public class ApiResponseSerializer {
                 if (fieldValue instanceof ResponseObject) {
                     ResponseObject subObj = (ResponseObject)fieldValue;
                     if (isAsync) {
-                        sb.append("<jobresult>");
+                        out.append("<jobresult>");
                     }
-                    serializeResponseObjXML(sb, subObj);
+                    serializeResponseObjXML(out, subObj, callerType);
                     if (isAsync) {
-                        sb.append("</jobresult>");
+                        out.append("</jobresult>");
                     }
                 } else if (fieldValue instanceof Collection<?>) {
                     Collection<?> subResponseList = (Collection<?>)fieldValue;
@@ -244,10 +269,8 @@ public class ApiResponseSerializer {
                     for (Object value : subResponseList) {
                         if (value instanceof ResponseObject) {
                             ResponseObject subObj = (ResponseObject)value;
-                            if (serializedName != null) {
-                                subObj.setObjectName(serializedName.value());
-                            }
-                            serializeResponseObjXML(sb, subObj);
+                            subObj.setObjectName(serializedName);
+                            serializeResponseObjXML(out, subObj, callerType);
                         } else if (value instanceof ExceptionProxyObject) {
                             // Only exception reponses carry a list of
                             // ExceptionProxyObject objects.
@@ -255,30 +278,30 @@ public class ApiResponseSerializer {
                             // If this is the first IdentityProxy field
                             // encountered, put in a uuidList tag.
                             if (!usedUuidList) {
-                                sb.append("<" + serializedName.value() + ">");
+                                out.append("<").append(serializedName).append(">");
                                 usedUuidList = true;
                             }
-                            sb.append("<" + "uuid" + ">" + idProxy.getUuid() + "</" + "uuid" + ">");
+                            out.append("<uuid>").append(idProxy.getUuid()).append("</uuid>");
                             // Append the new descriptive property also.
                             String idFieldName = idProxy.getDescription();
                             if (idFieldName != null) {
-                                sb.append("<" + "uuidProperty" + ">" + idFieldName + "</" + "uuidProperty" + ">");
+                                out.append("<uuidProperty>").append(idFieldName).append("</uuidProperty>");
                             }
                         } else if (value instanceof String) {
-                            sb.append("<").append(serializedName.value()).append(">").append(value).append("</").append(serializedName.value()).append(">");
+                            out.append("<").append(serializedName).append(">").append((String)value).append("</").append(serializedName).append(">");
                         }
                     }
                     if (usedUuidList) {
                         // close the uuidList.
-                        sb.append("</").append(serializedName.value()).append(">");
+                        out.append("</").append(serializedName).append(">");
                     }
                 } else if (fieldValue instanceof Date) {
-                    sb.append("<")
-                        .append(serializedName.value())
+                    out.append("<")
+                        .append(serializedName)
                         .append(">")
                         .append(BaseCmd.getDateString((Date)fieldValue))
                         .append("</")
-                        .append(serializedName.value())
+                        .append(serializedName)
                         .append(">");
                 } else {
                     String resultString = escapeSpecialXmlChars(fieldValue.toString());
@@ -286,7 +309,7 @@ public class ApiResponseSerializer {
                         resultString = encodeParam(resultString);
                     }
 
-                    sb.append("<").append(serializedName.value()).append(">").append(resultString).append("</").append(serializedName.value()).append(">");
+                    out.append("<").append(serializedName).append(">").append(resultString).append("</").append(serializedName).append(">");
                 }
             }
         }
@@ -327,4 +350,40 @@ public class ApiResponseSerializer {
         return value;
     }
 
+    /**
+     * A serializable field of a response class with its accessibility and role restrictions resolved.
+     */
+    private static final class ResponseField {
+        final Field field;
+        final String serializedName;
+        final String paramName;
+        final int[] allowedRoles;
+
+        ResponseField(Field field, String serializedName, Param param) {
+            this.field = field;
+            this.serializedName = serializedName;
+            paramName = param != null ? param.name() : field.getName();
+            if (param != null && param.authorized().length > 0) {
+                RoleType[] roles = param.authorized();
+                allowedRoles = new int[roles.length];
+                for (int i = 0; i < roles.length; i++) {
+                    allowedRoles[i] = roles[i].getValue();
+                }
+            } else {
+                allowedRoles = null;
+            }
+        }
+
+        boolean isAuthorized(short callerType) {
+            if (allowedRoles == null) {
+                return true;
+            }
+            for (int allowedRole : allowedRoles) {
+                if (allowedRole == callerType) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
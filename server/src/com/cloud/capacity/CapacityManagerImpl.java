@@ -87,6 +87,7 @@ import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.StateListener;
@@ -147,6 +148,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     private int _vmCapacityReleaseInterval;
     private ScheduledExecutorService _executor;
     long _extraBytesPerVolume = 0;
+    private final HostCapacitySnapshot _capacitySnapshot = new HostCapacitySnapshot();
 
     @Inject
     MessageBus _messageBus;
@@ -169,6 +171,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public boolean start() {
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+        _resourceMgr.registerResourceEvent(ResourceListener.EVENT_DELETE_HOST_AFTER, this);
         return true;
     }
 
@@ -265,6 +268,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMemory.getId(), capacityMemory);
+                    adjustSnapshotAfterCommit(hostId, usedCpu, reservedCpu, usedMem, reservedMem, capacityCpu, capacityMemory);
                 }
             });
 
@@ -361,6 +365,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMem.getId(), capacityMem);
+                    adjustSnapshotAfterCommit(hostId, usedCpu, reservedCpu, usedMem, reservedMem, capacityCpu, capacityMem);
                 }
             });
         } catch (Exception e) {
@@ -369,6 +374,24 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         }
     }
 
+    /**
+     * Adds the change made to the capacity rows of a host to the snapshot, once the transaction
+     * making it commits. Nothing is applied if an enclosing transaction rolls the rows back.
+     */
+    private void adjustSnapshotAfterCommit(final long hostId, long usedCpu, long reservedCpu, long usedMem, long reservedMem, CapacityVO capacityCpu,
+        CapacityVO capacityMem) {
+        final long usedCpuDelta = capacityCpu.getUsedCapacity() - usedCpu;
+        final long reservedCpuDelta = capacityCpu.getReservedCapacity() - reservedCpu;
+        final long usedMemDelta = capacityMem.getUsedCapacity() - usedMem;
+        final long reservedMemDelta = capacityMem.getReservedCapacity() - reservedMem;
+        TransactionLegacy.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _capacitySnapshot.adjustHost(hostId, usedCpuDelta, reservedCpuDelta, usedMemDelta, reservedMemDelta);
+            }
+        });
+    }
+
     @Override
     public boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed) {
 
@@ -419,6 +442,9 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             return false;
         }
 
+        // the rows were just read from the DB, so they are the freshest view we can give the snapshot
+        _capacitySnapshot.updateHost(capacityCpu, capacityMem);
+
         long usedCpu = capacityCpu.getUsedCapacity();
         long usedMem = capacityMem.getUsedCapacity();
         long reservedCpu = capacityCpu.getReservedCapacity();
@@ -602,6 +628,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         ClusterDetailsVO clusterDetailRam = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
         Float clusterCpuOvercommitRatio = Float.parseFloat(clusterDetailCpu.getValue());
         Float clusterRamOvercommitRatio = Float.parseFloat(clusterDetailRam.getValue());
+        _capacitySnapshot.updateClusterOvercommit(cluster.getId(), clusterCpuOvercommitRatio, clusterRamOvercommitRatio);
         Float cpuOvercommitRatio = 1f;
         Float ramOvercommitRatio = 1f;
         for (VMInstanceVO vm : vms) {
@@ -741,6 +768,8 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             try {
                 _capacityDao.update(cpuCap.getId(), cpuCap);
                 _capacityDao.update(memCap.getId(), memCap);
+                _capacitySnapshot.updateHost(host.getId(), host.getClusterId(), cpuCap.getTotalCapacity(), cpuCap.getUsedCapacity(), cpuCap.getReservedCapacity(),
+                    memCap.getTotalCapacity(), memCap.getUsedCapacity(), memCap.getReservedCapacity());
             } catch (Exception e) {
                 s_logger.error("Caught exception while updating cpu/memory capacity for the host " + host.getId(), e);
             }
@@ -767,6 +796,8 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     _capacityDao.persist(capacity);
                 }
             });
+            _capacitySnapshot.updateHost(host.getId(), host.getClusterId(), host.getCpus().longValue() * host.getSpeed().longValue(), usedCpu, reservedCpu,
+                host.getTotalMemory(), usedMemory, reservedMemory);
 
         }
 
@@ -1026,8 +1057,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Override
     public void processDeletHostEventAfter(Host host) {
-        // TODO Auto-generated method stub
-
+        _capacitySnapshot.removeHost(host.getId());
     }
 
     @Override
@@ -1052,6 +1082,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public void processPrepareMaintenaceEventAfter(Long hostId) {
         _capacityDao.removeBy(Capacity.CAPACITY_TYPE_MEMORY, null, null, null, hostId);
         _capacityDao.removeBy(Capacity.CAPACITY_TYPE_CPU, null, null, null, hostId);
+        _capacitySnapshot.removeHost(hostId);
     }
 
     @Override
@@ -1076,6 +1107,11 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         return false;
     }
 
+    @Override
+    public HostCapacitySnapshot getHostCapacitySnapshot() {
+        return _capacitySnapshot;
+    }
+
     @Override
     public String getConfigComponentName() {
         return CapacityManager.class.getSimpleName();
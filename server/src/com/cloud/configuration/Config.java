@@ -883,6 +883,31 @@ public enum Config {
             "The interval (in milliseconds) when vm stats are retrieved from agents.",
             null),
     VmDiskStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.disk.stats.interval", "0", "Interval (in seconds) to report vm disk statistics.", null),
+    StatsCollectorThreads(
+            "Advanced",
+            ManagementServer.class,
+            Integer.class,
+            "stats.collector.threads",
+            "8",
+            "Maximum number of hosts whose host and vm stats are collected in parallel.",
+            null),
+    StatsCollectorHostTimeout(
+            "Advanced",
+            ManagementServer.class,
+            Long.class,
+            "stats.collector.host.timeout",
+            "30000",
+            "Time (in milliseconds) a single host may take to return its host or vm stats before the collector stops waiting for it.",
+            null),
+    StatsCollectorShardByMsHost(
+            "Advanced",
+            ManagementServer.class,
+            Boolean.class,
+            "stats.collector.shard.by.mshost",
+            "false",
+            "If true, each management server only collects host and vm stats from the hosts it manages. The stats are kept in memory, "
+                    + "so listHosts and listVirtualMachines then show no cpu, network and disk stats for hosts managed by another management server.",
+            null),
     VmTransitionWaitInterval(
             "Advanced",
             ManagementServer.class,
@@ -1341,6 +1366,38 @@ public enum Config {
             "Interval (in days) to check sanity of usage data",
             null),
     UsageAggregationTimezone("Usage", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
+    UsageParseWorkers(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.parse.workers",
+            "4",
+            "The number of threads parsing the usage of accounts in parallel, in partitions of 500 accounts",
+            null),
+    UsageParseRetries(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.parse.retries",
+            "2",
+            "The number of times a partition of accounts that failed to parse is retried before the usage job fails",
+            null),
+    UsageIngestInterval(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.ingest.interval",
+            "60",
+            "The interval in seconds at which usage events and new statistics are copied to the usage database between usage jobs, 0 to leave it to the usage job",
+            null),
+    UsageIngestBatchSize(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.ingest.batch.size",
+            "500",
+            "The number of usage events or statistics copied to the usage database in one batch",
+            null),
     TrafficSentinelIncludeZones(
             "Usage",
             ManagementServer.class,
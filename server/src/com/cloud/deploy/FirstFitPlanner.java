@@ -36,6 +36,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.HostCapacitySnapshot;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
@@ -197,10 +198,18 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
 
     private void reorderClustersBasedOnImplicitTags(List<Long> clusterList, int requiredCpu, long requiredRam) {
             final HashMap<Long, Long> UniqueTagsInClusterMap = new HashMap<Long, Long>();
+            HostCapacitySnapshot capacitySnapshot = _capacityMgr.getHostCapacitySnapshot();
             Long uniqueTags;
             for (Long clusterId : clusterList) {
                 uniqueTags = (long) 0;
-                List<Long> hostList = _capacityDao.listHostsWithEnoughCapacity(requiredCpu, requiredRam, clusterId, Host.Type.Routing.toString());
+                // this only drives the cluster ordering, so the in-memory snapshot is good enough when it knows the cluster
+                List<Long> hostList = null;
+                if (capacitySnapshot != null) {
+                    hostList = capacitySnapshot.listHostsWithEnoughCapacity(clusterId, requiredCpu, requiredRam);
+                }
+                if (hostList == null) {
+                    hostList = _capacityDao.listHostsWithEnoughCapacity(requiredCpu, requiredRam, clusterId, Host.Type.Routing.toString());
+                }
                 if (!hostList.isEmpty() && _implicitHostTags.length > 0) {
                     uniqueTags = new Long(_hostTagsDao.getDistinctImplicitHostTags(hostList, _implicitHostTags).size());
                 }
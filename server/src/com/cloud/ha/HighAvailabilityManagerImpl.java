@@ -17,13 +17,25 @@
 package com.cloud.ha;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -32,6 +44,8 @@ import javax.naming.ConfigurationException;
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 import org.apache.cloudstack.engine.orchestration.service.VolumeOrchestrationService;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.managed.context.ManagedContext;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
@@ -63,12 +77,14 @@ import com.cloud.host.dao.HostDao;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.resource.ResourceManager;
 import com.cloud.server.ManagementServer;
+import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.StorageManager;
 import com.cloud.storage.dao.GuestOSCategoryDao;
 import com.cloud.storage.dao.GuestOSDao;
 import com.cloud.user.AccountManager;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -102,9 +118,14 @@ import com.cloud.vm.dao.VMInstanceDao;
  *         before retrying the stop | seconds | 120 || * }
  **/
 @Local(value = { HighAvailabilityManager.class })
-public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvailabilityManager, ClusterManagerListener {
+public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvailabilityManager, ClusterManagerListener, Configurable {
 
     protected static final Logger s_logger = Logger.getLogger(HighAvailabilityManagerImpl.class);
+    // seconds to wait before retrying a restart that found no free start slot in its cluster
+    protected static final int StartSlotRetryInterval = 10;
+    // seconds between the logs of the HA throughput
+    protected static final int StatsInterval = 60;
+
     WorkerThread[] _workers;
     boolean _stopped;
     long _timeToSleep;
@@ -137,6 +158,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
     public void setInvestigators(List<Investigator> investigators) {
         this.investigators = investigators;
+        sizeInvestigationExecutor();
     }
 
     List<FenceBuilder> fenceBuilders;
@@ -195,7 +217,36 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     boolean _forceHA;
     String _haTag = null;
 
+    // investigators can ignore being cancelled and keep their thread, so the threads are bounded and an
+    // investigation that finds none left can't tell
+    final ThreadPoolExecutor _investigationExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new NamedThreadFactory("HA-Investigator"));
+    // VMs being started per cluster of the failed host
+    final ConcurrentHashMap<Long, AtomicInteger> _clusterStarts = new ConcurrentHashMap<Long, AtomicInteger>();
+
+    final AtomicLong _restartsSucceeded = new AtomicLong();
+    final AtomicLong _restartsFailed = new AtomicLong();
+    final AtomicLong _restartsPostponed = new AtomicLong();
+    final AtomicLong _investigations = new AtomicLong();
+    final AtomicLong _investigationTime = new AtomicLong();
+
     protected HighAvailabilityManagerImpl() {
+        _investigationExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Gives every HA worker a thread per investigator, so that all the workers can investigate at once.
+     */
+    protected void sizeInvestigationExecutor() {
+        final int workers = _workers == null ? 1 : Math.max(1, _workers.length);
+        final int size = workers * Math.max(1, investigators == null ? 1 : investigators.size());
+        if (size > _investigationExecutor.getMaximumPoolSize()) {
+            _investigationExecutor.setMaximumPoolSize(size);
+            _investigationExecutor.setCorePoolSize(size);
+        } else {
+            _investigationExecutor.setCorePoolSize(size);
+            _investigationExecutor.setMaximumPoolSize(size);
+        }
     }
 
     @Override
@@ -205,21 +256,124 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             return Status.Alert;
         }
 
-        Status hostState = null;
-        for (Investigator investigator : investigators) {
-            hostState = investigator.isAgentAlive(host);
-            if (hostState != null) {
+        final long startTime = System.currentTimeMillis();
+        try {
+            final int timeout = InvestigationTimeout.value();
+            if (timeout > 0) {
+                return investigateInParallel(host, timeout * 1000L);
+            }
+
+            Status hostState = null;
+            for (Investigator investigator : investigators) {
+                hostState = investigator.isAgentAlive(host);
+                if (hostState != null) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug(investigator.getName() + " was able to determine host " + hostId + " is in " + hostState.toString());
+                    }
+                    return hostState;
+                }
                 if (s_logger.isDebugEnabled()) {
-                    s_logger.debug(investigator.getName() + " was able to determine host " + hostId + " is in " + hostState.toString());
+                    s_logger.debug(investigator.getName() + " unable to determine the state of the host.  Moving on.");
                 }
-                return hostState;
             }
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug(investigator.getName() + " unable to determine the state of the host.  Moving on.");
+
+            return hostState;
+        } finally {
+            _investigations.incrementAndGet();
+            _investigationTime.addAndGet(System.currentTimeMillis() - startTime);
+        }
+    }
+
+    protected Status investigateInParallel(final HostVO host, final long budgetMs) {
+        final Pair<Investigator, Status> answer = askInvestigators(new InvestigatorQuestion<Status>() {
+            @Override
+            public Status ask(Investigator investigator) {
+                return investigator.isAgentAlive(host);
+            }
+        }, budgetMs);
+        if (answer == null) {
+            return null;
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(answer.first().getName() + " was able to determine host " + host.getId() + " is in " + answer.second().toString());
+        }
+        return answer.second();
+    }
+
+    protected Pair<Investigator, Boolean> investigateInParallel(final VirtualMachine vm, final HostVO host, final long budgetMs) {
+        return askInvestigators(new InvestigatorQuestion<Boolean>() {
+            @Override
+            public Boolean ask(Investigator investigator) throws UnknownVM {
+                return investigator.isVmAlive(vm, host);
+            }
+        }, budgetMs);
+    }
+
+    protected interface InvestigatorQuestion<T> {
+        /**
+         * @return the answer of the investigator, null or UnknownVM if it can't tell
+         */
+        T ask(Investigator investigator) throws UnknownVM;
+    }
+
+    /**
+     * Asks all investigators at once and waits at most budgetMs for them. The answers are taken in the order of the
+     * investigators, an answer only counts if every investigator before it could not tell or ran out of time.
+     *
+     * @return the investigator that answered and its answer, or null if none could tell in time
+     */
+    protected <T> Pair<Investigator, T> askInvestigators(final InvestigatorQuestion<T> question, final long budgetMs) {
+        final List<Future<T>> answers = new ArrayList<Future<T>>(investigators.size());
+        for (final Investigator investigator : investigators) {
+            try {
+                answers.add(_investigationExecutor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return question.ask(investigator);
+                    }
+                }));
+            } catch (final RejectedExecutionException e) {
+                answers.add(null);
             }
         }
 
-        return hostState;
+        final long deadline = System.currentTimeMillis() + budgetMs;
+        try {
+            for (int i = 0; i < answers.size(); i++) {
+                final Investigator investigator = investigators.get(i);
+                if (answers.get(i) == null) {
+                    s_logger.info(investigator.getName() + " has no thread left to investigate on, unable to determine the state");
+                    continue;
+                }
+                try {
+                    final T answer = answers.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (answer != null) {
+                        return new Pair<Investigator, T>(investigator, answer);
+                    }
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug(investigator.getName() + " unable to determine the state.  Moving on.");
+                    }
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof UnknownVM) {
+                        s_logger.info(investigator.getName() + " could not find the vm");
+                    } else {
+                        s_logger.warn(investigator.getName() + " failed to investigate", e.getCause());
+                    }
+                } catch (final TimeoutException e) {
+                    s_logger.info(investigator.getName() + " did not answer within " + budgetMs + "ms");
+                }
+            }
+        } catch (final InterruptedException e) {
+            s_logger.info("Interrupted while waiting for the investigators");
+            Thread.currentThread().interrupt();
+        } finally {
+            for (final Future<T> answer : answers) {
+                if (answer != null) {
+                    answer.cancel(true);
+                }
+            }
+        }
+        return null;
     }
 
     @Override
@@ -265,6 +419,8 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         _alertMgr.sendAlert(AlertManager.AlertType.ALERT_TYPE_HOST, host.getDataCenterId(), host.getPodId(), "Host is down, " + hostDesc,
                 "Host [" + hostDesc + "] is down." + ((sb != null) ? sb.toString() : ""));
 
+        sortForRestart(reorderedVMList);
+
         for (VMInstanceVO vm : reorderedVMList) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Notifying HA Mgr of to restart vm " + vm.getId() + "-" + vm.getInstanceName());
@@ -280,6 +436,45 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
     }
 
+    /**
+     * Orders the VMs of a failed host for restart: system VMs first, then the user VMs from the largest to the smallest
+     * service offering. The work items are taken in the order they are scheduled, so the large VMs are placed while the
+     * capacity is still there instead of failing on clusters fragmented by the small ones.
+     */
+    protected void sortForRestart(final List<VMInstanceVO> vms) {
+        final Map<Long, long[]> sizes = new HashMap<Long, long[]>();
+        for (VMInstanceVO vm : vms) {
+            final ServiceOfferingVO offering = _serviceOfferingDao.findByIdIncludingRemoved(vm.getId(), vm.getServiceOfferingId());
+            if (offering == null) {
+                sizes.put(vm.getId(), new long[] {0, 0});
+            } else {
+                final long ram = offering.getRamSize() != null ? offering.getRamSize() : 0;
+                final long cpu = offering.getCpu() != null && offering.getSpeed() != null ? (long)offering.getCpu() * offering.getSpeed() : 0;
+                sizes.put(vm.getId(), new long[] {ram, cpu});
+            }
+        }
+
+        Collections.sort(vms, new Comparator<VMInstanceVO>() {
+            @Override
+            public int compare(VMInstanceVO vm1, VMInstanceVO vm2) {
+                final boolean user1 = vm1.getType() == VirtualMachine.Type.User;
+                final boolean user2 = vm2.getType() == VirtualMachine.Type.User;
+                if (user1 != user2) {
+                    return user1 ? 1 : -1;
+                }
+                if (!user1) {
+                    return 0;
+                }
+                final long[] size1 = sizes.get(vm1.getId());
+                final long[] size2 = sizes.get(vm2.getId());
+                if (size1[0] != size2[0]) {
+                    return size1[0] > size2[0] ? -1 : 1;
+                }
+                return size1[1] > size2[1] ? -1 : (size1[1] == size2[1] ? 0 : 1);
+            }
+        });
+    }
+
     @Override
     public void scheduleStop(VMInstanceVO vm, long hostId, WorkType type) {
         assert (type == WorkType.CheckStop || type == WorkType.ForceStop || type == WorkType.Stop);
@@ -477,17 +672,30 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
                 }
 
                 Investigator investigator = null;
-                for (Investigator it : investigators) {
-                    investigator = it;
-                    try
-                    {
-                        alive = investigator.isVmAlive(vm, host);
+                final long startTime = System.currentTimeMillis();
+                final int timeout = InvestigationTimeout.value();
+                if (timeout > 0) {
+                    final Pair<Investigator, Boolean> answer = investigateInParallel(vm, host, timeout * 1000L);
+                    if (answer != null) {
+                        investigator = answer.first();
+                        alive = answer.second();
                         s_logger.info(investigator.getName() + " found " + vm + " to be alive? " + alive);
-                        break;
-                    } catch (UnknownVM e) {
-                        s_logger.info(investigator.getName() + " could not find " + vm);
+                    }
+                } else {
+                    for (Investigator it : investigators) {
+                        investigator = it;
+                        try
+                        {
+                            alive = investigator.isVmAlive(vm, host);
+                            s_logger.info(investigator.getName() + " found " + vm + " to be alive? " + alive);
+                            break;
+                        } catch (UnknownVM e) {
+                            s_logger.info(investigator.getName() + " could not find " + vm);
+                        }
                     }
                 }
+                _investigations.incrementAndGet();
+                _investigationTime.addAndGet(System.currentTimeMillis() - startTime);
 
                 boolean fenced = false;
                 if (alive == null) {
@@ -571,6 +779,19 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             return null;
         }
 
+        final Long clusterId = host.getClusterId();
+        if (clusterId != null && !takeStartSlot(clusterId, MaxConcurrentStartsPerCluster.value())) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Too many VMs of cluster " + clusterId + " are being restarted, postponing " + vm);
+            }
+            _restartsPostponed.incrementAndGet();
+            // waiting for a start slot is not a failed attempt
+            work.setTimesTried(work.getTimesTried() - 1);
+            work.setUpdateTime(vm.getUpdated());
+            work.setPreviousState(vm.getState());
+            return (System.currentTimeMillis() >> 10) + StartSlotRetryInterval;
+        }
+
         try {
             HashMap<VirtualMachineProfile.Param, Object> params = new HashMap<VirtualMachineProfile.Param, Object>();
             if (_haTag != null) {
@@ -592,6 +813,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             VMInstanceVO started = _instanceDao.findById(vm.getId());
             if (started != null && started.getState() == VirtualMachine.State.Running) {
                 s_logger.info("VM is now restarted: " + vmId + " on " + started.getHostId());
+                _restartsSucceeded.incrementAndGet();
                 return null;
             }
 
@@ -614,13 +836,49 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             s_logger.warn("Unable to restart " + vm.toString() + " due to " + e.getMessage());
             _alertMgr.sendAlert(alertType, vm.getDataCenterId(), vm.getPodIdToDeployIn(), "Unable to restart " + vm.getHostName() + " which was running on host " +
                 hostDesc, "The Storage is unavailable for trying to restart VM, name: " + vm.getHostName() + ", id: " + vmId + " which was running on host " + hostDesc);
+        } finally {
+            if (clusterId != null) {
+                releaseStartSlot(clusterId);
+            }
         }
+        _restartsFailed.incrementAndGet();
         vm = _itMgr.findById(vm.getId());
         work.setUpdateTime(vm.getUpdated());
         work.setPreviousState(vm.getState());
         return (System.currentTimeMillis() >> 10) + _restartRetryInterval;
     }
 
+    /**
+     * Takes one of the max slots for starting VMs of failed hosts in the cluster. The slots are counted
+     * on this management server only, every management server has max slots of its own.
+     *
+     * @param max slots of the cluster, 0 or less for no limit
+     * @return false if all slots are taken, true if a slot was taken which must be given back with releaseStartSlot
+     */
+    protected boolean takeStartSlot(final long clusterId, final int max) {
+        AtomicInteger starts = _clusterStarts.get(clusterId);
+        if (starts == null) {
+            starts = new AtomicInteger();
+            final AtomicInteger existing = _clusterStarts.putIfAbsent(clusterId, starts);
+            if (existing != null) {
+                starts = existing;
+            }
+        }
+        while (true) {
+            final int current = starts.get();
+            if (max > 0 && current >= max) {
+                return false;
+            }
+            if (starts.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    protected void releaseStartSlot(final long clusterId) {
+        _clusterStarts.get(clusterId).decrementAndGet();
+    }
+
     public Long migrate(final HaWorkVO work) {
         long vmId = work.getInstanceId();
 
@@ -818,6 +1076,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         for (int i = 0; i < _workers.length; i++) {
             _workers[i] = new WorkerThread("HA-Worker-" + i);
         }
+        sizeInvestigationExecutor();
 
         value = params.get("force.ha");
         _forceHA = Boolean.parseBoolean(value);
@@ -871,6 +1130,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
 
         _executor.scheduleAtFixedRate(new CleanupTask(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
+        _executor.scheduleAtFixedRate(new StatsTask(), StatsInterval, StatsInterval, TimeUnit.SECONDS);
 
         return true;
     }
@@ -882,6 +1142,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         wakeupWorkers();
 
         _executor.shutdown();
+        _investigationExecutor.shutdownNow();
 
         return true;
     }
@@ -899,6 +1160,23 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
     }
 
+    protected class StatsTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            final long succeeded = _restartsSucceeded.getAndSet(0);
+            final long failed = _restartsFailed.getAndSet(0);
+            final long postponed = _restartsPostponed.getAndSet(0);
+            final long investigations = _investigations.getAndSet(0);
+            final long investigationTime = _investigationTime.getAndSet(0);
+            if (succeeded + failed + postponed + investigations == 0) {
+                return;
+            }
+            s_logger.info("HA in the last " + StatsInterval + "s: " + succeeded + " VMs restarted, " + failed + " restarts failed, " + postponed +
+                " restarts postponed for a start slot, " + investigations + " investigations taking " + (investigations > 0 ? investigationTime / investigations : 0) +
+                "ms on average");
+        }
+    }
+
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
             super(name);
@@ -982,4 +1260,14 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         List<HaWorkVO> haWorks = _haDao.listPendingHaWorkForVm(vmId);
         return haWorks.size() > 0;
     }
+
+    @Override
+    public String getConfigComponentName() {
+        return HighAvailabilityManager.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {InvestigationTimeout, MaxConcurrentStartsPerCluster};
+    }
 }
@@ -154,7 +154,9 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
             sc.setParameters("time", System.currentTimeMillis() >> 10);
             sc.setParameters("step", Step.Done, Step.Cancelled);
 
-            final Filter filter = new Filter(HaWorkVO.class, null, true, 0l, 1l);
+            // the work that is due the longest, in the order it was scheduled
+            final Filter filter = new Filter(HaWorkVO.class, "timeToTry", true, 0l, 1l);
+            filter.addOrderBy(HaWorkVO.class, "id", true);
 
             txn.start();
             final List<HaWorkVO> vos = lockRows(sc, filter, true);
@@ -154,6 +154,7 @@ import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExceptionUtil;
 import com.cloud.utils.net.Ip;
+import com.cloud.utils.net.Ip4AddressBitmap;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
@@ -278,6 +279,9 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
     SearchBuilder<IPAddressVO> AssignIpAddressSearch;
     SearchBuilder<IPAddressVO> AssignIpAddressFromPodVlanSearch;
 
+    private static final int MAX_PUBLIC_IP_RESERVATION_REFILLS = 3;
+    private final PublicIpReservationPool _publicIpReservations = new PublicIpReservationPool();
+
     @Override
     public boolean configure(String name, Map<String, Object> params) {
         // populate providers
@@ -727,7 +731,14 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
 
         Filter filter = new Filter(IPAddressVO.class, "vlanId", true, 0l, 1l);
 
-        List<IPAddressVO> addrs = _ipAddressDao.lockRows(sc, filter, true);
+        Long scopeNetworkId = vlanUse == VlanType.DirectAttached ? guestNetworkId : null;
+        List<IPAddressVO> addrs;
+        if (requestedIp != null) {
+            addrs = _ipAddressDao.lockRows(sc, filter, true);
+        } else {
+            addrs = takeReservedPublicIp(sc, filter,
+                    PublicIpReservationPool.getScope(vlanUse, dcId, podId, scopeNetworkId, fetchFromDedicatedRange ? dedicatedVlanDbIds : nonDedicatedVlanDbIds));
+        }
 
         // If all the dedicated IPs of the owner are in use fetch an IP from the system pool
         if (addrs.size() == 0 && fetchFromDedicatedRange) {
@@ -737,7 +748,11 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
                 fetchFromDedicatedRange = false;
                 sc.setParameters("vlanId", nonDedicatedVlanDbIds.toArray());
                         errorMessage.append(", vlanId id=" + Arrays.toString(nonDedicatedVlanDbIds.toArray()));
-                addrs = _ipAddressDao.lockRows(sc, filter, true);
+                if (requestedIp != null) {
+                    addrs = _ipAddressDao.lockRows(sc, filter, true);
+                } else {
+                    addrs = takeReservedPublicIp(sc, filter, PublicIpReservationPool.getScope(vlanUse, dcId, podId, scopeNetworkId, nonDedicatedVlanDbIds));
+                }
             }
         }
 
@@ -801,6 +816,46 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
         return PublicIp.createFromAddrAndVlan(addr, _vlanDao.findById(addr.getVlanId()));
     }
 
+    /**
+     * Takes the first free public IP matching sc from the addresses this management server has reserved
+     * for the scope, refilling the reservation from the database when it runs dry. Concurrent allocations
+     * take different addresses, each with a conditional update, instead of queueing on a lock of the lowest
+     * free row. Falls back to locking that row if the reservation is disabled or keeps losing races.
+     */
+    private List<IPAddressVO> takeReservedPublicIp(final SearchCriteria<IPAddressVO> sc, final Filter filter, final String scope) {
+        final int batchSize = PublicIpReservationBatchSize.value();
+        if (batchSize <= 0) {
+            return _ipAddressDao.lockRows(sc, filter, true);
+        }
+
+        for (int refills = 0; refills < MAX_PUBLIC_IP_RESERVATION_REFILLS; refills++) {
+            Long ipId;
+            while ((ipId = _publicIpReservations.poll(scope)) != null) {
+                if (_ipAddressDao.takeIfFree(ipId)) {
+                    final IPAddressVO addr = _ipAddressDao.findById(ipId);
+                    if (addr != null) {
+                        return Arrays.asList(addr);
+                    }
+                }
+            }
+
+            final List<IPAddressVO> free = _ipAddressDao.search(sc, new Filter(IPAddressVO.class, "vlanId", true, 0l, (long)batchSize));
+            if (free.isEmpty()) {
+                return free;
+            }
+            final List<Long> ipIds = new ArrayList<Long>(free.size());
+            for (final IPAddressVO ip : free) {
+                ipIds.add(ip.getId());
+            }
+            _publicIpReservations.offer(scope, ipIds);
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Reserved public IPs for " + scope + " were taken by concurrent allocations, locking the first free one instead");
+        }
+        return _ipAddressDao.lockRows(sc, filter, true);
+    }
+
     @DB
     @Override
     public void markPublicIpAsAllocated(final IPAddressVO addr) {
@@ -1661,19 +1716,17 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             return null;
         }
 
-        Set<Long> availableIps = _networkModel.getAvailableIps(network, requestedIp);
+        Ip4AddressBitmap availableIps = _networkModel.getGuestIpBitmap(network, requestedIp);
 
-        if (availableIps == null || availableIps.isEmpty()) {
+        if (availableIps == null || availableIps.getFreeCount() == 0) {
             s_logger.debug("There are no free ips in the  network " + network);
             return null;
         }
 
-        Long[] array = availableIps.toArray(new Long[availableIps.size()]);
-
         if (requestedIp != null) {
             // check that requested ip has the same cidr
             String[] cidr = network.getCidr().split("/");
-            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, NetUtils.long2Ip(array[0]), Integer.parseInt(cidr[1]));
+            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, NetUtils.long2Ip(availableIps.getFirstIp()), Integer.parseInt(cidr[1]));
             if (!isSameCidr) {
                 s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
                 return null;
@@ -1684,11 +1737,19 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             return requestedIp;
         }
 
-        String result;
-        do {
-            result = NetUtils.long2Ip(array[_rand.nextInt(array.length)]);
-        } while (result.split("\\.")[3].equals("1"));
-        return result;
+        // addresses ending in .1 are left out, they are commonly used as gateways
+        long endOfRange = availableIps.getFirstIp() + availableIps.size();
+        for (long ip = (availableIps.getFirstIp() & ~0xffL) | 1; ip < endOfRange; ip += 256) {
+            availableIps.allocate(ip);
+        }
+
+        // pick among the lowest free addresses, as the allocation always did
+        long ip = availableIps.pickFree(_rand, 255);
+        if (ip < 0) {
+            s_logger.debug("There are no free ips in the  network " + network);
+            return null;
+        }
+        return NetUtils.long2Ip(ip);
     }
 
     Random _rand = new Random(System.currentTimeMillis());
@@ -2014,6 +2075,6 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {UseSystemPublicIps};
+        return new ConfigKey<?>[] {UseSystemPublicIps, PublicIpReservationBatchSize};
     }
 }
@@ -114,6 +114,7 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip4AddressBitmap;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
@@ -597,7 +598,7 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel {
                 s_logger.debug("Network - " + network.getId() +  " has NULL CIDR.");
                 return false;
             }
-            hasFreeIps = (getAvailableIps(network, null)).size() > 0;
+            hasFreeIps = getGuestIpBitmap(network, null).getFreeCount() > 0;
         }
 
         return hasFreeIps;
@@ -1795,26 +1796,42 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel {
 
     @Override
     public Set<Long> getAvailableIps(Network network, String requestedIp) {
+        Ip4AddressBitmap bitmap = getGuestIpBitmap(network, requestedIp);
+        if (bitmap == null) {
+            return null;
+        }
+
+        // get 255 ips as maximum
+        Set<Long> availableIps = new TreeSet<Long>();
+        long ip = bitmap.nextFree(bitmap.getFirstIp());
+        while (ip >= 0 && availableIps.size() < 255) {
+            availableIps.add(ip);
+            ip = bitmap.nextFree(ip + 1);
+        }
+        return availableIps;
+    }
+
+    @Override
+    public Ip4AddressBitmap getGuestIpBitmap(Network network, String requestedIp) {
         String[] cidr = network.getCidr().split("/");
-        List<String> ips = getUsedIpsInNetwork(network);
-        Set<Long> usedIps = new TreeSet<Long>();
+        Ip4AddressBitmap bitmap = Ip4AddressBitmap.fromCidr(cidr[0], Integer.parseInt(cidr[1]));
 
+        List<String> ips = getUsedIpsInNetwork(network);
         for (String ip : ips) {
             if (requestedIp != null && requestedIp.equals(ip)) {
                 s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
                 return null;
             }
 
-            usedIps.add(NetUtils.ip2Long(ip));
+            bitmap.allocate(NetUtils.ip2Long(ip));
         }
 
-        Set<Long> allPossibleIps = NetUtils.getAllIpsFromCidr(cidr[0], Integer.parseInt(cidr[1]), usedIps);
-
         String gateway = network.getGateway();
-        if ((gateway != null) && (allPossibleIps.contains(NetUtils.ip2Long(gateway))))
-            allPossibleIps.remove(NetUtils.ip2Long(gateway));
+        if (gateway != null) {
+            bitmap.allocate(NetUtils.ip2Long(gateway));
+        }
 
-        return allPossibleIps;
+        return bitmap;
     }
 
     @Override
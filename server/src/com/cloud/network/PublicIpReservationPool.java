@@ -0,0 +1,78 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import com.cloud.dc.Vlan.VlanType;
+
+/**
+ * Free public IP addresses reserved by this management server, so concurrent allocations take
+ * different addresses instead of all locking the lowest free row. The pool only holds candidates:
+ * an address is taken with a conditional update that fails if another allocation, on this or
+ * another management server, got it first.
+ *
+ * Candidates are pooled per scope, i.e. the VLAN ranges an allocation may use together with the
+ * VLAN type, pod and network restricting it.
+ */
+public class PublicIpReservationPool {
+    private final ConcurrentMap<String, Queue<Long>> _pools = new ConcurrentHashMap<String, Queue<Long>>();
+
+    public static String getScope(final VlanType vlanUse, final long dcId, final Long podId, final Long networkId, final List<Long> vlanDbIds) {
+        final List<Long> sorted = new ArrayList<Long>(vlanDbIds);
+        Collections.sort(sorted);
+        return vlanUse + "/" + dcId + "/" + podId + "/" + networkId + "/" + sorted;
+    }
+
+    /**
+     * @return the next candidate address id of the scope, or null if the scope has run dry
+     */
+    public Long poll(final String scope) {
+        final Queue<Long> pool = _pools.get(scope);
+        return pool != null ? pool.poll() : null;
+    }
+
+    /**
+     * Adds a batch of free addresses to the scope in random order, so management servers that
+     * reserved the same batch mostly try different addresses.
+     */
+    public void offer(final String scope, final List<Long> ipAddressIds) {
+        final List<Long> shuffled = new ArrayList<Long>(ipAddressIds);
+        Collections.shuffle(shuffled);
+
+        Queue<Long> pool = _pools.get(scope);
+        if (pool == null) {
+            final Queue<Long> created = new ConcurrentLinkedQueue<Long>();
+            pool = _pools.putIfAbsent(scope, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        pool.addAll(shuffled);
+    }
+
+    public int size(final String scope) {
+        final Queue<Long> pool = _pools.get(scope);
+        return pool != null ? pool.size() : 0;
+    }
+}
@@ -1721,6 +1721,7 @@ Configurable, StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
             final AggregationControlCommand finishCmd = new AggregationControlCommand(Action.Finish, router.getInstanceName(), controlNic.getIPv4Address(), _routerControlHelper.getRouterIpInNetwork(
                     guestNetworkId, router.getId()));
+            finishCmd.setDifferential(RouterReprogramDifferential.value());
             cmds.addCommand(finishCmd);
         }
 
@@ -2602,7 +2603,7 @@ Configurable, StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] { UseExternalDnsServers, routerVersionCheckEnabled, SetServiceMonitor, RouterAlertsCheckInterval };
+        return new ConfigKey<?>[] { UseExternalDnsServers, routerVersionCheckEnabled, SetServiceMonitor, RouterAlertsCheckInterval, RouterReprogramDifferential };
     }
 
     @Override
@@ -444,6 +444,7 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
                 finalizeUserDataAndDhcpOnStart(cmds, domainRouterVO, provider, guestNic.getNetworkId());
                 final AggregationControlCommand finishCmd = new AggregationControlCommand(Action.Finish, domainRouterVO.getInstanceName(), controlNic.getIPv4Address(), _routerControlHelper.getRouterIpInNetwork(
                         guestNic.getNetworkId(), domainRouterVO.getId()));
+                finishCmd.setDifferential(RouterReprogramDifferential.value());
                 cmds.addCommand(finishCmd);
             }
 
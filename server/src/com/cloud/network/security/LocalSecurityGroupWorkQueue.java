@@ -17,6 +17,7 @@
 package com.cloud.network.security;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -47,11 +48,13 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         Long _logSequenceNumber;
         Long _instanceId;
         Step _step;
+        Date _created;
 
         public LocalSecurityGroupWork(Long instanceId, Long logSequence, Step step) {
             this._instanceId = instanceId;
             this._logSequenceNumber = logSequence;
             this._step = step;
+            this._created = new Date();
         }
 
         @Override
@@ -64,6 +67,11 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
             return _logSequenceNumber;
         }
 
+        @Override
+        public Date getCreated() {
+            return _created;
+        }
+
         @Override
         public Step getStep() {
             return _step;
@@ -108,7 +116,7 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         _lock.lock();
         try {
             SecurityGroupWork work = new LocalSecurityGroupWork(vmId, sequenceNumber, Step.Scheduled);
-            boolean added = _currentWork.add(work);
+            boolean added = addOrReschedule(work);
             if (added)
                 _count.incrementAndGet();
         } finally {
@@ -125,7 +133,7 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         try {
             for (Long vmId : vmIds) {
                 SecurityGroupWork work = new LocalSecurityGroupWork(vmId, null, SecurityGroupWork.Step.Scheduled);
-                boolean added = _currentWork.add(work);
+                boolean added = addOrReschedule(work);
                 if (added)
                     _count.incrementAndGet();
             }
@@ -137,6 +145,18 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         return newWork;
     }
 
+    /**
+     * Pending work for the same vm is replaced rather than kept, so that it carries the time of the latest change
+     */
+    private boolean addOrReschedule(SecurityGroupWork work) {
+        if (_currentWork.add(work)) {
+            return true;
+        }
+        _currentWork.remove(work);
+        _currentWork.add(work);
+        return false;
+    }
+
     @Override
     public List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException {
         List<SecurityGroupWork> work = new ArrayList<SecurityGroupWork>(numberOfWorkItems);
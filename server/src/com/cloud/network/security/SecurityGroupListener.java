@@ -85,6 +85,7 @@ public class SecurityGroupListener implements Listener {
         for (Answer ans : answers) {
             if (ans instanceof SecurityGroupRuleAnswer) {
                 SecurityGroupRuleAnswer ruleAnswer = (SecurityGroupRuleAnswer)ans;
+                _securityGroupManager.handleRulesetAnswer(ruleAnswer);
                 if (ans.getResult()) {
                     s_logger.debug("Successfully programmed rule " + ruleAnswer.toString() + " into host " + agentId);
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Done);
@@ -97,6 +98,10 @@ public class SecurityGroupListener implements Listener {
                     if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
                         s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure since host " + agentId +
                             " cannot do bridge firewalling");
+                    } else if (ruleAnswer.getReason() == FailureReason.SEQUENCE_MISMATCH) {
+                        s_logger.debug("Sending the full security group ruleset for vm " + ruleAnswer.getVmId() + " since host " + agentId +
+                            " did not program the ruleset the delta is based on");
+                        affectedVms.add(ruleAnswer.getVmId());
                     } else if (ruleAnswer.getReason() == FailureReason.PROGRAMMING_FAILED) {
                         if (checkShouldRetryOnFailure(ruleAnswer.getVmId())) {
                             s_logger.debug("Retrying security group rules on failure for vm " + ruleAnswer.getVmId());
@@ -16,7 +16,9 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,20 +30,31 @@ import javax.ejb.Local;
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
+import org.apache.cloudstack.api.command.user.securitygroup.DeleteSecurityGroupCmd;
 import org.apache.cloudstack.managed.context.ManagedContext;
 
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
+import com.cloud.event.ActionEvent;
+import com.cloud.event.EventTypes;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.exception.ResourceInUseException;
+import com.cloud.host.DetailVO;
+import com.cloud.host.dao.HostDetailsDao;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.network.security.SecurityRule.SecurityRuleType;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Profiler;
+import com.cloud.utils.db.DB;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.NicVO;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine.State;
 
 /**
@@ -56,11 +69,41 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
 
     @Inject
     ManagedContext _managedContext;
+    @Inject
+    HostDetailsDao _hostDetailsDao;
 
     WorkerThread[] _workers;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
 
+    private final Map<Long, CompiledRules> _compiledIngressRules = new ConcurrentHashMap<Long, CompiledRules>();
+    private final Map<Long, CompiledRules> _compiledEgressRules = new ConcurrentHashMap<Long, CompiledRules>();
+    // last ruleset a host acknowledged for each vm, and the one sent to it and not acknowledged yet
+    private final ConcurrentHashMap<Long, SecurityGroupRulesCmd> _programmedRulesets = new ConcurrentHashMap<Long, SecurityGroupRulesCmd>();
+    private final ConcurrentHashMap<Long, SecurityGroupRulesCmd> _pendingRulesets = new ConcurrentHashMap<Long, SecurityGroupRulesCmd>();
+
+    /**
+     * The rules of one security group, with the members of the groups they allow resolved to cidrs. Every member
+     * of the group whose work was scheduled before the rules were compiled shares them instead of compiling its own.
+     */
+    protected static class CompiledRules {
+        private final long _compiled;
+        private final Map<PortAndProto, Set<String>> _rules;
+
+        public CompiledRules(long compiled, Map<PortAndProto, Set<String>> rules) {
+            _compiled = compiled;
+            _rules = Collections.unmodifiableMap(rules);
+        }
+
+        public boolean isCompiledAfter(Date date) {
+            return date != null && _compiled > date.getTime();
+        }
+
+        public Map<PortAndProto, Set<String>> getRules() {
+            return _rules;
+        }
+    }
+
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
             super(name);
@@ -175,8 +218,8 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
             }
-            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
+            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule, work.getCreated());
+            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule, work.getCreated());
             Long agentId = vm.getHostId();
             if (agentId != null) {
                 String privateIp = vm.getPrivateIpAddress();
@@ -193,12 +236,22 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
                         ingressRules, egressRules, nicSecIps);
                 cmd.setMsId(_serverId);
-                if (s_logger.isDebugEnabled()) {
+                Command rulesetCmd = cmd;
+                SecurityGroupRulesCmd programmed = _programmedRulesets.get(userVmId);
+                if (programmed != null && isRulesetDeltaCapable(agentId)) {
+                    SecurityGroupRulesDeltaCmd deltaCmd = new SecurityGroupRulesDeltaCmd(programmed, cmd);
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("SecurityGroupManager v2: sending ruleset delta for vm " + vm.getInstanceName() + ":num changed rules=" +
+                            deltaCmd.getNumChangedRules() + " seqno=" + deltaCmd.getBaseSeqNum() + "->" + deltaCmd.getSeqNum() + " sig=" + deltaCmd.getSignature());
+                    }
+                    rulesetCmd = deltaCmd;
+                } else if (s_logger.isDebugEnabled()) {
                     s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
                         cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
                         cmd.getSignature());
                 }
-                Commands cmds = new Commands(cmd);
+                _pendingRulesets.put(userVmId, cmd);
+                Commands cmds = new Commands(rulesetCmd);
                 try {
                     _agentMgr.send(agentId, cmds, _answerListener);
                     if (s_logger.isTraceEnabled()) {
@@ -210,6 +263,8 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                 }
             }
         } else {
+            _programmedRulesets.remove(userVmId);
+            _pendingRulesets.remove(userVmId);
             if (s_logger.isDebugEnabled()) {
                 if (vm != null)
                     s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
@@ -222,49 +277,151 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     @Override
     public void cleanupFinishedWork() {
         //TODO: over time clean up op_vm_ruleset_log table for destroyed vms
+        // groups of deleted accounts are removed without going through deleteSecurityGroup
+        for (Long securityGroupId : new ArrayList<Long>(_compiledIngressRules.keySet())) {
+            if (_securityGroupDao.findById(securityGroupId) == null) {
+                evictCompiledRules(securityGroupId);
+            }
+        }
+        for (Long securityGroupId : new ArrayList<Long>(_compiledEgressRules.keySet())) {
+            if (_securityGroupDao.findById(securityGroupId) == null) {
+                evictCompiledRules(securityGroupId);
+            }
+        }
+    }
+
+    @DB
+    @Override
+    @ActionEvent(eventType = EventTypes.EVENT_SECURITY_GROUP_DELETE, eventDescription = "deleting security group")
+    public boolean deleteSecurityGroup(DeleteSecurityGroupCmd cmd) throws ResourceInUseException {
+        boolean deleted = super.deleteSecurityGroup(cmd);
+        if (deleted) {
+            evictCompiledRules(cmd.getId());
+        }
+        return deleted;
+    }
+
+    protected void evictCompiledRules(long securityGroupId) {
+        _compiledIngressRules.remove(securityGroupId);
+        _compiledEgressRules.remove(securityGroupId);
+    }
+
+    @Override
+    protected void handleRulesetAnswer(SecurityGroupRuleAnswer answer) {
+        Long vmId = answer.getVmId();
+        if (vmId == null) {
+            return;
+        }
+        SecurityGroupRulesCmd pending = _pendingRulesets.get(vmId);
+        if (answer.getResult()) {
+            if (pending != null && pending.getSeqNum().equals(answer.getLogSequenceNumber())) {
+                _programmedRulesets.put(vmId, pending);
+                _pendingRulesets.remove(vmId, pending);
+            }
+        } else {
+            // the next update sends the full ruleset
+            _programmedRulesets.remove(vmId);
+            if (pending != null) {
+                _pendingRulesets.remove(vmId, pending);
+            }
+        }
+    }
+
+    @Override
+    protected void handleVmStopped(VMInstanceVO vm) {
+        _programmedRulesets.remove(vm.getId());
+        _pendingRulesets.remove(vm.getId());
+        super.handleVmStopped(vm);
+    }
+
+    @Override
+    protected void handleVmMigrated(VMInstanceVO vm) {
+        // the destination host has not programmed any ruleset for the vm yet
+        _programmedRulesets.remove(vm.getId());
+        super.handleVmMigrated(vm);
+    }
+
+    private boolean isRulesetDeltaCapable(long hostId) {
+        DetailVO detail = _hostDetailsDao.findDetail(hostId, SecurityGroupRulesDeltaCmd.HOST_CAPABILITY);
+        return detail != null && Boolean.parseBoolean(detail.getValue());
     }
 
-    /*
-     * Same as the superclass, except that we use the  ip address(es) returned from the join
-     * made with the nics table when retrieving the SecurityGroupVmMapVO. If a vm has a single
-     * nic then that nic is the default and then this query is correct. If the vm has multiple nics
-     * then we get all ips, including the default nic ip. This is also probably the correct behavior.
-     */
     @Override
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        return generateRulesForVM(userVmId, type, null);
+    }
+
+    /**
+     * Merges the compiled rules of the groups of the vm. Rules compiled after the given date are reused,
+     * the others are compiled again.
+     */
+    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type, Date scheduled) {
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
         List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
         for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
-            for (SecurityGroupRuleVO rule : rules) {
-                PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
-                Set<String> cidrs = allowed.get(portAndProto);
+            CompiledRules compiled = getCompiledRules(mapVO.getSecurityGroupId(), type, scheduled);
+            for (Map.Entry<PortAndProto, Set<String>> rule : compiled.getRules().entrySet()) {
+                Set<String> cidrs = allowed.get(rule.getKey());
                 if (cidrs == null) {
                     cidrs = new TreeSet<String>(new CidrComparator());
+                    allowed.put(rule.getKey(), cidrs);
                 }
-                if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
-                    }
-                } else if (rule.getAllowedSourceIpCidr() != null) {
-                    cidrs.add(rule.getAllowedSourceIpCidr());
-                }
-                if (cidrs.size() > 0) {
-                    allowed.put(portAndProto, cidrs);
-                }
+                cidrs.addAll(rule.getValue());
             }
         }
 
         return allowed;
     }
 
+    protected CompiledRules getCompiledRules(long securityGroupId, SecurityRuleType type, Date scheduled) {
+        Map<Long, CompiledRules> compiledRules = type == SecurityRuleType.IngressRule ? _compiledIngressRules : _compiledEgressRules;
+        CompiledRules compiled = compiledRules.get(securityGroupId);
+        if (compiled == null || !compiled.isCompiledAfter(scheduled)) {
+            compiled = compileRules(securityGroupId, type);
+            compiledRules.put(securityGroupId, compiled);
+        }
+        return compiled;
+    }
+
+    /*
+     * Same as the superclass, except that we use the  ip address(es) returned from the join
+     * made with the nics table when retrieving the SecurityGroupVMMapVO. If a vm has a single
+     * nic then that nic is the default and then this query is correct. If the vm has multiple nics
+     * then we get all ips, including the default nic ip. This is also probably the correct behavior.
+     */
+    protected CompiledRules compileRules(long securityGroupId, SecurityRuleType type) {
+        long compiled = System.currentTimeMillis();
+        Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
+
+        List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(securityGroupId, type);
+        for (SecurityGroupRuleVO rule : rules) {
+            PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
+            Set<String> cidrs = allowed.get(portAndProto);
+            if (cidrs == null) {
+                cidrs = new TreeSet<String>(new CidrComparator());
+            }
+            if (rule.getAllowedNetworkId() != null) {
+                List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
+                for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+                    //here, we differ from the superclass: instead of creating N more queries to the
+                    //nics table, we use what's already there in the VO since the listBySecurityGroup already
+                    //did a join with the nics table
+                    String cidr = ngmapVO.getGuestIpAddress() + "/32";
+                    cidrs.add(cidr);
+                }
+            } else if (rule.getAllowedSourceIpCidr() != null) {
+                cidrs.add(rule.getAllowedSourceIpCidr());
+            }
+            if (cidrs.size() > 0) {
+                allowed.put(portAndProto, cidrs);
+            }
+        }
+
+        return new CompiledRules(compiled, allowed);
+    }
+
     public int getQueueSize() {
         return _workQueue.size();
     }
@@ -0,0 +1,291 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.host.HostVO;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Runs one stats collection cycle over a list of hosts with bounded parallelism.
+ *
+ * Every host is collected on a worker thread and gets its own time budget, counted
+ * from the moment its collection actually starts. A host that overruns the budget is
+ * abandoned and counted as timed out, so a single slow agent does not hold up the rest
+ * of the cycle. Hosts that have not started by the time the cycle budget runs out are
+ * skipped until the next cycle.
+ *
+ * Abandoning a host interrupts its worker, but a worker blocked in an agent request only
+ * returns once the request does. Such a host is skipped in later cycles until its worker
+ * is back, so an unresponsive host holds at most one worker.
+ */
+public class StatsCollectionEngine {
+    private static final Logger s_logger = Logger.getLogger(StatsCollectionEngine.class);
+
+    private static final long POLL_INTERVAL_MS = 100L;
+
+    public interface HostStatsTask {
+        void collect(HostVO host) throws Exception;
+    }
+
+    /**
+     * Outcome of one collection cycle.
+     */
+    public static class CycleResult {
+        private final long _durationMs;
+        private final int _collected;
+        private final int _failed;
+        private final int _timedOut;
+        private final int _skipped;
+
+        public CycleResult(long durationMs, int collected, int failed, int timedOut, int skipped) {
+            _durationMs = durationMs;
+            _collected = collected;
+            _failed = failed;
+            _timedOut = timedOut;
+            _skipped = skipped;
+        }
+
+        public long getDurationMs() {
+            return _durationMs;
+        }
+
+        public int getCollected() {
+            return _collected;
+        }
+
+        public int getFailed() {
+            return _failed;
+        }
+
+        public int getTimedOut() {
+            return _timedOut;
+        }
+
+        public int getSkipped() {
+            return _skipped;
+        }
+
+        @Override
+        public String toString() {
+            return "duration=" + _durationMs + "ms, collected=" + _collected + ", failed=" + _failed + ", timedOut=" + _timedOut + ", skipped=" + _skipped;
+        }
+    }
+
+    private final String _name;
+    private final ExecutorService _executor;
+    private final long _hostTimeoutMs;
+    private final Map<Long, Long> _hostLatencies = new ConcurrentHashMap<Long, Long>();
+    // hosts with a collection that is queued or still running, possibly from an earlier cycle
+    private final Set<Long> _busyHosts = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private volatile CycleResult _lastCycle;
+    private final AtomicLong _cycles = new AtomicLong();
+
+    public StatsCollectionEngine(String name, int concurrency, long hostTimeoutMs) {
+        _name = name;
+        _hostTimeoutMs = hostTimeoutMs;
+        int threads = Math.max(1, concurrency);
+        _executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+    }
+
+    private class HostCollection extends ManagedContextRunnable {
+        private final HostVO _host;
+        private final HostStatsTask _task;
+        private volatile long _startedAt = -1L;
+        private volatile long _latencyMs = -1L;
+
+        HostCollection(HostVO host, HostStatsTask task) {
+            _host = host;
+            _task = task;
+        }
+
+        @Override
+        protected void runInContext() {
+            _startedAt = System.currentTimeMillis();
+            try {
+                _task.collect(_host);
+            } catch (Exception e) {
+                throw new CollectionException(e);
+            } finally {
+                _latencyMs = System.currentTimeMillis() - _startedAt;
+                _busyHosts.remove(_host.getId());
+            }
+        }
+    }
+
+    private static class CollectionException extends RuntimeException {
+        private static final long serialVersionUID = 4917262391839254017L;
+
+        CollectionException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Collects the given hosts and blocks until every host is done, timed out or skipped.
+     *
+     * @param cycleBudgetMs maximum time the whole cycle may take, usually the collection interval
+     */
+    public CycleResult collect(List<HostVO> hosts, HostStatsTask task, long cycleBudgetMs) {
+        long cycleStart = System.currentTimeMillis();
+        long cycleDeadline = cycleStart + cycleBudgetMs;
+
+        int collected = 0;
+        int failed = 0;
+        int timedOut = 0;
+        int skipped = 0;
+
+        List<HostCollection> collections = new ArrayList<HostCollection>(hosts.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>(hosts.size());
+        for (HostVO host : hosts) {
+            if (!_busyHosts.add(host.getId())) {
+                skipped++;
+                s_logger.debug(_name + ": skipped host " + host.getId() + ", its collection from an earlier cycle is still running");
+                continue;
+            }
+            HostCollection collection = new HostCollection(host, task);
+            collections.add(collection);
+            futures.add(_executor.submit(collection));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            HostCollection collection = collections.get(i);
+            Future<?> future = futures.get(i);
+            long hostId = collection._host.getId();
+            try {
+                waitFor(collection, future, cycleDeadline);
+                collected++;
+                _hostLatencies.put(hostId, collection._latencyMs);
+            } catch (TimeoutException e) {
+                if (future.cancel(true) && collection._startedAt < 0) {
+                    // it never runs, so it can't clear itself
+                    _busyHosts.remove(hostId);
+                }
+                if (collection._startedAt < 0) {
+                    skipped++;
+                    s_logger.debug(_name + ": skipped host " + hostId + ", cycle budget of " + cycleBudgetMs + "ms exhausted before it could start");
+                } else {
+                    timedOut++;
+                    _hostLatencies.put(hostId, System.currentTimeMillis() - collection._startedAt);
+                    s_logger.warn(_name + ": gave up on host " + hostId + " after " + _hostTimeoutMs + "ms");
+                }
+            } catch (CancellationException e) {
+                if (collection._startedAt < 0) {
+                    _busyHosts.remove(hostId);
+                }
+                skipped++;
+            } catch (ExecutionException e) {
+                failed++;
+                _hostLatencies.put(hostId, collection._latencyMs);
+                Throwable cause = e.getCause() instanceof CollectionException ? e.getCause().getCause() : e.getCause();
+                s_logger.debug(_name + ": failed to collect stats for host " + hostId + ": " + (cause != null ? cause.getMessage() : e.getMessage()));
+            } catch (InterruptedException e) {
+                s_logger.debug(_name + ": interrupted, abandoning the rest of the cycle");
+                for (int j = i; j < futures.size(); j++) {
+                    if (futures.get(j).cancel(true) && collections.get(j)._startedAt < 0) {
+                        _busyHosts.remove(collections.get(j)._host.getId());
+                    }
+                }
+                skipped += futures.size() - i;
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        CycleResult result = new CycleResult(System.currentTimeMillis() - cycleStart, collected, failed, timedOut, skipped);
+        _lastCycle = result;
+        _cycles.incrementAndGet();
+        if (timedOut > 0 || skipped > 0) {
+            s_logger.info(_name + " cycle over " + hosts.size() + " hosts: " + result);
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug(_name + " cycle over " + hosts.size() + " hosts: " + result);
+        }
+        return result;
+    }
+
+    private void waitFor(HostCollection collection, Future<?> future, long cycleDeadline) throws InterruptedException, ExecutionException, TimeoutException {
+        while (true) {
+            if (future.isDone()) {
+                future.get();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long startedAt = collection._startedAt;
+            long wait;
+            if (startedAt < 0) {
+                // still queued behind other hosts, it may only start while the cycle has budget left
+                if (now >= cycleDeadline) {
+                    throw new TimeoutException();
+                }
+                wait = Math.min(POLL_INTERVAL_MS, cycleDeadline - now);
+            } else {
+                long hostDeadline = startedAt + _hostTimeoutMs;
+                if (now >= hostDeadline) {
+                    throw new TimeoutException();
+                }
+                wait = hostDeadline - now;
+            }
+            try {
+                future.get(wait, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // loop around and re-evaluate the deadlines
+            }
+        }
+    }
+
+    public CycleResult getLastCycle() {
+        return _lastCycle;
+    }
+
+    public long getCycleCount() {
+        return _cycles.get();
+    }
+
+    /**
+     * @return latency in milliseconds of the last collection of each host
+     */
+    public Map<Long, Long> getHostLatencies() {
+        return Collections.unmodifiableMap(_hostLatencies);
+    }
+
+    public void forgetHost(long hostId) {
+        _hostLatencies.remove(hostId);
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+}
@@ -48,6 +48,7 @@ import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 import org.apache.cloudstack.utils.graphite.GraphiteClient;
 import org.apache.cloudstack.utils.graphite.GraphiteException;
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Answer;
@@ -227,6 +228,11 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 5;    // 5 seconds
     private boolean _dailyOrHourly = false;
 
+    private StatsCollectionEngine _hostStatsEngine;
+    private StatsCollectionEngine _vmStatsEngine;
+    private long _statsHostTimeout = 30000L;
+    private boolean _shardByManagementServer = false;
+
     //private final GlobalLock m_capacityCheckLock = GlobalLock.getInternLock("capacity.check");
 
     public static StatsCollector getInstance() {
@@ -258,6 +264,12 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         autoScaleStatsInterval = NumbersUtil.parseLong(configs.get("autoscale.stats.interval"), 60000L);
         vmDiskStatsInterval = NumbersUtil.parseInt(configs.get("vm.disk.stats.interval"), 0);
 
+        int statsCollectorThreads = NumbersUtil.parseInt(configs.get("stats.collector.threads"), 8);
+        _statsHostTimeout = NumbersUtil.parseLong(configs.get("stats.collector.host.timeout"), 30000L);
+        _shardByManagementServer = Boolean.parseBoolean(configs.get("stats.collector.shard.by.mshost"));
+        _hostStatsEngine = new StatsCollectionEngine("HostStatsCollector", statsCollectorThreads, _statsHostTimeout);
+        _vmStatsEngine = new StatsCollectionEngine("VmStatsCollector", statsCollectorThreads, _statsHostTimeout);
+
         /* URI to send statistics to. Currently only Graphite is supported */
         String externalStatsUri = configs.get("stats.output.uri");
         if (externalStatsUri != null && !externalStatsUri.equals("")) {
@@ -354,6 +366,40 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
     }
 
+    @Override
+    public boolean stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        if (_hostStatsEngine != null) {
+            _hostStatsEngine.shutdown();
+        }
+        if (_vmStatsEngine != null) {
+            _vmStatsEngine.shutdown();
+        }
+        return true;
+    }
+
+    /**
+     * When sharding is enabled every management server only collects the hosts whose agents it owns,
+     * so a cluster of management servers splits the collection work instead of each walking every host.
+     * The collected stats are not shared, so the API of each management server only has stats for its
+     * own hosts. Sharding is therefore off by default.
+     */
+    private List<HostVO> filterHostsOwnedByThisManagementServer(List<HostVO> hosts) {
+        if (!_shardByManagementServer) {
+            return hosts;
+        }
+        long msId = ManagementServerNode.getManagementServerId();
+        List<HostVO> ownedHosts = new ArrayList<HostVO>();
+        for (HostVO host : hosts) {
+            if (host.getManagementServerId() != null && host.getManagementServerId() == msId) {
+                ownedHosts.add(host);
+            }
+        }
+        return ownedHosts;
+    }
+
     class HostCollector extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -374,35 +420,28 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.L2Networking.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalDhcp.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalPxe.toString());
-                ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
-                List<HostVO> hosts = _hostDao.search(sc, null);
-                for (HostVO host : hosts) {
-                    HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
-                    if (stats != null) {
-                        hostStats.put(host.getId(), stats);
-                    } else {
-                        s_logger.warn("Received invalid host stats for host: " + host.getId());
-                    }
-                }
-                _hostStats = hostStats;
-                // Get a subset of hosts with GPU support from the list of "hosts"
-                List<HostVO> gpuEnabledHosts = new ArrayList<HostVO>();
-                if (hostIds != null) {
-                    for (HostVO host : hosts) {
-                        if (hostIds.contains(host.getId())) {
-                            gpuEnabledHosts.add(host);
+                final ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
+                List<HostVO> hosts = filterHostsOwnedByThisManagementServer(_hostDao.search(sc, null));
+                // Get a subset of hosts with GPU support from the list of "hosts", or check all of them if not known yet
+                final List<Long> gpuHostIds = hostIds;
+                _hostStatsEngine.collect(hosts, new StatsCollectionEngine.HostStatsTask() {
+                    @Override
+                    public void collect(HostVO host) {
+                        HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
+                        if (stats != null) {
+                            hostStats.put(host.getId(), stats);
+                        } else {
+                            s_logger.warn("Received invalid host stats for host: " + host.getId());
+                        }
+                        if (gpuHostIds == null || gpuHostIds.contains(host.getId())) {
+                            HashMap<String, HashMap<String, VgpuTypesInfo>> groupDetails = _resourceMgr.getGPUStatistics(host);
+                            if (groupDetails != null) {
+                                _resourceMgr.updateGPUDetails(host.getId(), groupDetails);
+                            }
                         }
                     }
-                } else {
-                    // Check for all the hosts managed by CloudStack.
-                    gpuEnabledHosts = hosts;
-                }
-                for (HostVO host : gpuEnabledHosts) {
-                    HashMap<String, HashMap<String, VgpuTypesInfo>> groupDetails = _resourceMgr.getGPUStatistics(host);
-                    if (groupDetails != null) {
-                        _resourceMgr.updateGPUDetails(host.getId(), groupDetails);
-                    }
-                }
+                }, hostStatsInterval);
+                _hostStats = hostStats;
                 hostIds = _hostGpuGroupsDao.listHostIds();
             } catch (Throwable t) {
                 s_logger.error("Error trying to retrieve host stats", t);
@@ -425,101 +464,106 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.LocalSecondaryStorage.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.TrafficMonitor.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
-                List<HostVO> hosts = _hostDao.search(sc, null);
-
-                /* HashMap for metrics to be send to Graphite */
-                HashMap metrics = new HashMap<String, Integer>();
+                List<HostVO> hosts = filterHostsOwnedByThisManagementServer(_hostDao.search(sc, null));
 
-                for (HostVO host : hosts) {
-                    List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                    List<Long> vmIds = new ArrayList<Long>();
-
-                    for (UserVmVO vm : vms) {
-                        vmIds.add(vm.getId());
+                _vmStatsEngine.collect(hosts, new StatsCollectionEngine.HostStatsTask() {
+                    @Override
+                    public void collect(HostVO host) {
+                        collectVmStats(host);
                     }
+                }, hostAndVmStatsInterval);
+            } catch (Throwable t) {
+                s_logger.error("Error trying to retrieve VM stats", t);
+            }
+        }
 
-                    try {
-                        HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
+        private void collectVmStats(HostVO host) {
+            /* HashMap for metrics to be send to Graphite */
+            HashMap metrics = new HashMap<String, Integer>();
 
-                        if (vmStatsById != null) {
-                            VmStatsEntry statsInMemory = null;
+            List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
+            List<Long> vmIds = new ArrayList<Long>();
 
-                            Set<Long> vmIdSet = vmStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-                                statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
-
-                                if (statsInMemory == null) {
-                                    //no stats exist for this vm, directly persist
-                                    _VmStats.put(vmId, statsForCurrentIteration);
-                                } else {
-                                    //update each field
-                                    statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-                                    statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-                                    statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-                                    statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-                                    statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
-                                    statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
-                                    statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
-                                    statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
-
-                                    _VmStats.put(vmId, statsInMemory);
-                                }
+            for (UserVmVO vm : vms) {
+                vmIds.add(vm.getId());
+            }
 
-                                /**
-                                 * Add statistics to HashMap only when they should be send to a external stats collector
-                                 * Performance wise it seems best to only append to the HashMap when needed
-                                 */
-                                if (externalStatsEnabled) {
-                                    VMInstanceVO vmVO = _vmInstance.findById(vmId);
-                                    String vmName = vmVO.getUuid();
-
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.num", statsForCurrentIteration.getNumCPUs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.utilization", statsForCurrentIteration.getCPUUtilization());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.read_kbs", statsForCurrentIteration.getNetworkReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_kbs", statsForCurrentIteration.getDiskReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_iops", statsForCurrentIteration.getDiskWriteIOs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_iops", statsForCurrentIteration.getDiskReadIOs());
-                                }
+            try {
+                HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
+
+                if (vmStatsById != null) {
+                    VmStatsEntry statsInMemory = null;
+
+                    Set<Long> vmIdSet = vmStatsById.keySet();
+                    for (Long vmId : vmIdSet) {
+                        VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
+                        statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
+
+                        if (statsInMemory == null) {
+                            //no stats exist for this vm, directly persist
+                            _VmStats.put(vmId, statsForCurrentIteration);
+                        } else {
+                            //update each field
+                            statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
+                            statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
+                            statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
+                            statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
+                            statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
+                            statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
+                            statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
+                            statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
+
+                            _VmStats.put(vmId, statsInMemory);
+                        }
 
-                            }
+                        /**
+                         * Add statistics to HashMap only when they should be send to a external stats collector
+                         * Performance wise it seems best to only append to the HashMap when needed
+                         */
+                        if (externalStatsEnabled) {
+                            VMInstanceVO vmVO = _vmInstance.findById(vmId);
+                            String vmName = vmVO.getUuid();
+
+                            metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.num", statsForCurrentIteration.getNumCPUs());
+                            metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.utilization", statsForCurrentIteration.getCPUUtilization());
+                            metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.read_kbs", statsForCurrentIteration.getNetworkReadKBs());
+                            metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs());
+                            metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs());
+                            metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_kbs", statsForCurrentIteration.getDiskReadKBs());
+                            metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_iops", statsForCurrentIteration.getDiskWriteIOs());
+                            metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_iops", statsForCurrentIteration.getDiskReadIOs());
+                        }
 
-                            /**
-                             * Send the metrics to a external stats collector
-                             * We send it on a per-host basis to prevent that we flood the host
-                             * Currently only Graphite is supported
-                             */
-                            if (!metrics.isEmpty()) {
-                                if (externalStatsType != null && externalStatsType == externalStatsProtocol.GRAPHITE) {
+                    }
 
-                                    if (externalStatsPort == -1) {
-                                        externalStatsPort = 2003;
-                                    }
+                    /**
+                     * Send the metrics to a external stats collector
+                     * We send it on a per-host basis to prevent that we flood the host
+                     * Currently only Graphite is supported
+                     */
+                    if (!metrics.isEmpty()) {
+                        if (externalStatsType != null && externalStatsType == externalStatsProtocol.GRAPHITE) {
 
-                                    s_logger.debug("Sending VmStats of host " + host.getId() + " to Graphite host " + externalStatsHost + ":" + externalStatsPort);
+                            if (externalStatsPort == -1) {
+                                externalStatsPort = 2003;
+                            }
 
-                                    try {
-                                        GraphiteClient g = new GraphiteClient(externalStatsHost, externalStatsPort);
-                                        g.sendMetrics(metrics);
-                                    } catch (GraphiteException e) {
-                                        s_logger.debug("Failed sending VmStats to Graphite host " + externalStatsHost + ":" + externalStatsPort + ": " + e.getMessage());
-                                    }
+                            s_logger.debug("Sending VmStats of host " + host.getId() + " to Graphite host " + externalStatsHost + ":" + externalStatsPort);
 
-                                    metrics.clear();
-                                }
+                            try {
+                                GraphiteClient g = new GraphiteClient(externalStatsHost, externalStatsPort);
+                                g.sendMetrics(metrics);
+                            } catch (GraphiteException e) {
+                                s_logger.debug("Failed sending VmStats to Graphite host " + externalStatsHost + ":" + externalStatsPort + ": " + e.getMessage());
                             }
-                        }
 
-                    } catch (Exception e) {
-                        s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-                        continue;
+                            metrics.clear();
+                        }
                     }
                 }
 
-            } catch (Throwable t) {
-                s_logger.error("Error trying to retrieve VM stats", t);
+            } catch (Exception e) {
+                s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
             }
         }
     }
@@ -528,6 +572,25 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         return _VmStats.get(id);
     }
 
+    public StatsCollectionEngine.CycleResult getLastHostStatsCycle() {
+        return _hostStatsEngine != null ? _hostStatsEngine.getLastCycle() : null;
+    }
+
+    public StatsCollectionEngine.CycleResult getLastVmStatsCycle() {
+        return _vmStatsEngine != null ? _vmStatsEngine.getLastCycle() : null;
+    }
+
+    /**
+     * @return latency in milliseconds of the last host stats and VM stats round trip to each host
+     */
+    public Map<Long, Long> getHostStatsLatencies() {
+        return _hostStatsEngine != null ? _hostStatsEngine.getHostLatencies() : new HashMap<Long, Long>();
+    }
+
+    public Map<Long, Long> getVmStatsLatencies() {
+        return _vmStatsEngine != null ? _vmStatsEngine.getHostLatencies() : new HashMap<Long, Long>();
+    }
+
     class VmDiskStatsUpdaterTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -17,6 +17,7 @@
 package com.cloud.test;
 
 import java.lang.reflect.Array;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -446,10 +447,14 @@ public class IPRangeConfig {
     }
 
     public Vector<String> savePublicIPRange(TransactionLegacy txn, long startIP, long endIP, long zoneId, long vlanDbId, Long sourceNetworkId, long physicalNetworkId) {
+        String selectSql = "SELECT mac_address FROM `cloud`.`data_center` WHERE id=? FOR UPDATE";
         String insertSql =
-            "INSERT INTO `cloud`.`user_ip_address` (public_ip_address, data_center_id, vlan_db_id, mac_address, source_network_id, physical_network_id, uuid) VALUES (?, ?, ?, (select mac_address from `cloud`.`data_center` where id=?), ?, ?, ?)";
-        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+1 where id=?";
+            "INSERT INTO `cloud`.`user_ip_address` (public_ip_address, data_center_id, vlan_db_id, mac_address, source_network_id, physical_network_id, uuid) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+? where id=?";
         Vector<String> problemIPs = new Vector<String>();
+        if (startIP > endIP) {
+            return problemIPs;
+        }
 
         Connection conn = null;
         try {
@@ -457,24 +462,54 @@ public class IPRangeConfig {
         } catch (SQLException e) {
             return null;
         }
-        while (startIP <= endIP) {
-            try (PreparedStatement insert_stmt = conn.prepareStatement(insertSql);
-            PreparedStatement update_stmt = conn.prepareStatement(updateSql);
-            ){
-                insert_stmt.setString(1, NetUtils.long2Ip(startIP));
+
+        // every address takes the next mac address of the zone, so reserve them all up front and insert in one batch
+        long macAddress;
+        try (PreparedStatement select_stmt = conn.prepareStatement(selectSql);) {
+            select_stmt.setLong(1, zoneId);
+            try (ResultSet rs = select_stmt.executeQuery();) {
+                if (!rs.next()) {
+                    return null;
+                }
+                macAddress = rs.getLong(1);
+            }
+        } catch (SQLException e) {
+            return null;
+        }
+
+        try (PreparedStatement insert_stmt = conn.prepareStatement(insertSql);) {
+            for (long ip = startIP; ip <= endIP; ip++) {
+                insert_stmt.setString(1, NetUtils.long2Ip(ip));
                 insert_stmt.setLong(2, zoneId);
                 insert_stmt.setLong(3, vlanDbId);
-                insert_stmt.setLong(4, zoneId);
+                insert_stmt.setLong(4, macAddress + (ip - startIP));
                 insert_stmt.setLong(5, sourceNetworkId);
                 insert_stmt.setLong(6, physicalNetworkId);
                 insert_stmt.setString(7, UUID.randomUUID().toString());
-                insert_stmt.executeUpdate();
-                update_stmt.setLong(1, zoneId);
-                update_stmt.executeUpdate();
-            } catch (Exception ex) {
-                problemIPs.add(NetUtils.long2Ip(startIP));
+                insert_stmt.addBatch();
+            }
+            insert_stmt.executeBatch();
+        } catch (BatchUpdateException ex) {
+            // with multi-row inserts the driver may only know that the statement failed, not which row
+            int[] counts = ex.getUpdateCounts();
+            for (long ip = startIP; ip <= endIP; ip++) {
+                int i = (int)(ip - startIP);
+                if (counts == null || i >= counts.length || counts[i] == Statement.EXECUTE_FAILED) {
+                    problemIPs.add(NetUtils.long2Ip(ip));
+                }
             }
-            startIP++;
+        } catch (SQLException | RuntimeException ex) {
+            for (long ip = startIP; ip <= endIP; ip++) {
+                problemIPs.add(NetUtils.long2Ip(ip));
+            }
+        }
+
+        try (PreparedStatement update_stmt = conn.prepareStatement(updateSql);) {
+            update_stmt.setLong(1, endIP - startIP + 1);
+            update_stmt.setLong(2, zoneId);
+            update_stmt.executeUpdate();
+        } catch (SQLException ex) {
+            return null;
         }
 
         return problemIPs;
@@ -26,6 +26,8 @@ import com.cloud.user.AccountService;
 import com.cloud.user.User;
 
 import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.ApiErrorCode;
+import org.apache.cloudstack.api.ServerApiException;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -43,6 +45,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.net.URLEncoder;
 import java.net.InetAddress;
@@ -181,7 +184,7 @@ public class ApiServletTest {
         Mockito.verify(response).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
         Mockito.verify(apiServer, Mockito.never()).handleRequest(
                 Mockito.anyMap(), Mockito.anyString(),
-                Mockito.any(StringBuilder.class));
+                Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
     }
 
     @SuppressWarnings("unchecked")
@@ -195,7 +198,40 @@ public class ApiServletTest {
         Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
         Mockito.verify(apiServer, Mockito.times(1)).handleRequest(
                 Mockito.anyMap(), Mockito.anyString(),
-                Mockito.any(StringBuilder.class));
+                Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void processRequestInContextErrorBeforeCommit() {
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(apiServer.verifyRequest(Mockito.anyMap(), Mockito.anyLong())).thenReturn(true);
+        Mockito.when(response.isCommitted()).thenReturn(false);
+        Mockito.doThrow(new ServerApiException(ApiErrorCode.PARAM_ERROR, "bad parameter")).when(apiServer).handleRequest(
+                Mockito.anyMap(), Mockito.anyString(), Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
+
+        servlet.processRequestInContext(request, response);
+
+        Mockito.verify(response).resetBuffer();
+        Mockito.verify(response).setStatus(ApiErrorCode.PARAM_ERROR.getHttpCode());
+        Mockito.verify(response).setHeader("X-Description", "bad parameter");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void processRequestInContextErrorAfterCommit() {
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(apiServer.verifyRequest(Mockito.anyMap(), Mockito.anyLong())).thenReturn(true);
+        Mockito.when(response.isCommitted()).thenReturn(true);
+        Mockito.doThrow(new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "client went away", new IOException("Broken pipe"))).when(apiServer)
+                .handleRequest(Mockito.anyMap(), Mockito.anyString(), Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
+
+        servlet.processRequestInContext(request, response);
+
+        // the status line is already sent, the error can't replace it anymore
+        Mockito.verify(response, Mockito.never()).resetBuffer();
+        Mockito.verify(response, Mockito.never()).setStatus(ApiErrorCode.INTERNAL_ERROR.getHttpCode());
+        Mockito.verify(apiServer, Mockito.never()).getSerializedApiError(Mockito.any(ServerApiException.class), Mockito.anyMap(), Mockito.anyString());
     }
 
     @SuppressWarnings("unchecked")
@@ -0,0 +1,204 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import org.apache.cloudstack.acl.RoleType;
+import org.apache.cloudstack.api.BaseResponse;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.context.CallContext;
+
+import com.cloud.api.ApiDBUtils;
+import com.cloud.serializer.Param;
+import com.cloud.server.ManagementServer;
+import com.cloud.user.Account;
+import com.cloud.user.User;
+import com.cloud.utils.HttpUtils;
+import com.google.gson.annotations.SerializedName;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ApiResponseSerializerTest {
+
+    @Mock
+    ManagementServer managementServer;
+
+    @Mock
+    User user;
+
+    @Mock
+    Account account;
+
+    public static class TestResponse extends BaseResponse {
+        @SerializedName("name")
+        @Param(description = "the name")
+        private String name;
+
+        @SerializedName("secret")
+        @Param(description = "only for admins", authorized = {RoleType.Admin})
+        private String secret;
+
+        private transient String ignored = "ignored";
+
+        public TestResponse(String name) {
+            this.name = name;
+            this.secret = "secret-" + name;
+            setObjectName("test");
+        }
+    }
+
+    /**
+     * Writer failing once more than limit characters are written, like a client going away in the middle of a response.
+     */
+    private static class FailingWriter extends Writer {
+        private final StringBuilder _written = new StringBuilder();
+        private final int _limit;
+
+        FailingWriter(int limit) {
+            _limit = limit;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (_written.length() + len > _limit) {
+                throw new IOException("Broken pipe");
+            }
+            _written.append(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        Field smsField = ApiDBUtils.class.getDeclaredField("s_ms");
+        smsField.setAccessible(true);
+        smsField.set(null, managementServer);
+        Mockito.when(managementServer.getVersion()).thenReturn("LATEST-AND-GREATEST");
+
+        Mockito.when(account.getType()).thenReturn(Account.ACCOUNT_TYPE_NORMAL);
+        CallContext.register(user, account);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CallContext.unregister();
+        Field smsField = ApiDBUtils.class.getDeclaredField("s_ms");
+        smsField.setAccessible(true);
+        smsField.set(null, null);
+    }
+
+    private static ListResponse<TestResponse> listOf(String... names) {
+        List<TestResponse> responses = new ArrayList<TestResponse>();
+        for (String name : names) {
+            responses.add(new TestResponse(name));
+        }
+        ListResponse<TestResponse> list = new ListResponse<TestResponse>();
+        list.setResponses(responses, responses.size());
+        list.setResponseName("listtestsresponse");
+        return list;
+    }
+
+    @Test
+    public void testWriteJsonList() throws IOException {
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.writeSerializedResponse(listOf("a<b", "c&d"), HttpUtils.RESPONSE_TYPE_JSON, out);
+
+        Assert.assertEquals("{\"listtestsresponse\":{\"count\":2,\"test\":[{\"name\":\"a<b\"},{\"name\":\"c&d\"}]}}", out.toString());
+    }
+
+    @Test
+    public void testWriteJsonMatchesSerializedString() throws IOException {
+        ListResponse<TestResponse> list = listOf("one", "two", "three");
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.writeSerializedResponse(list, HttpUtils.RESPONSE_TYPE_JSON, out);
+
+        Assert.assertEquals(ApiResponseSerializer.toSerializedString(list, HttpUtils.RESPONSE_TYPE_JSON), out.toString());
+    }
+
+    @Test
+    public void testWriteJsonAuthorizedFields() throws IOException {
+        Mockito.when(account.getType()).thenReturn(Account.ACCOUNT_TYPE_ADMIN);
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.writeSerializedResponse(listOf("a"), HttpUtils.RESPONSE_TYPE_JSON, out);
+
+        Assert.assertEquals("{\"listtestsresponse\":{\"count\":1,\"test\":[{\"name\":\"a\",\"secret\":\"secret-a\"}]}}", out.toString());
+    }
+
+    @Test
+    public void testWriteXmlList() throws IOException {
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.writeSerializedResponse(listOf("a<b", "c"), HttpUtils.RESPONSE_TYPE_XML, out);
+
+        Assert.assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><listtestsresponse cloud-stack-version=\"LATEST-AND-GREATEST\">"
+            + "<count>2</count><test><name>a&lt;b</name></test><test><name>c</name></test></listtestsresponse>", out.toString());
+    }
+
+    @Test
+    public void testWriteXmlAuthorizedFields() throws IOException {
+        Mockito.when(account.getType()).thenReturn(Account.ACCOUNT_TYPE_ADMIN);
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.writeSerializedResponse(listOf("a"), HttpUtils.RESPONSE_TYPE_XML, out);
+
+        Assert.assertTrue(out.toString().contains("<test><name>a</name><secret>secret-a</secret></test>"));
+    }
+
+    @Test
+    public void testWriteJsonStreamsObjects() {
+        // the first objects reach the client before the writer fails, nothing waits for the whole response
+        FailingWriter out = new FailingWriter(60);
+        try {
+            ApiResponseSerializer.writeSerializedResponse(listOf("one", "two", "three", "four"), HttpUtils.RESPONSE_TYPE_JSON, out);
+            Assert.fail("the write error should reach the caller");
+        } catch (IOException e) {
+            Assert.assertEquals("Broken pipe", e.getMessage());
+        }
+        Assert.assertTrue(out._written.toString().startsWith("{\"listtestsresponse\":{\"count\":4,\"test\":[{\"name\":\"one\"}"));
+    }
+
+    @Test
+    public void testWriteXmlStreamsObjects() {
+        FailingWriter out = new FailingWriter(160);
+        try {
+            ApiResponseSerializer.writeSerializedResponse(listOf("one", "two", "three", "four"), HttpUtils.RESPONSE_TYPE_XML, out);
+            Assert.fail("the write error should reach the caller");
+        } catch (IOException e) {
+            Assert.assertEquals("Broken pipe", e.getMessage());
+        }
+        Assert.assertTrue(out._written.toString().contains("<test><name>one</name></test>"));
+    }
+}
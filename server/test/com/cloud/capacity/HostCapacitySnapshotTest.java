@@ -0,0 +1,117 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HostCapacitySnapshotTest {
+
+    @Test
+    public void testHasCapacityHonoursOvercommitAndReserved() {
+        HostCapacitySnapshot snapshot = new HostCapacitySnapshot();
+        snapshot.updateHost(1L, 10L, 2000L, 1000L, 500L, 4096L, 1024L, 1024L);
+
+        HostCapacitySnapshot.HostCapacity host = snapshot.getHost(1L);
+        Assert.assertNotNull(host);
+        Assert.assertTrue(host.hasCapacity(500, 2048, 1f, 1f, true));
+        Assert.assertFalse(host.hasCapacity(600, 2048, 1f, 1f, true));
+        Assert.assertTrue(host.hasCapacity(600, 2048, 1f, 1f, false));
+        Assert.assertTrue(host.hasCapacity(2500, 2048, 2f, 1f, true));
+        Assert.assertNull(host.isGpuEnabled());
+    }
+
+    @Test
+    public void testVersionAndRemoval() {
+        HostCapacitySnapshot snapshot = new HostCapacitySnapshot();
+        long version = snapshot.getVersion();
+        snapshot.updateHost(1L, 10L, 2000L, 0L, 0L, 4096L, 0L, 0L, true);
+        Assert.assertTrue(snapshot.getVersion() > version);
+        Assert.assertTrue(snapshot.getHost(1L).isGpuEnabled());
+
+        // an update that does not know about GPUs keeps what was learnt before
+        snapshot.updateHost(1L, 10L, 2000L, 100L, 0L, 4096L, 0L, 0L);
+        Assert.assertTrue(snapshot.getHost(1L).isGpuEnabled());
+
+        version = snapshot.getVersion();
+        snapshot.removeHost(1L);
+        Assert.assertNull(snapshot.getHost(1L));
+        Assert.assertTrue(snapshot.getVersion() > version);
+    }
+
+    @Test
+    public void testUpdateGpuEnabledOnlyForKnownHosts() {
+        HostCapacitySnapshot snapshot = new HostCapacitySnapshot();
+        snapshot.updateGpuEnabled(1L, true);
+        Assert.assertNull(snapshot.getHost(1L));
+
+        snapshot.updateHost(1L, 10L, 2000L, 100L, 0L, 4096L, 0L, 0L);
+        snapshot.updateGpuEnabled(1L, false);
+        Assert.assertFalse(snapshot.getHost(1L).isGpuEnabled());
+        Assert.assertEquals(100L, snapshot.getHost(1L).getUsedCpu());
+    }
+
+    @Test
+    public void testListHostsWithEnoughCapacity() {
+        HostCapacitySnapshot snapshot = new HostCapacitySnapshot();
+        snapshot.updateHost(1L, 10L, 2000L, 1900L, 0L, 4096L, 0L, 0L);
+        snapshot.updateHost(2L, 10L, 2000L, 0L, 0L, 4096L, 0L, 0L);
+        snapshot.updateHost(3L, 11L, 2000L, 0L, 0L, 4096L, 0L, 0L);
+
+        Assert.assertNull(snapshot.listHostsWithEnoughCapacity(10L, 500, 1024));
+
+        snapshot.updateClusterOvercommit(10L, 1f, 1f);
+        List<Long> hosts = snapshot.listHostsWithEnoughCapacity(10L, 500, 1024);
+        Assert.assertEquals(1, hosts.size());
+        Assert.assertEquals(Long.valueOf(2L), hosts.get(0));
+    }
+
+    @Test
+    public void testStaleClusterRatiosAreNotReturned() {
+        HostCapacitySnapshot snapshot = new HostCapacitySnapshot(-1L);
+        snapshot.updateClusterOvercommit(10L, 2f, 1.5f);
+        Assert.assertNull(snapshot.getClusterOvercommit(10L));
+    }
+
+    @Test
+    public void testAdjustHostAddsCommittedChanges() {
+        HostCapacitySnapshot snapshot = new HostCapacitySnapshot();
+        snapshot.adjustHost(1L, 500L, 0L, 1024L, 0L);
+        Assert.assertNull(snapshot.getHost(1L));
+
+        snapshot.updateHost(1L, 10L, 2000L, 1000L, 500L, 4096L, 1024L, 1024L, true);
+        long version = snapshot.getVersion();
+        // a VM started from its reserved capacity, then another one stopped
+        snapshot.adjustHost(1L, 500L, -500L, 1024L, -1024L);
+        snapshot.adjustHost(1L, -200L, 0L, -512L, 0L);
+
+        HostCapacitySnapshot.HostCapacity host = snapshot.getHost(1L);
+        Assert.assertEquals(1300L, host.getUsedCpu());
+        Assert.assertEquals(0L, host.getReservedCpu());
+        Assert.assertEquals(1536L, host.getUsedMemory());
+        Assert.assertEquals(0L, host.getReservedMemory());
+        Assert.assertEquals(2000L, host.getTotalCpu());
+        Assert.assertTrue(host.isGpuEnabled());
+        Assert.assertTrue(snapshot.getVersion() > version);
+
+        // the host stays listed while it is busy
+        snapshot.updateClusterOvercommit(10L, 1f, 1f);
+        Assert.assertEquals(1, snapshot.listHostsWithEnoughCapacity(10L, 500, 1024).size());
+    }
+}
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.ha;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -27,6 +29,7 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import javax.inject.Inject;
 
@@ -37,9 +40,12 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.alert.AlertManager;
@@ -58,11 +64,13 @@ import com.cloud.host.dao.HostDao;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.resource.ResourceManager;
 import com.cloud.server.ManagementServer;
+import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.StorageManager;
 import com.cloud.storage.dao.GuestOSCategoryDao;
 import com.cloud.storage.dao.GuestOSDao;
 import com.cloud.user.AccountManager;
+import com.cloud.utils.Pair;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachineManager;
@@ -223,6 +231,122 @@ public class HighAvailabilityManagerImplTest {
         assertNull(highAvailabilityManager.investigate(1l));
     }
 
+    private Investigator mockInvestigator(final Status status, final long delayMs) {
+        Investigator investigator = Mockito.mock(Investigator.class);
+        Mockito.when(investigator.getName()).thenReturn("investigator-" + status);
+        Mockito.when(investigator.isAgentAlive(hostVO)).thenAnswer(new Answer<Status>() {
+            @Override
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(delayMs);
+                return status;
+            }
+        });
+        return investigator;
+    }
+
+    @Test
+    public void investigateInParallelKeepsInvestigatorOrder() {
+        highAvailabilityManager.setInvestigators(Arrays.asList(mockInvestigator(null, 0), mockInvestigator(Status.Up, 200), mockInvestigator(Status.Down, 0)));
+
+        assertEquals(Status.Up, highAvailabilityManager.investigateInParallel(hostVO, 10000));
+    }
+
+    @Test
+    public void investigateInParallelSkipsSlowInvestigators() {
+        highAvailabilityManager.setInvestigators(Arrays.asList(mockInvestigator(Status.Up, 30000), mockInvestigator(Status.Down, 0)));
+
+        long start = System.currentTimeMillis();
+        assertEquals(Status.Down, highAvailabilityManager.investigateInParallel(hostVO, 200));
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    @Test
+    public void investigateInParallelWithoutFreeThreadCannotTell() throws InterruptedException {
+        highAvailabilityManager.setInvestigators(Arrays.asList(mockInvestigator(Status.Up, 0)));
+        final CountDownLatch release = new CountDownLatch(1);
+        // an investigator that ignored being cancelled still holds the only thread
+        highAvailabilityManager._investigationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        try {
+            assertNull(highAvailabilityManager.investigateInParallel(hostVO, 10000));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void investigateVmInParallelSkipsUnknownVm() throws Investigator.UnknownVM {
+        VirtualMachine vm = Mockito.mock(VirtualMachine.class);
+        Investigator unknown = Mockito.mock(Investigator.class);
+        Mockito.when(unknown.isVmAlive(vm, hostVO)).thenThrow(new Investigator.UnknownVM());
+        Investigator known = Mockito.mock(Investigator.class);
+        Mockito.when(known.isVmAlive(vm, hostVO)).thenReturn(false);
+        highAvailabilityManager.setInvestigators(Arrays.asList(unknown, known));
+
+        Pair<Investigator, Boolean> answer = highAvailabilityManager.investigateInParallel(vm, hostVO, 10000);
+        assertTrue(answer.first() == known);
+        assertFalse(answer.second());
+    }
+
+    @Test
+    public void takeStartSlotPerCluster() {
+        assertTrue(highAvailabilityManager.takeStartSlot(1l, 2));
+        assertTrue(highAvailabilityManager.takeStartSlot(1l, 2));
+        assertFalse(highAvailabilityManager.takeStartSlot(1l, 2));
+        assertTrue(highAvailabilityManager.takeStartSlot(2l, 2));
+
+        highAvailabilityManager.releaseStartSlot(1l);
+        assertTrue(highAvailabilityManager.takeStartSlot(1l, 2));
+        assertTrue(highAvailabilityManager.takeStartSlot(1l, 0));
+    }
+
+    private VMInstanceVO mockVm(long id, VirtualMachine.Type type, Integer ramSize) {
+        VMInstanceVO vm = Mockito.mock(VMInstanceVO.class);
+        Mockito.when(vm.getId()).thenReturn(id);
+        Mockito.when(vm.getUuid()).thenReturn("uuid-" + id);
+        Mockito.when(vm.getType()).thenReturn(type);
+        Mockito.when(vm.getServiceOfferingId()).thenReturn(id);
+        Mockito.when(vm.getHostId()).thenReturn(1l);
+        Mockito.when(vm.getHypervisorType()).thenReturn(HypervisorType.KVM);
+        ServiceOfferingVO offering = Mockito.mock(ServiceOfferingVO.class);
+        Mockito.when(offering.getRamSize()).thenReturn(ramSize);
+        Mockito.when(_serviceOfferingDao.findByIdIncludingRemoved(id, id)).thenReturn(offering);
+        Mockito.when(_instanceDao.findByUuid("uuid-" + id)).thenReturn(vm);
+        return vm;
+    }
+
+    @Test
+    public void scheduleRestartForVmsOnHostLargestFirst() {
+        Mockito.when(hostVO.getId()).thenReturn(1l);
+        Mockito.when(hostVO.getType()).thenReturn(Host.Type.Routing);
+        Mockito.when(hostVO.getHypervisorType()).thenReturn(HypervisorType.KVM);
+        List<VMInstanceVO> vms = Arrays.asList(mockVm(1l, VirtualMachine.Type.User, 512), mockVm(2l, VirtualMachine.Type.DomainRouter, 128),
+                mockVm(3l, VirtualMachine.Type.User, 4096), mockVm(4l, VirtualMachine.Type.User, 1024));
+        Mockito.when(_instanceDao.listByHostId(1l)).thenReturn(vms);
+        Mockito.when(_podDao.findById(Mockito.anyLong())).thenReturn(Mockito.mock(HostPodVO.class));
+        Mockito.when(_dcDao.findById(Mockito.anyLong())).thenReturn(Mockito.mock(DataCenterVO.class));
+        Mockito.when(_haDao.findPreviousHA(Mockito.anyLong())).thenReturn(new ArrayList<HaWorkVO>());
+
+        highAvailabilityManager.scheduleRestartForVmsOnHost(hostVO, true);
+
+        ArgumentCaptor<HaWorkVO> works = ArgumentCaptor.forClass(HaWorkVO.class);
+        Mockito.verify(_haDao, Mockito.times(4)).persist(works.capture());
+        List<Long> order = new ArrayList<Long>();
+        for (HaWorkVO work : works.getAllValues()) {
+            order.add(work.getInstanceId());
+        }
+        assertEquals(Arrays.asList(2l, 3l, 4l, 1l), order);
+    }
+
     private void processWorkWithRetryCount(int count, Step expectedStep) {
         assertNotNull(processWorkMethod);
         HaWorkVO work = new HaWorkVO(1l, VirtualMachine.Type.User, WorkType.Migration, Step.Scheduled, 1l, VirtualMachine.State.Running, count, 12345678l);
@@ -0,0 +1,59 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.dc.Vlan.VlanType;
+
+public class PublicIpReservationPoolTest {
+
+    @Test
+    public void testScopeIgnoresVlanOrder() {
+        Assert.assertEquals(PublicIpReservationPool.getScope(VlanType.VirtualNetwork, 1, null, null, Arrays.asList(3L, 1L, 2L)),
+                PublicIpReservationPool.getScope(VlanType.VirtualNetwork, 1, null, null, Arrays.asList(1L, 2L, 3L)));
+        Assert.assertNotEquals(PublicIpReservationPool.getScope(VlanType.VirtualNetwork, 1, null, null, Arrays.asList(1L)),
+                PublicIpReservationPool.getScope(VlanType.DirectAttached, 1, null, 5L, Arrays.asList(1L)));
+        Assert.assertNotEquals(PublicIpReservationPool.getScope(VlanType.VirtualNetwork, 1, null, null, Arrays.asList(1L)),
+                PublicIpReservationPool.getScope(VlanType.VirtualNetwork, 1, 7L, null, Arrays.asList(1L)));
+    }
+
+    @Test
+    public void testPollDrainsOfferedBatch() {
+        final PublicIpReservationPool pool = new PublicIpReservationPool();
+        final String scope = PublicIpReservationPool.getScope(VlanType.VirtualNetwork, 1, null, null, Arrays.asList(1L));
+        Assert.assertNull(pool.poll(scope));
+
+        pool.offer(scope, Arrays.asList(10L, 11L, 12L));
+        Assert.assertEquals(3, pool.size(scope));
+        Assert.assertEquals(0, pool.size("other"));
+        Assert.assertNull(pool.poll("other"));
+
+        final Set<Long> polled = new HashSet<Long>();
+        Long ipId;
+        while ((ipId = pool.poll(scope)) != null) {
+            polled.add(ipId);
+        }
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(10L, 11L, 12L)), polled);
+        Assert.assertEquals(0, pool.size(scope));
+    }
+}
@@ -0,0 +1,148 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.host.HostVO;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class StatsCollectionEngineTest {
+
+    private StatsCollectionEngine engine;
+
+    private List<HostVO> hosts(int count) {
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (long i = 1; i <= count; i++) {
+            HostVO host = mock(HostVO.class);
+            when(host.getId()).thenReturn(i);
+            hosts.add(host);
+        }
+        return hosts;
+    }
+
+    @After
+    public void tearDown() {
+        if (engine != null) {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testCollectsAllHosts() {
+        engine = new StatsCollectionEngine("test", 4, 5000L);
+        final AtomicInteger count = new AtomicInteger();
+        StatsCollectionEngine.CycleResult result = engine.collect(hosts(20), new StatsCollectionEngine.HostStatsTask() {
+            @Override
+            public void collect(HostVO host) {
+                count.incrementAndGet();
+            }
+        }, 10000L);
+
+        Assert.assertEquals(20, count.get());
+        Assert.assertEquals(20, result.getCollected());
+        Assert.assertEquals(0, result.getFailed() + result.getTimedOut() + result.getSkipped());
+        Assert.assertEquals(20, engine.getHostLatencies().size());
+        Assert.assertSame(result, engine.getLastCycle());
+    }
+
+    @Test
+    public void testSlowHostDoesNotHoldUpTheCycle() {
+        engine = new StatsCollectionEngine("test", 4, 200L);
+        StatsCollectionEngine.CycleResult result = engine.collect(hosts(8), new StatsCollectionEngine.HostStatsTask() {
+            @Override
+            public void collect(HostVO host) throws Exception {
+                if (host.getId() == 1L) {
+                    Thread.sleep(60000L);
+                }
+            }
+        }, 10000L);
+
+        Assert.assertEquals(7, result.getCollected());
+        Assert.assertEquals(1, result.getTimedOut());
+        Assert.assertTrue(result.getDurationMs() < 5000L);
+    }
+
+    @Test
+    public void testHostStuckInAnEarlierCycleIsSkipped() throws InterruptedException {
+        engine = new StatsCollectionEngine("test", 4, 200L);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        StatsCollectionEngine.HostStatsTask task = new StatsCollectionEngine.HostStatsTask() {
+            @Override
+            public void collect(HostVO host) {
+                if (host.getId() == 1L) {
+                    calls.incrementAndGet();
+                    // like a worker blocked in an agent request, it does not react to the interrupt
+                    while (true) {
+                        try {
+                            release.await();
+                            return;
+                        } catch (InterruptedException e) {
+                            // keep waiting
+                        }
+                    }
+                }
+            }
+        };
+
+        StatsCollectionEngine.CycleResult result = engine.collect(hosts(2), task, 10000L);
+        Assert.assertEquals(1, result.getTimedOut());
+
+        result = engine.collect(hosts(2), task, 10000L);
+        Assert.assertEquals(1, result.getCollected());
+        Assert.assertEquals(1, result.getSkipped());
+        Assert.assertEquals(1, calls.get());
+
+        release.countDown();
+        for (int i = 0; i < 50 && calls.get() == 1; i++) {
+            result = engine.collect(hosts(2), task, 10000L);
+            if (result.getSkipped() == 0) {
+                break;
+            }
+            Thread.sleep(100L);
+        }
+        Assert.assertEquals(0, result.getSkipped());
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testFailuresAreCounted() {
+        engine = new StatsCollectionEngine("test", 2, 5000L);
+        StatsCollectionEngine.CycleResult result = engine.collect(hosts(4), new StatsCollectionEngine.HostStatsTask() {
+            @Override
+            public void collect(HostVO host) {
+                if (host.getId() % 2 == 0) {
+                    throw new CloudRuntimeException("agent unavailable");
+                }
+            }
+        }, 10000L);
+
+        Assert.assertEquals(2, result.getCollected());
+        Assert.assertEquals(2, result.getFailed());
+    }
+}
@@ -0,0 +1,64 @@
+#!/bin/bash
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+
+# Records the digest of each rule set applied by the management server, so
+# that a restarted router only gets the rule sets that changed.
+# update_config.py drops the digest of a rule set whenever it is modified.
+
+digest_dir=/etc/cloudstack/digests
+
+usage() {
+    printf "Usage: %s -g | -k <key> -v <digest>\n" $(basename $0) >&2
+    exit 2
+}
+
+get=
+key=
+value=
+
+while getopts 'gk:v:' OPTION
+do
+  case $OPTION in
+      g) get=1
+          ;;
+      k) key="$OPTARG"
+          ;;
+      v) value="$OPTARG"
+          ;;
+      ?) usage
+          ;;
+  esac
+done
+
+if [ "$get" == "1" ]
+then
+    mkdir -p $digest_dir
+    for file in $digest_dir/*
+    do
+        [ -f "$file" ] && echo "$(basename $file) $(cat $file)"
+    done
+    exit 0
+fi
+
+if [ -z "$key" ] || [ -z "$value" ]
+then
+    usage
+fi
+
+mkdir -p $digest_dir
+echo "$value" > $digest_dir/$key
@@ -25,6 +25,7 @@ import os
 import os.path
 import configure
 import json
+import glob
 
 logging.basicConfig(filename='/var/log/cloud.log', level=logging.DEBUG, format='%(asctime)s  %(filename)s %(funcName)s:%(lineno)d %(message)s')
 
@@ -37,6 +38,7 @@ if (len(sys.argv) != 2):
 jsonPath = "/var/cache/cloud/%s"
 jsonCmdConfigPath = jsonPath % sys.argv[1]
 currentGuestNetConfig = "/etc/cloudstack/guestnetwork.json"
+digestPath = "/etc/cloudstack/digests/*_%s"
 
 
 def finish_config():
@@ -113,6 +115,10 @@ if not (os.path.isfile(jsonCmdConfigPath) and os.access(jsonCmdConfigPath, os.R_
     print "[ERROR] update_config.py :: You are telling me to process %s, but i can't access it" % jsonCmdConfigPath
     sys.exit(1)
 
+# The rule set is about to change, the digest recorded for it is no longer valid
+for digest in glob.glob(digestPath % sys.argv[1]):
+    os.remove(digest)
+
 # If the command line json file is unprocessed process it
 # This is important or, the control interfaces will get deleted!
 if os.path.isfile(jsonPath % "cmd_line.json"):
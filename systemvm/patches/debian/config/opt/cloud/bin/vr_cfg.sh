@@ -20,6 +20,8 @@
 
 cfg=
 version=
+# position of the current <script> or <file> item in the config file
+item=0
 log=/var/log/cloud.log
 
 log_it() {
@@ -55,6 +57,7 @@ do
 
     if [ "$line" == "<script>" ]
     then
+        item=$((item+1))
         read line
         log_it "VR config: executing: $line"
         eval $line >> $log 2>&1
@@ -62,7 +65,7 @@ do
         then
             log_it "VR config: executing failed: $line"
             # expose error info to mgmt server
-            echo "VR config: execution failed: \"$line\", check $log in VR for details " 1>&2
+            echo "VR config: execution failed at item $item: \"$line\", check $log in VR for details " 1>&2
             exit 1
         fi
         #skip </script>
@@ -73,6 +76,7 @@ do
 
     if [ "$line" == "<file>" ]
     then
+        item=$((item+1))
         read line
         file=$line
         log_it "VR config: creating file: $file"
@@ -20,15 +20,22 @@ import java.net.InetAddress;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -62,18 +69,7 @@ import com.cloud.usage.dao.UsageVMSnapshotDao;
 import com.cloud.usage.dao.UsageVPNUserDao;
 import com.cloud.usage.dao.UsageVmDiskDao;
 import com.cloud.usage.dao.UsageVolumeDao;
-import com.cloud.usage.parser.IPAddressUsageParser;
-import com.cloud.usage.parser.LoadBalancerUsageParser;
-import com.cloud.usage.parser.NetworkOfferingUsageParser;
-import com.cloud.usage.parser.NetworkUsageParser;
-import com.cloud.usage.parser.PortForwardingUsageParser;
-import com.cloud.usage.parser.SecurityGroupUsageParser;
-import com.cloud.usage.parser.StorageUsageParser;
-import com.cloud.usage.parser.VMInstanceUsageParser;
-import com.cloud.usage.parser.VMSnapshotUsageParser;
-import com.cloud.usage.parser.VPNUserUsageParser;
-import com.cloud.usage.parser.VmDiskUsageParser;
-import com.cloud.usage.parser.VolumeUsageParser;
+import com.cloud.usage.parser.AccountUsageParser;
 import com.cloud.user.Account;
 import com.cloud.user.AccountVO;
 import com.cloud.user.UserStatisticsVO;
@@ -149,6 +145,10 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private final Calendar _jobExecTime = Calendar.getInstance();
     private int _aggregationDuration = 0;
     private int _sanityCheckInterval = 0;
+    private int _parseWorkers = 4;
+    private int _parseRetries = 2;
+    private int _ingestInterval = 60;
+    private int _ingestBatchSize = 500;
     String _hostname = null;
     int _pid = 0;
     TimeZone _usageTimezone = TimeZone.getTimeZone("GMT");;
@@ -159,9 +159,11 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Job"));
     private final ScheduledExecutorService _heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-HB"));
     private final ScheduledExecutorService _sanityExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Sanity"));
+    private ExecutorService _parseExecutor = null;
     private Future _scheduledFuture = null;
     private Future _heartbeat = null;
     private Future _sanity = null;
+    private Future _ingest = null;
 
     public UsageManagerImpl() {
     }
@@ -202,6 +204,23 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (sanityCheckInterval != null) {
             _sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
+        String parseWorkers = configs.get("usage.parse.workers");
+        if (parseWorkers != null) {
+            _parseWorkers = Math.max(1, Integer.parseInt(parseWorkers));
+        }
+        String parseRetries = configs.get("usage.parse.retries");
+        if (parseRetries != null) {
+            _parseRetries = Math.max(0, Integer.parseInt(parseRetries));
+        }
+        _parseExecutor = Executors.newFixedThreadPool(_parseWorkers, new NamedThreadFactory("Usage-Parser"));
+        String ingestInterval = configs.get("usage.ingest.interval");
+        if (ingestInterval != null) {
+            _ingestInterval = Integer.parseInt(ingestInterval);
+        }
+        String ingestBatchSize = configs.get("usage.ingest.batch.size");
+        if (ingestBatchSize != null) {
+            _ingestBatchSize = Math.max(1, Integer.parseInt(ingestBatchSize));
+        }
 
         if (aggreagationTimeZone != null && !aggreagationTimeZone.isEmpty()) {
             _usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
@@ -277,6 +296,11 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             _sanity = _sanityExecutor.scheduleAtFixedRate(new SanityCheck(), 1, _sanityCheckInterval, TimeUnit.DAYS);
         }
 
+        if (_ingestInterval > 0) {
+            // runs on the job executor, so ingestion never overlaps with a usage job
+            _ingest = _executor.scheduleWithFixedDelay(new UsageIngester(), _ingestInterval, _ingestInterval, TimeUnit.SECONDS);
+        }
+
         TransactionLegacy usageTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
         try {
             if (_heartbeatLock.lock(3)) { // 3 second timeout
@@ -306,6 +330,10 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (_sanity != null) {
             _sanity.cancel(true);
         }
+        if (_ingest != null) {
+            _ingest.cancel(true);
+        }
+        _parseExecutor.shutdownNow();
         return true;
     }
 
@@ -705,13 +733,13 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     s_logger.debug("created vm disk stats helper entries for " + numAcctsProcessed + " accts");
                 }
 
+                // drop what the previous job may have committed of this period before it failed
+                removeRecordsOfFailedJob();
+
                 // commit the helper records, then start a new transaction
                 usageTxn.commit();
                 usageTxn.start();
 
-                boolean parsed = false;
-                numAcctsProcessed = 0;
-
                 Date currentStartDate = startDate;
                 Date currentEndDate = endDate;
                 Date tempDate = endDate;
@@ -725,27 +753,27 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     tempDate = aggregateCal.getTime();
                 }
 
+                // accounts are parsed in partitions of 500 by the parser workers, each partition in its own transaction
+                final Map<AccountUsageParser, ParserStats> parserStats = new EnumMap<AccountUsageParser, ParserStats>(AccountUsageParser.class);
+                for (AccountUsageParser parser : AccountUsageParser.values()) {
+                    parserStats.put(parser, new ParserStats());
+                }
+                boolean parsed = true;
+
                 while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
                     Long offset = Long.valueOf(0);
                     Long limit = Long.valueOf(500);
+                    List<AccountPartition> partitions = new ArrayList<AccountPartition>();
 
                     do {
                         Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
                         accounts = _accountDao.listAll(filter);
                         if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
-                            }
+                            partitions.add(new AccountPartition(accounts, false, currentStartDate, currentEndDate, parserStats));
                         }
                         offset = new Long(offset.longValue() + limit.longValue());
                     } while ((accounts != null) && !accounts.isEmpty());
 
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
-                    }
-                    numAcctsProcessed = 0;
-
                     // reset offset
                     offset = Long.valueOf(0);
 
@@ -755,45 +783,31 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                         accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
 
                         if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
-                                for (Long templateId : publicTemplates) {
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
-                                                "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved());
-                                        _usageStorageDao.update(storageVO);
-                                    }
-                                }
-                                numAcctsProcessed++;
-                            }
+                            partitions.add(new AccountPartition(accounts, true, currentStartDate, currentEndDate, parserStats));
                         }
                         offset = new Long(offset.longValue() + limit.longValue());
                     } while ((accounts != null) && !accounts.isEmpty());
 
+                    if (!parsePartitions(partitions)) {
+                        parsed = false;
+                    }
+
                     currentStartDate = new Date(currentEndDate.getTime() + 1);
                     aggregateCal.setTime(currentEndDate);
                     aggregateCal.add(Calendar.MINUTE, _aggregationDuration);
                     currentEndDate = aggregateCal.getTime();
                 }
 
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
+                if (s_logger.isInfoEnabled()) {
+                    for (Map.Entry<AccountUsageParser, ParserStats> entry : parserStats.entrySet()) {
+                        s_logger.info("parsed " + entry.getKey().getDescription() + " of " + entry.getValue().getAccounts() + " accts in " + entry.getValue().getTime() +
+                                "ms, " + entry.getValue().getCalls() + " parse calls, " + entry.getValue().getFailures() + " failures");
+                    }
                 }
 
-                // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
-                //        do we want to break out of processing accounts and rollback if there are errors?
-                if (!parsed) {
-                    usageTxn.rollback();
-                } else {
+                // a partition that still fails after its retries fails the job, the next job parses the period again
+                // after removing the records the other partitions committed, see removeRecordsOfFailedJob()
+                if (parsed) {
                     success = true;
                 }
             } catch (Exception ex) {
@@ -826,91 +840,197 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
     }
 
-    private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate) {
-        boolean parsed = false;
+    /**
+     * A failed job may have committed some of its partitions before giving up.  The next job parses
+     * the same period again, so the records the failed job left in its [start, end) window are removed first.
+     */
+    void removeRecordsOfFailedJob() {
+        UsageJobVO lastJob = _usageJobDao.getLastFinishedJob();
+        if (lastJob == null || Boolean.TRUE.equals(lastJob.getSuccess()) || lastJob.getStartMillis() >= lastJob.getEndMillis()) {
+            return;
+        }
+        s_logger.info("usage job " + lastJob.getId() + " failed, removing its usage records between " + new Date(lastJob.getStartMillis()) + " and " +
+                new Date(lastJob.getEndMillis()));
+        _usageDao.removeUsageRecords(new Date(lastJob.getStartMillis()), new Date(lastJob.getEndMillis()));
+    }
 
-        parsed = VMInstanceUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("vm usage instances successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    /**
+     * Parses the partitions on the parser workers and retries the ones that failed, up to usage.parse.retries times.
+     * @return true if every partition was parsed
+     */
+    boolean parsePartitions(List<AccountPartition> partitions) throws InterruptedException {
+        List<AccountPartition> pending = partitions;
+        for (int attempt = 0; attempt <= _parseRetries && !pending.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                s_logger.warn("retrying " + pending.size() + " failed usage partitions, attempt " + attempt + " of " + _parseRetries);
             }
-        }
 
-        parsed = NetworkUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("network usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+            List<Future<?>> futures = new ArrayList<Future<?>>(pending.size());
+            for (AccountPartition partition : pending) {
+                futures.add(_parseExecutor.submit(partition));
             }
-        }
 
-        parsed = VmDiskUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("vm disk usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+            List<AccountPartition> failed = new ArrayList<AccountPartition>();
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    s_logger.warn("Unexpected exception parsing usage partition", e.getCause());
+                }
+                if (!pending.get(i).isParsed()) {
+                    failed.add(pending.get(i));
+                }
             }
+            pending = failed;
         }
 
-        parsed = VolumeUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("volume usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+        if (!pending.isEmpty()) {
+            s_logger.error(pending.size() + " usage partitions failed to parse");
+            return false;
         }
+        return true;
+    }
 
-        parsed = StorageUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("storage usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    /**
+     * @return true if every parser succeeded for the account
+     */
+    boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate, Map<AccountUsageParser, ParserStats> parserStats) {
+        boolean parsed = true;
+
+        for (AccountUsageParser parser : AccountUsageParser.values()) {
+            ParserStats stats = parserStats.get(parser);
+            long start = System.currentTimeMillis();
+            boolean parserParsed = false;
+            try {
+                parserParsed = parser.parse(account, currentStartDate, currentEndDate);
+            } finally {
+                stats.parsed(account.getId(), System.currentTimeMillis() - start, parserParsed);
+            }
+            if (!parserParsed) {
+                parsed = false;
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(parser.getDescription() + " successfully parsed? " + parserParsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+                }
             }
         }
+        return parsed;
+    }
 
-        parsed = SecurityGroupUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("Security Group usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    /**
+     * Progress and timing of one parser over a job.  An account is parsed once per aggregation period
+     * and again when its partition is retried, so the accounts are counted apart from the parse calls.
+     */
+    static class ParserStats {
+        private final Set<Long> _accounts = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        private final AtomicLong _calls = new AtomicLong();
+        private final AtomicLong _failures = new AtomicLong();
+        private final AtomicLong _time = new AtomicLong();
+
+        void parsed(long accountId, long time, boolean success) {
+            _accounts.add(accountId);
+            _calls.incrementAndGet();
+            _time.addAndGet(time);
+            if (!success) {
+                _failures.incrementAndGet();
             }
         }
 
-        parsed = LoadBalancerUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("load balancer usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+        long getAccounts() {
+            return _accounts.size();
         }
 
-        parsed = PortForwardingUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("port forwarding usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+        long getCalls() {
+            return _calls.get();
         }
 
-        parsed = NetworkOfferingUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("network offering usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+        long getFailures() {
+            return _failures.get();
         }
 
-        parsed = IPAddressUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("IPAddress usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+        long getTime() {
+            return _time.get();
         }
-        parsed = VPNUserUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("VPN user usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    }
+
+    /**
+     * A page of accounts parsed for one aggregation period in a transaction of its own, so a failed
+     * partition can be rolled back and parsed again without the others.
+     */
+    class AccountPartition extends ManagedContextRunnable {
+        private final List<AccountVO> _accounts;
+        private final boolean _deleted;
+        private final Date _startDate;
+        private final Date _endDate;
+        private final Map<AccountUsageParser, ParserStats> _parserStats;
+        private volatile boolean _parsed = false;
+
+        public AccountPartition(List<AccountVO> accounts, boolean deleted, Date startDate, Date endDate, Map<AccountUsageParser, ParserStats> parserStats) {
+            _accounts = accounts;
+            _deleted = deleted;
+            _startDate = startDate;
+            _endDate = endDate;
+            _parserStats = parserStats;
+        }
+
+        public boolean isParsed() {
+            return _parsed;
+        }
+
+        @Override
+        protected void runInContext() {
+            _parsed = false;
+            TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+            try {
+                txn.start();
+                boolean parsed = true;
+                for (AccountVO account : _accounts) {
+                    if (!parseHelperTables(account, _startDate, _endDate, _parserStats)) {
+                        // the partition is kept only if every account was parsed, no need to go on
+                        s_logger.warn("Failed to parse usage of account " + account.getId() + ", rolling back its partition");
+                        parsed = false;
+                        break;
+                    }
+                    if (_deleted) {
+                        markPublicTemplatesDeleted(account);
+                    }
+                }
+
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("processed Usage for " + _accounts.size() + (_deleted ? " RECENTLY DELETED" : " ACTIVE") + " accts");
+                }
+
+                if (parsed) {
+                    txn.commit();
+                    _parsed = true;
+                } else {
+                    txn.rollback();
+                }
+            } catch (Exception e) {
+                s_logger.error("Exception parsing usage of accounts " + _accounts.get(0).getId() + " to " + _accounts.get(_accounts.size() - 1).getId(), e);
+                txn.rollback();
+            } finally {
+                txn.close();
             }
         }
-        parsed = VMSnapshotUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("VM Snapshot usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    }
+
+    private void markPublicTemplatesDeleted(AccountVO account) {
+        List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
+        for (Long templateId : publicTemplates) {
+            //mark public templates owned by deleted accounts as deleted
+            List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+            if (storageVOs.size() > 1) {
+                s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
+                        "; marking them all as deleted...");
+            }
+            for (UsageStorageVO storageVO : storageVOs) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                }
+                storageVO.setDeleted(account.getRemoved());
+                _usageStorageDao.update(storageVO);
             }
         }
-        return parsed;
     }
 
     private void createHelperRecord(UsageEventVO event) {
@@ -1840,6 +1960,104 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
     }
 
+    /**
+     * Streams new accounts, user and vm disk statistics and usage events to the usage db between usage jobs,
+     * usage.ingest.batch.size at a time, and creates the helper records of the events. The usage job then only
+     * has to handle what was raised since the last run. The highest ids copied to the usage db and the
+     * processed flag of its events are the checkpoint every run resumes from.
+     */
+    private class UsageIngester extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            TransactionLegacy usageTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+            try {
+                if (_usageJobDao.isOwner(_hostname, _pid) == null) {
+                    return;
+                }
+
+                // events of periods already parsed are left to the job, which moves its start date back for them
+                Date startDate = new Date(_usageJobDao.getLastJobSuccessDateMillis());
+                Date endDate = new Date();
+
+                copyNewRecords();
+
+                int numEvents = 0;
+                List<UsageEventVO> events = null;
+                do {
+                    events = _usageEventDao.getRecentEvents(startDate, endDate, _ingestBatchSize);
+                    if (events.isEmpty()) {
+                        break;
+                    }
+
+                    usageTxn.start();
+                    try {
+                        for (UsageEventVO event : events) {
+                            event.setProcessed(true);
+                            _usageEventDao.update(event.getId(), event);
+                            createHelperRecord(event);
+                        }
+                        usageTxn.commit();
+                    } catch (RuntimeException e) {
+                        usageTxn.rollback();
+                        throw e;
+                    }
+                    numEvents += events.size();
+                } while (events.size() == _ingestBatchSize);
+
+                if (s_logger.isDebugEnabled() && numEvents > 0) {
+                    s_logger.debug("ingested " + numEvents + " usage events raised up to " + endDate);
+                }
+            } catch (Exception ex) {
+                s_logger.warn("error ingesting usage events, the next ingestion or usage job will pick them up", ex);
+            } finally {
+                usageTxn.close();
+            }
+        }
+
+        private void copyNewRecords() {
+            TransactionLegacy userTxn = TransactionLegacy.open(TransactionLegacy.CLOUD_DB);
+            try {
+                Long limit = Long.valueOf(_ingestBatchSize);
+
+                Long lastAccountId = _usageDao.getLastAccountId();
+                List<AccountVO> accounts = null;
+                do {
+                    accounts = _accountDao.findNewAccounts(lastAccountId == null ? Long.valueOf(0) : lastAccountId, new Filter(AccountVO.class, "id", true, Long.valueOf(0), limit));
+                    if ((accounts != null) && !accounts.isEmpty()) {
+                        _usageDao.saveAccounts(accounts);
+                        lastAccountId = accounts.get(accounts.size() - 1).getId();
+                    }
+                } while ((accounts != null) && (accounts.size() == _ingestBatchSize));
+
+                Long lastUserStatsId = _usageDao.getLastUserStatsId();
+                List<UserStatisticsVO> userStats = null;
+                do {
+                    SearchCriteria<UserStatisticsVO> sc = _userStatsDao.createSearchCriteria();
+                    sc.addAnd("id", SearchCriteria.Op.GT, lastUserStatsId == null ? Long.valueOf(0) : lastUserStatsId);
+                    userStats = _userStatsDao.search(sc, new Filter(UserStatisticsVO.class, "id", true, Long.valueOf(0), limit));
+                    if (!userStats.isEmpty()) {
+                        _usageDao.saveUserStats(userStats);
+                        lastUserStatsId = userStats.get(userStats.size() - 1).getId();
+                    }
+                } while (userStats.size() == _ingestBatchSize);
+
+                Long lastVmDiskStatsId = _usageDao.getLastVmDiskStatsId();
+                List<VmDiskStatisticsVO> vmDiskStats = null;
+                do {
+                    SearchCriteria<VmDiskStatisticsVO> sc = _vmDiskStatsDao.createSearchCriteria();
+                    sc.addAnd("id", SearchCriteria.Op.GT, lastVmDiskStatsId == null ? Long.valueOf(0) : lastVmDiskStatsId);
+                    vmDiskStats = _vmDiskStatsDao.search(sc, new Filter(VmDiskStatisticsVO.class, "id", true, Long.valueOf(0), limit));
+                    if (!vmDiskStats.isEmpty()) {
+                        _usageDao.saveVmDiskStats(vmDiskStats);
+                        lastVmDiskStatsId = vmDiskStats.get(vmDiskStats.size() - 1).getId();
+                    }
+                } while (vmDiskStats.size() == _ingestBatchSize);
+            } finally {
+                userTxn.close();
+            }
+        }
+    }
+
     private class SanityCheck extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
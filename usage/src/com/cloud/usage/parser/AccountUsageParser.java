@@ -0,0 +1,111 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.parser;
+
+import java.util.Date;
+
+import com.cloud.user.AccountVO;
+
+/**
+ * The parsers turning the usage helper tables of an account into usage records, in the order they run.
+ */
+public enum AccountUsageParser {
+    VM_INSTANCE("vm usage instances") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return VMInstanceUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    NETWORK("network usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return NetworkUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    VM_DISK("vm disk usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return VmDiskUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    VOLUME("volume usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return VolumeUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    STORAGE("storage usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return StorageUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    SECURITY_GROUP("Security Group usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return SecurityGroupUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    LOAD_BALANCER("load balancer usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return LoadBalancerUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    PORT_FORWARDING("port forwarding usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return PortForwardingUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    NETWORK_OFFERING("network offering usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return NetworkOfferingUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    IP_ADDRESS("IPAddress usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return IPAddressUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    VPN_USER("VPN user usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return VPNUserUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    VM_SNAPSHOT("VM Snapshot usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return VMSnapshotUsageParser.parse(account, startDate, endDate);
+        }
+    };
+
+    private final String _description;
+
+    private AccountUsageParser(String description) {
+        _description = description;
+    }
+
+    public String getDescription() {
+        return _description;
+    }
+
+    public abstract boolean parse(AccountVO account, Date startDate, Date endDate);
+}
@@ -17,6 +17,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -70,6 +71,7 @@ public class VMSnapshotUsageParser {
         }
 
         Map<String, UsageVMSnapshotVO> unprocessedUsage = new HashMap<String, UsageVMSnapshotVO>();
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (UsageVMSnapshotVO usageRec : usageUsageVMSnapshots) {
             long zoneId = usageRec.getZoneId();
             Long volId = usageRec.getId();
@@ -93,7 +95,7 @@ public class VMSnapshotUsageParser {
             Date createDate = usageRec.getCreated();
             long duration = (createDate.getTime() - previousCreated.getTime()) + 1;
 
-            createUsageRecord(UsageTypes.VM_SNAPSHOT, duration, previousCreated, createDate, account, volId, zoneId, previousEvent.getDiskOfferingId(), vmId,
+            createUsageRecord(usageRecords, UsageTypes.VM_SNAPSHOT, duration, previousCreated, createDate, account, volId, zoneId, previousEvent.getDiskOfferingId(), vmId,
                 previousEvent.getSize());
             previousEvent.setProcessed(new Date());
             s_usageVMSnapshotDao.update(previousEvent);
@@ -112,14 +114,15 @@ public class VMSnapshotUsageParser {
                 created = startDate;
             }
             long duration = (endDate.getTime() - created.getTime()) + 1;
-            createUsageRecord(UsageTypes.VM_SNAPSHOT, duration, created, endDate, account, usageRec.getId(), usageRec.getZoneId(), usageRec.getDiskOfferingId(),
+            createUsageRecord(usageRecords, UsageTypes.VM_SNAPSHOT, duration, created, endDate, account, usageRec.getId(), usageRec.getZoneId(), usageRec.getDiskOfferingId(),
                 usageRec.getVmId(), usageRec.getSize());
         }
 
+        s_usageDao.persistAll(usageRecords);
         return true;
     }
 
-    private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long volId, long zoneId, Long doId, Long vmId,
+    private static void createUsageRecord(List<UsageVO> usageRecords, int type, long runningTime, Date startDate, Date endDate, AccountVO account, long volId, long zoneId, Long doId, Long vmId,
         long size) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
@@ -148,7 +151,7 @@ public class VMSnapshotUsageParser {
         UsageVO usageRecord =
             new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type, new Double(usage), vmId, null, doId, null, volId, size,
                 startDate, endDate);
-        s_usageDao.persist(usageRecord);
+        usageRecords.add(usageRecord);
     }
 
 }
@@ -0,0 +1,200 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mockito;
+
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageJobDao;
+import com.cloud.usage.parser.AccountUsageParser;
+import com.cloud.user.AccountVO;
+
+public class UsageManagerImplTest {
+    private static final Date START = new Date(1000000L);
+    private static final Date END = new Date(4600000L);
+
+    UsageManagerImpl _usageMgr;
+    UsageJobDao _usageJobDao;
+    UsageDao _usageDao;
+    ExecutorService _parseExecutor;
+    Map<AccountUsageParser, UsageManagerImpl.ParserStats> _parserStats;
+
+    private void inject(String name, Object value) throws Exception {
+        Field field = UsageManagerImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(_usageMgr, value);
+    }
+
+    @Before
+    public void setup() throws Exception {
+        _usageMgr = Mockito.spy(new UsageManagerImpl());
+        _usageJobDao = Mockito.mock(UsageJobDao.class);
+        _usageDao = Mockito.mock(UsageDao.class);
+        _parseExecutor = Executors.newFixedThreadPool(2);
+        inject("_usageJobDao", _usageJobDao);
+        inject("_usageDao", _usageDao);
+        inject("_parseExecutor", _parseExecutor);
+        inject("_parseRetries", 2);
+
+        _parserStats = new EnumMap<AccountUsageParser, UsageManagerImpl.ParserStats>(AccountUsageParser.class);
+        for (AccountUsageParser parser : AccountUsageParser.values()) {
+            _parserStats.put(parser, new UsageManagerImpl.ParserStats());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        _parseExecutor.shutdownNow();
+    }
+
+    private static AccountVO account(long id) {
+        AccountVO account = new AccountVO();
+        account.setId(id);
+        return account;
+    }
+
+    private UsageManagerImpl.AccountPartition partition(long... ids) {
+        List<AccountVO> accounts = new ArrayList<AccountVO>();
+        for (long id : ids) {
+            accounts.add(account(id));
+        }
+        return _usageMgr.new AccountPartition(accounts, false, START, END, _parserStats);
+    }
+
+    private void parseResult(long accountId, Boolean first, Boolean... next) {
+        Mockito.doReturn(first, (Object[])next).when(_usageMgr).parseHelperTables(Mockito.argThat(new AccountIdMatcher(accountId)),
+            Mockito.eq(START), Mockito.eq(END), Mockito.eq(_parserStats));
+    }
+
+    @Test
+    public void testPartitionFailsWhenAnyAccountFails() throws Exception {
+        // only the first account fails, the partition must not be kept even though the last one would succeed
+        parseResult(1L, false);
+        parseResult(2L, true);
+        UsageManagerImpl.AccountPartition partition = partition(1L, 2L);
+
+        Assert.assertFalse(_usageMgr.parsePartitions(Arrays.asList(partition)));
+        Assert.assertFalse(partition.isParsed());
+        // every attempt stops at the first failed account
+        Mockito.verify(_usageMgr, Mockito.never()).parseHelperTables(Mockito.argThat(new AccountIdMatcher(2L)), Mockito.eq(START), Mockito.eq(END),
+            Mockito.eq(_parserStats));
+    }
+
+    @Test
+    public void testFailedPartitionIsRetriedAlone() throws Exception {
+        parseResult(1L, true);
+        parseResult(2L, true);
+        parseResult(3L, false, true);
+        UsageManagerImpl.AccountPartition good = partition(1L, 2L);
+        UsageManagerImpl.AccountPartition retried = partition(3L);
+
+        Assert.assertTrue(_usageMgr.parsePartitions(Arrays.asList(good, retried)));
+        Assert.assertTrue(good.isParsed());
+        Assert.assertTrue(retried.isParsed());
+        Mockito.verify(_usageMgr, Mockito.times(1)).parseHelperTables(Mockito.argThat(new AccountIdMatcher(1L)), Mockito.eq(START), Mockito.eq(END),
+            Mockito.eq(_parserStats));
+        Mockito.verify(_usageMgr, Mockito.times(2)).parseHelperTables(Mockito.argThat(new AccountIdMatcher(3L)), Mockito.eq(START), Mockito.eq(END),
+            Mockito.eq(_parserStats));
+    }
+
+    @Test
+    public void testPartitionFailsAfterRetries() throws Exception {
+        parseResult(1L, false);
+
+        Assert.assertFalse(_usageMgr.parsePartitions(Arrays.asList(partition(1L))));
+        // the first attempt and two retries
+        Mockito.verify(_usageMgr, Mockito.times(3)).parseHelperTables(Mockito.argThat(new AccountIdMatcher(1L)), Mockito.eq(START), Mockito.eq(END),
+            Mockito.eq(_parserStats));
+    }
+
+    @Test
+    public void testParserStatsCountAccounts() {
+        UsageManagerImpl.ParserStats stats = new UsageManagerImpl.ParserStats();
+        // one account parsed for two aggregation periods and a retry, another one once
+        stats.parsed(1L, 10, true);
+        stats.parsed(1L, 10, false);
+        stats.parsed(1L, 10, true);
+        stats.parsed(2L, 5, true);
+
+        Assert.assertEquals(2, stats.getAccounts());
+        Assert.assertEquals(4, stats.getCalls());
+        Assert.assertEquals(1, stats.getFailures());
+        Assert.assertEquals(35, stats.getTime());
+    }
+
+    private static UsageJobVO job(long startMillis, long endMillis, boolean success) {
+        UsageJobVO job = new UsageJobVO();
+        job.setId(7L);
+        job.setStartMillis(startMillis);
+        job.setEndMillis(endMillis);
+        job.setSuccess(success);
+        return job;
+    }
+
+    @Test
+    public void testRecordsRemovedAfterFailedJob() {
+        Mockito.when(_usageJobDao.getLastFinishedJob()).thenReturn(job(START.getTime(), END.getTime(), false));
+
+        _usageMgr.removeRecordsOfFailedJob();
+
+        Mockito.verify(_usageDao).removeUsageRecords(START, END);
+    }
+
+    @Test
+    public void testRecordsKeptAfterSuccessfulJob() {
+        Mockito.when(_usageJobDao.getLastFinishedJob()).thenReturn(job(START.getTime(), END.getTime(), true));
+
+        _usageMgr.removeRecordsOfFailedJob();
+
+        Mockito.verify(_usageDao, Mockito.never()).removeUsageRecords(Mockito.any(Date.class), Mockito.any(Date.class));
+    }
+
+    @Test
+    public void testRecordsKeptOnFirstJob() {
+        _usageMgr.removeRecordsOfFailedJob();
+
+        Mockito.verify(_usageDao, Mockito.never()).removeUsageRecords(Mockito.any(Date.class), Mockito.any(Date.class));
+    }
+
+    private static class AccountIdMatcher extends ArgumentMatcher<AccountVO> {
+        private final long _accountId;
+
+        AccountIdMatcher(long accountId) {
+            _accountId = accountId;
+        }
+
+        @Override
+        public boolean matches(Object argument) {
+            return argument instanceof AccountVO && ((AccountVO)argument).getId() == _accountId;
+        }
+    }
+}
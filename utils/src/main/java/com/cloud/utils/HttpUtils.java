@@ -25,6 +25,7 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 
 public class HttpUtils {
@@ -52,22 +53,26 @@ public class HttpUtils {
         }
     }
 
+    private static void prepareHttpResponse(final HttpServletResponse resp, final Integer responseCode, final String responseType, final String jsonContentType) {
+        if (RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            if (jsonContentType != null && !jsonContentType.isEmpty()) {
+                resp.setContentType(jsonContentType);
+            } else {
+                resp.setContentType(JSON_CONTENT_TYPE);
+            }
+        } else if (RESPONSE_TYPE_XML.equalsIgnoreCase(responseType)){
+            resp.setContentType(XML_CONTENT_TYPE);
+        }
+        if (responseCode != null) {
+            resp.setStatus(responseCode);
+        }
+        addSecurityHeaders(resp);
+    }
+
     public static void writeHttpResponse(final HttpServletResponse resp, final String response,
                                          final Integer responseCode, final String responseType, final String jsonContentType) {
         try {
-            if (RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                if (jsonContentType != null && !jsonContentType.isEmpty()) {
-                    resp.setContentType(jsonContentType);
-                } else {
-                    resp.setContentType(JSON_CONTENT_TYPE);
-                }
-            } else if (RESPONSE_TYPE_XML.equalsIgnoreCase(responseType)){
-                resp.setContentType(XML_CONTENT_TYPE);
-            }
-            if (responseCode != null) {
-                resp.setStatus(responseCode);
-            }
-            addSecurityHeaders(resp);
+            prepareHttpResponse(resp, responseCode, responseType, jsonContentType);
             resp.getWriter().print(response);
         } catch (final IOException ioex) {
             if (s_logger.isTraceEnabled()) {
@@ -80,6 +85,57 @@ public class HttpUtils {
         }
     }
 
+    /**
+     * Writer streaming a response body to the client. Status and headers are set when the first
+     * character is written (or on flush), so an error can still be sent as long as the response is not committed.
+     */
+    public static class HttpResponseWriter extends Writer {
+        private final HttpServletResponse _resp;
+        private final Integer _responseCode;
+        private final String _responseType;
+        private final String _jsonContentType;
+        private Writer _out;
+
+        public HttpResponseWriter(final HttpServletResponse resp, final Integer responseCode, final String responseType, final String jsonContentType) {
+            _resp = resp;
+            _responseCode = responseCode;
+            _responseType = responseType;
+            _jsonContentType = jsonContentType;
+        }
+
+        private Writer open() throws IOException {
+            if (_out == null) {
+                prepareHttpResponse(_resp, _responseCode, _responseType, _jsonContentType);
+                _out = _resp.getWriter();
+            }
+            return _out;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            if (len > 0) {
+                open().write(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) throws IOException {
+            if (len > 0) {
+                open().write(str, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            open().flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            open().close();
+        }
+    }
+
     public static String findCookie(final Cookie[] cookies, final String key) {
         if (cookies == null || key == null || key.isEmpty()) {
             return null;
@@ -0,0 +1,167 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.concurrency;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timer wheel for large numbers of short lived timeouts that are
+ * mostly cancelled before they fire, such as the wait on an agent answer.
+ *
+ * Scheduling and cancelling are O(1) and never take a lock.  A single thread
+ * advances the wheel one tick at a time and hands the expired tasks to the
+ * given executor, so a timeout fires up to one tick late.
+ */
+public class TimerWheel {
+    private static final Logger s_logger = Logger.getLogger(TimerWheel.class);
+
+    private final long _tickMillis;
+    private final List<Timeout>[] _wheel;
+    private final int _mask;
+    private final Executor _executor;
+    private final ConcurrentLinkedQueue<Timeout> _pending = new ConcurrentLinkedQueue<Timeout>();
+    private final long _startTime;
+    private final Thread _worker;
+    private volatile boolean _stopped;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(final String name, final long tickDuration, final TimeUnit unit, final int ticksPerWheel, final Executor executor) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("Tick duration and ticks per wheel must be positive");
+        }
+        _tickMillis = Math.max(1, unit.toMillis(tickDuration));
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        _wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            _wheel[i] = new ArrayList<Timeout>();
+        }
+        _mask = size - 1;
+        _executor = executor;
+        _startTime = System.currentTimeMillis();
+
+        _worker = new NamedThreadFactory(name).newThread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        });
+        _worker.setDaemon(true);
+        _worker.start();
+    }
+
+    /**
+     * Runs the task on the executor once the delay has passed, unless the returned
+     * timeout is cancelled first.
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        final Timeout timeout = new Timeout(task, System.currentTimeMillis() + unit.toMillis(delay));
+        _pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        _stopped = true;
+        _worker.interrupt();
+    }
+
+    private void runWheel() {
+        long tick = 0;
+        while (!_stopped) {
+            final long deadline = _startTime + (tick + 1) * _tickMillis;
+            final long sleep = deadline - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (final InterruptedException e) {
+                    continue;
+                }
+            }
+
+            transferPending(tick);
+            expire(_wheel[(int)(tick & _mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending(final long currentTick) {
+        Timeout timeout;
+        while ((timeout = _pending.poll()) != null) {
+            if (timeout._cancelled) {
+                continue;
+            }
+            final long ticks = Math.max(currentTick, (timeout._deadline - _startTime) / _tickMillis);
+            timeout._rounds = (ticks - currentTick) / _wheel.length;
+            _wheel[(int)(ticks & _mask)].add(timeout);
+        }
+    }
+
+    private void expire(final List<Timeout> bucket) {
+        final Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            final Timeout timeout = it.next();
+            if (timeout._cancelled) {
+                it.remove();
+            } else if (timeout._rounds <= 0) {
+                it.remove();
+                try {
+                    _executor.execute(timeout._task);
+                } catch (final Exception e) {
+                    s_logger.warn("Unable to run expired timeout", e);
+                }
+            } else {
+                timeout._rounds--;
+            }
+        }
+    }
+
+    public static class Timeout {
+        private final Runnable _task;
+        private final long _deadline;
+        private long _rounds;
+        private volatile boolean _cancelled;
+
+        private Timeout(final Runnable task, final long deadline) {
+            _task = task;
+            _deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running if it has not expired yet.  The entry itself
+         * is dropped from the wheel the next time its slot comes around.
+         */
+        public void cancel() {
+            _cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return _cancelled;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.net;
+
+import java.util.Random;
+
+/**
+ * Usage of a contiguous range of IPv4 addresses, one bit per address. Lookups, allocation and
+ * release are constant time, finding a free address skips 64 used addresses at a time.
+ * Not thread safe.
+ */
+public class Ip4AddressBitmap {
+    private final long _firstIp;
+    private final int _size;
+    // a set bit means the address is in use
+    private final long[] _words;
+    private int _used;
+
+    /**
+     * @param firstIp first address of the range
+     * @param lastIp last address of the range, inclusive
+     */
+    public Ip4AddressBitmap(final long firstIp, final long lastIp) {
+        _firstIp = firstIp;
+        _size = lastIp < firstIp ? 0 : (int)(lastIp - firstIp + 1);
+        _words = new long[(_size + 63) >>> 6];
+    }
+
+    /**
+     * Covers the host addresses of a cidr, i.e. all but the network and broadcast address.
+     */
+    public static Ip4AddressBitmap fromCidr(final String cidrAddress, final long cidrSize) {
+        assert cidrSize < 32 : "You do know this is not for ipv6 right?  Keep it smaller than 32 but you have " + cidrSize;
+        final long netmask = NetUtils.ip2Long(NetUtils.getCidrNetmask(cidrSize));
+        final long network = NetUtils.ip2Long(cidrAddress) & netmask;
+        final long broadcast = network | (~netmask & 0xffffffffL);
+        return new Ip4AddressBitmap(network + 1, broadcast - 1);
+    }
+
+    public long getFirstIp() {
+        return _firstIp;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public int getFreeCount() {
+        return _size - _used;
+    }
+
+    public boolean contains(final long ip) {
+        return ip >= _firstIp && ip - _firstIp < _size;
+    }
+
+    public boolean isFree(final long ip) {
+        if (!contains(ip)) {
+            return false;
+        }
+        final int offset = (int)(ip - _firstIp);
+        return (_words[offset >>> 6] & (1L << offset)) == 0;
+    }
+
+    /**
+     * Marks an address as in use.
+     *
+     * @return false if the address is outside of the range or already in use
+     */
+    public boolean allocate(final long ip) {
+        if (!isFree(ip)) {
+            return false;
+        }
+        final int offset = (int)(ip - _firstIp);
+        _words[offset >>> 6] |= 1L << offset;
+        _used++;
+        return true;
+    }
+
+    /**
+     * Marks an address as free.
+     *
+     * @return false if the address is outside of the range or not in use
+     */
+    public boolean release(final long ip) {
+        if (!contains(ip) || isFree(ip)) {
+            return false;
+        }
+        final int offset = (int)(ip - _firstIp);
+        _words[offset >>> 6] &= ~(1L << offset);
+        _used--;
+        return true;
+    }
+
+    /**
+     * @return the first free address at or after ip, or -1 if there is none
+     */
+    public long nextFree(final long ip) {
+        if (ip >= _firstIp + _size) {
+            return -1;
+        }
+        final int offset = nextFreeOffset(ip < _firstIp ? 0 : (int)(ip - _firstIp));
+        return offset < 0 ? -1 : _firstIp + offset;
+    }
+
+    private int nextFreeOffset(final int from) {
+        if (from >= _size) {
+            return -1;
+        }
+        int index = from >>> 6;
+        long free = ~_words[index] & (-1L << from);
+        while (true) {
+            if (free != 0) {
+                final int offset = (index << 6) + Long.numberOfTrailingZeros(free);
+                return offset < _size ? offset : -1;
+            }
+            if (++index == _words.length) {
+                return -1;
+            }
+            free = ~_words[index];
+        }
+    }
+
+    /**
+     * Picks a free address starting the search at a random position and wrapping around
+     * at the end of the range.
+     *
+     * @return a free address, or -1 if all addresses are in use
+     */
+    public long pickRandomFree(final Random random) {
+        if (getFreeCount() == 0) {
+            return -1;
+        }
+        int offset = nextFreeOffset(random.nextInt(_size));
+        if (offset < 0) {
+            offset = nextFreeOffset(0);
+        }
+        return _firstIp + offset;
+    }
+
+    /**
+     * Picks a random address among the first window free addresses of the range, which keeps
+     * allocations packed at the start of the range.
+     *
+     * @return a free address, or -1 if all addresses are in use
+     */
+    public long pickFree(final Random random, final int window) {
+        final int candidates = Math.min(window, getFreeCount());
+        if (candidates <= 0) {
+            return -1;
+        }
+        final int pick = random.nextInt(candidates);
+        int offset = nextFreeOffset(0);
+        for (int i = 0; i < pick; i++) {
+            offset = nextFreeOffset(offset + 1);
+        }
+        return _firstIp + offset;
+    }
+}
@@ -0,0 +1,150 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable ByteBuffers used by Link for the SSL packet, application
+ * and plaintext buffers.
+ *
+ * Buffers are handed out in power of two size classes, from MIN_BUFFER_SIZE up to
+ * the configured maximum.  Bigger requests are allocated on the spot and are not
+ * taken back.  The total number of bytes sitting idle in the pool is bounded, a
+ * buffer released when the pool is full is simply dropped for the GC.
+ *
+ * The pool can hand out direct (off-heap) buffers, which saves the JDK a copy into
+ * its own temporary direct buffer on every socket read and write.
+ */
+public class ByteBufferPool {
+    public static final String DIRECT_PROPERTY = "cloud.nio.buffers.direct";
+    public static final String MAX_POOLED_BYTES_PROPERTY = "cloud.nio.buffers.max.pooled.bytes";
+
+    public static final int MIN_BUFFER_SIZE = 4096;
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 16L * 1024 * 1024;
+
+    private static final ByteBufferPool s_default = new ByteBufferPool(Boolean.getBoolean(DIRECT_PROPERTY), DEFAULT_MAX_BUFFER_SIZE,
+            Long.getLong(MAX_POOLED_BYTES_PROPERTY, DEFAULT_MAX_POOLED_BYTES));
+
+    private final boolean _direct;
+    private final int _maxBufferSize;
+    private final long _maxPooledBytes;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _buckets;
+
+    private final AtomicLong _pooledBytes = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(boolean direct, int maxBufferSize, long maxPooledBytes) {
+        _direct = direct;
+        _maxBufferSize = Math.max(MIN_BUFFER_SIZE, roundUp(maxBufferSize));
+        _maxPooledBytes = maxPooledBytes;
+        _buckets = new ConcurrentLinkedQueue[bucketOf(_maxBufferSize) + 1];
+        for (int i = 0; i < _buckets.length; i++) {
+            _buckets[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    /**
+     * @return the pool shared by all connections of this JVM, configured through system properties.
+     */
+    public static ByteBufferPool getDefault() {
+        return s_default;
+    }
+
+    private static int roundUp(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        int rounded = Integer.highestOneBit(size);
+        return rounded == size ? size : rounded << 1;
+    }
+
+    private static int bucketOf(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Hands out a cleared buffer of at least the given capacity.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > _maxBufferSize) {
+            _misses.incrementAndGet();
+            return allocate(minCapacity);
+        }
+
+        int capacity = roundUp(minCapacity);
+        ByteBuffer buffer = _buckets[bucketOf(capacity)].poll();
+        if (buffer == null) {
+            _misses.incrementAndGet();
+            return allocate(capacity);
+        }
+        _pooledBytes.addAndGet(-capacity);
+        _hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool.  The caller must not touch the buffer afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != _direct || buffer.isReadOnly()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (capacity < MIN_BUFFER_SIZE || capacity > _maxBufferSize || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        if (_pooledBytes.addAndGet(capacity) > _maxPooledBytes) {
+            _pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        buffer.clear();
+        _buckets[bucketOf(capacity)].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return _direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    public boolean isDirect() {
+        return _direct;
+    }
+
+    /**
+     * @return bytes currently held idle by the pool
+     */
+    public long getPooledBytes() {
+        return _pooledBytes.get();
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+}
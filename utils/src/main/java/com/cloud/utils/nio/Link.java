@@ -34,6 +34,7 @@ import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -59,18 +60,27 @@ public class Link {
     private final NioConnection _connection;
     private SelectionKey _key;
     private final ConcurrentLinkedQueue<ByteBuffer[]> _writeQueue;
+    private final ByteBufferPool _bufferPool;
     private ByteBuffer _readBuffer;
     private ByteBuffer _plaintextBuffer;
     private Object _attach;
     private boolean _readHeader;
     private boolean _gotFollowingPacket;
 
+    // bytes handed to send() that have not made it to the socket yet
+    private final AtomicLong _bytesInFlight = new AtomicLong();
+    private final AtomicLong _bytesSent = new AtomicLong();
+    private final AtomicLong _bytesReceived = new AtomicLong();
+
+    private static final ByteBuffer[] CLOSE_REQUEST = new ByteBuffer[0];
+
     private SSLEngine _sslEngine;
     public static final String keystoreFile = "/cloudmanagementserver.keystore";
 
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
         _connection = connection;
+        _bufferPool = connection != null ? connection.getBufferPool() : ByteBufferPool.getDefault();
         _readBuffer = ByteBuffer.allocate(2048);
         _attach = null;
         _key = null;
@@ -144,58 +154,57 @@ public class Link {
     }
      */
 
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
+    private static long doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, ByteBufferPool pool) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 40);
         SSLEngineResult engResult;
 
         ByteBuffer headBuf = ByteBuffer.allocate(4);
+        // header and packet go out in one gathering write
+        ByteBuffer[] outBufs = new ByteBuffer[] {headBuf, pkgBuf};
 
-        int totalLen = 0;
+        long totalLen = 0;
         for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
+            totalLen += buffer.remaining();
         }
 
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-
-            processedLen = 0;
-            for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
-            }
+        long written = 0;
+        try {
+            while (totalLen > 0) {
+                headBuf.clear();
+                pkgBuf.clear();
+                engResult = sslEngine.wrap(buffers, pkgBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
-                header = header | HEADER_FLAG_FOLLOWING;
-            }
-            headBuf.putInt(header);
-            headBuf.flip();
+                if (engResult.bytesConsumed() == 0 && engResult.bytesProduced() == 0) {
+                    throw new IOException("SSL: Unable to wrap the data, still remaining " + totalLen + " bytes!");
+                }
+                totalLen -= engResult.bytesConsumed();
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
+                int header = pkgBuf.position();
+                pkgBuf.flip();
+                if (totalLen > 0) {
+                    header = header | HEADER_FLAG_FOLLOWING;
                 }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+                headBuf.putInt(header);
+                headBuf.flip();
+
+                long remaining = headBuf.remaining() + pkgBuf.remaining();
+                written += remaining;
+                while (remaining > 0) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Writing Data " + remaining);
+                    }
+                    remaining -= ch.write(outBufs);
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
             }
+        } finally {
+            pool.release(pkgBuf);
         }
+        return written;
     }
 
     /**
@@ -209,7 +218,7 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized (ch) {
-            doWrite(ch, buffers, sslEngine);
+            doWrite(ch, buffers, sslEngine, ByteBufferPool.getDefault());
         }
     }
 
@@ -243,7 +252,8 @@ public class Link {
             }
 
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                _bufferPool.release(_plaintextBuffer);
+                _plaintextBuffer = _bufferPool.acquire(ByteBufferPool.MIN_BUFFER_SIZE);
             }
 
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -276,37 +286,44 @@ public class Link {
         }
 
         _readBuffer.flip();
-
-        ByteBuffer appBuf;
+        _bytesReceived.addAndGet(_readBuffer.limit() + 4);
 
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
         int remaining = 0;
 
-        while (_readBuffer.hasRemaining()) {
-            remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-            if (remaining == _readBuffer.remaining()) {
-                throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
-            }
+        ByteBuffer appBuf = _bufferPool.acquire(sslSession.getApplicationBufferSize() + 40);
+        try {
+            while (_readBuffer.hasRemaining()) {
+                remaining = _readBuffer.remaining();
+                appBuf.clear();
+                engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
+                if (remaining == _readBuffer.remaining()) {
+                    throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
+                }
 
-            appBuf.flip();
-            if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-                _plaintextBuffer.flip();
-                newBuffer.put(_plaintextBuffer);
-                _plaintextBuffer = newBuffer;
-            }
-            _plaintextBuffer.put(appBuf);
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Done with packet: " + appBuf.limit());
+                appBuf.flip();
+                if (_plaintextBuffer.remaining() < appBuf.limit()) {
+                    // We need to expand _plaintextBuffer for more data, grow it geometrically so that
+                    // a large multi-packet message is not copied over and over again
+                    int needed = _plaintextBuffer.position() + appBuf.limit();
+                    ByteBuffer newBuffer = _bufferPool.acquire(Math.max(needed, _plaintextBuffer.capacity() * 2));
+                    _plaintextBuffer.flip();
+                    newBuffer.put(_plaintextBuffer);
+                    _bufferPool.release(_plaintextBuffer);
+                    _plaintextBuffer = newBuffer;
+                }
+                _plaintextBuffer.put(appBuf);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Done with packet: " + appBuf.limit());
+                }
             }
+        } finally {
+            _bufferPool.release(appBuf);
         }
 
         _readBuffer.clear();
@@ -316,6 +333,8 @@ public class Link {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            _bufferPool.release(_plaintextBuffer);
+            _plaintextBuffer = null;
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -334,24 +353,19 @@ public class Link {
     }
 
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
         int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
+        for (ByteBuffer buffer : data) {
+            remaining += buffer.remaining();
         }
 
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Sending packet of length " + remaining);
         }
 
-        _writeQueue.add(item);
+        _bytesInFlight.addAndGet(remaining);
+        _writeQueue.add(data);
         if (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_REQUEST);
         }
         synchronized (this) {
             if (_key == null) {
@@ -374,21 +388,54 @@ public class Link {
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_REQUEST) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            long length = 0;
+            for (ByteBuffer buffer : data) {
+                length += buffer.remaining();
+            }
+            try {
+                _bytesSent.addAndGet(doWrite(ch, data, _sslEngine, _bufferPool));
+            } finally {
+                _bytesInFlight.addAndGet(-length);
+            }
         }
         return false;
     }
 
+    /**
+     * @return bytes queued on this link that have not been written to the socket yet
+     */
+    public long getBytesInFlight() {
+        return _bytesInFlight.get();
+    }
+
+    /**
+     * @return number of messages queued on this link waiting for the selector to write them
+     */
+    public int getPendingWrites() {
+        return _writeQueue.size();
+    }
+
+    /**
+     * @return bytes written to the socket, including SSL and framing overhead
+     */
+    public long getBytesSent() {
+        return _bytesSent.get();
+    }
+
+    /**
+     * @return bytes read from the socket, including SSL and framing overhead
+     */
+    public long getBytesReceived() {
+        return _bytesReceived.get();
+    }
+
     public InetSocketAddress getSocketAddress() {
         return _addr;
     }
@@ -32,6 +32,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -41,8 +42,10 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -56,10 +59,27 @@ import com.cloud.utils.exception.NioConnectionException;
 /**
  * NioConnection abstracts the NIO socket operations.  The Java implementation
  * provides that.
+ *
+ * The selector opened by init() runs on its own thread.  For a client it does all the
+ * I/O; for a server it only accepts connections.  Accepted connections are handed to a
+ * pool of SSL handshake threads and, once secured, spread round robin over a number of
+ * I/O selector loops (see setSelectorCount()).  Handler tasks go to a bounded queue; when
+ * it is full the selector parks the task and stops reading from the link it came from
+ * until the handlers take it, which pushes back on that peer only.  The selector itself
+ * never waits, as handlers may be waiting for answers only it can read.
  */
 public abstract class NioConnection implements Callable<Boolean> {
     private static final Logger s_logger = Logger.getLogger(NioConnection.class);;
 
+    public static final String SELECTORS_PROPERTY = "cloud.nio.selectors";
+    public static final String HANDLER_QUEUE_SIZE_PROPERTY = "cloud.nio.handler.queue.size";
+    public static final String SSL_HANDSHAKE_QUEUE_SIZE_PROPERTY = "cloud.nio.ssl.handshake.queue.size";
+
+    public static final int DEFAULT_HANDLER_QUEUE_SIZE = 10000;
+    public static final int DEFAULT_SSL_HANDSHAKE_QUEUE_SIZE = 4096;
+    // how long a selector with parked tasks waits before offering them to the handlers again
+    private static final long PARKED_RETRY_INTERVAL_MS = 50;
+
     protected Selector _selector;
     protected ExecutorService _threadExecutor;
     protected Future<Boolean> _futureTask;
@@ -67,10 +87,18 @@ public abstract class NioConnection implements Callable<Boolean> {
     protected boolean _isRunning;
     protected boolean _isStartup;
     protected int _port;
-    protected List<ChangeRequest> _todos;
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected ByteBufferPool _bufferPool = ByteBufferPool.getDefault();
+
+    protected int _selectorCount;
+    protected SelectorLoop _mainLoop;
+    protected SelectorLoop[] _ioLoops = new SelectorLoop[0];
+    protected ExecutorService _ioExecutor;
+    protected List<Future<Boolean>> _ioFutures = new ArrayList<Future<Boolean>>();
+    protected ThreadPoolExecutor _sslHandshakeExecutor;
+    private final AtomicInteger _nextIoLoop = new AtomicInteger();
 
     public NioConnection(final String name, final int port, final int workers, final HandlerFactory factory) {
         _name = name;
@@ -78,12 +106,19 @@ public abstract class NioConnection implements Callable<Boolean> {
         _selector = null;
         _port = port;
         _factory = factory;
-        _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
+        _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(Integer.getInteger(HANDLER_QUEUE_SIZE_PROPERTY,
+                DEFAULT_HANDLER_QUEUE_SIZE)), new NamedThreadFactory(name + "-Handler"));
+
+        final int handshakeWorkers = 2 * Runtime.getRuntime().availableProcessors();
+        _sslHandshakeExecutor = new ThreadPoolExecutor(handshakeWorkers, handshakeWorkers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Integer.getInteger(
+                SSL_HANDSHAKE_QUEUE_SIZE_PROPERTY, DEFAULT_SSL_HANDSHAKE_QUEUE_SIZE)), new NamedThreadFactory(name + "-SSLHandshake"));
+        _sslHandshakeExecutor.allowCoreThreadTimeOut(true);
+
+        // the main selector picks up todos queued while init() is still connecting
+        _mainLoop = new SelectorLoop(null);
     }
 
     public void start() throws NioConnectionException {
-        _todos = new ArrayList<ChangeRequest>();
-
         try {
             init();
         } catch (final ConnectException e) {
@@ -96,20 +131,45 @@ public abstract class NioConnection implements Callable<Boolean> {
             throw new NioConnectionException(e.getMessage(), e);
         }
         _isStartup = true;
+        _isRunning = true;
+
+        if (_selectorCount > 0) {
+            try {
+                _ioLoops = new SelectorLoop[_selectorCount];
+                for (int i = 0; i < _selectorCount; i++) {
+                    _ioLoops[i] = new SelectorLoop(Selector.open());
+                }
+            } catch (final IOException e) {
+                s_logger.error("Unable to open the I/O selectors.", e);
+                throw new NioConnectionException(e.getMessage(), e);
+            }
+            _ioExecutor = Executors.newFixedThreadPool(_selectorCount, new NamedThreadFactory(_name + "-Selector"));
+            for (final SelectorLoop loop : _ioLoops) {
+                _ioFutures.add(_ioExecutor.submit(loop));
+            }
+        }
 
         _threadExecutor = Executors.newSingleThreadExecutor();
         _futureTask = _threadExecutor.submit(this);
-
-        _isRunning = true;
     }
 
     public void stop() {
         _executor.shutdown();
+        _sslHandshakeExecutor.shutdown();
         _isRunning = false;
         if (_threadExecutor != null) {
             _futureTask.cancel(false);
             _threadExecutor.shutdown();
         }
+        if (_ioExecutor != null) {
+            for (final Future<Boolean> future : _ioFutures) {
+                future.cancel(false);
+            }
+            for (final SelectorLoop loop : _ioLoops) {
+                loop.getSelector().wakeup();
+            }
+            _ioExecutor.shutdown();
+        }
     }
 
     public boolean isRunning() {
@@ -120,60 +180,192 @@ public abstract class NioConnection implements Callable<Boolean> {
         return _isStartup;
     }
 
+    public ByteBufferPool getBufferPool() {
+        return _bufferPool;
+    }
+
+    /**
+     * Replaces the buffer pool used by the links of this connection, for instance
+     * with one handing out direct buffers.  Must be called before start().
+     */
+    public void setBufferPool(final ByteBufferPool bufferPool) {
+        _bufferPool = bufferPool;
+    }
+
+    public int getSelectorCount() {
+        return _selectorCount;
+    }
+
+    /**
+     * Sets the number of selector loops that connections accepted by this server are
+     * spread over.  With 0 every connection is served by the main selector.  Must be
+     * called before start().
+     */
+    public void setSelectorCount(final int selectorCount) {
+        _selectorCount = selectorCount;
+    }
+
     @Override
     public Boolean call() throws NioConnectionException {
-        while (_isRunning) {
-            try {
-                _selector.select();
+        _mainLoop.call();
+        _isStartup = false;
+        return true;
+    }
+
+    /**
+     * Runs select() on one selector and processes its ready keys and its pending
+     * change requests.
+     */
+    protected class SelectorLoop implements Callable<Boolean> {
+        // null for the main loop, which uses whatever selector init() opened
+        private final Selector _loopSelector;
+        private List<ChangeRequest> _todos = new ArrayList<ChangeRequest>();
+        // tasks the handler queue had no room for, in submission order; only touched by the loop thread
+        private final ArrayDeque<ParkedTask> _parked = new ArrayDeque<ParkedTask>();
+
+        public SelectorLoop(final Selector selector) {
+            _loopSelector = selector;
+        }
 
-                // Someone is ready for I/O, get the ready keys
-                final Set<SelectionKey> readyKeys = _selector.selectedKeys();
-                final Iterator<SelectionKey> i = readyKeys.iterator();
+        public Selector getSelector() {
+            return _loopSelector != null ? _loopSelector : _selector;
+        }
 
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Keys Processing: " + readyKeys.size());
-                }
-                // Walk through the ready keys collection.
-                while (i.hasNext()) {
-                    final SelectionKey sk = i.next();
-                    i.remove();
-
-                    if (!sk.isValid()) {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Selection Key is invalid: " + sk.toString());
-                        }
-                        final Link link = (Link)sk.attachment();
-                        if (link != null) {
-                            link.terminated();
-                        } else {
-                            closeConnection(sk);
+        public void addTodo(final ChangeRequest todo) {
+            synchronized (this) {
+                _todos.add(todo);
+            }
+            final Selector selector = getSelector();
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public Boolean call() throws NioConnectionException {
+            final Selector selector = getSelector();
+            while (_isRunning) {
+                try {
+                    if (_parked.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(PARKED_RETRY_INTERVAL_MS);
+                    }
+
+                    // Someone is ready for I/O, get the ready keys
+                    final Set<SelectionKey> readyKeys = selector.selectedKeys();
+                    final Iterator<SelectionKey> i = readyKeys.iterator();
+
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Keys Processing: " + readyKeys.size());
+                    }
+                    // Walk through the ready keys collection.
+                    while (i.hasNext()) {
+                        final SelectionKey sk = i.next();
+                        i.remove();
+
+                        if (!sk.isValid()) {
+                            if (s_logger.isTraceEnabled()) {
+                                s_logger.trace("Selection Key is invalid: " + sk.toString());
+                            }
+                            final Link link = (Link)sk.attachment();
+                            if (link != null) {
+                                link.terminated();
+                            } else {
+                                closeConnection(sk);
+                            }
+                        } else if (sk.isReadable()) {
+                            read(sk);
+                        } else if (sk.isWritable()) {
+                            write(sk);
+                        } else if (sk.isAcceptable()) {
+                            accept(sk);
+                        } else if (sk.isConnectable()) {
+                            connect(sk);
                         }
-                    } else if (sk.isReadable()) {
-                        read(sk);
-                    } else if (sk.isWritable()) {
-                        write(sk);
-                    } else if (sk.isAcceptable()) {
-                        accept(sk);
-                    } else if (sk.isConnectable()) {
-                        connect(sk);
                     }
+
+                    s_logger.trace("Keys Done Processing.");
+
+                    processTodos(this);
+                    submitParked();
+                } catch (final ClosedSelectorException e) {
+                    /*
+                     * Exception occurred when calling java.nio.channels.Selector.selectedKeys() method. It means the connection has not yet been established. Let's continue trying
+                     * We do not log it here otherwise we will fill the disk with messages.
+                     */
+                } catch (final IOException e) {
+                    s_logger.error("Agent will die due to this IOException!", e);
+                    throw new NioConnectionException(e.getMessage(), e);
                 }
+            }
+            return true;
+        }
 
-                s_logger.trace("Keys Done Processing.");
+        /**
+         * Keeps a task the handler queue had no room for. A data task stops the reads of its
+         * link until it is taken, so the link cannot queue up more tasks meanwhile.
+         */
+        protected void park(final SelectionKey key, final Task task) {
+            if (key != null && task.getType() == Task.Type.DATA) {
+                try {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                } catch (final CancelledKeyException e) {
+                    s_logger.debug("key has been cancelled");
+                }
+            }
+            _parked.add(new ParkedTask(key, task));
+        }
 
-                processTodos();
-            } catch (final ClosedSelectorException e) {
-                /*
-                 * Exception occurred when calling java.nio.channels.Selector.selectedKeys() method. It means the connection has not yet been established. Let's continue trying
-                 * We do not log it here otherwise we will fill the disk with messages.
-                 */
-            } catch (final IOException e) {
-                s_logger.error("Agent will die due to this IOException!", e);
-                throw new NioConnectionException(e.getMessage(), e);
+        protected boolean isParked(final SelectionKey key) {
+            for (final ParkedTask parked : _parked) {
+                if (parked._key == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Offers the parked tasks to the handlers again, oldest first, and reads again from
+         * the links whose task was taken.
+         */
+        protected void submitParked() {
+            while (!_parked.isEmpty()) {
+                final ParkedTask parked = _parked.peek();
+                try {
+                    _executor.submit(parked._task);
+                } catch (final RejectedExecutionException e) {
+                    if (!_executor.isShutdown()) {
+                        return;
+                    }
+                    s_logger.warn("Handler executor has been shut down, dropping " + parked._task.getType() + " task");
+                }
+                _parked.poll();
+                final SelectionKey key = parked._key;
+                if (key != null && parked._task.getType() == Task.Type.DATA && !isParked(key)) {
+                    try {
+                        // a link that is writing gets OP_READ back from write() once it is done
+                        if (key.isValid() && key.interestOps() == 0) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    } catch (final CancelledKeyException e) {
+                        s_logger.debug("key has been cancelled");
+                    }
+                }
+            }
+        }
+
+        protected List<ChangeRequest> drainTodos() {
+            if (_todos.size() == 0) {
+                return null;
+            }
+            synchronized (this) {
+                final List<ChangeRequest> todos = _todos;
+                _todos = new ArrayList<ChangeRequest>();
+                return todos;
             }
         }
-        _isStartup = false;
-        return true;
     }
 
     abstract void init() throws IOException;
@@ -186,6 +378,9 @@ public abstract class NioConnection implements Callable<Boolean> {
         final ServerSocketChannel serverSocketChannel = (ServerSocketChannel)key.channel();
 
         final SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) {
+            return;
+        }
         final Socket socket = socketChannel.socket();
         socket.setKeepAlive(true);
 
@@ -193,6 +388,47 @@ public abstract class NioConnection implements Callable<Boolean> {
             s_logger.trace("Connection accepted for " + socket);
         }
 
+        // The handshake blocks, so keep it off the selector threads
+        final SelectorLoop loop = nextIoLoop();
+        try {
+            _sslHandshakeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handshake(socketChannel, loop);
+                    } catch (final IOException e) {
+                        s_logger.warn("Unable to register connection from " + socket, e);
+                        closeAutoCloseable(socketChannel, "accepting socketChannel");
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            s_logger.warn("Too many SSL handshakes pending, dropping connection from " + socket);
+            closeAutoCloseable(socketChannel, "accepting socketChannel");
+        }
+    }
+
+    protected SelectorLoop nextIoLoop() {
+        if (_ioLoops.length == 0) {
+            return _mainLoop;
+        }
+        return _ioLoops[(_nextIoLoop.getAndIncrement() & Integer.MAX_VALUE) % _ioLoops.length];
+    }
+
+    protected SelectorLoop loopOf(final SelectionKey key) {
+        if (key != null) {
+            for (final SelectorLoop loop : _ioLoops) {
+                if (loop.getSelector() == key.selector()) {
+                    return loop;
+                }
+            }
+        }
+        return _mainLoop;
+    }
+
+    protected void handshake(final SocketChannel socketChannel, final SelectorLoop loop) throws IOException {
+        final Socket socket = socketChannel.socket();
+
         // Begin SSL handshake in BLOCKING mode
         socketChannel.configureBlocking(true);
 
@@ -222,15 +458,8 @@ public abstract class NioConnection implements Callable<Boolean> {
         final InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
         final Link link = new Link(saddr, this);
         link.setSSLEngine(sslEngine);
-        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
-        final Task task = _factory.create(Task.Type.CONNECT, link, null);
-        registerLink(saddr, link);
-
-        try {
-            _executor.submit(task);
-        } catch (final Exception e) {
-            s_logger.warn("Exception occurred when submitting the task", e);
-        }
+        // registering from here would block until the loop's select() returns, let the loop do it
+        loop.addTodo(new ChangeRequest(socketChannel, ChangeRequest.ACCEPT, SelectionKey.OP_READ, link));
     }
 
     protected void terminate(final SelectionKey key) {
@@ -240,12 +469,7 @@ public abstract class NioConnection implements Callable<Boolean> {
             link.terminated();
             final Task task = _factory.create(Task.Type.DISCONNECT, link, null);
             unregisterLink(link.getSocketAddress());
-
-            try {
-                _executor.submit(task);
-            } catch (final Exception e) {
-                s_logger.warn("Exception occurred when submitting the task", e);
-            }
+            submit(loopOf(key), key, task);
         }
     }
 
@@ -264,12 +488,7 @@ public abstract class NioConnection implements Callable<Boolean> {
                 return;
             }
             final Task task = _factory.create(Task.Type.DATA, link, data);
-
-            try {
-                _executor.submit(task);
-            } catch (final Exception e) {
-                s_logger.warn("Exception occurred when submitting the task", e);
-            }
+            submit(loopOf(key), key, task);
         } catch (final Exception e) {
             logDebug(e, key, 1);
             terminate(key);
@@ -304,17 +523,12 @@ public abstract class NioConnection implements Callable<Boolean> {
         }
     }
 
-    protected void processTodos() {
-        List<ChangeRequest> todos;
-        if (_todos.size() == 0) {
+    protected void processTodos(final SelectorLoop loop) {
+        final List<ChangeRequest> todos = loop.drainTodos();
+        if (todos == null) {
             return;             // Nothing to do.
         }
 
-        synchronized (this) {
-            todos = _todos;
-            _todos = new ArrayList<ChangeRequest>();
-        }
-
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Todos Processing: " + todos.size());
         }
@@ -330,7 +544,8 @@ public abstract class NioConnection implements Callable<Boolean> {
                             final Link link = (Link)todo.att;
                             link.setKey(key);
                         }
-                        key.interestOps(todo.ops);
+                        // a link with a parked task is read again once the task is taken
+                        key.interestOps(loop.isParked(key) ? todo.ops & ~SelectionKey.OP_READ : todo.ops);
                     }
                 } catch (final CancelledKeyException e) {
                     s_logger.debug("key has been cancelled");
@@ -338,7 +553,7 @@ public abstract class NioConnection implements Callable<Boolean> {
                 break;
             case ChangeRequest.REGISTER:
                 try {
-                    key = ((SocketChannel)todo.key).register(_selector, todo.ops, todo.att);
+                    key = ((SocketChannel)todo.key).register(loop.getSelector(), todo.ops, todo.att);
                     if (todo.att != null) {
                         final Link link = (Link)todo.att;
                         link.setKey(key);
@@ -355,6 +570,19 @@ public abstract class NioConnection implements Callable<Boolean> {
                     }
                 }
                 break;
+            case ChangeRequest.ACCEPT:
+                try {
+                    final Link link = (Link)todo.att;
+                    key = ((SocketChannel)todo.key).register(loop.getSelector(), todo.ops, link);
+                    link.setKey(key);
+                    final Task task = _factory.create(Task.Type.CONNECT, link, null);
+                    registerLink(link.getSocketAddress(), link);
+                    submit(loop, key, task);
+                } catch (final ClosedChannelException e) {
+                    s_logger.warn("Couldn't register accepted socket: " + todo.key);
+                    closeAutoCloseable((SocketChannel)todo.key, "accepted socketChannel");
+                }
+                break;
             case ChangeRequest.CLOSE:
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Trying to close " + todo.key);
@@ -393,21 +621,33 @@ public abstract class NioConnection implements Callable<Boolean> {
             link.setKey(key);
             key.attach(link);
             final Task task = _factory.create(Task.Type.CONNECT, link, null);
-
-            try {
-                _executor.submit(task);
-            } catch (final Exception e) {
-                s_logger.warn("Exception occurred when submitting the task", e);
-            }
+            submit(loopOf(key), key, task);
         } catch (final IOException e) {
             logTrace(e, key, 2);
             terminate(key);
         }
     }
 
-    protected void scheduleTask(final Task task) {
+    /**
+     * Hands a task to the handlers from a selector loop, or parks it on the loop when the
+     * handler queue is full.  Tasks already parked on the loop go first, to keep the order.
+     */
+    protected void submit(final SelectorLoop loop, final SelectionKey key, final Task task) {
+        if (!loop._parked.isEmpty()) {
+            loop.park(key, task);
+            return;
+        }
         try {
             _executor.submit(task);
+        } catch (final RejectedExecutionException e) {
+            if (_executor.isShutdown()) {
+                s_logger.warn("Handler executor has been shut down, dropping " + task.getType() + " task");
+                return;
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Handler queue is full, parking " + task.getType() + " task" + (key != null ? " of " + key.channel() : ""));
+            }
+            loop.park(key, task);
         } catch (final Exception e) {
             s_logger.warn("Exception occurred when submitting the task", e);
         }
@@ -424,7 +664,8 @@ public abstract class NioConnection implements Callable<Boolean> {
                 closeConnection(key);
                 link.terminated();
             } else {
-                key.interestOps(SelectionKey.OP_READ);
+                // a link with a parked task is read again once the task is taken
+                key.interestOps(loopOf(key).isParked(key) ? 0 : SelectionKey.OP_READ);
             }
         } catch (final Exception e) {
             logDebug(e, key, 3);
@@ -451,26 +692,17 @@ public abstract class NioConnection implements Callable<Boolean> {
 
     public void register(final int ops, final SocketChannel key, final Object att) {
         final ChangeRequest todo = new ChangeRequest(key, ChangeRequest.REGISTER, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
-        _selector.wakeup();
+        _mainLoop.addTodo(todo);
     }
 
     public void change(final int ops, final SelectionKey key, final Object att) {
         final ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
-        _selector.wakeup();
+        loopOf(key).addTodo(todo);
     }
 
     public void close(final SelectionKey key) {
         final ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CLOSE, 0, null);
-        synchronized (this) {
-            _todos.add(todo);
-        }
-        _selector.wakeup();
+        loopOf(key).addTodo(todo);
     }
 
     /* Release the resource used by the instance */
@@ -478,12 +710,26 @@ public abstract class NioConnection implements Callable<Boolean> {
         if (_selector != null) {
             _selector.close();
         }
+        for (final SelectorLoop loop : _ioLoops) {
+            loop.getSelector().close();
+        }
+    }
+
+    private static class ParkedTask {
+        private final SelectionKey _key;
+        private final Task _task;
+
+        ParkedTask(final SelectionKey key, final Task task) {
+            _key = key;
+            _task = task;
+        }
     }
 
     public class ChangeRequest {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ACCEPT = 4;
 
         public Object key;
         public int type;
@@ -0,0 +1,102 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWheelTest {
+    private static final Executor s_sameThread = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private TimerWheel _wheel;
+
+    @Before
+    public void setUp() {
+        _wheel = new TimerWheel("TimerWheelTest", 10, TimeUnit.MILLISECONDS, 8, s_sameThread);
+    }
+
+    @After
+    public void tearDown() {
+        _wheel.stop();
+    }
+
+    @Test
+    public void timeoutFiresAfterDelay() throws InterruptedException {
+        final CountDownLatch fired = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+        _wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+    }
+
+    @Test
+    public void timeoutLongerThanOneRoundFires() throws InterruptedException {
+        // 8 slots of 10ms, so this has to go around the wheel a few times
+        final CountDownLatch fired = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+        _wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 250, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 250);
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotFire() throws InterruptedException {
+        final AtomicInteger count = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+        final TimerWheel.Timeout cancelled = _wheel.schedule(task, 30, TimeUnit.MILLISECONDS);
+        _wheel.schedule(task, 30, TimeUnit.MILLISECONDS);
+        cancelled.cancel();
+
+        Thread.sleep(300);
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, count.get());
+    }
+}
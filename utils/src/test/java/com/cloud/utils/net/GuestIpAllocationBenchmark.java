@@ -0,0 +1,95 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.net;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares picking a free guest IP by enumerating the free addresses of the cidr into a
+ * TreeSet against building an Ip4AddressBitmap from the used addresses, for half used networks.
+ *
+ * It is not picked up by the unit tests, run its main() with the utils test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GuestIpAllocationBenchmark {
+
+    private static final String CIDR = "10.0.0.0";
+
+    @Param({"24", "20", "16"})
+    int cidrSize;
+
+    Set<Long> _usedIps;
+    Random _random;
+
+    @Setup
+    public void setup() {
+        final Ip4AddressBitmap range = Ip4AddressBitmap.fromCidr(CIDR, cidrSize);
+        _usedIps = new TreeSet<Long>();
+        for (long ip = range.getFirstIp(); ip < range.getFirstIp() + range.size() / 2; ip++) {
+            _usedIps.add(ip);
+        }
+        _random = new Random(42);
+    }
+
+    @Benchmark
+    public long treeSet() {
+        final Set<Long> free = NetUtils.getAllIpsFromCidr(CIDR, cidrSize, _usedIps);
+        final Long[] candidates = free.toArray(new Long[free.size()]);
+        return candidates[_random.nextInt(Math.min(255, candidates.length))];
+    }
+
+    @Benchmark
+    public long bitmap() {
+        final Ip4AddressBitmap bitmap = Ip4AddressBitmap.fromCidr(CIDR, cidrSize);
+        for (final Long ip : _usedIps) {
+            bitmap.allocate(ip);
+        }
+        return bitmap.pickFree(_random, 255);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder().include(GuestIpAllocationBenchmark.class.getSimpleName()).build();
+        new Runner(opt).run();
+    }
+}
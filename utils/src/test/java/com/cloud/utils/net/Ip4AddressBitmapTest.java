@@ -0,0 +1,117 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Ip4AddressBitmapTest {
+
+    @Test
+    public void testFromCidrCoversHostAddresses() {
+        final Ip4AddressBitmap bitmap = Ip4AddressBitmap.fromCidr("10.1.1.77", 24);
+        assertEquals(NetUtils.ip2Long("10.1.1.1"), bitmap.getFirstIp());
+        assertEquals(254, bitmap.size());
+        assertEquals(254, bitmap.getFreeCount());
+        assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.0")));
+        assertTrue(bitmap.contains(NetUtils.ip2Long("10.1.1.254")));
+        assertFalse(bitmap.contains(NetUtils.ip2Long("10.1.1.255")));
+    }
+
+    @Test
+    public void testAllocateAndRelease() {
+        final Ip4AddressBitmap bitmap = Ip4AddressBitmap.fromCidr("10.1.1.0", 24);
+        final long ip = NetUtils.ip2Long("10.1.1.100");
+        assertTrue(bitmap.isFree(ip));
+        assertTrue(bitmap.allocate(ip));
+        assertFalse(bitmap.allocate(ip));
+        assertFalse(bitmap.isFree(ip));
+        assertEquals(253, bitmap.getFreeCount());
+        assertTrue(bitmap.release(ip));
+        assertFalse(bitmap.release(ip));
+        assertEquals(254, bitmap.getFreeCount());
+
+        assertFalse(bitmap.allocate(NetUtils.ip2Long("10.1.2.1")));
+        assertFalse(bitmap.release(NetUtils.ip2Long("10.1.2.1")));
+    }
+
+    @Test
+    public void testNextFreeAcrossWords() {
+        final Ip4AddressBitmap bitmap = new Ip4AddressBitmap(1000, 1199);
+        for (long ip = 1000; ip < 1130; ip++) {
+            bitmap.allocate(ip);
+        }
+        assertEquals(1130, bitmap.nextFree(0));
+        assertEquals(1130, bitmap.nextFree(1064));
+        assertEquals(1150, bitmap.nextFree(1150));
+        assertEquals(1199, bitmap.nextFree(1199));
+        assertEquals(-1, bitmap.nextFree(1200));
+
+        bitmap.allocate(1199);
+        for (long ip = 1130; ip < 1199; ip++) {
+            bitmap.allocate(ip);
+        }
+        assertEquals(0, bitmap.getFreeCount());
+        assertEquals(-1, bitmap.nextFree(1000));
+    }
+
+    @Test
+    public void testPickFreeStaysInWindow() {
+        final Ip4AddressBitmap bitmap = Ip4AddressBitmap.fromCidr("10.0.0.0", 16);
+        final long first = bitmap.getFirstIp();
+        for (long ip = first; ip < first + 1000; ip++) {
+            bitmap.allocate(ip);
+        }
+        final Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            final long ip = bitmap.pickFree(random, 255);
+            assertTrue(bitmap.isFree(ip));
+            assertTrue(ip >= first + 1000 && ip < first + 1255);
+        }
+    }
+
+    @Test
+    public void testPickWhenFull() {
+        final Ip4AddressBitmap bitmap = Ip4AddressBitmap.fromCidr("192.168.0.0", 30);
+        final Random random = new Random(1);
+        assertEquals(2, bitmap.size());
+        assertTrue(bitmap.allocate(bitmap.pickRandomFree(random)));
+        final long last = bitmap.pickFree(random, 255);
+        assertTrue(bitmap.isFree(last));
+        assertTrue(bitmap.allocate(last));
+        assertEquals(-1, bitmap.pickFree(random, 255));
+        assertEquals(-1, bitmap.pickRandomFree(random));
+    }
+
+    @Test
+    public void testEmptyRange() {
+        final Ip4AddressBitmap bitmap = Ip4AddressBitmap.fromCidr("192.168.0.0", 31);
+        assertEquals(0, bitmap.size());
+        assertEquals(0, bitmap.getFreeCount());
+        assertEquals(-1, bitmap.nextFree(bitmap.getFirstIp()));
+        assertEquals(-1, bitmap.pickFree(new Random(), 255));
+        assertEquals(-1, bitmap.pickRandomFree(new Random()));
+    }
+}
@@ -0,0 +1,84 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ByteBufferPoolTest {
+
+    @Test
+    public void acquireRoundsUpToSizeClass() {
+        ByteBufferPool pool = new ByteBufferPool(false, 64 * 1024, 1024 * 1024);
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, pool.acquire(1).capacity());
+        assertEquals(8192, pool.acquire(4097).capacity());
+        assertEquals(32768, pool.acquire(16709 + 40).capacity());
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        ByteBufferPool pool = new ByteBufferPool(false, 64 * 1024, 1024 * 1024);
+        ByteBuffer buffer = pool.acquire(5000);
+        buffer.putInt(42);
+        pool.release(buffer);
+        assertEquals(buffer.capacity(), pool.getPooledBytes());
+
+        ByteBuffer again = pool.acquire(6000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void oversizedBuffersAreNotPooled() {
+        ByteBufferPool pool = new ByteBufferPool(false, 8192, 1024 * 1024);
+        ByteBuffer buffer = pool.acquire(10000);
+        assertEquals(10000, buffer.capacity());
+        pool.release(buffer);
+        assertEquals(0, pool.getPooledBytes());
+        assertNotSame(buffer, pool.acquire(10000));
+    }
+
+    @Test
+    public void pooledBytesAreBounded() {
+        ByteBufferPool pool = new ByteBufferPool(false, 8192, 8192);
+        pool.release(pool.acquire(8192));
+        pool.release(ByteBuffer.allocate(8192));
+        assertEquals(8192, pool.getPooledBytes());
+    }
+
+    @Test
+    public void directPoolHandsOutDirectBuffers() {
+        ByteBufferPool pool = new ByteBufferPool(true, 8192, 8192);
+        assertTrue(pool.acquire(100).isDirect());
+        pool.release(ByteBuffer.allocate(4096));
+        assertEquals(0, pool.getPooledBytes());
+        assertFalse(new ByteBufferPool(false, 8192, 8192).acquire(100).isDirect());
+    }
+}
@@ -0,0 +1,179 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class NioConnectionTest {
+    private final CountDownLatch _release = new CountDownLatch(1);
+    private TestConnection _connection;
+
+    private static class TestConnection extends NioConnection {
+        TestConnection() {
+            // one worker, so at most five handler threads
+            super("NioConnectionTest", 0, 1, null);
+        }
+
+        @Override
+        void init() throws IOException {
+        }
+
+        @Override
+        void registerLink(final InetSocketAddress saddr, final Link link) {
+        }
+
+        @Override
+        void unregisterLink(final InetSocketAddress saddr) {
+        }
+    }
+
+    private class BlockingTask extends Task {
+        BlockingTask(final Task.Type type) {
+            super(type, null, (Object)null);
+        }
+
+        @Override
+        protected void doTask(final Task task) {
+            try {
+                _release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Before
+    public void setup() {
+        System.setProperty(NioConnection.HANDLER_QUEUE_SIZE_PROPERTY, "1");
+        try {
+            _connection = new TestConnection();
+        } finally {
+            System.clearProperty(NioConnection.HANDLER_QUEUE_SIZE_PROPERTY);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        _release.countDown();
+        _connection.stop();
+    }
+
+    private static SelectionKey readingKey() {
+        final SelectionKey key = Mockito.mock(SelectionKey.class);
+        Mockito.when(key.isValid()).thenReturn(true);
+        Mockito.when(key.interestOps()).thenReturn(SelectionKey.OP_READ);
+        return key;
+    }
+
+    private void fillHandlers() {
+        // five running handlers and one queued task
+        for (int i = 0; i < 6; i++) {
+            _connection.submit(_connection._mainLoop, null, new BlockingTask(Task.Type.OTHER));
+        }
+    }
+
+    private void waitForIdleHandlers() throws InterruptedException {
+        final ThreadPoolExecutor executor = (ThreadPoolExecutor)_connection._executor;
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while ((executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.getQueue().size());
+    }
+
+    @Test
+    public void fullHandlerQueueParksTaskAndStopsReadingItsLink() throws InterruptedException {
+        final NioConnection.SelectorLoop loop = _connection._mainLoop;
+        fillHandlers();
+
+        final SelectionKey key = readingKey();
+        _connection.submit(loop, key, new BlockingTask(Task.Type.DATA));
+
+        // the selector does not wait, it only stops reading from that link
+        Mockito.verify(key).interestOps(0);
+        assertTrue(loop.isParked(key));
+
+        _release.countDown();
+        waitForIdleHandlers();
+        Mockito.when(key.interestOps()).thenReturn(0);
+        loop.submitParked();
+
+        assertFalse(loop.isParked(key));
+        Mockito.verify(key).interestOps(SelectionKey.OP_READ);
+    }
+
+    @Test
+    public void tasksQueueBehindParkedTasks() throws InterruptedException {
+        final NioConnection.SelectorLoop loop = _connection._mainLoop;
+        fillHandlers();
+
+        final SelectionKey first = readingKey();
+        _connection.submit(loop, first, new BlockingTask(Task.Type.DATA));
+        // a disconnect is parked as well rather than dropped, and keeps its place after the parked data
+        final SelectionKey second = readingKey();
+        _connection.submit(loop, second, new BlockingTask(Task.Type.DISCONNECT));
+
+        assertTrue(loop.isParked(first));
+        assertTrue(loop.isParked(second));
+        // only data tasks stop the reads of their link
+        Mockito.verify(second, Mockito.never()).interestOps(Mockito.anyInt());
+
+        _release.countDown();
+        waitForIdleHandlers();
+        Mockito.when(first.interestOps()).thenReturn(0);
+        loop.submitParked();
+
+        assertFalse(loop.isParked(first));
+        assertFalse(loop.isParked(second));
+        Mockito.verify(first).interestOps(SelectionKey.OP_READ);
+    }
+
+    @Test
+    public void writingLinkIsReadAgainAfterTheWrite() throws InterruptedException {
+        final NioConnection.SelectorLoop loop = _connection._mainLoop;
+        fillHandlers();
+
+        final SelectionKey key = readingKey();
+        _connection.submit(loop, key, new BlockingTask(Task.Type.DATA));
+
+        _release.countDown();
+        waitForIdleHandlers();
+        // the link is writing, write() gives it OP_READ back once it is done
+        Mockito.when(key.interestOps()).thenReturn(SelectionKey.OP_WRITE);
+        loop.submitParked();
+
+        assertFalse(loop.isParked(key));
+        Mockito.verify(key, Mockito.never()).interestOps(SelectionKey.OP_READ);
+    }
+}